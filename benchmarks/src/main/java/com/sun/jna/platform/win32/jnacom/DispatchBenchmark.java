@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Function;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Calls through an interface proxy, reflective or generated, compared with
+ * calling the same vtable slot with JNA directly.  The difference is what
+ * the proxy, the method lookup and the argument handling cost.
+ *
+ * @author scott.palmer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"reflective", "generated", "stub"})
+    String proxy;
+
+    IBench bench;
+    Function nothing;
+    Object[] self;
+
+    @Setup
+    public void setUp() {
+        ComObject.generatedProxies = "generated".equals(proxy);
+        ComObject.compiledStubs = "stub".equals(proxy);
+        FakeBench fake = new FakeBench();
+        bench = fake.wrap();
+        nothing = VTable.of(fake.object).function(3);
+        self = new Object[] {fake.object};
+    }
+
+    /** The native call alone, without the proxy. */
+    @Benchmark
+    public int baseline() {
+        return nothing.invokeInt(self);
+    }
+
+    @Benchmark
+    public void noArgs() {
+        bench.nothing();
+    }
+
+    @Benchmark
+    public int intArg() {
+        return bench.twice(21);
+    }
+
+    @Benchmark
+    public void eightArgs() {
+        bench.putMany(1, 2, 3, 4, 5, 6, 7, 8);
+    }
+}
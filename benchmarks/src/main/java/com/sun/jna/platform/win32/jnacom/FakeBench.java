@@ -0,0 +1,129 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+
+/**
+ * A {@link FakeComObject} implementing {@link IBench}, so that the whole
+ * call path can be measured without Windows.  Every method succeeds and
+ * does as little as its signature allows.
+ *
+ * @author scott.palmer
+ */
+final class FakeBench {
+
+    public interface NoArgs extends Callback {
+        int invoke(Pointer self);
+    }
+
+    public interface IntMethod extends Callback {
+        int invoke(Pointer self, int value, Pointer retval);
+    }
+
+    public interface LongMethod extends Callback {
+        int invoke(Pointer self, long value, Pointer retval);
+    }
+
+    public interface DoubleMethod extends Callback {
+        int invoke(Pointer self, double value, Pointer retval);
+    }
+
+    /** A method with one pointer argument: an [out] value or an [in] pointer. */
+    public interface PointerMethod extends Callback {
+        int invoke(Pointer self, Pointer p);
+    }
+
+    public interface ManyMethod extends Callback {
+        int invoke(Pointer self, int a, int b, int c, int d, int e, int f, int g, int h);
+    }
+
+    final FakeComObject fake;
+    final Memory object;
+
+    FakeBench() {
+        PointerMethod accept = new PointerMethod() {
+            public int invoke(Pointer self, Pointer p) {
+                return 0;
+            }
+        };
+        fake = new FakeComObject(
+                new NoArgs() {
+                    public int invoke(Pointer self) {
+                        return 0;
+                    }
+                },
+                new IntMethod() {
+                    public int invoke(Pointer self, int value, Pointer retval) {
+                        retval.setInt(0, value * 2);
+                        return 0;
+                    }
+                },
+                new LongMethod() {
+                    public int invoke(Pointer self, long value, Pointer retval) {
+                        retval.setLong(0, -value);
+                        return 0;
+                    }
+                },
+                new DoubleMethod() {
+                    public int invoke(Pointer self, double value, Pointer retval) {
+                        retval.setDouble(0, value / 2);
+                        return 0;
+                    }
+                },
+                new PointerMethod() {
+                    public int invoke(Pointer self, Pointer retval) {
+                        retval.setByte(0, (byte) 7);
+                        return 0;
+                    }
+                },
+                new PointerMethod() {
+                    public int invoke(Pointer self, Pointer retval) {
+                        retval.setByte(0, (byte) 1);
+                        return 0;
+                    }
+                },
+                new PointerMethod() {
+                    public int invoke(Pointer self, Pointer retval) {
+                        retval.setPointer(0, self);
+                        return 0;
+                    }
+                },
+                new PointerMethod() {
+                    public int invoke(Pointer self, Pointer retval) {
+                        fake.refCount++;
+                        retval.setPointer(0, self);
+                        return 0;
+                    }
+                },
+                new PointerMethod() {
+                    public int invoke(Pointer self, Pointer retval) {
+                        retval.setInt(8, 640);
+                        retval.setInt(12, 480);
+                        return 0;
+                    }
+                },
+                accept,
+                accept,
+                accept,
+                new ManyMethod() {
+                    public int invoke(Pointer self, int a, int b, int c, int d, int e, int f, int g, int h) {
+                        return 0;
+                    }
+                });
+        object = fake.object;
+    }
+
+    /**
+     * Wraps the object on the calling thread, which must be where it is
+     * called from (or an apartment thread, to have the calls handed to it).
+     */
+    IBench wrap() {
+        ComObject.comInitialized.set(true);
+        return fake.wrap(IBench.class);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The first call through an interface in a fresh JVM: wrapping the pointer
+ * and calling one method, which is when the proxy class is spun or the
+ * compiled stub loaded, and the descriptors are built.  Every measurement
+ * is a fork of its own.
+ *
+ * <p>
+ * <tt>main</tt> does the same once and prints the time since the JVM
+ * started, for comparing startup with and without stubs:
+ * <pre>
+ * java -cp target/benchmarks.jar com.sun.jna.platform.win32.jnacom.FirstCallBenchmark
+ * java -Djnacom.stubs=false -cp target/benchmarks.jar com.sun.jna.platform.win32.jnacom.FirstCallBenchmark
+ * </pre>
+ *
+ * @author scott.palmer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(20)
+public class FirstCallBenchmark {
+
+    @Param({"reflective", "generated", "stub"})
+    String proxy;
+
+    FakeBench fake;
+
+    @Setup
+    public void setUp() {
+        ComObject.generatedProxies = "generated".equals(proxy);
+        ComObject.compiledStubs = "stub".equals(proxy);
+        fake = new FakeBench();
+    }
+
+    @Benchmark
+    public int wrapAndCall() {
+        return fake.wrap().twice(21);
+    }
+
+    public static void main(String[] args) {
+        ComObject.comInitialized.set(true);
+        long start = System.nanoTime();
+        int r = new FakeBench().wrap().twice(21);
+        long first = System.nanoTime() - start;
+        System.out.println("stubs " + ComObject.compiledStubs + ", generated proxies " + ComObject.generatedProxies
+                + ": first call " + first / 1000 + " us, "
+                + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after JVM start (" + r + ")");
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The same call made on the calling thread, handed to an {@link Apartment}
+ * thread the way single threaded mode does it, and handed to a single
+ * thread executor the way ComObject did before apartments.  Run with
+ * <tt>-t</tt> to see several callers compete for the one thread.
+ *
+ * @author scott.palmer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandoffBenchmark {
+
+    static final ThreadFactory daemons = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "benchmark-apartment");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    IBench local, remote, executed;
+    ExecutorService executor;
+    Callable<Integer> twice;
+
+    @Setup
+    public void setUp() throws Throwable {
+        final FakeBench fake = new FakeBench();
+        local = fake.wrap();
+        remote = new Apartment(daemons).call(new Callable<IBench>() {
+            public IBench call() {
+                return fake.wrap();
+            }
+        });
+        executor = Executors.newSingleThreadExecutor(daemons);
+        executed = executor.submit(new Callable<IBench>() {
+            public IBench call() {
+                return fake.wrap();
+            }
+        }).get();
+        twice = new Callable<Integer>() {
+            public Integer call() {
+                return executed.twice(21);
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public int direct() {
+        return local.twice(21);
+    }
+
+    @Benchmark
+    public int apartment() {
+        return remote.twice(21);
+    }
+
+    @Benchmark
+    public int executor() throws Exception {
+        return executor.submit(twice).get();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Structure;
+import com.sun.jna.platform.win32.WinNT.HANDLE;
+
+/**
+ * The interface all benchmarks call, with a method for each kind of return
+ * value and argument the call path treats differently.  Implemented by
+ * {@link FakeBench}.
+ *
+ * @author scott.palmer
+ */
+@IID("{6C0F4E2A-5B8D-4A71-9E3C-2D7B1F8A4C60}")
+public interface IBench extends IUnknown {
+
+    /** A structure returned by value through the [retval] pointer. */
+    public static class Rect extends Structure {
+        public int left, top, right, bottom;
+    }
+
+    @VTID(3)
+    void nothing();
+    @VTID(4)
+    int twice(int value);
+    @VTID(5)
+    long negate(long value);
+    @VTID(6)
+    double half(double value);
+    @VTID(7)
+    byte getByte();
+    @VTID(8)
+    boolean isReady();
+    @VTID(9)
+    HANDLE getHandle();
+    @VTID(10)
+    IBench getSelf();
+    @VTID(11)
+    Rect getRect();
+    @VTID(12)
+    void putString(String s);
+    @VTID(13)
+    void putBSTR(@BSTR String s);
+    @VTID(14)
+    void putObject(IBench other);
+    @VTID(15)
+    void putMany(int a, int b, int c, int d, int e, int f, int g, int h);
+}
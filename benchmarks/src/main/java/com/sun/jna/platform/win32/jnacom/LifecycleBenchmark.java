@@ -0,0 +1,79 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Getting and letting go of interfaces: <tt>queryInterface</tt>,
+ * {@link ComObject#copy} and <tt>dispose</tt>, and a bare AddRef/Release
+ * pair for comparison.  Every wrapper made is disposed again, so the
+ * release queue stays empty.  With <tt>canonical</tt> the wrapper already
+ * in use is handed out again instead of a new one.  Run with
+ * <tt>-jvmArgsAppend -Djnacom.interfaceCache=true</tt> to have
+ * <tt>queryInterface</tt> answered from the interface cache.
+ *
+ * @author scott.palmer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LifecycleBenchmark {
+
+    @Param({"reflective", "generated", "stub"})
+    String proxy;
+
+    @Param({"false", "true"})
+    boolean canonical;
+
+    FakeBench fake;
+    IBench bench;
+
+    @Setup
+    public void setUp() {
+        ComObject.generatedProxies = "generated".equals(proxy);
+        ComObject.compiledStubs = "stub".equals(proxy);
+        ComObject.canonicalProxies = canonical;
+        fake = new FakeBench();
+        bench = fake.wrap();
+    }
+
+    @Benchmark
+    public int addRefRelease() {
+        bench.addRef();
+        return bench.release();
+    }
+
+    @Benchmark
+    public void queryInterfaceDispose() {
+        bench.queryInterface(IBench.class).dispose();
+    }
+
+    @Benchmark
+    public void copyDispose() {
+        ComObject.copy(bench).dispose();
+    }
+
+    /** Wrapping a pointer the caller already holds a reference for. */
+    @Benchmark
+    public void wrapDispose() {
+        fake.fake.refCount++;
+        ComObject.wrapNativeInterface(fake.object, IBench.class).dispose();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the native argument list, without making the call: the three
+ * <tt>prepareArgs</tt> variants, and arguments that are passed as they are,
+ * unwrapped to an interface pointer or encoded as a string.
+ *
+ * @author scott.palmer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrepareArgsBenchmark {
+
+    ComObject com;
+    ComMethod nothing, twice, putMany, putString, putObject;
+    Object[] intArgs, manyArgs, stringArgs, objectArgs;
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        IBench bench = new FakeBench().wrap();
+        com = ComObject.of(bench);
+        nothing = ComMethod.of(IBench.class.getMethod("nothing"));
+        twice = ComMethod.of(IBench.class.getMethod("twice", int.class));
+        putMany = ComMethod.of(IBench.class.getMethod("putMany",
+                int.class, int.class, int.class, int.class, int.class, int.class, int.class, int.class));
+        putString = ComMethod.of(IBench.class.getMethod("putString", String.class));
+        putObject = ComMethod.of(IBench.class.getMethod("putObject", IBench.class));
+        intArgs = new Object[] {21};
+        manyArgs = new Object[] {1, 2, 3, 4, 5, 6, 7, 8};
+        stringArgs = new Object[] {"C:\\Windows\\System32\\notepad.exe"};
+        objectArgs = new Object[] {bench};
+    }
+
+    @Benchmark
+    public Object noArgs() {
+        CallFrame frame = CallFrame.enter();
+        try {
+            return com.prepareArgs(frame, nothing, null)[0];
+        } finally {
+            frame.exit();
+        }
+    }
+
+    @Benchmark
+    public Object intArg() {
+        CallFrame frame = CallFrame.enter();
+        try {
+            return com.prepareArgs(frame, twice, intArgs)[1];
+        } finally {
+            frame.exit();
+        }
+    }
+
+    @Benchmark
+    public Object eightArgs() {
+        CallFrame frame = CallFrame.enter();
+        try {
+            return com.prepareArgs(frame, putMany, manyArgs)[8];
+        } finally {
+            frame.exit();
+        }
+    }
+
+    @Benchmark
+    public Object plusRetVal() {
+        CallFrame frame = CallFrame.enter();
+        try {
+            return com.prepareArgsPlusRetVal(frame, twice, intArgs)[1];
+        } finally {
+            frame.exit();
+        }
+    }
+
+    @Benchmark
+    public Object withRetVal() {
+        CallFrame frame = CallFrame.enter();
+        try {
+            return com.prepareArgs(frame, twice, intArgs, frame.retval())[2];
+        } finally {
+            frame.exit();
+        }
+    }
+
+    @Benchmark
+    public Object interfaceArg() {
+        CallFrame frame = CallFrame.enter();
+        try {
+            return com.prepareArgs(frame, putObject, objectArgs)[1];
+        } finally {
+            frame.exit();
+        }
+    }
+
+    @Benchmark
+    public Object stringArg() {
+        StringArena arena = StringArena.get();
+        long mark = arena.mark();
+        CallFrame frame = CallFrame.enter();
+        try {
+            return com.prepareArgs(frame, putString, stringArgs)[1];
+        } finally {
+            frame.exit();
+            arena.reset(mark);
+        }
+    }
+}
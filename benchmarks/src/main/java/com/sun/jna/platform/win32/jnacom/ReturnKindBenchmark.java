@@ -0,0 +1,106 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Each <tt>invoke*Com</tt> method, called on the {@link ComObject} directly
+ * so the proxy is not part of the numbers.  The BSTR return kind is left
+ * out: freeing the string needs oleaut32.
+ *
+ * @author scott.palmer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReturnKindBenchmark {
+
+    ComObject com;
+    ComMethod nothing, twice, negate, half, getByte, isReady, getHandle, getSelf, getRect;
+    Object[] intArgs, longArgs, doubleArgs;
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        com = ComObject.of(new FakeBench().wrap());
+        nothing = call("nothing");
+        twice = call("twice", int.class);
+        negate = call("negate", long.class);
+        half = call("half", double.class);
+        getByte = call("getByte");
+        isReady = call("isReady");
+        getHandle = call("getHandle");
+        getSelf = call("getSelf");
+        getRect = call("getRect");
+        intArgs = new Object[] {21};
+        longArgs = new Object[] {21L};
+        doubleArgs = new Object[] {2.5};
+    }
+
+    private static ComMethod call(String name, Class<?>... params) throws NoSuchMethodException {
+        Method m = IBench.class.getMethod(name, params);
+        return ComMethod.of(m);
+    }
+
+    @Benchmark
+    public void voidCall() {
+        com.invokeVoidCom(nothing);
+    }
+
+    @Benchmark
+    public int intCall() {
+        return com.invokeIntCom(twice, intArgs);
+    }
+
+    @Benchmark
+    public long longCall() {
+        return com.invokeLongCom(negate, longArgs);
+    }
+
+    @Benchmark
+    public double doubleCall() {
+        return com.invokeDoubleCom(half, doubleArgs);
+    }
+
+    @Benchmark
+    public byte byteCall() {
+        return com.invokeByteCom(getByte);
+    }
+
+    @Benchmark
+    public boolean booleanCall() {
+        return com.invokeByteCom(isReady) != 0;
+    }
+
+    @Benchmark
+    public Object handleCall() {
+        return com.invokeHandleCom(getHandle);
+    }
+
+    /** Includes the proxy made for the result and disposing it. */
+    @Benchmark
+    public void interfaceCall() {
+        ((IBench) com.invokeObjectCom(getSelf)).dispose();
+    }
+
+    @Benchmark
+    public Object structureCall() {
+        return com.invokeObjectCom(getRect);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Function;
+import com.sun.jna.Pointer;
+import com.sun.jna.WString;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * String arguments: encoding a string into the per-thread arena as a wide
+ * string or a BSTR, the same calls made through the proxy, and the same
+ * native call given a {@link WString}, which JNA copies into memory of its
+ * own on every call.
+ *
+ * @author scott.palmer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringBenchmark {
+
+    @Param({"8", "64", "1024"})
+    int length;
+
+    String s;
+    IBench bench;
+    StringArena arena;
+    Function putString;
+    Object[] wstringArgs;
+
+    @Setup
+    public void setUp() {
+        StringBuilder b = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            b.append((char) ('a' + i % 26));
+        s = b.toString();
+        FakeBench fake = new FakeBench();
+        bench = fake.wrap();
+        arena = StringArena.get();
+        putString = VTable.of(fake.object).function(12);
+        wstringArgs = new Object[] {fake.object, new WString(s)};
+    }
+
+    @Benchmark
+    public Pointer arenaWide() {
+        long mark = arena.mark();
+        Pointer p = arena.wide(s);
+        arena.reset(mark);
+        return p;
+    }
+
+    @Benchmark
+    public Pointer arenaBSTR() {
+        long mark = arena.mark();
+        Pointer p = arena.bstr(s);
+        arena.reset(mark);
+        return p;
+    }
+
+    @Benchmark
+    public int jnaWString() {
+        return putString.invokeInt(wstringArgs);
+    }
+
+    @Benchmark
+    public void putString() {
+        bench.putString(s);
+    }
+
+    @Benchmark
+    public void putBSTR() {
+        bench.putBSTR(s);
+    }
+}
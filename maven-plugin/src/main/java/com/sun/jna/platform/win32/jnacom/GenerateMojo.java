@@ -0,0 +1,52 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Generates interfaces, enums, structures and coclasses from type libraries
+ * with {@link TypeLibGenerator}, and adds them to the sources to compile.
+ * Reading the type libraries needs no Windows.
+ *
+ * @author scott.palmer
+ */
+@Mojo(name = "generate", defaultPhase = LifecyclePhase.GENERATE_SOURCES, threadSafe = true)
+public class GenerateMojo extends AbstractMojo {
+
+    @Parameter(required = true)
+    private List<TypeLibrary> typeLibraries;
+
+    @Parameter(defaultValue = "${project.build.directory}/generated-sources/com4jna", required = true)
+    private File outputDirectory;
+
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    private MavenProject project;
+
+    public void execute() throws MojoExecutionException {
+        for (TypeLibrary t : typeLibraries) {
+            if (t.getFile() == null || t.getPackageName() == null)
+                throw new MojoExecutionException("A typeLibrary needs a file and a packageName");
+            try {
+                TypeLibGenerator g = new TypeLibGenerator(TypeLib.read(t.getFile()), t.getPackageName());
+                List<File> files = g.write(outputDirectory);
+                for (String s : g.getSkipped())
+                    getLog().info("Skipped " + s);
+                getLog().info(t.getFile().getName() + ": " + files.size() + " files generated in " + t.getPackageName());
+            } catch (IOException ex) {
+                throw new MojoExecutionException("Can't generate from " + t.getFile(), ex);
+            }
+        }
+        project.addCompileSourceRoot(outputDirectory.getPath());
+    }
+}
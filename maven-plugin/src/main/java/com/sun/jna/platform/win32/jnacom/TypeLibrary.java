@@ -0,0 +1,34 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.io.File;
+
+/**
+ * A type library to generate interfaces for, and the package they go in.
+ * @author scott.palmer
+ */
+public class TypeLibrary {
+
+    /** a .tlb, or a .dll, .ocx or .exe with a type library inside */
+    private File file;
+    private String packageName;
+
+    public File getFile() {
+        return file;
+    }
+
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public void setPackageName(String packageName) {
+        this.packageName = packageName;
+    }
+}
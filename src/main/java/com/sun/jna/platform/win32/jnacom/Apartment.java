@@ -0,0 +1,303 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * A COM thread that runs calls on behalf of other threads.
+ *
+ * <p>
+ * Callers put tasks in a bounded lock-free ring that only the apartment
+ * thread takes from.  A synchronous call uses a completion object that
+ * belongs to the calling thread and is reused for each of its calls, so
+ * handing a call over costs one ring slot and no allocation.  Both sides
+ * spin briefly before parking, and only unpark the other side if it is
+ * actually parked.
+ *
+ * @author scott.palmer
+ */
+final class Apartment {
+
+    /** Work to be run on the apartment thread. */
+    abstract static class Task {
+        abstract void run();
+    }
+
+    private static final int CAPACITY = 1024;
+    // spinning only helps if the other side can run at the same time
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 0;
+
+    private static final ThreadLocal<Apartment> current = new ThreadLocal<Apartment>();
+
+    private final ThreadFactory threadFactory;
+    private volatile Thread thread;
+    /** interface pointers of collected objects of this apartment */
+    final ReleaseQueue.Pending releases = new ReleaseQueue.Pending(this);
+
+    // Bounded multi-producer single-consumer ring.  A slot may be written
+    // by the producer that claimed position p once sequence[p % CAPACITY]
+    // equals p, and read by the consumer once it equals p + 1.
+    private final Task[] ring = new Task[CAPACITY];
+    private final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private volatile boolean parked;
+
+    private final ThreadLocal<SyncCall> syncCalls = new ThreadLocal<SyncCall>() {
+        @Override
+        protected SyncCall initialValue() {
+            return new SyncCall();
+        }
+    };
+
+    Apartment(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+        for (int i = 0; i < CAPACITY; i++)
+            sequence.set(i, i);
+    }
+
+    /**
+     * Returns the apartment whose thread is the calling thread, or null.
+     */
+    static Apartment current() {
+        return current.get();
+    }
+
+    /**
+     * True if the calling thread is this apartment's thread.
+     */
+    boolean isCurrentThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    Thread thread() {
+        return start();
+    }
+
+    /**
+     * True once the apartment's thread was started by its first task.
+     */
+    boolean isStarted() {
+        return thread != null;
+    }
+
+    /**
+     * Runs a call to a COM object on the apartment thread and waits for it.
+     * @throws Throwable whatever the call threw
+     */
+    Object invoke(ComObject target, Object proxy, ComMethod call, Object[] args) throws Throwable {
+        SyncCall c = syncCalls.get();
+        c.target = target;
+        c.proxy = proxy;
+        c.call = call;
+        c.args = args;
+        return c.await(this);
+    }
+
+    /**
+     * Runs a task on the apartment thread and waits for its result.
+     * @throws Throwable whatever the task threw
+     */
+    @SuppressWarnings("unchecked")
+    <T> T call(Callable<T> callable) throws Throwable {
+        SyncCall c = syncCalls.get();
+        c.callable = callable;
+        return (T) c.await(this);
+    }
+
+    /**
+     * Queues a call to a COM object and returns without waiting for it.
+     * @return a future completed with the result, or with whatever the call threw
+     */
+    CompletableFuture<Object> invokeAsync(ComObject target, Object proxy, ComMethod call, Object[] args) {
+        AsyncCall c = new AsyncCall(target, proxy, call, args);
+        execute(c);
+        return c.future;
+    }
+
+    /**
+     * Queues a task to run on the apartment thread without waiting for it.
+     */
+    void execute(Task task) {
+        start();
+        long pos;
+        int spins = 0;
+        for (;;) {
+            pos = tail.get();
+            long diff = sequence.get((int) pos & (CAPACITY - 1)) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+            } else if (diff < 0) {
+                // full: the consumer is behind, give it time to catch up
+                if (++spins > SPINS)
+                    Thread.yield();
+            }
+        }
+        int i = (int) pos & (CAPACITY - 1);
+        ring[i] = task;
+        sequence.set(i, pos + 1);
+        if (parked)
+            LockSupport.unpark(thread);
+    }
+
+    private Task poll() {
+        int i = (int) head & (CAPACITY - 1);
+        if (sequence.get(i) != head + 1)
+            return null;
+        Task t = ring[i];
+        ring[i] = null;
+        sequence.set(i, head + CAPACITY);
+        head++;
+        return t;
+    }
+
+    private Task take() {
+        for (int i = 0; i < SPINS; i++) {
+            Task t = poll();
+            if (t != null)
+                return t;
+        }
+        for (;;) {
+            parked = true;
+            Task t = poll();
+            if (t == null) {
+                LockSupport.park(this);
+                t = poll();
+            }
+            if (t != null) {
+                parked = false;
+                return t;
+            }
+        }
+    }
+
+    private Thread start() {
+        Thread t = thread;
+        if (t == null) {
+            synchronized (this) {
+                t = thread;
+                if (t == null) {
+                    t = threadFactory.newThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            current.set(Apartment.this);
+                            for (;;) {
+                                Task task = take();
+                                try {
+                                    task.run();
+                                } catch (Throwable ex) {
+                                    ComObject.logger.log(Level.SEVERE, null, ex);
+                                }
+                            }
+                        }
+                    });
+                    t.setDaemon(true);
+                    thread = t;
+                    t.start();
+                }
+            }
+        }
+        return t;
+    }
+
+    /**
+     * A call nobody waits for; the caller gets its future instead.
+     */
+    private static final class AsyncCall extends Task {
+        final CompletableFuture<Object> future = new CompletableFuture<Object>();
+        private final ComObject target;
+        private final Object proxy;
+        private final ComMethod call;
+        private final Object[] args;
+
+        AsyncCall(ComObject target, Object proxy, ComMethod call, Object[] args) {
+            this.target = target;
+            this.proxy = proxy;
+            this.call = call;
+            this.args = args;
+        }
+
+        @Override
+        void run() {
+            try {
+                future.complete(target.invoke(proxy, call, args));
+            } catch (Throwable ex) {
+                future.completeExceptionally(ex);
+            }
+        }
+    }
+
+    /**
+     * The completion object of one calling thread.  Only ever used for one
+     * call at a time, as its thread waits for the call to finish.
+     */
+    private static final class SyncCall extends Task {
+        ComObject target;
+        Object proxy;
+        ComMethod call;
+        Object[] args;
+        Callable<?> callable;
+        Object result;
+        Throwable failure;
+        Thread waiter;
+        private volatile boolean done;
+        private volatile boolean waiting;
+
+        @Override
+        void run() {
+            try {
+                result = callable != null ? callable.call() : target.invoke(proxy, call, args);
+            } catch (Throwable ex) {
+                failure = ex;
+            }
+            done = true;
+            if (waiting)
+                LockSupport.unpark(waiter);
+        }
+
+        Object await(Apartment apartment) throws Throwable {
+            waiter = Thread.currentThread();
+            done = false;
+            apartment.execute(this);
+            for (int i = 0; i < SPINS && !done; i++) {
+                // spin; the call is usually short
+            }
+            if (!done) {
+                // a COM call can't be abandoned half way, so interrupts are
+                // only passed on once it is finished
+                boolean interrupted = false;
+                waiting = true;
+                while (!done) {
+                    LockSupport.park(this);
+                    if (Thread.interrupted())
+                        interrupted = true;
+                }
+                waiting = false;
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+            Object r = result;
+            Throwable f = failure;
+            target = null;
+            proxy = null;
+            call = null;
+            args = null;
+            callable = null;
+            result = null;
+            failure = null;
+            if (f != null)
+                throw f;
+            return r;
+        }
+    }
+}
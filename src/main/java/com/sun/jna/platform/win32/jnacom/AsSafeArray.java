@@ -0,0 +1,28 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a primitive array parameter that the native method declares as an
+ * [in] SAFEARRAY.
+ *
+ * <p>
+ * The array is copied in one go into a one dimensional SAFEARRAY in the
+ * calling thread's scratch memory, which only lives for the duration of the
+ * call; the callee must not keep, resize or destroy it.  Without this
+ * annotation JNA passes the array as a plain C array.  See {@link SafeArray}
+ * for the element types.
+ *
+ * @author scott.palmer
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.PARAMETER})
+public @interface AsSafeArray {
+}
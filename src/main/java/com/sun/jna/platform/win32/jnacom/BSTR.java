@@ -0,0 +1,26 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a String parameter that the native method declares as an [in] BSTR.
+ *
+ * <p>
+ * Such strings are passed with the length prefix of a BSTR, so that the
+ * callee may use <tt>SysStringLen</tt> on them.  Other String parameters are
+ * passed as plain NUL terminated wide strings (LPCWSTR).  The string only
+ * lives for the duration of the call; the callee must not keep or free it.
+ *
+ * @author scott.palmer
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.PARAMETER})
+public @interface BSTR {
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Memory;
+import java.util.Arrays;
+
+/**
+ * The per thread scratch space of a COM call: the native argument array and
+ * the native memory the [retval] is written to.
+ *
+ * <p>
+ * Argument arrays are kept per length, so a method called again gets the
+ * same array back, and the [retval] goes into a small block of native memory
+ * instead of a new ByReference (and its malloc) per call.  A call made while
+ * another one on the same thread is still running, e.g. from a callback,
+ * gets a frame of its own.
+ *
+ * <p>
+ * The first frame of a thread also holds the HRESULT of the thread's last
+ * call, as a plain int.
+ *
+ * @author scott.palmer
+ */
+final class CallFrame {
+    private static final int MAX_ARGS = 16;
+
+    private static final ThreadLocal<CallFrame> frames = new ThreadLocal<CallFrame>() {
+        @Override
+        protected CallFrame initialValue() {
+            return new CallFrame(null);
+        }
+    };
+
+    /** big enough for any primitive or pointer */
+    private final Memory retval = new Memory(8);
+    private final Object[][] arrays = new Object[MAX_ARGS + 1][];
+    private Object[] used;
+    private boolean busy;
+    private CallFrame next;
+    /** the thread's first frame */
+    private final CallFrame root;
+    /** in the root frame only */
+    private int lastHRESULT;
+
+    private CallFrame(CallFrame root) {
+        this.root = root != null ? root : this;
+    }
+
+    /**
+     * Returns a free frame of the calling thread; {@link #exit()} must be
+     * called when the call is done.
+     */
+    static CallFrame enter() {
+        CallFrame f = frames.get();
+        while (f.busy) {
+            if (f.next == null)
+                f.next = new CallFrame(f.root);
+            f = f.next;
+        }
+        f.busy = true;
+        return f;
+    }
+
+    void exit() {
+        if (used != null) {
+            // don't keep the arguments reachable
+            Arrays.fill(used, null);
+            used = null;
+        }
+        busy = false;
+    }
+
+    /**
+     * Returns an argument array of the given length.
+     */
+    Object[] args(int length) {
+        Object[] a = length <= MAX_ARGS ? arrays[length] : null;
+        if (a == null) {
+            a = new Object[length];
+            if (length <= MAX_ARGS)
+                arrays[length] = a;
+        }
+        used = a;
+        return a;
+    }
+
+    /** Records the HRESULT of this frame's call as the thread's last one. */
+    void setHRESULT(int hresult) {
+        root.lastHRESULT = hresult;
+    }
+
+    static void setLastHRESULT(int hresult) {
+        frames.get().lastHRESULT = hresult;
+    }
+
+    /** @return the HRESULT of the calling thread's last call */
+    static int getLastHRESULT() {
+        return frames.get().lastHRESULT;
+    }
+
+    /**
+     * Returns the zeroed native memory for the [retval] of the call.
+     */
+    Memory retval() {
+        retval.setLong(0, 0);
+        return retval;
+    }
+}
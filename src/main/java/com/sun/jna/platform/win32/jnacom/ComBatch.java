@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * A recorded sequence of COM calls that are made together in one hand-off to
+ * the COM thread (see {@link ComObject#batch(Callable)}).
+ *
+ * <pre>
+ * ComBatch batch = new ComBatch();
+ * int name = batch.add(item, IItem.class.getMethod("getName"));
+ * int size = batch.add(item, IItem.class.getMethod("getSize"));
+ * Object[] results = batch.run();
+ * </pre>
+ *
+ * The calls are made in the order they were added, on the apartment of the
+ * first call's object.  The first call that
+ * fails ends the batch and its exception is thrown by {@link #run()}.  A
+ * batch may be run more than once; it is not safe for use by several threads
+ * at the same time.
+ *
+ * @author scott.palmer
+ */
+public final class ComBatch {
+    private final List<Object> proxies = new ArrayList<Object>();
+    private final List<ComMethod> calls = new ArrayList<ComMethod>();
+    private final List<Object[]> arguments = new ArrayList<Object[]>();
+
+    private final Callable<Object[]> block = new Callable<Object[]>() {
+        public Object[] call() {
+            Object[] results = new Object[calls.size()];
+            for (int i = 0; i < results.length; i++) {
+                Object proxy = proxies.get(i);
+                results[i] = ComObject.of(proxy).invoke(proxy, calls.get(i), arguments.get(i));
+            }
+            return results;
+        }
+    };
+
+    /**
+     * Adds a call to the batch.
+     * @param proxy an interface returned by {@link ComObject}
+     * @param method the method of that interface to call
+     * @param args the arguments, which must not be changed until the batch has run
+     * @return the index of the call's result in the array returned by {@link #run()}
+     */
+    public int add(Object proxy, Method method, Object... args) {
+        ComObject.of(proxy); // fail now rather than on the COM thread
+        proxies.add(proxy);
+        calls.add(ComMethod.of(method));
+        arguments.add(args);
+        return calls.size() - 1;
+    }
+
+    /** @return the number of calls in the batch */
+    public int size() {
+        return calls.size();
+    }
+
+    /** Removes all calls from the batch. */
+    public void clear() {
+        proxies.clear();
+        calls.clear();
+        arguments.clear();
+    }
+
+    /**
+     * Makes all calls of the batch.
+     * @return the result of each call, boxed as by the proxy, in the order they were added
+     * @throws ComException if a call failed
+     */
+    public Object[] run() {
+        try {
+            if (proxies.isEmpty())
+                return new Object[0];
+            // calls to objects of other apartments hop from there
+            return ComObject.batch(proxies.get(0), block);
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new UndeclaredThrowableException(ex);
+        }
+    }
+}
@@ -0,0 +1,533 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Callback;
+import com.sun.jna.CallbackProxy;
+import com.sun.jna.Memory;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.platform.win32.WinNT.HANDLE;
+import com.sun.jna.win32.StdCallLibrary;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * A Java object made callable from native code as a COM object, so it can be
+ * handed to native components as a callback or an event sink.
+ *
+ * <p>
+ * The vtable of an exported interface is built once: QueryInterface, AddRef
+ * and Release, then one JNA callback per {@link VTID} method.  Like the
+ * vtable of a native class it is shared by all objects exporting the
+ * interface; each object only allocates its own interface pointer.  What a
+ * slot has to do to its arguments and return value is worked out when the
+ * vtable is built, and the Java method is called through a method handle,
+ * so a call from native code costs no reflection.
+ *
+ * <p>
+ * Native code sees the methods the way {@link ComObject} calls them: an
+ * HRESULT return with the result written through a trailing [retval]
+ * pointer (unless the method is {@link NoHResult}), Strings as wide strings
+ * or {@link BSTR}s, interfaces as interface pointers and arrays as
+ * SAFEARRAYs (see {@link SafeArray}).  A
+ * {@link ComException} thrown by the implementation becomes its HRESULT,
+ * anything else E_FAIL.  Interfaces received as arguments are wrapped with
+ * a reference of their own, unless they are objects exported here, which
+ * are passed on as themselves.
+ *
+ * <p>
+ * The reference count is atomic, so native code may AddRef and Release from
+ * any thread; the implementation itself must be safe for the threads native
+ * code calls it on.  While the count is above zero the object is kept
+ * reachable from here.  {@link #export} returns with one reference owned by
+ * the caller, given up with {@link #release()}.
+ *
+ * @author scott.palmer
+ */
+public final class ComCallable {
+
+    private static final Integer S_OK = HResult.S_OK;
+    private static final Integer E_POINTER = HResult.E_POINTER;
+    private static final Integer E_NOINTERFACE = HResult.E_NOINTERFACE;
+    private static final Integer E_NOTIMPL = HResult.E_NOTIMPL;
+    private static final Integer E_FAIL = HResult.E_FAIL;
+    private static final Integer E_UNEXPECTED = HResult.E_UNEXPECTED;
+
+    /** exported objects with references, by interface pointer */
+    private static final ConcurrentHashMap<Pointer, ComCallable> live =
+            new ConcurrentHashMap<Pointer, ComCallable>();
+
+    private static final ClassValue<Layout> layouts = new ClassValue<Layout>() {
+        @Override
+        protected Layout computeValue(Class<?> intrface) {
+            return new Layout(intrface);
+        }
+    };
+
+    private final Object implementation;
+    private final Memory object = new Memory(Pointer.SIZE);
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    private ComCallable(Object implementation, Layout layout) {
+        this.implementation = implementation;
+        object.setPointer(0, layout.vtable);
+        live.put(object, this);
+    }
+
+    /**
+     * Exports a Java implementation of a COM interface.
+     * @param implementation the object native calls are passed on to
+     * @param intrface the interface to export; its {@link IID} and those of
+     *        the interfaces it extends are what QueryInterface answers to
+     * @return the exported object, holding one reference for the caller
+     * @throws IllegalArgumentException if the interface has no {@link IID}
+     *         or has a method that can't be called from native code
+     */
+    public static <T extends IUnknown> ComCallable export(T implementation, Class<T> intrface) {
+        if (!intrface.isInstance(implementation))
+            throw new IllegalArgumentException(implementation + " does not implement " + intrface.getName());
+        return new ComCallable(implementation, layouts.get(intrface));
+    }
+
+    /**
+     * Returns the interface pointer to hand to native code.  It does not add
+     * a reference, and is only valid while the object has references.
+     */
+    public Pointer getPointer() {
+        return object;
+    }
+
+    /**
+     * Wraps the exported object like any native one, with a reference of its
+     * own.  Calls made through the wrapper go through the native vtable.
+     */
+    public <T extends IUnknown> T wrap(Class<T> intrface) {
+        refCount.incrementAndGet();
+        return ComObject.wrapNativeInterface(object, intrface);
+    }
+
+    public Object getImplementation() {
+        return implementation;
+    }
+
+    /** @return the number of references native code (and the caller) hold */
+    public int getRefCount() {
+        return refCount.get();
+    }
+
+    /**
+     * Gives up a reference, normally the one {@link #export} returned with.
+     * @return the remaining number of references
+     */
+    public int release() {
+        int n = refCount.decrementAndGet();
+        if (n == 0)
+            live.remove(object);
+        return n;
+    }
+
+    private int addRef() {
+        return refCount.incrementAndGet();
+    }
+
+    /** Returns the exported object behind an interface pointer, or null. */
+    static ComCallable of(Pointer interfacePointer) {
+        return interfacePointer != null ? live.get(interfacePointer) : null;
+    }
+
+    /**
+     * The shared vtable of an exported interface and the callbacks it points
+     * at, which must stay reachable as long as the vtable does.
+     */
+    private static final class Layout {
+        final Memory vtable;
+        final Callback[] slots;
+        /** the interface IDs QueryInterface answers to */
+        final byte[][] iids;
+
+        Layout(Class<?> intrface) {
+            List<byte[]> ids = new ArrayList<byte[]>();
+            collectIIDs(intrface, ids);
+            if (Guids.iid(intrface) == null)
+                throw new IllegalArgumentException(intrface.getName() + " has no @IID annotation");
+            iids = ids.toArray(new byte[ids.size()][]);
+
+            List<Entry> entries = new ArrayList<Entry>();
+            entries.add(new QueryInterface(this));
+            entries.add(new AddRef());
+            entries.add(new Release());
+            for (Method m : intrface.getMethods()) {
+                VTID v = m.getAnnotation(VTID.class);
+                if (v == null || v.value() < 3)
+                    continue;
+                while (entries.size() <= v.value())
+                    entries.add(null);
+                entries.set(v.value(), new Invoke(ComMethod.of(m)));
+            }
+            slots = new Callback[entries.size()];
+            vtable = new Memory(slots.length * Pointer.SIZE);
+            for (int i = 0; i < slots.length; i++) {
+                Entry e = entries.get(i);
+                // a gap in the vtable; only safe to call without arguments
+                if (e == null)
+                    e = new NotImplemented();
+                // 32 bit Windows calls COM methods with stdcall
+                slots[i] = Platform.isWindows() ? new StdCall(e) : e;
+                vtable.setPointer(i * Pointer.SIZE, FunctionPointer.of(slots[i]));
+            }
+        }
+
+        private static void collectIIDs(Class<?> intrface, List<byte[]> ids) {
+            if (Guids.iid(intrface) != null) {
+                byte[] id = Guids.iidPointer(intrface).getByteArray(0, 16);
+                for (byte[] known : ids) {
+                    if (Arrays.equals(known, id))
+                        return;
+                }
+                ids.add(id);
+            }
+            for (Class<?> s : intrface.getInterfaces())
+                collectIIDs(s, ids);
+        }
+    }
+
+    /** Used to get at the native address of a callback. */
+    public static class FunctionPointer extends Structure {
+        public Callback fn;
+
+        static Pointer of(Callback cb) {
+            FunctionPointer fp = new FunctionPointer();
+            fp.fn = cb;
+            fp.write();
+            return fp.getPointer().getPointer(0);
+        }
+    }
+
+    /** A vtable slot; the first argument is always the interface pointer. */
+    private abstract static class Entry implements CallbackProxy {
+        public Class<?> getReturnType() {
+            return int.class;
+        }
+    }
+
+    /** An entry called with the stdcall convention. */
+    private static final class StdCall implements CallbackProxy, StdCallLibrary.StdCallCallback {
+        private final Entry entry;
+
+        StdCall(Entry entry) {
+            this.entry = entry;
+        }
+
+        public Object callback(Object[] args) {
+            return entry.callback(args);
+        }
+
+        public Class<?>[] getParameterTypes() {
+            return entry.getParameterTypes();
+        }
+
+        public Class<?> getReturnType() {
+            return entry.getReturnType();
+        }
+    }
+
+    private static final class QueryInterface extends Entry {
+        private final Layout layout;
+
+        QueryInterface(Layout layout) {
+            this.layout = layout;
+        }
+
+        public Object callback(Object[] args) {
+            ComCallable self = live.get(args[0]);
+            Pointer riid = (Pointer) args[1];
+            Pointer ppv = (Pointer) args[2];
+            if (ppv == null)
+                return E_POINTER;
+            if (self != null && riid != null) {
+                byte[] id = riid.getByteArray(0, 16);
+                for (byte[] iid : layout.iids) {
+                    if (Arrays.equals(iid, id)) {
+                        self.addRef();
+                        ppv.setPointer(0, self.object);
+                        return S_OK;
+                    }
+                }
+            }
+            ppv.setPointer(0, null);
+            return self != null ? E_NOINTERFACE : E_UNEXPECTED;
+        }
+
+        public Class<?>[] getParameterTypes() {
+            return new Class<?>[] {Pointer.class, Pointer.class, Pointer.class};
+        }
+    }
+
+    private static final class AddRef extends Entry {
+        public Object callback(Object[] args) {
+            ComCallable self = live.get(args[0]);
+            return self != null ? self.addRef() : 0;
+        }
+
+        public Class<?>[] getParameterTypes() {
+            return new Class<?>[] {Pointer.class};
+        }
+    }
+
+    private static final class Release extends Entry {
+        public Object callback(Object[] args) {
+            ComCallable self = live.get(args[0]);
+            return self != null ? self.release() : 0;
+        }
+
+        public Class<?>[] getParameterTypes() {
+            return new Class<?>[] {Pointer.class};
+        }
+    }
+
+    private static final class NotImplemented extends Entry {
+        public Object callback(Object[] args) {
+            return E_NOTIMPL;
+        }
+
+        public Class<?>[] getParameterTypes() {
+            return new Class<?>[] {Pointer.class};
+        }
+    }
+
+    /**
+     * Calls a method of the implementation.  The native arguments are
+     * converted in place and the whole array, interface pointer and [retval]
+     * included, is spread over a method handle that drops those two.
+     */
+    private static final class Invoke extends Entry {
+        // how an argument arrives from native code
+        private static final int WIDE = 1, BSTR = 2, INTERFACE = 3, HANDLE = 4, SAFEARRAY = 5, ARRAY = 6;
+
+        private final ComMethod call;
+        private final MethodHandle handle;
+        private final Class<?>[] javaTypes;
+        private final Class<?>[] nativeTypes;
+        /** conversion of each native argument, 0 for none */
+        private final int[] conversions;
+        /** true if the result goes through a [retval] pointer and an HRESULT is returned */
+        private final boolean retval;
+        private final boolean hresult;
+        /** what a {@link NoHResult} method returns if it fails */
+        private final Object failed;
+
+        Invoke(ComMethod call) {
+            this.call = call;
+            Method m = call.method;
+            if (call.retvalInout)
+                throw new IllegalArgumentException(m + ": in/out return values can't be exported");
+            hresult = !call.noHResult;
+            retval = hresult && call.kind != ComMethod.Kind.VOID;
+
+            Class<?>[] params = m.getParameterTypes();
+            javaTypes = params;
+            int n = params.length;
+            nativeTypes = new Class<?>[1 + n + (retval ? 1 : 0)];
+            conversions = new int[nativeTypes.length];
+            nativeTypes[0] = Pointer.class;
+            for (int i = 0; i < n; i++) {
+                Class<?> p = params[i];
+                int k = 0;
+                if (p == String.class)
+                    k = isBSTR(call, i) ? BSTR : WIDE;
+                else if (p.isInterface() && IUnknown.class.isAssignableFrom(p))
+                    k = INTERFACE;
+                else if (p == HANDLE.class)
+                    k = HANDLE;
+                else if (p == SafeArray.class)
+                    k = SAFEARRAY;
+                else if (p.isArray() && contains(call.safeArrayArgs, i))
+                    k = ARRAY;
+                conversions[1 + i] = k;
+                nativeTypes[1 + i] = k != 0 ? Pointer.class : p;
+            }
+            if (retval)
+                nativeTypes[n + 1] = Pointer.class;
+
+            Class<?> rt = m.getReturnType();
+            if (!hresult && rt != Void.TYPE && !rt.isPrimitive())
+                throw new IllegalArgumentException(m + ": only primitive values can be returned without an HRESULT");
+            failed = !hresult && rt.isPrimitive() && rt != Void.TYPE
+                    ? zero(rt) : null;
+
+            try {
+                if (!Modifier.isPublic(m.getDeclaringClass().getModifiers()))
+                    m.setAccessible(true);
+                MethodHandle h = MethodHandles.lookup().unreflect(m);
+                h = MethodHandles.dropArguments(h, 1, Pointer.class);
+                if (retval)
+                    h = MethodHandles.dropArguments(h, n + 2, Pointer.class);
+                h = h.asType(h.type().generic());
+                handle = h.asSpreader(Object[].class, nativeTypes.length);
+            } catch (IllegalAccessException ex) {
+                throw new IllegalArgumentException(m + " can't be called", ex);
+            }
+        }
+
+        private static boolean isBSTR(ComMethod call, int param) {
+            for (int k = 0; k < call.stringArgs.length; k++) {
+                if (call.stringArgs[k] == param)
+                    return call.bstrArgs[k];
+            }
+            return false;
+        }
+
+        private static boolean contains(int[] params, int param) {
+            for (int p : params) {
+                if (p == param)
+                    return true;
+            }
+            return false;
+        }
+
+        private static Object zero(Class<?> c) {
+            if (c == Long.TYPE) return 0L;
+            if (c == Double.TYPE) return 0.0;
+            if (c == Float.TYPE) return 0.0f;
+            if (c == Byte.TYPE) return (byte) 0;
+            if (c == Short.TYPE) return (short) 0;
+            if (c == Character.TYPE) return (char) 0;
+            if (c == Boolean.TYPE) return false;
+            return 0;
+        }
+
+        public Class<?>[] getParameterTypes() {
+            return nativeTypes;
+        }
+
+        @Override
+        public Class<?> getReturnType() {
+            return hresult ? int.class : call.method.getReturnType();
+        }
+
+        public Object callback(Object[] args) {
+            ComCallable self = live.get(args[0]);
+            if (self == null)
+                return hresult ? E_UNEXPECTED : failed;
+            Pointer out = retval ? (Pointer) args[args.length - 1] : null;
+            if (retval && out == null)
+                return E_POINTER;
+            try {
+                for (int i = 1; i < conversions.length; i++) {
+                    if (conversions[i] != 0)
+                        args[i] = convert(conversions[i], (Pointer) args[i], javaTypes[i - 1]);
+                }
+                Object r = (Object) handle.invokeExact(self.implementation, args);
+                if (!hresult)
+                    return r;
+                if (retval)
+                    store(out, r);
+                return S_OK;
+            } catch (ComException ex) {
+                return hresult ? ex.getHRESULT() : failed;
+            } catch (Throwable ex) {
+                ComObject.logger.log(Level.FINE, "Exported method " + call.name + " failed", ex);
+                return hresult ? E_FAIL : failed;
+            }
+        }
+
+        private static Object convert(int conversion, Pointer p, Class<?> type) {
+            switch (conversion) {
+                case WIDE:
+                    return StringArena.fromWide(p);
+                case BSTR:
+                    return StringArena.fromBSTR(p);
+                case HANDLE:
+                    if (p == null)
+                        return null;
+                    HANDLE h = new HANDLE();
+                    h.setPointer(p);
+                    return h;
+                case SAFEARRAY:
+                    // the caller's to destroy, not ours
+                    return p != null ? new SafeArray(p, false) : null;
+                case ARRAY:
+                    return p != null ? SafeArray.toArray(p, type) : null;
+                default:
+                    if (p == null)
+                        return null;
+                    ComCallable exported = live.get(p);
+                    if (exported != null && type.isInstance(exported.implementation))
+                        return exported.implementation;
+                    // the caller's reference only lasts for the call
+                    IUnknown w = ComObject.wrapNativeInterface(p, type.asSubclass(IUnknown.class));
+                    w.addRef();
+                    return w;
+            }
+        }
+
+        private void store(Pointer out, Object r) {
+            switch (call.kind) {
+                case INT:
+                    out.setInt(0, (Integer) r);
+                    break;
+                case LONG:
+                    out.setLong(0, (Long) r);
+                    break;
+                case DOUBLE:
+                    out.setDouble(0, (Double) r);
+                    break;
+                case BYTE:
+                    out.setByte(0, (Byte) r);
+                    break;
+                case BOOLEAN:
+                    out.setByte(0, (byte) ((Boolean) r ? 1 : 0));
+                    break;
+                case HANDLE:
+                    out.setPointer(0, r != null ? ((HANDLE) r).getPointer() : null);
+                    break;
+                case BSTR:
+                    out.setPointer(0, r != null ? Natives.oleaut32().SysAllocString((String) r) : null);
+                    break;
+                case INTERFACE:
+                    out.setPointer(0, interfacePointer(r));
+                    break;
+                case SAFEARRAY:
+                    // handed over to the caller, who destroys it
+                    out.setPointer(0, r != null ? ((SafeArray) r).getPointer() : null);
+                    break;
+                case ARRAY:
+                    out.setPointer(0, r != null ? SafeArray.copyOf(r).getPointer() : null);
+                    break;
+                default:
+                    // a structure is copied into the caller's
+                    if (r != null) {
+                        Structure s = (Structure) r;
+                        s.write();
+                        out.write(0, s.getPointer().getByteArray(0, s.size()), 0, s.size());
+                    }
+                    break;
+            }
+        }
+
+        /** An interface pointer carrying a reference for the caller. */
+        @SuppressWarnings("unchecked")
+        private Pointer interfacePointer(Object r) {
+            if (r == null)
+                return null;
+            ComObject wrapper = ComObject.wrapperOf(r);
+            if (wrapper != null) {
+                wrapper.addRef();
+                return wrapper.pointer();
+            }
+            return export((IUnknown) r, (Class<IUnknown>) call.returnType).getPointer();
+        }
+    }
+}
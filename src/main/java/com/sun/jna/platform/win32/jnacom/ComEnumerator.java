@@ -0,0 +1,260 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Walks an IEnumXXX enumerator (IEnumUnknown, IEnumString, IEnumIDList,
+ * IEnumVARIANT, ...) as an Iterator or a Stream.
+ *
+ * <p>
+ * Elements are fetched a batch at a time with one Next call into a native
+ * buffer that is reused for every batch, so the cost of the call (and of
+ * the hand-off to the COM thread) is shared by the whole batch.  Elements
+ * are only converted to Java objects as they are taken; the ones fetched
+ * but never taken are freed by {@link #close()}.  The enumerator is
+ * released by {@link #close()}, or as soon as its last element is taken.
+ * The batch size is {@code jnacom.enumBatch}, 64 by default, unless given.
+ *
+ * <p>
+ * An iterator is meant for one thread at a time.
+ *
+ * @author scott.palmer
+ */
+public final class ComEnumerator<T> implements Iterator<T>, Closeable {
+
+    /**
+     * The type of the elements of an enumerator: how big they are in the
+     * buffer, how to turn one into a Java object and how to free one that
+     * never will be.
+     */
+    public abstract static class Element<T> {
+        final int size;
+
+        protected Element(int size) {
+            this.size = size;
+        }
+
+        /**
+         * Converts the element at the given offset, taking over whatever it
+         * owns.
+         * @param enumerator the enumerator it came from
+         */
+        protected abstract T read(Pointer buffer, long offset, IUnknown enumerator);
+
+        /** Frees an element that was fetched but not taken. */
+        protected abstract void free(Pointer buffer, long offset, IUnknown enumerator);
+    }
+
+    public static final int DEFAULT_BATCH = Integer.getInteger("jnacom.enumBatch", 64);
+    private static final int S_OK = 0;
+
+    /** LPOLESTRs (IEnumString), freed with CoTaskMemFree once copied */
+    public static final Element<String> STRINGS = new Element<String>(Pointer.SIZE) {
+        protected String read(Pointer buffer, long offset, IUnknown enumerator) {
+            Pointer p = buffer.getPointer(offset);
+            String s = StringArena.fromWide(p);
+            if (p != null)
+                coTaskMemFree(p);
+            return s;
+        }
+
+        protected void free(Pointer buffer, long offset, IUnknown enumerator) {
+            Pointer p = buffer.getPointer(offset);
+            if (p != null)
+                coTaskMemFree(p);
+        }
+    };
+
+    /**
+     * Task memory pointers (such as the PIDLs of IEnumIDList), handed over
+     * as they are; the caller frees them with CoTaskMemFree.
+     */
+    public static final Element<Pointer> POINTERS = new Element<Pointer>(Pointer.SIZE) {
+        protected Pointer read(Pointer buffer, long offset, IUnknown enumerator) {
+            return buffer.getPointer(offset);
+        }
+
+        protected void free(Pointer buffer, long offset, IUnknown enumerator) {
+            Pointer p = buffer.getPointer(offset);
+            if (p != null)
+                coTaskMemFree(p);
+        }
+    };
+
+    /** VARIANTs (IEnumVARIANT), read as {@link Dispatch} reads results */
+    public static final Element<Object> VARIANTS = new Element<Object>(Variant.SIZE) {
+        protected Object read(Pointer buffer, long offset, IUnknown enumerator) {
+            return Variant.read(buffer.share(offset), enumerator);
+        }
+
+        protected void free(Pointer buffer, long offset, IUnknown enumerator) {
+            Variant.free(buffer.share(offset));
+        }
+    };
+
+    /**
+     * Interface pointers (IEnumUnknown and the like), wrapped as the given
+     * interface, each with the reference the enumerator gave it.
+     */
+    public static <T extends IUnknown> Element<T> interfaces(final Class<T> type) {
+        return new Element<T>(Pointer.SIZE) {
+            protected T read(Pointer buffer, long offset, IUnknown enumerator) {
+                Pointer p = buffer.getPointer(offset);
+                return p != null ? ComObject.wrapResult(enumerator, p, type) : null;
+            }
+
+            protected void free(Pointer buffer, long offset, IUnknown enumerator) {
+                Pointer p = buffer.getPointer(offset);
+                if (p != null)
+                    ComObject.wrapResult(enumerator, p, IUnknown.class).dispose();
+            }
+        };
+    }
+
+    private final Element<T> element;
+    private final int batch;
+    private IEnum enumerator;
+    private final Memory buffer;
+    private final Memory fetched = new Memory(4);
+    /** elements in the buffer, and the next one to take */
+    private int count;
+    private int index;
+    /** true once Next has said there are no more */
+    private boolean last;
+    private long nextCalls;
+
+    private ComEnumerator(IUnknown enumerator, Element<T> element, int batch) {
+        if (batch < 1)
+            throw new IllegalArgumentException("batch " + batch);
+        this.element = element;
+        this.batch = batch;
+        this.buffer = new Memory((long) batch * element.size);
+        this.enumerator = ComObject.copy(enumerator, IEnum.class);
+        enumerator.dispose();
+    }
+
+    /**
+     * Takes over an enumerator: the wrapper given is disposed, and the
+     * enumerator released when the iterator is closed or runs out.
+     */
+    public static <T> ComEnumerator<T> of(IUnknown enumerator, Element<T> element) {
+        return new ComEnumerator<T>(enumerator, element, DEFAULT_BATCH);
+    }
+
+    /**
+     * @param batch the number of elements to ask for with each Next call
+     */
+    public static <T> ComEnumerator<T> of(IUnknown enumerator, Element<T> element, int batch) {
+        return new ComEnumerator<T>(enumerator, element, batch);
+    }
+
+    /**
+     * A sequential stream over an enumerator, which it takes over.  Closing
+     * the stream releases the enumerator.
+     */
+    public static <T> Stream<T> stream(IUnknown enumerator, Element<T> element) {
+        return of(enumerator, element).stream();
+    }
+
+    public boolean hasNext() {
+        if (index < count)
+            return true;
+        if (last || enumerator == null)
+            return false;
+        fetch();
+        return index < count;
+    }
+
+    private void fetch() {
+        fetched.setInt(0, 0);
+        int hr = enumerator.next(batch, buffer, fetched);
+        nextCalls++;
+        if (hr < 0) {
+            close();
+            throw ComException.failed("Next", hr);
+        }
+        index = 0;
+        count = Math.min(fetched.getInt(0), batch);
+        if (hr != S_OK)
+            last = true;
+        if (count == 0)
+            close();
+    }
+
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        T t = element.read(buffer, (long) index * element.size, enumerator);
+        index++;
+        if (last && index == count)
+            close();
+        return t;
+    }
+
+    /**
+     * Frees the elements fetched but not taken and releases the enumerator.
+     */
+    public void close() {
+        IEnum e = enumerator;
+        if (e == null)
+            return;
+        try {
+            for (; index < count; index++)
+                element.free(buffer, (long) index * element.size, e);
+        } finally {
+            enumerator = null;
+            count = index = 0;
+            e.dispose();
+        }
+    }
+
+    /** @return the number of elements fetched with each Next call */
+    public int getBatchSize() {
+        return batch;
+    }
+
+    /** @return the number of Next calls made so far */
+    public long getNextCalls() {
+        return nextCalls;
+    }
+
+    public Spliterator<T> spliterator() {
+        return new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED) {
+            public boolean tryAdvance(Consumer<? super T> action) {
+                if (!hasNext())
+                    return false;
+                action.accept(next());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * A sequential stream of the remaining elements.  Closing the stream
+     * closes this iterator.
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false).onClose(new Runnable() {
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    static void coTaskMemFree(Pointer p) {
+        Natives.ole32().CoTaskMemFree(p);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+/**
+ * Subscribes Java listeners to the events a COM object fires through its
+ * connection points.
+ *
+ * <pre>
+ * EventSubscription s = ComEvents.subscribe(source, IProgressEvents.class, listener);
+ * ...
+ * s.close();
+ * </pre>
+ *
+ * The listener is not called by the thread that fires an event.  Events
+ * are put in a ring with a fixed number of slots and a thread of the
+ * subscription delivers them, in order, so a slow listener does not hold up
+ * the apartment the object lives in.  Only what happens when the ring is
+ * full ({@link Overflow}) can make the firing thread wait.
+ *
+ * <p>
+ * Events are often fired on the apartment thread of the source, which is
+ * also where calls the listener makes to the source have to run.  A
+ * listener calling back while the firing thread waits for room would
+ * deadlock, so {@link Overflow#BLOCK} waits only so long before it drops
+ * the event, and the default is {@link Overflow#DROP_NEWEST}.
+ *
+ * <p>
+ * The event interface is exported with {@link ComCallable}, so it must be a
+ * vtable interface with an {@link IID}, and since nobody waits for the
+ * listener its methods must return <tt>void</tt>.  Dispatch interfaces are
+ * not supported.
+ *
+ * @author scott.palmer
+ */
+public final class ComEvents {
+
+    /** What happens to an event fired while the ring is full. */
+    public enum Overflow {
+        /**
+         * The firing thread waits for a free slot, for up to
+         * <tt>jnacom.eventBlockMillis</tt> (default 1000) before the event is
+         * dropped.
+         */
+        BLOCK,
+        /** The new event is dropped. */
+        DROP_NEWEST,
+        /** The oldest waiting event is dropped to make room. */
+        DROP_OLDEST
+    }
+
+    /** Slots per subscription, unless given; set by <tt>jnacom.eventCapacity</tt> */
+    static final int DEFAULT_CAPACITY = Integer.getInteger("jnacom.eventCapacity", 1024);
+    /** How long {@link Overflow#BLOCK} waits for a free slot; set by <tt>jnacom.eventBlockMillis</tt> */
+    static long blockMillis = Long.getLong("jnacom.eventBlockMillis", 1000);
+
+    private ComEvents() {
+    }
+
+    /**
+     * Subscribes to events with the default capacity, dropping new events
+     * while the ring is full.
+     * @see #subscribe(IUnknown, Class, IUnknown, int, Overflow)
+     */
+    public static <T extends IUnknown> EventSubscription subscribe(IUnknown source, Class<T> events, T listener) {
+        return subscribe(source, events, listener, DEFAULT_CAPACITY, Overflow.DROP_NEWEST);
+    }
+
+    /**
+     * Advises a listener on the connection point of an event interface.
+     * @param source an object implementing IConnectionPointContainer
+     * @param events the event (source) interface
+     * @param listener called with the events, on the subscription's thread
+     * @param capacity the number of events that can wait for delivery,
+     *        rounded up to a power of two
+     * @param overflow what to do with events once that many are waiting;
+     *        with {@link Overflow#BLOCK} a listener that calls the source
+     *        while the ring is full holds up the source until the wait
+     *        times out, and then events are lost anyway
+     * @return the subscription, to close once no more events are wanted
+     * @throws ComException if the object has no connection point for the
+     *         interface or refuses the advise
+     * @throws IllegalArgumentException if the interface can't be exported
+     *         or has methods that return values or take pointers or
+     *         structures
+     */
+    public static <T extends IUnknown> EventSubscription subscribe(IUnknown source, Class<T> events, T listener,
+            int capacity, Overflow overflow) {
+        IConnectionPointContainer container = source.queryInterface(IConnectionPointContainer.class);
+        IConnectionPoint point;
+        try {
+            point = container.findConnectionPoint(Guids.iidPointer(events));
+        } finally {
+            container.dispose();
+        }
+        try {
+            return new EventSubscription(point, events, listener, capacity, overflow);
+        } catch (RuntimeException ex) {
+            point.dispose();
+            throw ex;
+        }
+    }
+}
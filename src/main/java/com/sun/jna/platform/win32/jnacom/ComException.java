@@ -4,23 +4,177 @@
 
 package com.sun.jna.platform.win32.jnacom;
 
+import com.sun.jna.Pointer;
+import java.util.Arrays;
+import java.util.logging.Level;
+
 /**
+ * A failed COM call, with its HRESULT.
+ *
+ * <p>
+ * Exceptions thrown by calls through an interface format their message only
+ * when it is asked for, and read the error info the object left behind (if
+ * any, and if the object supports error info for the interface) at the same
+ * time; until then they hold its bare interface pointer.  Failures that are expected can be made cheaper still by leaving out
+ * the stack trace, for a method with {@link NoStackTrace} or for an HRESULT
+ * with {@link #setStackless(int, boolean)}; their error info is discarded.
  *
  * @author scott.palmer
  */
 public class ComException extends RuntimeException {
+    private static final int[] NONE = new int[0];
+    private static volatile int[] stackless = NONE;
+
     private final int hresult;
+    /** the method whose call failed, for a message formatted on demand */
+    private final String method;
+    private String message;
+    /** the IErrorInfo pointer not read yet, with a reference of its own */
+    private transient Pointer errorInfo;
+    /** the apartment the error info belongs to, null for any thread */
+    private transient Apartment home;
+    /** releases the error info if the exception is collected unread */
+    private transient ReleaseQueue.Handle errorInfoHandle;
+    private String description;
 
     public ComException(String msg, int hresult) {
         super(msg);
         this.hresult = hresult;
+        this.method = null;
     }
 
     public ComException(int hresult) {
         this("COM API returned 0x"+ Integer.toHexString(hresult), hresult);
     }
 
+    private ComException(String method, int hresult, boolean stackTrace, Pointer errorInfo, Apartment home) {
+        super(null, null, false, stackTrace);
+        this.hresult = hresult;
+        this.method = method;
+        if (errorInfo != null) {
+            this.errorInfo = errorInfo;
+            this.home = home;
+            errorInfoHandle = ReleaseQueue.register(this, errorInfo, home);
+        }
+    }
+
+    /**
+     * Creates the exception for a failed call of the given method, taking
+     * the thread's error info (see {@link ErrorInfo}).
+     * @param target the object the method was called on
+     */
+    static ComException failed(ComMethod call, int hresult, ComObject target) {
+        boolean stackTrace = !(call.stackless(hresult) || contains(stackless, hresult));
+        Pointer info = ErrorInfo.take(target, call.method.getDeclaringClass(), stackTrace);
+        return new ComException(call.name, hresult, stackTrace, info, target.home());
+    }
+
+    /**
+     * Creates the exception for a failed call of a method that has no
+     * descriptor, e.g. QueryInterface.  The thread's error info is cleared,
+     * as there is no interface to ask whether it belongs to this failure.
+     */
+    static ComException failed(String method, int hresult) {
+        ErrorInfo.clear();
+        return new ComException(method, hresult, !contains(stackless, hresult), null, null);
+    }
+
+    /**
+     * Creates the exception for a failure known without calling the object,
+     * such as a remembered E_NOINTERFACE: with neither a stack trace nor
+     * the thread's error info, which belongs to some other call.
+     */
+    static ComException known(String method, int hresult) {
+        return new ComException(method, hresult, false, null, null);
+    }
+
+    private static boolean contains(int[] hresults, int hresult) {
+        for (int h : hresults) {
+            if (h == hresult)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Leaves out (or puts back) the stack trace of the exceptions for an
+     * HRESULT, whichever method failed with it, e.g. for E_NOINTERFACE when
+     * probing for interfaces.
+     */
+    public static synchronized void setStackless(int hresult, boolean stackless) {
+        int[] s = ComException.stackless;
+        int[] n;
+        if (stackless) {
+            if (contains(s, hresult))
+                return;
+            n = new int[s.length + 1];
+            System.arraycopy(s, 0, n, 0, s.length);
+            n[s.length] = hresult;
+        } else {
+            n = new int[s.length];
+            int j = 0;
+            for (int h : s) {
+                if (h != hresult)
+                    n[j++] = h;
+            }
+            if (j == s.length)
+                return;
+            n = j == 0 ? NONE : Arrays.copyOf(n, j);
+        }
+        ComException.stackless = n;
+    }
+
     public int getHRESULT() {
         return hresult;
     }
+
+    /** @return the facility of the HRESULT, see {@link HResult#facility(int)} */
+    public int getFacility() {
+        return HResult.facility(hresult);
+    }
+
+    /** @return the code of the HRESULT, see {@link HResult#code(int)} */
+    public int getCode() {
+        return HResult.code(hresult);
+    }
+
+    /**
+     * Returns the description from the error info the object left behind,
+     * reading it the first time this is called.
+     * @return the description, or null if there is none
+     */
+    public synchronized String getDescription() {
+        Pointer p = errorInfo;
+        if (p != null) {
+            errorInfo = null;
+            ReleaseQueue.forget(errorInfoHandle);
+            errorInfoHandle = null;
+            IErrorInfo info = ComObject.wrapIn(home, p, IErrorInfo.class);
+            try {
+                description = info.getDescription();
+            } catch (RuntimeException ex) {
+                ComObject.logger.log(Level.FINE, "Could not read the error info", ex);
+            } finally {
+                info.dispose();
+            }
+        }
+        return description;
+    }
+
+    @Override
+    public synchronized String getMessage() {
+        if (method == null)
+            return super.getMessage();
+        if (message == null) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Invocation of \"").append(method).append("\" failed, hresult=0x")
+                    .append(Integer.toHexString(hresult))
+                    .append(" (").append(HResult.describe(hresult)).append(')');
+            String d = getDescription();
+            if (d != null)
+                sb.append(": ").append(d);
+            message = sb.toString();
+        }
+        return message;
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Function;
+import java.util.logging.Level;
+
+/**
+ * Makes the native call into the vtable slot of a {@link ComMethod}.
+ *
+ * <p>
+ * {@link ComObject} prepares the arguments (the "this" pointer first, the
+ * [retval] pointer last) and hands them to one of the <tt>invoke*</tt>
+ * methods.  The default passes them to JNA's <tt>Function.invoke*</tt>.
+ * On Java 22 and later, <tt>-Djnacom.foreignCalls=true</tt> selects
+ * <tt>ForeignInvoker</tt> instead, which is in the jar's
+ * <tt>META-INF/versions/22</tt>: it calls through a
+ * <tt>java.lang.foreign</tt> downcall handle per signature, with
+ * <tt>invokeExact</tt>, and leaves the calls it can't type to JNA.  On
+ * older Java there is no such class and the flag is ignored.
+ *
+ * @author scott.palmer
+ */
+abstract class ComInvoker {
+
+    static final String FOREIGN = ComInvoker.class.getPackage().getName() + ".ForeignInvoker";
+
+    /** the invoker used for all calls; tests put their own here */
+    static ComInvoker instance = load(Boolean.getBoolean("jnacom.foreignCalls"));
+
+    /**
+     * Calls a function returning a 32 bit value, usually the HRESULT.
+     * @param call the method called, whose {@link ComMethod#linkage} the
+     *        invoker may keep its per method state in
+     * @param target the vtable slot
+     * @param args the native arguments, including the "this" pointer
+     */
+    abstract int invokeInt(ComMethod call, Function target, Object[] args);
+
+    abstract long invokeLong(ComMethod call, Function target, Object[] args);
+
+    abstract double invokeDouble(ComMethod call, Function target, Object[] args);
+
+    /**
+     * @param foreign true for the java.lang.foreign invoker, if there is one
+     */
+    static ComInvoker load(boolean foreign) {
+        if (foreign) {
+            try {
+                return (ComInvoker) Class.forName(FOREIGN).getDeclaredConstructor().newInstance();
+            } catch (ClassNotFoundException ex) {
+                ComObject.logger.log(Level.WARNING, "jnacom.foreignCalls needs Java 22 or later, using JNA");
+            } catch (Exception ex) {
+                ComObject.logger.log(Level.WARNING, "Could not use java.lang.foreign, using JNA", ex);
+            } catch (LinkageError ex) {
+                ComObject.logger.log(Level.WARNING, "Could not use java.lang.foreign, using JNA", ex);
+            }
+        }
+        return new JnaInvoker();
+    }
+
+    /** JNA's own marshalling, one argument at a time. */
+    static final class JnaInvoker extends ComInvoker {
+        @Override
+        int invokeInt(ComMethod call, Function target, Object[] args) {
+            return target.invokeInt(args);
+        }
+
+        @Override
+        long invokeLong(ComMethod call, Function target, Object[] args) {
+            return target.invokeLong(args);
+        }
+
+        @Override
+        double invokeDouble(ComMethod call, Function target, Object[] args) {
+            return target.invokeDouble(args);
+        }
+    }
+}
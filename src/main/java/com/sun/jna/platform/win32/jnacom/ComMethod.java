@@ -0,0 +1,261 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.platform.win32.WinNT.HANDLE;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Everything {@link ComObject} needs to know to call an interface method,
+ * worked out once from the method's signature and annotations.
+ *
+ * <p>
+ * Descriptors are built for all methods of an interface the first time any
+ * one of them is called and are cached by {@link Method}, so the call path
+ * never has to look at annotations or compare method names again.  Generated
+ * interfaces and compiled stubs carry a {@link MethodTable} with everything
+ * the annotations say, and then the annotations are not read at all.
+ *
+ * @author scott.palmer
+ */
+final class ComMethod {
+
+    /** How the call is dispatched, mostly determined by the return type. */
+    enum Kind {
+        QUERY_INTERFACE, DISPOSE, TO_STRING, EQUALS, HASH_CODE, ADD_REF, RELEASE,
+        VOID, INT, LONG, DOUBLE, BYTE, BOOLEAN, HANDLE,
+        INTERFACE, BSTR, STRUCTURE,
+        /** a {@link SafeArray} the caller owns */
+        SAFEARRAY,
+        /** a primitive array copied out of a SAFEARRAY */
+        ARRAY
+    }
+
+    private static final int[] NONE = new int[0];
+    private static final ConcurrentHashMap<Method, ComMethod> descriptors =
+            new ConcurrentHashMap<Method, ComMethod>();
+
+    final Method method;
+    final String name;
+    final Kind kind;
+    final Class<?> returnType;
+    /** vtable slot, or -1 if the method has no {@link VTID} */
+    final int vtid;
+    final boolean noHResult;
+    /** true if the [retval] parameter is also one of the Java arguments */
+    final boolean retvalInout;
+    /** {@link ReturnValue#index()} when {@link #retvalInout} is set */
+    final int retvalIndex;
+    /** positions of arguments that may need to be passed as a wide string */
+    final int[] stringArgs;
+    /** for each of {@link #stringArgs}, true if it is annotated as a {@link BSTR} */
+    final boolean[] bstrArgs;
+    /** positions of arguments that may need to be passed as an interface pointer */
+    final int[] unknownArgs;
+    /** positions of {@link SafeArray} and {@link AsSafeArray} arguments */
+    final int[] safeArrayArgs;
+    /** true if arguments are encoded in the {@link StringArena} */
+    final boolean usesArena;
+    /** HRESULTs thrown without a stack trace, null for none, empty for all (see {@link NoStackTrace}) */
+    final int[] noStackTrace;
+    /** what the {@link ComInvoker} keeps for calling this method, set on the first call */
+    volatile Object linkage;
+
+    /**
+     * @param entry the method's entry in its interface's {@link MethodTable},
+     *              null to read its annotations
+     */
+    private ComMethod(Method method, MethodTable.Entry entry) {
+        this.method = method;
+        this.name = method.getName();
+        this.returnType = method.getReturnType();
+        this.kind = kindOf(method);
+        Annotation[][] annotations = null;
+        if (entry != null) {
+            this.vtid = entry.vtid;
+            this.noHResult = entry.noHResult;
+            this.noStackTrace = entry.noStackTrace;
+            this.retvalInout = entry.retvalIndex >= 0;
+            this.retvalIndex = entry.retvalIndex;
+        } else {
+            VTID v = method.getAnnotation(VTID.class);
+            this.vtid = v != null ? v.value() : -1;
+            this.noHResult = method.getAnnotation(NoHResult.class) != null;
+            NoStackTrace nst = method.getAnnotation(NoStackTrace.class);
+            this.noStackTrace = nst != null ? nst.value() : null;
+            ReturnValue rv = method.getAnnotation(ReturnValue.class);
+            this.retvalInout = rv != null && rv.inout();
+            this.retvalIndex = rv != null ? rv.index() : -1;
+            annotations = method.getParameterAnnotations();
+        }
+
+        Class<?>[] params = method.getParameterTypes();
+        List<Integer> strings = new ArrayList<Integer>();
+        List<Boolean> bstrs = new ArrayList<Boolean>();
+        List<Integer> unknowns = new ArrayList<Integer>();
+        List<Integer> safeArrays = new ArrayList<Integer>();
+        for (int i = 0; i < params.length; i++) {
+            Class<?> p = params[i];
+            if (p.isAssignableFrom(String.class)) {
+                strings.add(i);
+                bstrs.add(entry != null ? entry.bstr[i] : isBSTR(annotations[i]));
+            }
+            if (IUnknown.class.isAssignableFrom(p) || p.isAssignableFrom(IUnknown.class)) {
+                unknowns.add(i);
+            }
+            if (p == SafeArray.class || p.isArray()
+                    && (entry != null ? entry.asSafeArray[i] : has(annotations[i], AsSafeArray.class))) {
+                safeArrays.add(i);
+            }
+        }
+        this.stringArgs = toArray(strings);
+        this.bstrArgs = new boolean[bstrs.size()];
+        for (int i = 0; i < bstrArgs.length; i++)
+            bstrArgs[i] = bstrs.get(i);
+        this.unknownArgs = toArray(unknowns);
+        this.safeArrayArgs = toArray(safeArrays);
+        this.usesArena = stringArgs.length > 0 || safeArrayArgs.length > 0;
+    }
+
+    /**
+     * Returns the descriptor for the given method, describing all the methods
+     * of its interface if this is the first call made through it.
+     */
+    static ComMethod of(Method method) {
+        ComMethod d = descriptors.get(method);
+        if (d == null) {
+            d = describe(method);
+        }
+        return d;
+    }
+
+    /**
+     * Returns the descriptor for the given method, made from its entry in
+     * the table of the stub that implements it (see {@link ComStubs}).
+     */
+    static ComMethod of(Method method, MethodTable.Entry entry) {
+        ComMethod d = descriptors.get(method);
+        if (d == null) {
+            d = new ComMethod(method, entry);
+            ComMethod prev = descriptors.putIfAbsent(method, d);
+            if (prev != null)
+                d = prev;
+        }
+        return d;
+    }
+
+    private static ComMethod describe(Method method) {
+        Map<String, MethodTable.Entry> table = MethodTable.of(method.getDeclaringClass());
+        for (Method m : method.getDeclaringClass().getDeclaredMethods()) {
+            MethodTable.Entry entry = table != null ? table.get(MethodTable.key(m)) : null;
+            descriptors.putIfAbsent(m, new ComMethod(m, entry));
+        }
+        ComMethod d = descriptors.get(method);
+        if (d == null) {
+            // not a declared method (e.g. a bridge seen through another route)
+            d = new ComMethod(method, null);
+            ComMethod prev = descriptors.putIfAbsent(method, d);
+            if (prev != null)
+                d = prev;
+        }
+        return d;
+    }
+
+    private static Kind kindOf(Method method) {
+        String mname = method.getName();
+        Class<?>[] params = method.getParameterTypes();
+        if (mname.equals("queryInterface") && params.length == 1 && params[0] == Class.class) {
+            return Kind.QUERY_INTERFACE;
+        } else if (mname.equals("equals") && params.length == 1 && params[0] == Object.class) {
+            return Kind.EQUALS;
+        } else if (params.length == 0) {
+            if (mname.equals("dispose"))
+                return Kind.DISPOSE;
+            if (mname.equals("toString"))
+                return Kind.TO_STRING;
+            if (mname.equals("hashCode"))
+                return Kind.HASH_CODE;
+            if (mname.equals("addRef"))
+                return Kind.ADD_REF;
+            if (mname.equals("release"))
+                return Kind.RELEASE;
+        }
+
+        Class<?> rt = method.getReturnType();
+        if (rt == Void.TYPE) {
+            return Kind.VOID;
+        } else if (rt == Integer.TYPE) {
+            return Kind.INT;
+        } else if (rt == Long.TYPE) {
+            return Kind.LONG;
+        } else if (rt == Double.TYPE) {
+            return Kind.DOUBLE;
+        } else if (rt == Byte.TYPE) {
+            return Kind.BYTE;
+        } else if (rt == Boolean.TYPE) {
+            return Kind.BOOLEAN;
+        } else if (rt == HANDLE.class) {
+            return Kind.HANDLE;
+        } else if (rt.isInterface()) {
+            return Kind.INTERFACE;
+        } else if (rt == String.class) {
+            // String in COM should mean BSTR
+            return Kind.BSTR;
+        } else if (rt == SafeArray.class) {
+            return Kind.SAFEARRAY;
+        } else if (rt.isArray() && rt.getComponentType().isPrimitive()) {
+            return Kind.ARRAY;
+        } else {
+            return Kind.STRUCTURE;
+        }
+    }
+
+    private static boolean isBSTR(Annotation[] annotations) {
+        return has(annotations, BSTR.class);
+    }
+
+    private static boolean has(Annotation[] annotations, Class<? extends Annotation> type) {
+        for (Annotation a : annotations) {
+            if (type.isInstance(a))
+                return true;
+        }
+        return false;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        if (list.isEmpty())
+            return NONE;
+        int[] a = new int[list.size()];
+        for (int i = 0; i < a.length; i++)
+            a[i] = list.get(i);
+        return a;
+    }
+
+    /** True if a failure with the given HRESULT is thrown without a stack trace. */
+    boolean stackless(int hresult) {
+        int[] s = noStackTrace;
+        if (s == null)
+            return false;
+        if (s.length == 0)
+            return true;
+        for (int h : s) {
+            if (h == hresult)
+                return true;
+        }
+        return false;
+    }
+
+    /** The vtable slot to call, failing if the method was not annotated. */
+    int slot() {
+        if (vtid < 0)
+            throw new UnsupportedOperationException("\"" + name + "\" has no @VTID annotation");
+        return vtid;
+    }
+}
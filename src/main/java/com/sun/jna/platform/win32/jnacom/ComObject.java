@@ -5,31 +5,26 @@
 package com.sun.jna.platform.win32.jnacom;
 
 import com.sun.jna.Function;
+import com.sun.jna.Memory;
 import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
-import com.sun.jna.WString;
 import com.sun.jna.platform.win32.Guid;
 import com.sun.jna.platform.win32.ObjBase;
 import com.sun.jna.platform.win32.Ole32;
-import com.sun.jna.platform.win32.Ole32Util;
-import com.sun.jna.platform.win32.Oleaut32;
+import com.sun.jna.platform.win32.WinBase;
 import com.sun.jna.platform.win32.WinNT.HANDLE;
-import com.sun.jna.platform.win32.WinNT.HANDLEByReference;
 import com.sun.jna.platform.win32.WinNT.HRESULT;
-import com.sun.jna.ptr.ByteByReference;
-import com.sun.jna.ptr.DoubleByReference;
 import com.sun.jna.ptr.PointerByReference;
-import com.sun.jna.ptr.IntByReference;
-import com.sun.jna.ptr.LongByReference;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.IdentityHashMap;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,7 +34,8 @@ import java.util.logging.Logger;
  */
 public class ComObject implements InvocationHandler {
     static final Logger logger = Logger.getLogger(ComObject.class.getName());
-    static Ole32 OLE32 = Ole32.INSTANCE;
+    /** Loaded on first use, so that the class can be used without Ole32 (e.g. in tests). */
+    static Ole32 OLE32;
     static ThreadLocal<Boolean> comInitialized = new ThreadLocal<Boolean>() {
         @Override
         protected Boolean initialValue() {
@@ -53,45 +49,168 @@ public class ComObject implements InvocationHandler {
 
     static public HRESULT initializeCOM() {
         comInitialized.set(true);
-        return Ole32.INSTANCE.CoInitializeEx(Pointer.NULL, 0);
+        return ole32().CoInitializeEx(Pointer.NULL, COINIT_MULTITHREADED);
+    }
+
+    static final int COINIT_MULTITHREADED = 0;
+    static final int COINIT_APARTMENTTHREADED = 2;
+    static final int RPC_E_CHANGED_MODE = 0x80010106;
+
+    /**
+     * Multi threaded (MTA) mode: every thread that uses a COM object joins the
+     * multithreaded apartment on first use and calls objects directly.  Only
+     * for free threaded objects; set with <tt>jnacom.multiThreaded</tt>.
+     */
+    static boolean multiThreaded = Boolean.getBoolean("jnacom.multiThreaded");
+    /** set on threads that have to call CoUninitialize when done with COM */
+    private static final ThreadLocal<Boolean> joinedMTA = new ThreadLocal<Boolean>();
+
+    /**
+     * Joins the multithreaded apartment from the calling thread, unless it
+     * has initialized COM already.
+     */
+    private static void joinMTA() {
+        if (comInitialized.get())
+            return;
+        int hresult = ole32().CoInitializeEx(Pointer.NULL, COINIT_MULTITHREADED).intValue();
+        if (hresult >= 0) {
+            // S_FALSE too must be balanced by CoUninitialize
+            joinedMTA.set(Boolean.TRUE);
+        } else if (hresult == RPC_E_CHANGED_MODE) {
+            logger.log(Level.FINE, "{0} is already in a single threaded apartment", Thread.currentThread());
+        } else {
+            throw new ComException("CoInitializeEx returned 0x" + Integer.toHexString(hresult), hresult);
+        }
+        comInitialized.set(true);
+    }
+
+    /**
+     * Leaves the multithreaded apartment if the calling thread joined it
+     * on its own in multi threaded mode.  Threads that are about to end, or
+     * pooled threads that are done with COM, should call this (see
+     * {@link #uninitializeOnExit(Runnable)}).  COM objects used by the thread
+     * should be disposed of first.
+     */
+    static public void uninitializeCOM() {
+        if (joinedMTA.get() != null) {
+            joinedMTA.remove();
+            comInitialized.remove();
+            ole32().CoUninitialize();
+        }
+    }
+
+    /**
+     * Wraps a Runnable so that the thread running it leaves the
+     * multithreaded apartment when it is done, if it joined in the meantime.
+     * Meant for the Runnable of a thread (e.g. from a ThreadFactory) or for a
+     * task given to a thread pool.
+     */
+    static public Runnable uninitializeOnExit(final Runnable r) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r.run();
+                } finally {
+                    uninitializeCOM();
+                }
+            }
+        };
+    }
+
+    static Ole32 ole32() {
+        if (OLE32 == null)
+            OLE32 = Ole32.INSTANCE;
+        return OLE32;
     }
 
     static private int threadNum = 0;
     static final public ThreadFactory comThreadFactory = new ThreadFactory() {
 
-                int num;
-
                 @Override
                 public Thread newThread(final Runnable r) {
-                    comThread = createComThread(r);
-                    return comThread;
+                    return createComThread(r);
                 }
             };
     static boolean singleThreaded = Boolean.getBoolean("jnacom.singleThreaded");
-    /** For single threaded mode this is the one and only COM thread */
-    static Thread comThread = null;
-    static final ExecutorService comExecutor = Executors.newFixedThreadPool(
-            1,
-            new ThreadFactory() {
-                @Override
-                public Thread newThread(final Runnable r) {
-                    comThread = createComThread(r);
-                    return comThread;
-                }
-            });
     /**
-     * Creates a thread that insures COM is initialized prior to calling the runnable.
+     * Use generated proxy classes instead of java.lang.reflect.Proxy where
+     * possible (see {@link ProxyGenerator}).  They skip the invocation
+     * handler and keep primitive return values unboxed, but box their
+     * arguments all the same, as JNA's <tt>Function.invoke*(Object[])</tt>
+     * takes them that way.
+     */
+    static boolean generatedProxies = Boolean.getBoolean("jnacom.generatedProxies");
+    /** Use the stubs {@link ComStubProcessor} compiled, where there are any (on unless <tt>jnacom.stubs=false</tt>) */
+    static boolean compiledStubs = !"false".equals(System.getProperty("jnacom.stubs"));
+    /**
+     * Hand out the proxy already in use for an interface pointer and
+     * interface again, instead of a new wrapper each time; set with
+     * <tt>jnacom.canonicalProxies</tt>.  Every time a proxy is handed out it
+     * must be disposed of once (or left to the garbage collector), and the
+     * pointer is released when the last of these disposes comes.
+     */
+    static boolean canonicalProxies = Boolean.getBoolean("jnacom.canonicalProxies");
+    /**
+     * Whether each object keeps the interfaces it was asked for with
+     * <tt>queryInterface</tt> until it is disposed; set with
+     * <tt>jnacom.interfaceCache</tt>.  Asking twice then hands out the same
+     * proxy, so as with canonical proxies each one handed out must be
+     * disposed of exactly once, and the interface pointers are only
+     * released with the object they were asked of.
+     */
+    static boolean cacheInterfaces = Boolean.getBoolean("jnacom.interfaceCache");
+    /** what the interface cache holds for interfaces the object doesn't implement */
+    private static final Object NO_INTERFACE = new Object();
+    /**
+     * Whether apartment threads are single threaded apartments (STAs); set
+     * with <tt>jnacom.apartmentThreaded</tt>.  By default they join the
+     * multithreaded apartment, as the COM thread always did.
+     *
+     * <p>
+     * Apartment threads wait with {@link java.util.concurrent.locks.LockSupport#park}
+     * and don't pump messages, and COM delivers calls into an STA from other
+     * apartments as window messages.  In an STA such calls never arrive: no
+     * callbacks from out of process or free threaded objects, no events fired
+     * into sinks advised from the apartment ({@link ComEvents},
+     * {@link ComCallable}).  Only turn it on for in process, apartment
+     * threaded objects that are called and never call back.
+     */
+    static boolean apartmentThreaded = Boolean.getBoolean("jnacom.apartmentThreaded");
+    /**
+     * The apartment threads.  In single threaded mode objects are created on
+     * one of them, chosen by the placement policy, and all calls to an
+     * object are run on the apartment it was created on.
+     * The number of apartments is set by <tt>jnacom.apartments</tt> (default 1).
+     * Apartments don't pump messages while they wait, so an object must not
+     * make a synchronous call into another apartment that calls back.
+     */
+    static final Apartment[] apartments = createApartments(Integer.getInteger("jnacom.apartments", 1));
+    /**
+     * How createInstance picks an apartment when not called on one:
+     * <tt>roundRobin</tt> (the default) or <tt>clsid</tt>, which keeps all
+     * objects of the same class in the same apartment.
+     */
+    static final boolean placeByClsid = "clsid".equals(System.getProperty("jnacom.placement"));
+    private static final AtomicInteger nextApartment = new AtomicInteger();
+    private static final ConcurrentHashMap<String, Apartment> apartmentByClsid =
+            new ConcurrentHashMap<String, Apartment>();
+
+    /**
+     * Creates a thread that insures COM is initialized prior to calling the
+     * runnable: in the multithreaded apartment, or as a single threaded
+     * apartment of its own if {@link #apartmentThreaded} is set.
      * @param r
      * @return a thread wrapping the given Runnable
      */
-    static public Thread createComThread(final Runnable r) {
+    static synchronized public Thread createComThread(final Runnable r) {
         Thread t = new Thread(new Runnable() {
             @Override
             public void run() {
-                HRESULT hresult = ComObject.initializeCOM();
+                HRESULT hresult = initializeApartment();
                 r.run();
                 if (hresult.intValue() >= 0) {
-                    Ole32.INSTANCE.CoUninitialize();
+                    ole32().CoUninitialize();
                 }
             }
         });
@@ -99,80 +218,372 @@ public class ComObject implements InvocationHandler {
         return t;
     }
 
+    /**
+     * Initializes COM on an apartment thread.
+     * @return what CoInitializeEx returned; CoUninitialize is due if it succeeded
+     */
+    private static HRESULT initializeApartment() {
+        int coInit = apartmentThreaded ? COINIT_APARTMENTTHREADED : COINIT_MULTITHREADED;
+        HRESULT hresult = ole32().CoInitializeEx(Pointer.NULL, coInit);
+        int hr = hresult.intValue();
+        if (hr == RPC_E_CHANGED_MODE) {
+            // COM still works, in the apartment the thread is already in
+            logger.log(Level.WARNING, "{0} is already in another kind of apartment", Thread.currentThread());
+        } else if (hr < 0) {
+            logger.log(Level.SEVERE, "CoInitializeEx returned 0x{0} on {1}",
+                    new Object[] {Integer.toHexString(hr), Thread.currentThread()});
+        }
+        comInitialized.set(true);
+        return hresult;
+    }
+
+    private static Apartment[] createApartments(int count) {
+        Apartment[] a = new Apartment[Math.max(1, count)];
+        a[0] = new Apartment(comThreadFactory);
+        ThreadFactory others = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return createComThread(r);
+            }
+        };
+        for (int i = 1; i < a.length; i++)
+            a[i] = new Apartment(others);
+        return a;
+    }
+
+    /**
+     * Picks the apartment for a new object of the given class.
+     */
+    private static Apartment place(String clsid) {
+        if (apartments.length == 1)
+            return apartments[0];
+        if (placeByClsid) {
+            String key = clsid.toUpperCase();
+            Apartment a = apartmentByClsid.get(key);
+            if (a == null) {
+                a = apartments[(nextApartment.getAndIncrement() & Integer.MAX_VALUE) % apartments.length];
+                Apartment other = apartmentByClsid.putIfAbsent(key, a);
+                if (other != null)
+                    a = other;
+            }
+            return a;
+        }
+        return apartments[(nextApartment.getAndIncrement() & Integer.MAX_VALUE) % apartments.length];
+    }
+
+    /**
+     * The apartment an object wrapped on the current thread belongs to.
+     */
+    private static Apartment homeOfNewObject() {
+        Apartment a = Apartment.current();
+        if (a == null && singleThreaded)
+            a = apartments[0];
+        return a;
+    }
+
+    /** @return the number of apartment threads (see <tt>jnacom.apartments</tt>) */
+    public static int getApartmentCount() {
+        return apartments.length;
+    }
+
+    /**
+     * Returns the apartment whose thread runs the calls to the given object.
+     * @param proxy an interface returned by this class
+     * @return the index of the apartment, or -1 if calls are made on the calling thread
+     */
+    public static int apartmentOf(Object proxy) {
+        Apartment home = of(proxy).home;
+        for (int i = 0; i < apartments.length; i++) {
+            if (apartments[i] == home)
+                return i;
+        }
+        return -1;
+    }
+
     static final int ptrSize = Pointer.SIZE;
 
-    private static ThreadLocal<Integer> lastHRESULT = new ThreadLocal<Integer>();
-    public static final Guid.GUID IID_IUnknown = Ole32Util.getGUIDFromString("{00000000-0000-0000-C000-000000000046}");
+    /**
+     * Whether the HRESULT of every call is kept for {@link #getLastHRESULT()};
+     * turned off with <tt>jnacom.noLastHRESULT</tt>.  Failures are reported
+     * with their HRESULT either way.
+     */
+    static boolean trackLastHRESULT = !Boolean.getBoolean("jnacom.noLastHRESULT");
+    public static final Guid.GUID IID_IUnknown = Guids.parse("{00000000-0000-0000-C000-000000000046}");
 
     /*
      * The only real data that this object holds... the interface pointer
      */
     private Pointer _InterfacePtr = null;
+    /** releases the pointer if this object is collected without dispose() */
+    private final ReleaseQueue.Handle releaseHandle;
+    /** the apartment that runs all calls to this object, null for the calling thread */
+    private final Apartment home;
+    /** HRESULT of the last call made through this object */
+    private int lastHRESULT;
+    /** the entry that makes this object's proxy the canonical one, null if it isn't */
+    private ProxyCache.Entry canonical;
+    /** the times the canonical proxy was handed out and not disposed of yet */
+    private int users = 1;
+    /**
+     * The answers to queryInterface: proxies, or NO_INTERFACE.  Those made
+     * for the cache are held by it, and disposed of with this object.
+     */
+    private IdentityHashMap<Class<?>, Object> interfaces;
+    /** the object whose interface cache holds this one */
+    private ComObject holder;
+    /** whether the object sets error info for each interface asked about */
+    private IdentityHashMap<Class<?>, Boolean> errorInfoSupport;
 
-    private ComObject(Pointer interfacePointer) {
+    private ComObject(Pointer interfacePointer, Apartment home) {
         _InterfacePtr = interfacePointer;
+        this.home = home;
+        releaseHandle = interfacePointer != null ? ReleaseQueue.register(this, interfacePointer, home) : null;
     }
 
     public static<T extends IUnknown> T createInstance(final Class<T> primaryInterface, final String clsid) {
+        if (singleThreaded && Apartment.current() == null)
+            return createInstance(place(clsid), primaryInterface, clsid);
+        return create(primaryInterface, clsid);
+    }
+
+    /**
+     * Creates an object in the given apartment, whatever the placement
+     * policy.  Objects that are used together can be kept in the same
+     * apartment this way, and independent ones spread over several.
+     * @param apartment the index of the apartment, from 0 to getApartmentCount()-1
+     */
+    public static<T extends IUnknown> T createInstance(Class<T> primaryInterface, String clsid, int apartment) {
+        if (apartment < 0 || apartment >= apartments.length)
+            throw new IllegalArgumentException("No apartment " + apartment + ", there are " + apartments.length);
+        return createInstance(apartments[apartment], primaryInterface, clsid);
+    }
 
-        if (singleThreaded && Thread.currentThread() != comThread) {
-            Future<T> retVal = comExecutor.submit(new Callable<T>() {
+    private static<T extends IUnknown> T createInstance(Apartment apartment, final Class<T> primaryInterface, final String clsid) {
+        if (apartment.isCurrentThread())
+            return create(primaryInterface, clsid);
+        try {
+            return apartment.call(new Callable<T>() {
                 public T call() throws Exception {
-                    return createInstance(primaryInterface, clsid);
+                    return create(primaryInterface, clsid);
                 }
             });
-            try {
-                return retVal.get();
-            } catch (InterruptedException ex) {
-                logger.log(Level.SEVERE, null, ex);
-            } catch (ExecutionException ex) {
-                logger.log(Level.SEVERE, null, ex);
-            }
-            return null;
+        } catch (Throwable ex) {
+            logger.log(Level.SEVERE, null, ex);
         }
+        return null;
+    }
 
+    private static<T extends IUnknown> T create(Class<T> primaryInterface, String clsid) {
+        if (multiThreaded)
+            joinMTA();
         assert isComInitialized() : "COM not initialized when calling createInstance on "+Thread.currentThread();
+        drainReleases();
 
-        Guid.GUID refclsid = Ole32Util.getGUIDFromString(clsid);
-        Guid.GUID refiid = IID_IUnknown;
-        try {
-            String iid = (String) primaryInterface.getAnnotation(IID.class).value();
-            refiid = Ole32Util.getGUIDFromString(iid);
-        } catch (Exception ex) {
-            logger.log(Level.SEVERE, null, ex);
+        Guid.GUID refclsid = Guids.clsid(clsid);
+        Guid.GUID refiid = Guids.iid(primaryInterface);
+        if (refiid == null) {
+            logger.log(Level.SEVERE, "{0} has no @IID annotation, asking for IUnknown", primaryInterface.getName());
+            refiid = IID_IUnknown;
         }
 
         PointerByReference punkown = new PointerByReference();
-        HRESULT hresult = OLE32.CoCreateInstance(refclsid, Pointer.NULL, ObjBase.CLSCTX_ALL, refiid, punkown);
-        lastHRESULT.set(hresult.intValue());
+        HRESULT hresult = ole32().CoCreateInstance(refclsid, Pointer.NULL, ObjBase.CLSCTX_ALL, refiid, punkown);
+        if (trackLastHRESULT)
+            CallFrame.setLastHRESULT(hresult.intValue());
         if (hresult.intValue() < 0)
             throw new ComException("CoCreateInstance returned 0x"+Integer.toHexString(hresult.intValue()),hresult.intValue());
         Pointer interfacePointer = punkown.getValue();
         return wrapNativeInterface(interfacePointer, primaryInterface);
     }
 
+    /**
+     * Returns the HRESULT of the last COM call made on the calling thread,
+     * 0 if there was none.  In single threaded mode calls run on an
+     * apartment thread, use {@link #getLastHRESULT(Object)} instead.
+     * @throws IllegalStateException if HRESULTs are not tracked (<tt>jnacom.noLastHRESULT</tt>)
+     */
     public static int getLastHRESULT() {
-        return lastHRESULT.get();
+        if (!trackLastHRESULT)
+            throw new IllegalStateException("HRESULTs are not tracked (jnacom.noLastHRESULT is set)");
+        return CallFrame.getLastHRESULT();
+    }
+
+    /**
+     * Returns the HRESULT of the last COM call made through the given
+     * interface, 0 if there was none.  Once the call has returned it is
+     * seen by the calling thread, whichever thread ran it.
+     * @param proxy an interface returned by this class
+     * @throws IllegalStateException if HRESULTs are not tracked (<tt>jnacom.noLastHRESULT</tt>)
+     */
+    public static int getLastHRESULT(Object proxy) {
+        if (!trackLastHRESULT)
+            throw new IllegalStateException("HRESULTs are not tracked (jnacom.noLastHRESULT is set)");
+        return of(proxy).lastHRESULT;
+    }
+
+    private void track(CallFrame frame, int hresult) {
+        if (trackLastHRESULT) {
+            frame.setHRESULT(hresult);
+            lastHRESULT = hresult;
+        }
     }
 
     public static <T extends IUnknown> T copy(T theInterface) {
+        if (multiThreaded)
+            joinMTA();
         assert isComInitialized() : "COM not initialized when calling ComObject.copy on "+Thread.currentThread();
-        ComObject comObj = (ComObject) Proxy.getInvocationHandler((Proxy)theInterface);
-        theInterface.addRef();
         Class [] clazz = theInterface.getClass().getInterfaces();
-        return (T) createProxy(new ComObject(comObj._InterfacePtr), clazz[0]);
+        return (T) share(theInterface, clazz[0]);
+    }
+
+    /**
+     * Returns a new wrapper, with a reference of its own, for the object
+     * behind a proxy, as an interface the object is known to implement
+     * without asking QueryInterface (e.g. one without an IID).
+     */
+    static <T extends IUnknown> T copy(IUnknown theInterface, Class<T> intrface) {
+        return share(theInterface, intrface);
+    }
+
+    /**
+     * A wrapper with a reference of its own for the object behind a proxy:
+     * the canonical proxy handed out once more, if there is one, or else a
+     * new wrapper holding a new reference.
+     */
+    private static <T> T share(IUnknown theInterface, Class<T> intrface) {
+        ComObject comObj = of(theInterface);
+        if (canonicalProxies) {
+            T p = reuse(comObj._InterfacePtr, comObj.home, intrface);
+            if (p != null)
+                return p;
+        }
+        theInterface.addRef();
+        return wrap(comObj._InterfacePtr, comObj.home, intrface);
+    }
+
+    /**
+     * Wraps an interface pointer that belongs to the given apartment (null
+     * for none), taking over the reference.
+     */
+    static <T extends IUnknown> T wrapIn(Apartment home, Pointer interfacePointer, Class<T> intrface) {
+        return adopt(interfacePointer, home, intrface);
     }
 
     public static <T extends IUnknown> T wrapNativeInterface(Pointer interfacePointer, Class<T> intrface) {
+        if (multiThreaded)
+            joinMTA();
         assert isComInitialized() : "COM not initialized when calling wrapNativeInterface on "+Thread.currentThread();
-        return createProxy(new ComObject(interfacePointer), intrface);
+        return adopt(interfacePointer, homeOfNewObject(), intrface);
+    }
+
+    /**
+     * Wraps an interface pointer returned by a call on the given object, in
+     * the object's apartment, taking over the reference.
+     */
+    static <T extends IUnknown> T wrapResult(Object source, Pointer interfacePointer, Class<T> intrface) {
+        return adopt(interfacePointer, of(source).home, intrface);
+    }
+
+    /**
+     * Wraps an interface pointer, taking over the reference the caller holds.
+     * With canonical proxies the proxy in use for the pointer is handed out
+     * instead, if there is one, and the reference is released: the proxy
+     * has one already.
+     */
+    private static <T> T adopt(Pointer interfacePointer, Apartment home, Class<T> intrface) {
+        if (canonicalProxies && interfacePointer != null) {
+            T p = reuse(interfacePointer, home, intrface);
+            if (p != null) {
+                releaseAt(home, interfacePointer);
+                return p;
+            }
+        }
+        return wrap(interfacePointer, home, intrface);
+    }
+
+    /**
+     * Hands out the canonical proxy of a pointer and interface once more.
+     * @return the proxy, or null if there is none in use in the apartment
+     */
+    private static <T> T reuse(Pointer interfacePointer, Apartment home, Class<T> intrface) {
+        Object proxy = ProxyCache.get(interfacePointer, intrface);
+        if (proxy == null)
+            return null;
+        if (of(proxy).home != home || !retain(proxy))
+            return null;
+        return intrface.cast(proxy);
+    }
+
+    /**
+     * Counts one more user of a proxy handed out again.
+     * @return false if the proxy was disposed of
+     */
+    private static boolean retain(Object proxy) {
+        ComObject com = of(proxy);
+        synchronized (com) {
+            if (com._InterfacePtr == null)
+                return false;
+            com.users++;
+            return true;
+        }
+    }
+
+    private static <T> T wrap(Pointer interfacePointer, Apartment home, Class<T> intrface) {
+        ComObject com = new ComObject(interfacePointer, home);
+        T p = createProxy(com, intrface);
+        if (canonicalProxies && interfacePointer != null) {
+            synchronized (com) {
+                com.canonical = ProxyCache.put(interfacePointer, intrface, p);
+            }
+        }
+        return p;
     }
 
     private static<T> T createProxy(ComObject object, Class<T> intrface) {
-        T p = (T) Proxy.newProxyInstance(ComObject.class.getClassLoader(), new Class<?>[] {intrface}, object);
+        if (compiledStubs) {
+            T p = ComStubs.newStub(object, intrface);
+            if (p != null)
+                return p;
+        }
+        if (generatedProxies) {
+            T p = ProxyGenerator.newProxy(object, intrface);
+            if (p != null)
+                return p;
+        }
+        T p = (T) Proxy.newProxyInstance(intrface.getClassLoader(), new Class<?>[] {intrface}, object);
         return p;
     }
 
+    /**
+     * Returns the ComObject behind a proxy created by this class.
+     */
+    static ComObject of(Object proxy) {
+        if (proxy instanceof ComProxy)
+            return ((ComProxy) proxy).com;
+        return (ComObject) Proxy.getInvocationHandler(proxy);
+    }
+
+    /**
+     * Returns the ComObject behind a proxy created by this class, or null if
+     * the object is anything else (such as a Java implementation of the
+     * interface).
+     */
+    static ComObject wrapperOf(Object o) {
+        if (o instanceof ComProxy)
+            return ((ComProxy) o).com;
+        if (o != null && Proxy.isProxyClass(o.getClass())) {
+            Object h = Proxy.getInvocationHandler(o);
+            if (h instanceof ComObject)
+                return (ComObject) h;
+        }
+        return null;
+    }
+
+    /** The wrapped interface pointer, null once disposed. */
+    Pointer pointer() {
+        return _InterfacePtr;
+    }
+
     /*
      * QueryInterface(REFIID, void **ppvObject)
      * AddRef(void)
@@ -180,39 +591,102 @@ public class ComObject implements InvocationHandler {
      */
     private Pointer queryInterface(Class<?> comInterface) {
         try {
-            String iid = (String) comInterface.getAnnotation(IID.class).value();
-            Pointer vptr = _InterfacePtr.getPointer(0);
-            Function func = Function.getFunction(vptr.getPointer(0));
+            Pointer refiid = Guids.iidPointer(comInterface);
+            Function func = VTable.of(_InterfacePtr).function(0);
             PointerByReference ppvObject = new PointerByReference();
-            Guid.GUID refiid = Ole32Util.getGUIDFromString(iid);
             int hresult = func.invokeInt(new Object[]{_InterfacePtr, refiid, ppvObject});
-            lastHRESULT.set(hresult);
+            trackQueryInterface(hresult);
             if (hresult >= 0) {
                 return ppvObject.getValue();
             }
-            throw new ComException("queryInterface failed. HRESULT = 0x"+Integer.toHexString(hresult),hresult);
+            throw ComException.failed("queryInterface", hresult);
         } catch (IllegalArgumentException ex) {
             logger.log(Level.SEVERE, null, ex);
             throw new RuntimeException("queryInterface failed",ex);
         }
     }
 
+    private void trackQueryInterface(int hresult) {
+        if (trackLastHRESULT) {
+            CallFrame.setLastHRESULT(hresult);
+            lastHRESULT = hresult;
+        }
+    }
+
+    /**
+     * Answers queryInterface from the interface cache, asking the object
+     * only the first time (or again once the cached proxy was disposed of).
+     * A proxy made here is held by the cache until this object is disposed
+     * of, and the caller gets one more use of it.  A canonical proxy that
+     * was in use already is only remembered: holding it could keep two
+     * objects waiting for each other.
+     */
+    private Object cachedQueryInterface(Class<?> c) {
+        Object known;
+        synchronized (this) {
+            known = interfaces != null ? interfaces.get(c) : null;
+        }
+        if (known == NO_INTERFACE) {
+            trackQueryInterface(HResult.E_NOINTERFACE);
+            throw ComException.known("queryInterface", HResult.E_NOINTERFACE);
+        }
+        if (known != null && retain(known)) {
+            trackQueryInterface(HResult.S_OK);
+            return known;
+        }
+
+        Pointer interfacePointer;
+        try {
+            interfacePointer = queryInterface(c);
+        } catch (ComException ex) {
+            if (ex.getHRESULT() == HResult.E_NOINTERFACE)
+                remember(c, NO_INTERFACE);
+            throw ex;
+        }
+        Object proxy = canonicalProxies && interfacePointer != null ? reuse(interfacePointer, home, c) : null;
+        if (proxy != null) {
+            releaseAt(home, interfacePointer);
+            remember(c, proxy);
+            return proxy;
+        }
+        proxy = wrap(interfacePointer, home, c);
+        if (interfacePointer != null && remember(c, proxy)) {
+            of(proxy).holder = this;
+            retain(proxy);
+        }
+        return proxy;
+    }
+
+    /**
+     * Puts an answer in the interface cache, unless this object was
+     * disposed of or another thread cached a live one meanwhile.
+     */
+    private synchronized boolean remember(Class<?> c, Object answer) {
+        if (_InterfacePtr == null)
+            return false;
+        if (interfaces == null)
+            interfaces = new IdentityHashMap<Class<?>, Object>();
+        Object old = interfaces.get(c);
+        if (old != null && old != NO_INTERFACE && of(old)._InterfacePtr != null)
+            return false;
+        interfaces.put(c, answer);
+        return true;
+    }
+
 
     //
     // When preparing args, if a parameter is a COM interface replace it with
     // its _InterfacePtr pointer
     //
     //
-    Object [] prepareArgs(Method method, Object [] args) {
+    Object [] prepareArgs(CallFrame frame, ComMethod call, Object [] args) {
         int asize = 1 + (args != null ? args.length : 0);
-        Object[] aarg = new Object[asize];
-        for (int i = 1; i < aarg.length; i++) {
-            Object givenArg = args[i - 1];
-            if (givenArg instanceof IUnknown) {
-                aarg[i] = ((ComObject)Proxy.getInvocationHandler(givenArg))._InterfacePtr;
-            } else {
-                aarg[i] = givenArg;
-            }
+        Object[] aarg = frame.args(asize);
+        if (args != null) {
+            System.arraycopy(args, 0, aarg, 1, args.length);
+            unwrapInterfaces(call, args, aarg, 1);
+            encodeStrings(call, args, aarg, 1);
+            encodeSafeArrays(call, args, aarg, 1);
         }
         aarg[0] = _InterfacePtr;
         return aarg;
@@ -221,27 +695,24 @@ public class ComObject implements InvocationHandler {
     /**
      * Add the "this" pointer to the argument list and reserve a spot for the
      * "return" value.
-     * @param method
+     * @param frame
+     * @param call
      * @param args
      * @return the new arguments
      */
-    Object[] prepareArgsPlusRetVal(Method method, Object[] args) {
+    Object[] prepareArgsPlusRetVal(CallFrame frame, ComMethod call, Object[] args) {
         Object[] aarg;
         if (args != null) {
             // add two, one for the 'this' pointer, the other for the retVal
-            aarg = new Object[2 + args.length];
-            for (int i = 0; i < args.length; i++) {
-                Object givenArg = args[i];
-                if (givenArg instanceof IUnknown) {
-                    aarg[i+1] = ((ComObject) Proxy.getInvocationHandler(givenArg))._InterfacePtr;
-                } else {
-                    aarg[i+1] = givenArg;
-                }
-            }
+            aarg = frame.args(2 + args.length);
+            System.arraycopy(args, 0, aarg, 1, args.length);
+            unwrapInterfaces(call, args, aarg, 1);
+            encodeStrings(call, args, aarg, 1);
+            encodeSafeArrays(call, args, aarg, 1);
         } else {
             // Even though the method was declared with no arguments, we need
             // two.  One for the 'this' pointer, the other for the retVal.
-            aarg = new Object[2];
+            aarg = frame.args(2);
         }
         // 'this' pointer is taked on to the "front", retVal will be last
         aarg[0] = _InterfacePtr;
@@ -249,292 +720,349 @@ public class ComObject implements InvocationHandler {
     }
 
     /**
-     * Augment the parameter list for a COM API call that returns an integer
-     * by adding the "this" pointer and the return value placeholder as a
-     * byReference parameter.
-     * @param method
-     * @param args
-     * @param retVal
-     * @return
+     * Replace the COM interface arguments (at the positions recorded in the
+     * descriptor) with their native interface pointers.
      */
-    Object [] prepareArgs(Method method, Object [] args, IntByReference retVal) {
-        Object[] aarg;
-        ReturnValue rv = method.getAnnotation(ReturnValue.class);
-        if (rv != null && rv.inout()) {
-            aarg = prepareArgs(method, args);
-            // replace the return value (in/out) reference
-            retVal.setValue(((Number) args[rv.index()]).intValue());
-            aarg[rv.index()] = retVal;
-        } else {
-            // default is to add the return value at the end of the parameter
-            // list if it is not explicite
-            aarg = prepareArgsPlusRetVal(method, args);
-            aarg[aarg.length-1] = retVal;
-        }
-        aarg[0] = _InterfacePtr;
-        return aarg;
-    }
-
-    Object[] prepareArgs(Method method, Object[] args, LongByReference retVal) {
-        Object[] aarg;
-        ReturnValue rv = method.getAnnotation(ReturnValue.class);
-        if (rv != null && rv.inout()) {
-            aarg = prepareArgs(method, args);
-            // replace the return value (in/out) reference
-            retVal.setValue(((Number) args[rv.index()]).longValue());
-            aarg[rv.index()] = retVal;
-        } else {
-            aarg = prepareArgsPlusRetVal(method, args);
-            aarg[aarg.length-1] = retVal;
+    private static void unwrapInterfaces(ComMethod call, Object[] args, Object[] aarg, int shift) {
+        for (int i : call.unknownArgs) {
+            Object givenArg = args[i];
+            if (givenArg instanceof IUnknown) {
+                aarg[i + shift] = of(givenArg)._InterfacePtr;
+            }
         }
-        aarg[0] = _InterfacePtr;
-        return aarg;
     }
 
-    Object[] prepareArgs(Method method, Object[] args, DoubleByReference retVal) {
-        Object[] aarg;
-        ReturnValue rv = method.getAnnotation(ReturnValue.class);
-        if (rv != null && rv.inout()) {
-            aarg = prepareArgs(method, args);
-            // replace the return value (in/out) reference
-            retVal.setValue(((Number) args[rv.index()]).doubleValue());
-            aarg[rv.index()] = retVal;
-        } else {
-            aarg = prepareArgsPlusRetVal(method, args);
-            aarg[aarg.length-1] = retVal;
+    /**
+     * Replace the String arguments with wide strings (or BSTRs) in the calling
+     * thread's {@link StringArena}.
+     */
+    private static void encodeStrings(ComMethod call, Object[] args, Object[] aarg, int shift) {
+        int[] strings = call.stringArgs;
+        if (strings.length == 0)
+            return;
+        StringArena arena = StringArena.get();
+        for (int k = 0; k < strings.length; k++) {
+            int i = strings[k];
+            if (args[i] instanceof String) {
+                String s = (String) args[i];
+                aarg[i + shift] = call.bstrArgs[k] ? arena.bstr(s) : arena.wide(s);
+            }
         }
-        aarg[0] = _InterfacePtr;
-        return aarg;
     }
 
-    Object[] prepareArgs(Method method, Object[] args, ByteByReference retVal) {
-        Object[] aarg;
-        ReturnValue rv = method.getAnnotation(ReturnValue.class);
-        if (rv != null && rv.inout()) {
-            aarg = prepareArgs(method, args);
-            // replace the return value (in/out) reference
-            retVal.setValue(((Number) args[rv.index()]).byteValue());
-            aarg[rv.index()] = retVal;
-        } else {
-            aarg = prepareArgsPlusRetVal(method, args);
-            aarg[aarg.length-1] = retVal;
+    /**
+     * Replace SafeArray arguments with their SAFEARRAY pointers, and
+     * {@link AsSafeArray} arrays with SAFEARRAYs in the calling thread's
+     * {@link StringArena}.
+     */
+    private static void encodeSafeArrays(ComMethod call, Object[] args, Object[] aarg, int shift) {
+        int[] arrays = call.safeArrayArgs;
+        for (int i : arrays) {
+            Object a = args[i];
+            if (a instanceof SafeArray)
+                aarg[i + shift] = ((SafeArray) a).getPointer();
+            else if (a != null)
+                aarg[i + shift] = SafeArray.inArena(StringArena.get(), a);
         }
-        aarg[0] = _InterfacePtr;
-        return aarg;
     }
 
-    Object[] prepareArgs(Method method, Object[] args, HANDLEByReference retVal) {
+    /**
+     * Augment the parameter list for a COM API call by adding the "this"
+     * pointer and the return value placeholder as a byReference parameter.
+     * For an in/out return value the placeholder replaces the argument, and
+     * must already hold its value.
+     * @param frame
+     * @param call
+     * @param args
+     * @param retVal the native memory (or structure) the return value is written to
+     * @return the new arguments
+     */
+    Object[] prepareArgs(CallFrame frame, ComMethod call, Object[] args, Object retVal) {
         Object[] aarg;
-        ReturnValue rv = method.getAnnotation(ReturnValue.class);
-        if (rv != null && rv.inout()) {
-            aarg = prepareArgs(method, args);
+        if (call.retvalInout) {
+            aarg = prepareArgs(frame, call, args);
             // replace the return value (in/out) reference
-            retVal.setValue(((HANDLE) args[rv.index()]));
-            aarg[rv.index()] = retVal;
+            aarg[call.retvalIndex] = retVal;
         } else {
-            aarg = prepareArgsPlusRetVal(method, args);
+            // default is to add the return value at the end of the parameter
+            // list if it is not explicite
+            aarg = prepareArgsPlusRetVal(frame, call, args);
             aarg[aarg.length-1] = retVal;
         }
-        aarg[0] = _InterfacePtr;
         return aarg;
     }
 
-    Object[] prepareArgs(Method method, Object[] args, PointerByReference retVal) {
-        Object[] aarg;
-        ReturnValue rv = method.getAnnotation(ReturnValue.class);
-        if (rv != null && rv.inout()) {
-            aarg = prepareArgs(method, args);
-            // replace the return value (in/out) reference
-            retVal.setValue((Pointer) args[rv.index()]);
-            aarg[rv.index()] = retVal;
-        } else {
-            aarg = prepareArgsPlusRetVal(method, args);
-            aarg[aarg.length-1] = retVal;
-        }
-        aarg[0] = _InterfacePtr; // pass the "this" pointer
-        return aarg;
-    }
-    
-    Object[] prepareArgsObjOut(Method method, Object[] args, Object retVal) {
-        Object[] aarg;
-        ReturnValue rv = method.getAnnotation(ReturnValue.class);
-        if (rv != null && rv.inout()) {
-            aarg = prepareArgs(method, args);
-            // replace the return value (in/out) reference
-            //retVal.setValue((Pointer) args[rv.index()]);
-            aarg[rv.index()] = retVal;
-        } else {
-            aarg = prepareArgsPlusRetVal(method, args);
-            aarg[aarg.length-1] = retVal;
+    void invokeVoidCom(ComMethod call, Object... args) {
+        Function func = VTable.of(_InterfacePtr).function(call.slot());
+        CallFrame frame = CallFrame.enter();
+        try {
+            Object[] aarg = prepareArgs(frame, call, args);
+            int hresult = ComInvoker.instance.invokeInt(call, func, aarg);
+            track(frame, hresult);
+            if (hresult < 0)
+                throw ComException.failed(call, hresult, this);
+        } finally {
+            frame.exit();
         }
-        aarg[0] = _InterfacePtr; // pass the "this" pointer
-        return aarg;
-    }
-
-    void invokeVoidCom(Method method, Object... args) {
-        int offset = method.getAnnotation(VTID.class).value();
-        Pointer vptr = _InterfacePtr.getPointer(0);
-        Function func = Function.getFunction(vptr.getPointer(offset * ptrSize));
-        Object[] aarg = prepareArgs(method, args);
-        int hresult = func.invokeInt(aarg);
-        lastHRESULT.set(hresult);
-        if (hresult < 0)
-            throw new ComException("Invocation of \"" + method.getName() + "\" failed, hresult=0x" + Integer.toHexString(hresult), hresult);
     }
 
     /** Invokes a standard COM method that returns an integer
      * The actual COM method is assumed to always return an HRESULT. The "real"
      * return value is added to the end of the parameters list via pass by
      * reference so it can be filled in.
-     * @param method
+     * @param call
      * @param args
      * @return The integer return value (NOT the HRESULT)
      */
-    int invokeIntCom(Method method, Object... args){
-        int offset = method.getAnnotation(VTID.class).value();
-        NoHResult nohresult = method.getAnnotation(NoHResult.class);
-        Pointer vptr = _InterfacePtr.getPointer(0);
-        Function func = Function.getFunction(vptr.getPointer(offset * ptrSize));
-        if(nohresult == null) {
-            IntByReference retVal = new com.sun.jna.ptr.IntByReference();
-            Object[] aarg = prepareArgs(method, args, retVal);
-            int hresult = func.invokeInt(aarg);
-            lastHRESULT.set(hresult);
-            if (hresult < 0)
-                throw new ComException("Invocation of \"" + method.getName() + "\" failed, hresult=0x" + Integer.toHexString(hresult),hresult);
-            return retVal.getValue();
-        } else { //Method simply returns the value
-            Object[] aarg = prepareArgs(method, args);
-            return func.invokeInt(aarg);
+    int invokeIntCom(ComMethod call, Object... args){
+        Function func = VTable.of(_InterfacePtr).function(call.slot());
+        CallFrame frame = CallFrame.enter();
+        try {
+            if(!call.noHResult) {
+                Memory retVal = frame.retval();
+                if (call.retvalInout)
+                    retVal.setInt(0, ((Number) args[call.retvalIndex]).intValue());
+                Object[] aarg = prepareArgs(frame, call, args, retVal);
+                int hresult = ComInvoker.instance.invokeInt(call, func, aarg);
+                track(frame, hresult);
+                if (hresult < 0)
+                    throw ComException.failed(call, hresult, this);
+                return retVal.getInt(0);
+            } else { //Method simply returns the value
+                Object[] aarg = prepareArgs(frame, call, args);
+                return ComInvoker.instance.invokeInt(call, func, aarg);
+            }
+        } finally {
+            frame.exit();
         }
     }
 
-    long invokeLongCom(Method method, Object... args){
-        int offset = method.getAnnotation(VTID.class).value();
-        NoHResult nohresult = method.getAnnotation(NoHResult.class);
-        Pointer vptr = _InterfacePtr.getPointer(0);
-        Function func = Function.getFunction(vptr.getPointer(offset * ptrSize));
-        if(nohresult == null) {
-            LongByReference retVal = new com.sun.jna.ptr.LongByReference();
-            Object[] aarg = prepareArgs(method, args, retVal);
-            int hresult = func.invokeInt(aarg);
-            lastHRESULT.set(hresult);
-            if (hresult < 0)
-                throw new ComException("Invocation of \"" + method.getName() + "\" failed, hresult=0x" + Integer.toHexString(hresult), hresult);
-            return retVal.getValue();
-        } else {
-            Object[] aarg = prepareArgs(method, args);
-            return func.invokeLong(aarg);
+    long invokeLongCom(ComMethod call, Object... args){
+        Function func = VTable.of(_InterfacePtr).function(call.slot());
+        CallFrame frame = CallFrame.enter();
+        try {
+            if(!call.noHResult) {
+                Memory retVal = frame.retval();
+                if (call.retvalInout)
+                    retVal.setLong(0, ((Number) args[call.retvalIndex]).longValue());
+                Object[] aarg = prepareArgs(frame, call, args, retVal);
+                int hresult = ComInvoker.instance.invokeInt(call, func, aarg);
+                track(frame, hresult);
+                if (hresult < 0)
+                    throw ComException.failed(call, hresult, this);
+                return retVal.getLong(0);
+            } else {
+                Object[] aarg = prepareArgs(frame, call, args);
+                return ComInvoker.instance.invokeLong(call, func, aarg);
+            }
+        } finally {
+            frame.exit();
         }
     }
 
-    double invokeDoubleCom(Method method, Object... args){
-        int offset = method.getAnnotation(VTID.class).value();
-        NoHResult nohresult = method.getAnnotation(NoHResult.class);
-        Pointer vptr = _InterfacePtr.getPointer(0);
-        Function func = Function.getFunction(vptr.getPointer(offset * ptrSize));
-        if(nohresult == null) {
-            DoubleByReference retVal = new com.sun.jna.ptr.DoubleByReference();
-            Object[] aarg = prepareArgs(method, args, retVal);
-            int hresult = func.invokeInt(aarg);
-            lastHRESULT.set(hresult);
+    double invokeDoubleCom(ComMethod call, Object... args){
+        Function func = VTable.of(_InterfacePtr).function(call.slot());
+        CallFrame frame = CallFrame.enter();
+        try {
+            if(!call.noHResult) {
+                Memory retVal = frame.retval();
+                if (call.retvalInout)
+                    retVal.setDouble(0, ((Number) args[call.retvalIndex]).doubleValue());
+                Object[] aarg = prepareArgs(frame, call, args, retVal);
+                int hresult = ComInvoker.instance.invokeInt(call, func, aarg);
+                track(frame, hresult);
+                if (hresult < 0)
+                    throw ComException.failed(call, hresult, this);
+                return retVal.getDouble(0);
+            } else {
+                Object[] aarg = prepareArgs(frame, call, args);
+                return ComInvoker.instance.invokeDouble(call, func, aarg);
+            }
+        } finally {
+            frame.exit();
+        }
+    }
+
+    byte invokeByteCom(ComMethod call, Object... args){
+        Function func = VTable.of(_InterfacePtr).function(call.slot());
+        CallFrame frame = CallFrame.enter();
+        try {
+            Memory retVal = frame.retval();
+            if (call.retvalInout)
+                retVal.setByte(0, ((Number) args[call.retvalIndex]).byteValue());
+            Object[] aarg = prepareArgs(frame, call, args, retVal);
+            int hresult = ComInvoker.instance.invokeInt(call, func, aarg);
+            track(frame, hresult);
             if (hresult < 0)
-                throw new ComException("Invocation of \"" + method.getName() + "\" failed, hresult=0x" + Integer.toHexString(hresult), hresult);
-            return retVal.getValue();
-        } else {
-            Object[] aarg = prepareArgs(method, args);
-            return func.invokeDouble(aarg);
-        }
-    }
-
-    byte invokeByteCom(Method method, Object... args){
-        int offset = method.getAnnotation(VTID.class).value();
-        Pointer vptr = _InterfacePtr.getPointer(0);
-        Function func = Function.getFunction(vptr.getPointer(offset * ptrSize));
-        ByteByReference retVal = new com.sun.jna.ptr.ByteByReference();
-        Object[] aarg = prepareArgs(method, args, retVal);
-        int hresult = func.invokeInt(aarg);
-        lastHRESULT.set(hresult);
-        if (hresult < 0)
-            throw new ComException("Invocation of \"" + method.getName() + "\" failed, hresult=0x" + Integer.toHexString(hresult), hresult);
-        return retVal.getValue();
-    }
-
-    HANDLE invokeHandleCom(Method method, Object... args){
-        int offset = method.getAnnotation(VTID.class).value();
-        Pointer vptr = _InterfacePtr.getPointer(0);
-        Function func = Function.getFunction(vptr.getPointer(offset * ptrSize));
-        HANDLEByReference retVal = new HANDLEByReference();
-        Object[] aarg = prepareArgs(method, args, retVal);
-        int hresult = func.invokeInt(aarg);
-        lastHRESULT.set(hresult);
-        if (hresult < 0)
-            throw new ComException("Invocation of \"" + method.getName() + "\" failed, hresult=0x" + Integer.toHexString(hresult), hresult);
-        return retVal.getValue();
-    }
-
-    Object invokeObjectCom(Method method, Object... args) {
-        int offset = method.getAnnotation(VTID.class).value();
-        Pointer vptr = _InterfacePtr.getPointer(0);
-        Function func = Function.getFunction(vptr.getPointer(offset * ptrSize));
-        if (method.getReturnType().isInterface()) {
-            // Hack the return parameter on to the args
-            PointerByReference p = new PointerByReference();   
-            Object[] aarg = prepareArgs(method, args, p);
-            int hresult = (Integer) func.invoke(Integer.class, aarg);
-            lastHRESULT.set(hresult);
+                throw ComException.failed(call, hresult, this);
+            return retVal.getByte(0);
+        } finally {
+            frame.exit();
+        }
+    }
+
+    HANDLE invokeHandleCom(ComMethod call, Object... args){
+        Function func = VTable.of(_InterfacePtr).function(call.slot());
+        CallFrame frame = CallFrame.enter();
+        try {
+            Memory retVal = frame.retval();
+            if (call.retvalInout)
+                retVal.setPointer(0, ((HANDLE) args[call.retvalIndex]).getPointer());
+            Object[] aarg = prepareArgs(frame, call, args, retVal);
+            int hresult = ComInvoker.instance.invokeInt(call, func, aarg);
+            track(frame, hresult);
             if (hresult < 0)
-                throw new ComException("Invocation of \""+method.getName()+"\" failed, hresult=0x"+Integer.toHexString(hresult), hresult);
-            return createProxy(new ComObject(p.getValue()), method.getReturnType());
-        } else {
-            boolean returnsBSTR = false;
-            Object retVal = null;
-            ReturnValue rv = method.getAnnotation(ReturnValue.class);
-            if (rv != null && rv.inout()) {
-                // one of the args is the return value
-                retVal = (Structure) args[rv.index()];
+                throw ComException.failed(call, hresult, this);
+            // as HANDLEByReference.getValue()
+            Pointer p = retVal.getPointer(0);
+            if (p == null)
+                return null;
+            if (WinBase.INVALID_HANDLE_VALUE.getPointer().equals(p))
+                return WinBase.INVALID_HANDLE_VALUE;
+            HANDLE h = new HANDLE();
+            h.setPointer(p);
+            return h;
+        } finally {
+            frame.exit();
+        }
+    }
+
+    Object invokeObjectCom(ComMethod call, Object... args) {
+        Function func = VTable.of(_InterfacePtr).function(call.slot());
+        CallFrame frame = CallFrame.enter();
+        try {
+            if (call.kind == ComMethod.Kind.INTERFACE) {
+                // Hack the return parameter on to the args
+                Memory p = frame.retval();
+                if (call.retvalInout)
+                    p.setPointer(0, (Pointer) args[call.retvalIndex]);
+                Object[] aarg = prepareArgs(frame, call, args, p);
+                int hresult = ComInvoker.instance.invokeInt(call, func, aarg);
+                track(frame, hresult);
+                if (hresult < 0)
+                    throw ComException.failed(call, hresult, this);
+                return adopt(p.getPointer(0), home, call.returnType);
             } else {
-                // retval wasn't an explicit parameter - so we will make one
-                if (method.getReturnType() == String.class) {
-                    // String in COM should mean BSTR
-                    returnsBSTR = true;
-                    retVal = new PointerByReference();
-                } else try {
-                    // just a normal structure
-                    retVal = method.getReturnType().newInstance();
-                    assert retVal instanceof Structure;
-                } catch (InstantiationException ex) {
-                    logger.log(Level.SEVERE, null, ex);
-                    throw new RuntimeException("Invocation of \"" + method.getName() + "\" failed.",ex);
-                } catch (IllegalAccessException ex) {
-                    logger.log(Level.SEVERE, null, ex);
-                    throw new RuntimeException("Invocation of \"" + method.getName() + "\" failed.", ex);
+                // BSTRs and SAFEARRAYs come back as a pointer
+                boolean returnsPointer = false;
+                Object retVal = null;
+                if (call.retvalInout) {
+                    // one of the args is the return value
+                    retVal = (Structure) args[call.retvalIndex];
+                } else {
+                    // retval wasn't an explicit parameter - so we will make one
+                    if (call.kind != ComMethod.Kind.STRUCTURE) {
+                        returnsPointer = true;
+                        retVal = frame.retval();
+                    } else try {
+                        // just a normal structure
+                        retVal = call.returnType.newInstance();
+                        assert retVal instanceof Structure;
+                    } catch (InstantiationException ex) {
+                        logger.log(Level.SEVERE, null, ex);
+                        throw new RuntimeException("Invocation of \"" + call.name + "\" failed.",ex);
+                    } catch (IllegalAccessException ex) {
+                        logger.log(Level.SEVERE, null, ex);
+                        throw new RuntimeException("Invocation of \"" + call.name + "\" failed.", ex);
+                    }
                 }
+                Object[] aarg = prepareArgs(frame, call, args, retVal);
+                int hresult = ComInvoker.instance.invokeInt(call, func, aarg);
+                track(frame, hresult);
+                if (hresult < 0)
+                    throw ComException.failed(call, hresult, this);
+                if (returnsPointer) {
+                    Pointer p = ((Memory) retVal).getPointer(0);
+                    if (call.kind == ComMethod.Kind.BSTR) {
+                        retVal = StringArena.fromBSTR(p);
+                        Natives.oleaut32().SysFreeString(p);
+                    } else if (p == null) {
+                        retVal = null;
+                    } else if (call.kind == ComMethod.Kind.SAFEARRAY) {
+                        retVal = SafeArray.wrap(p);
+                    } else {
+                        retVal = SafeArray.take(p, call.returnType);
+                    }
+                }
+                return retVal;
             }
-            Object[] aarg = prepareArgsObjOut(method, args, retVal);
-            int hresult = (Integer) func.invoke(Integer.class, aarg);
-            lastHRESULT.set(hresult);
-            if (hresult < 0)
-                throw new ComException("Invocation of \"" + method.getName() + "\" failed, hresult=0x" + Integer.toHexString(hresult), hresult);
-            if (returnsBSTR) {
-                Pointer bstr = ((PointerByReference) retVal).getValue();
-                retVal = bstr.getString(0,true);
-                Oleaut32.INSTANCE.SysFreeString(bstr);
-            }
-            return retVal;
+        } finally {
+            frame.exit();
         }
     }
 
     int addRef() {
-        Pointer vptr = _InterfacePtr.getPointer(0);
-        Function func = Function.getFunction(vptr.getPointer(1 * ptrSize));
-        return func.invokeInt(new Object[] {_InterfacePtr});
+        Function func = VTable.of(_InterfacePtr).function(1);
+        CallFrame frame = CallFrame.enter();
+        try {
+            Object[] aarg = frame.args(1);
+            aarg[0] = _InterfacePtr;
+            return func.invokeInt(aarg);
+        } finally {
+            frame.exit();
+        }
     }
     
     int release() {
-        Pointer vptr = _InterfacePtr.getPointer(0);
-        Function func = Function.getFunction(vptr.getPointer(2 * ptrSize));
-        return func.invokeInt(new Object[]{_InterfacePtr});
+        return release(_InterfacePtr);
+    }
+
+    /** @return the apartment that runs all calls to this object, null for the calling thread */
+    Apartment home() {
+        return home;
+    }
+
+    /**
+     * Whether the object sets error info for failed calls through an
+     * interface.  The object is asked (see {@link ErrorInfo}) the first time
+     * a call through the interface fails, and the answer kept.
+     */
+    boolean supportsErrorInfo(Class<?> intrface) {
+        Boolean known;
+        synchronized (this) {
+            known = errorInfoSupport != null ? errorInfoSupport.get(intrface) : null;
+        }
+        if (known == null) {
+            known = ErrorInfo.supports(_InterfacePtr, intrface);
+            synchronized (this) {
+                if (errorInfoSupport == null)
+                    errorInfoSupport = new IdentityHashMap<Class<?>, Boolean>();
+                errorInfoSupport.put(intrface, known);
+            }
+        }
+        return known;
+    }
+
+    /**
+     * Releases a reference to an interface pointer on the thread of the
+     * apartment it belongs to.
+     */
+    private static void releaseAt(Apartment home, final Pointer interfacePointer) {
+        if (home == null || home.isCurrentThread()) {
+            release(interfacePointer);
+            return;
+        }
+        try {
+            home.call(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return release(interfacePointer);
+                }
+            });
+        } catch (Throwable ex) {
+            logger.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    static int release(Pointer interfacePointer) {
+        Function func = VTable.of(interfacePointer).function(2);
+        CallFrame frame = CallFrame.enter();
+        try {
+            Object[] aarg = frame.args(1);
+            aarg[0] = interfacePointer;
+            return func.invokeInt(aarg);
+        } finally {
+            frame.exit();
+        }
     }
 
     /**
@@ -545,110 +1073,315 @@ public class ComObject implements InvocationHandler {
      */
     public synchronized void dispose() {
         if (_InterfacePtr != null) {
+            if (users > 1) {
+                // the canonical proxy, still in use elsewhere
+                users--;
+                return;
+            }
             release();
             // because we share the native pointer amoung interface copies
             // we can't assume that the reference count should be zero here
             _InterfacePtr = null;
+            ReleaseQueue.forget(releaseHandle);
+            if (canonical != null)
+                ProxyCache.remove(canonical);
+            if (interfaces != null) {
+                for (Object answer : interfaces.values()) {
+                    if (answer != NO_INTERFACE && of(answer).holder == this)
+                        of(answer).dispose();
+                }
+                interfaces = null;
+            }
         }
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        logger.log(Level.FINEST, "Finalizing: {0}", getClass().getName());
-        dispose();
-        super.finalize();
+    /**
+     * Releases the interface pointers of COM objects that were garbage
+     * collected without being disposed.  This happens automatically on the
+     * next call into a COM object (on its apartment's thread in single
+     * threaded mode); call it to release them sooner.
+     * @return the number of interface pointers released
+     */
+    public static int releasePending() {
+        Callable<Integer> drain = new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return ReleaseQueue.drain();
+            }
+        };
+        int n = 0;
+        for (Apartment a : apartments) {
+            if (a.isStarted() && !a.isCurrentThread()) {
+                try {
+                    n += a.call(drain);
+                } catch (Throwable ex) {
+                    logger.log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        if (!singleThreaded || Apartment.current() != null)
+            n += ReleaseQueue.drain();
+        return n;
+    }
+
+    /** @return the number of collected interface pointers waiting to be released */
+    public static long getPendingReleaseCount() {
+        return ReleaseQueue.pendingCount();
+    }
+
+    /** @return the number of collected interface pointers released so far */
+    public static long getDrainedReleaseCount() {
+        return ReleaseQueue.drainedCount();
+    }
+
+    private static void drainReleases() {
+        if (ReleaseQueue.hasPending())
+            ReleaseQueue.drain();
     }
 
     public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
-        if (singleThreaded && Thread.currentThread() != comThread) {
-            Future<Object> retVal = comExecutor.submit(new Callable<Object>() {
-                public Object call() throws Exception {
-                    try {
-                        return invoke(proxy, method, args);
-                    } catch (Throwable ex) {
-                        throw new Exception("COM invoke failed",ex);
-                    }
-                }
-            });
+        return invoke(proxy, ComMethod.of(method), args);
+    }
+
+    Object invoke(final Object proxy, final ComMethod call, final Object[] args) {
+        if (home != null && !home.isCurrentThread()) {
             try {
-                return retVal.get();
-            } catch (InterruptedException ex) {
-                Logger.getLogger(ComObject.class.getName()).log(Level.SEVERE, null, ex);
-            } catch (ExecutionException ex) {
-                Logger.getLogger(ComObject.class.getName()).log(Level.SEVERE, null, ex);
+                return home.invoke(this, proxy, call, args);
+            } catch (Throwable ex) {
+                logger.log(Level.SEVERE, null, ex);
             }
             return null;
         }
 
-        assert isComInitialized() : "COM not initialized when calling "+method.getName()+" on "+Thread.currentThread();
+        if (multiThreaded)
+            joinMTA();
+        assert isComInitialized() : "COM not initialized when calling "+call.name+" on "+Thread.currentThread();
+        drainReleases();
 
-        String mname = method.getName();
-        if (mname.equals("queryInterface")) {
-            // if the native interface pointer is the same, return a new proxy to
-            // this same ComObject that implements the interface required interface
-            // otherwise make a new ComObject to wrap the returned interface pointer
-            if (args[0] instanceof Class<?>) {
+        switch (call.kind) {
+            case QUERY_INTERFACE:
+                // if the native interface pointer is the same, return a new proxy to
+                // this same ComObject that implements the interface required interface
+                // otherwise make a new ComObject to wrap the returned interface pointer
                 Class<?> c = (Class<?>) args[0];
                 if (c.isInterface()) {
-                    Pointer interfacePointer = queryInterface((Class<?>)args[0]);
-                    return createProxy(new ComObject(interfacePointer), c);
+                    if (cacheInterfaces)
+                        return cachedQueryInterface(c);
+                    Pointer interfacePointer = queryInterface(c);
+                    return adopt(interfacePointer, home, c);
                 } else {
                     throw new RuntimeException("Argument to queryInterface must be a Java interface class annotated with an interface ID.");
                 }
-            }
-        } else if (mname.equals("dispose")) {
-            //System.out.println("dispose() ->"+proxy);
-            dispose();
-            return null;
-        } else if (mname.equals("toString")) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(_InterfacePtr);
-            sb.append("):");
-
-            boolean notFirst = false;
-            for (Class<?> cc : proxy.getClass().getInterfaces()) {
-                if (notFirst)
-                    sb.append(", ");
-                else
-                    notFirst = true;
-                sb.append(cc.getName());
-            }
+            case DISPOSE:
+                dispose();
+                return null;
+            case TO_STRING:
+                return describe(proxy);
+            case EQUALS:
+                return proxy == args[0];
+            case HASH_CODE:
+                return System.identityHashCode(proxy);
+            case ADD_REF:
+                return addRef();
+            case RELEASE:
+                return release();
+        }
 
-            return sb.toString();
-        } else if (mname.equals("addRef")) {
-            return addRef();
-        } else if (mname.equals("release")) {
-            return release();
-        }
-       
-        //Examine the args and wrap String objects as WString
-        if(args != null) {
-            for(int i=0;i<args.length;i++) {
-                if(args[i] instanceof String) {
-                    String s = (String)(args[i]);
-                    WString wstr = new WString(s);
-                    args[i] = wstr;
-                }
+        if (!call.usesArena)
+            return invokeCom(call, args);
+        // the strings are encoded on the way in and only live until the call returns
+        StringArena arena = StringArena.get();
+        long mark = arena.mark();
+        try {
+            return invokeCom(call, args);
+        } finally {
+            arena.reset(mark);
+        }
+    }
+
+    private Object invokeCom(ComMethod call, Object[] args) {
+        switch (call.kind) {
+            case VOID:
+                invokeVoidCom(call, args);
+                return null;
+            case INT:
+                return invokeIntCom(call, args);
+            case LONG:
+                return invokeLongCom(call, args);
+            case DOUBLE:
+                return invokeDoubleCom(call, args);
+            case BYTE:
+                return invokeByteCom(call, args);
+            case BOOLEAN:
+                return invokeByteCom(call, args) != 0;
+            case HANDLE:
+                return invokeHandleCom(call, args);
+            default:
+                return invokeObjectCom(call, args);
+        }
+    }
+
+    /**
+     * Runs a block of code that makes several COM calls on the COM thread, so
+     * that in single threaded mode the hand-off to the COM thread is paid once
+     * for the block instead of once per call.  Calls made by the block go
+     * straight to the objects.  Outside single threaded mode, or when already
+     * on the COM thread, the block simply runs on the calling thread.
+     * <p>
+     * Keep batches short: the COM thread does nothing else while one runs.
+     * With several apartments this runs on the first one; use
+     * {@link #batch(Object, Callable)} for objects of another apartment.
+     * @param block the calls to make, returning whatever results are needed
+     * @return what the block returned
+     * @throws Exception whatever the block threw, e.g. a {@link ComException}
+     * @see ComBatch
+     */
+    public static <T> T batch(Callable<T> block) throws Exception {
+        return batch(singleThreaded ? apartments[0] : null, block);
+    }
+
+    /**
+     * Runs a block of code on the apartment of the given object (see
+     * {@link #batch(Callable)}).
+     * @param proxy an interface returned by this class
+     */
+    public static <T> T batch(Object proxy, Callable<T> block) throws Exception {
+        return batch(of(proxy).home, block);
+    }
+
+    private static <T> T batch(Apartment apartment, Callable<T> block) throws Exception {
+        if (apartment != null && !apartment.isCurrentThread()) {
+            try {
+                return apartment.call(block);
+            } catch (Exception ex) {
+                throw ex;
+            } catch (Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new UndeclaredThrowableException(ex);
             }
         }
+        return block.call();
+    }
 
-        if (method.getReturnType() == Void.TYPE) {
-            invokeVoidCom(method, args);
-            return null;
-        } else if (method.getReturnType() == Integer.TYPE) {
-            return invokeIntCom(method, args);
-        } else if (method.getReturnType() == Long.TYPE) {
-            return invokeLongCom(method, args);
-        } else if (method.getReturnType() == Double.TYPE) {
-            return invokeDoubleCom(method, args);
-        } else if (method.getReturnType() == Byte.TYPE) {
-            return invokeByteCom(method, args);
-        } else if (method.getReturnType() == Boolean.TYPE) {
-            return invokeByteCom(method, args) != 0;
-        } else if (method.getReturnType() == HANDLE.class) {
-            return invokeHandleCom(method, args);
-        } else {
-            return invokeObjectCom(method, args);
+    /**
+     * Calls a method of a COM object without waiting for the COM thread.
+     * <p>
+     * In single threaded mode the call is queued for the object's apartment
+     * and the calling thread carries on; calls queued by one thread for one
+     * apartment run in the order they were made.  Otherwise, or when already
+     * on that apartment's thread, the call is made right away and the
+     * returned future is already complete.
+     * <p>
+     * Unlike a call through the proxy from another thread, a failed call is
+     * not logged and turned into null: the future completes exceptionally
+     * with the {@link ComException}, which carries the HRESULT.
+     * @param proxy an interface returned by this class
+     * @param method the method of that interface to call
+     * @param args the arguments, which must not be changed until the call is done
+     * @return the result of the call, boxed as by the proxy
+     */
+    public static CompletableFuture<Object> invokeAsync(Object proxy, Method method, Object... args) {
+        ComObject target = of(proxy);
+        ComMethod call = ComMethod.of(method);
+        if (target.home != null && !target.home.isCurrentThread())
+            return target.home.invokeAsync(target, proxy, call, args);
+        CompletableFuture<Object> result = new CompletableFuture<Object>();
+        try {
+            result.complete(target.invoke(proxy, call, args));
+        } catch (Throwable ex) {
+            result.completeExceptionally(ex);
         }
+        return result;
+    }
+
+    String describe(Object proxy) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(_InterfacePtr);
+        sb.append("):");
+
+        boolean notFirst = false;
+        for (Class<?> cc : proxy.getClass().getInterfaces()) {
+            if (notFirst)
+                sb.append(", ");
+            else
+                notFirst = true;
+            sb.append(cc.getName());
+        }
+
+        return sb.toString();
+    }
+
+    /*
+     * Typed entry points used by generated proxies (see ComProxy).  A call
+     * that is not a plain call of the matching kind, that passes strings, or
+     * that has to be handed to the COM thread, goes the long way through
+     * invoke().
+     */
+
+    private boolean direct(ComMethod call, ComMethod.Kind kind) {
+        return call.kind == kind && !call.usesArena
+                && (home == null || home.isCurrentThread());
+    }
+
+    void invokeVoid(Object proxy, ComMethod call, Object[] args) {
+        if (!direct(call, ComMethod.Kind.VOID)) {
+            invoke(proxy, call, args);
+            return;
+        }
+        if (multiThreaded)
+            joinMTA();
+        assert isComInitialized() : "COM not initialized when calling "+call.name+" on "+Thread.currentThread();
+        drainReleases();
+        invokeVoidCom(call, args);
+    }
+
+    int invokeInt(Object proxy, ComMethod call, Object[] args) {
+        if (!direct(call, ComMethod.Kind.INT))
+            return (Integer) invoke(proxy, call, args);
+        if (multiThreaded)
+            joinMTA();
+        assert isComInitialized() : "COM not initialized when calling "+call.name+" on "+Thread.currentThread();
+        drainReleases();
+        return invokeIntCom(call, args);
+    }
+
+    long invokeLong(Object proxy, ComMethod call, Object[] args) {
+        if (!direct(call, ComMethod.Kind.LONG))
+            return (Long) invoke(proxy, call, args);
+        if (multiThreaded)
+            joinMTA();
+        assert isComInitialized() : "COM not initialized when calling "+call.name+" on "+Thread.currentThread();
+        drainReleases();
+        return invokeLongCom(call, args);
+    }
+
+    double invokeDouble(Object proxy, ComMethod call, Object[] args) {
+        if (!direct(call, ComMethod.Kind.DOUBLE))
+            return (Double) invoke(proxy, call, args);
+        if (multiThreaded)
+            joinMTA();
+        assert isComInitialized() : "COM not initialized when calling "+call.name+" on "+Thread.currentThread();
+        drainReleases();
+        return invokeDoubleCom(call, args);
+    }
+
+    byte invokeByte(Object proxy, ComMethod call, Object[] args) {
+        if (!direct(call, ComMethod.Kind.BYTE))
+            return (Byte) invoke(proxy, call, args);
+        if (multiThreaded)
+            joinMTA();
+        assert isComInitialized() : "COM not initialized when calling "+call.name+" on "+Thread.currentThread();
+        drainReleases();
+        return invokeByteCom(call, args);
+    }
+
+    boolean invokeBoolean(Object proxy, ComMethod call, Object[] args) {
+        if (!direct(call, ComMethod.Kind.BOOLEAN))
+            return (Boolean) invoke(proxy, call, args);
+        if (multiThreaded)
+            joinMTA();
+        assert isComInitialized() : "COM not initialized when calling "+call.name+" on "+Thread.currentThread();
+        drainReleases();
+        return invokeByteCom(call, args) != 0;
     }
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+/**
+ * Base class of the proxy classes generated for COM interfaces when
+ * <tt>jnacom.generatedProxies</tt> is set.  Not intended to be used directly.
+ *
+ * <p>
+ * A generated proxy implements each interface method by packing its
+ * arguments and calling the <tt>call*</tt> method matching the return type,
+ * so primitive results are never boxed.  The method is identified by its
+ * index in the descriptor table the proxy class was generated with.
+ *
+ * @author scott.palmer
+ */
+public abstract class ComProxy {
+    final ComObject com;
+    private final ComMethod[] calls;
+
+    protected ComProxy(ComObject com, Object[] calls) {
+        this.com = com;
+        this.calls = (ComMethod[]) calls;
+    }
+
+    protected final void callVoid(int index, Object[] args) {
+        com.invokeVoid(this, calls[index], args);
+    }
+
+    protected final int callInt(int index, Object[] args) {
+        return com.invokeInt(this, calls[index], args);
+    }
+
+    protected final long callLong(int index, Object[] args) {
+        return com.invokeLong(this, calls[index], args);
+    }
+
+    protected final double callDouble(int index, Object[] args) {
+        return com.invokeDouble(this, calls[index], args);
+    }
+
+    protected final byte callByte(int index, Object[] args) {
+        return com.invokeByte(this, calls[index], args);
+    }
+
+    protected final boolean callBoolean(int index, Object[] args) {
+        return com.invokeBoolean(this, calls[index], args);
+    }
+
+    protected final Object callObject(int index, Object[] args) {
+        return com.invoke(this, calls[index], args);
+    }
+
+    @Override
+    public String toString() {
+        return com.describe(this);
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+
+/**
+ * Writes a stub for each {@link IID} annotated interface at compile time: a
+ * {@link ComProxy} subclass that implements every method with a direct call
+ * to the vtable, and a <tt>COM_METHODS</tt> table of what the annotations
+ * say.  {@link ComObject} uses the stub instead of a
+ * {@link java.lang.reflect.Proxy} when it finds one, so no proxy classes
+ * are spun and no annotations are read at run time, and the interfaces work
+ * in ahead-of-time compiled images.
+ *
+ * <p>
+ * It also checks what would otherwise only fail on the first call: that
+ * methods sharing a {@link VTID} have the same signature, that only IUnknown
+ * uses slots 0 to 2, and that an inout {@link ReturnValue} index names a
+ * parameter.
+ *
+ * <p>
+ * For GraalVM native images it lists the interfaces and stubs in a
+ * <tt>META-INF/native-image/com4jna/</tt><i>package</i><tt>/reflect-config.json</tt>,
+ * named after the first package with a stub, as they are looked up by
+ * reflection.
+ *
+ * <p>
+ * It is not registered as a service, so compiling against com4jna doesn't
+ * run it: name it with <tt>-processor
+ * com.sun.jna.platform.win32.jnacom.ComStubProcessor</tt> (or the
+ * <tt>annotationProcessors</tt> of the maven compiler plugin) to get stubs.
+ * An interface must be recompiled with it whenever its annotations change;
+ * see {@link ComStubs}.
+ *
+ * @author scott.palmer
+ */
+@SupportedAnnotationTypes("com.sun.jna.platform.win32.jnacom.IID")
+public class ComStubProcessor extends AbstractProcessor {
+
+    private static final String IUNKNOWN = IUnknown.class.getName();
+
+    /** the binary names of the interfaces given stubs so far, sorted */
+    private final Set<String> written = new TreeSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        if (round.processingOver()) {
+            if (!written.isEmpty()) {
+                try {
+                    writeReflectConfig();
+                } catch (IOException ex) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                            "can't write the native image configuration: " + ex.getMessage());
+                }
+            }
+            return false;
+        }
+        for (Element e : round.getElementsAnnotatedWith(IID.class)) {
+            if (e.getKind() != ElementKind.INTERFACE)
+                continue;
+            TypeElement intrface = (TypeElement) e;
+            if (intrface.getQualifiedName().contentEquals(IUNKNOWN) || !isVisible(intrface))
+                continue;
+            List<ExecutableElement> methods = methods(intrface);
+            if (check(intrface, methods)) {
+                try {
+                    write(intrface, methods);
+                } catch (IOException ex) {
+                    error(intrface, "can't write the stub: " + ex.getMessage());
+                }
+            }
+        }
+        return false;
+    }
+
+    /** True if a class in the interface's package can implement it. */
+    private static boolean isVisible(TypeElement t) {
+        for (Element e = t; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+            if (e.getModifiers().contains(Modifier.PRIVATE))
+                return false;
+        }
+        return true;
+    }
+
+    /** The abstract methods, inherited ones included, one per signature. */
+    private List<ExecutableElement> methods(TypeElement intrface) {
+        Map<String, ExecutableElement> methods = new LinkedHashMap<String, ExecutableElement>();
+        for (ExecutableElement m : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(intrface))) {
+            if (!m.getModifiers().contains(Modifier.ABSTRACT) || isObjectMethod(m))
+                continue;
+            String key = key(m);
+            if (!methods.containsKey(key))
+                methods.put(key, m);
+        }
+        return new ArrayList<ExecutableElement>(methods.values());
+    }
+
+    private static boolean isObjectMethod(ExecutableElement m) {
+        String name = m.getSimpleName().toString();
+        int params = m.getParameters().size();
+        return params == 0 && (name.equals("toString") || name.equals("hashCode"))
+                || params == 1 && name.equals("equals");
+    }
+
+    private boolean check(TypeElement intrface, List<ExecutableElement> methods) {
+        boolean ok = true;
+        Map<Integer, ExecutableElement> slots = new LinkedHashMap<Integer, ExecutableElement>();
+        for (ExecutableElement m : methods) {
+            boolean own = m.getEnclosingElement().equals(intrface);
+            VTID v = m.getAnnotation(VTID.class);
+            if (v != null) {
+                boolean inherited = ((TypeElement) m.getEnclosingElement()).getQualifiedName().contentEquals(IUNKNOWN);
+                if (v.value() < 0 || v.value() < 3 && !inherited) {
+                    error(own ? m : intrface, "@VTID(" + v.value() + ") of " + m.getSimpleName()
+                            + (v.value() < 0 ? " is negative" : " belongs to IUnknown"));
+                    ok = false;
+                }
+                // a slot may have several names, but only one signature
+                ExecutableElement other = slots.put(v.value(), m);
+                if (other != null && !signature(other).equals(signature(m))) {
+                    error(own ? m : intrface, "@VTID(" + v.value() + ") is used by both " + other.getSimpleName()
+                            + " and " + m.getSimpleName());
+                    ok = false;
+                }
+            } else if (own && !m.getSimpleName().contentEquals("dispose")) {
+                // a note, as hand written interfaces often leave unused slots out
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                        m.getSimpleName() + " has no @VTID and can't be called", m);
+            }
+            ReturnValue rv = m.getAnnotation(ReturnValue.class);
+            if (rv != null && rv.inout() && (rv.index() < 0 || rv.index() >= m.getParameters().size())) {
+                error(own ? m : intrface, "@ReturnValue index " + rv.index() + " of " + m.getSimpleName()
+                        + " is not a parameter");
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    private void error(Element e, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e);
+    }
+
+    private void write(TypeElement intrface, List<ExecutableElement> methods) throws IOException {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(intrface);
+        String binary = processingEnv.getElementUtils().getBinaryName(intrface).toString();
+        String name = binary.substring(binary.lastIndexOf('.') + 1) + ComStubs.SUFFIX;
+        String jnacom = ComProxy.class.getPackage().getName();
+
+        StringBuilder b = new StringBuilder();
+        b.append("// Written by ComStubProcessor for ").append(intrface.getQualifiedName()).append(".  Don't edit.\n\n");
+        if (!pkg.isUnnamed())
+            b.append("package ").append(pkg.getQualifiedName()).append(";\n\n");
+        b.append("public final class ").append(name).append(" extends ").append(jnacom).append(".ComProxy\n");
+        b.append("        implements ").append(intrface.getQualifiedName()).append(" {\n\n");
+        String[] table = new String[methods.size()];
+        for (int i = 0; i < table.length; i++)
+            table[i] = entry(methods.get(i));
+        b.append("    public static final String[] ").append(MethodTable.FIELD).append(" = {\n");
+        for (int i = 0; i < table.length; i++)
+            b.append("        \"").append(table[i]).append('"').append(i + 1 < table.length ? ",\n" : "\n");
+        b.append("    };\n\n");
+        b.append("    public ").append(name).append("(").append(jnacom).append(".ComObject com, Object[] calls) {\n");
+        b.append("        super(com, calls);\n");
+        b.append("    }\n");
+        for (int i = 0; i < methods.size(); i++)
+            method(b, i, methods.get(i));
+        b.append("}\n");
+
+        Writer w = processingEnv.getFiler().createSourceFile(binary + ComStubs.SUFFIX, intrface).openWriter();
+        try {
+            w.write(b.toString());
+        } finally {
+            w.close();
+        }
+        written.add(binary);
+    }
+
+    /**
+     * Registers the interfaces and their stubs for reflection: the methods
+     * and annotations of the interfaces, the tables and the constructor of
+     * the stubs.
+     */
+    private void writeReflectConfig() throws IOException {
+        String first = written.iterator().next();
+        String pkg = first.lastIndexOf('.') < 0 ? "default" : first.substring(0, first.lastIndexOf('.'));
+        StringBuilder b = new StringBuilder("[\n");
+        for (String binary : written) {
+            b.append("  {\n    \"name\": \"").append(binary).append("\",\n    \"allPublicMethods\": true\n  },\n");
+            b.append("  {\n    \"name\": \"").append(binary).append(ComStubs.SUFFIX).append("\",\n");
+            b.append("    \"fields\": [{\"name\": \"").append(MethodTable.FIELD).append("\"}],\n");
+            b.append("    \"methods\": [{\"name\": \"<init>\", \"parameterTypes\": [\"")
+                    .append(ComObject.class.getName()).append("\", \"java.lang.Object[]\"]}]\n  },\n");
+        }
+        b.setLength(b.length() - 2);
+        b.append("\n]\n");
+        Writer w = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+                "META-INF/native-image/com4jna/" + pkg + "/reflect-config.json").openWriter();
+        try {
+            w.write(b.toString());
+        } finally {
+            w.close();
+        }
+    }
+
+    private void method(StringBuilder b, int index, ExecutableElement m) {
+        TypeMirror rt = m.getReturnType();
+        b.append('\n');
+        if (!m.getTypeParameters().isEmpty() || rt.getKind() == TypeKind.TYPEVAR)
+            b.append("    @SuppressWarnings(\"unchecked\")\n");
+        b.append("    public ");
+        if (!m.getTypeParameters().isEmpty()) {
+            b.append('<');
+            for (int i = 0; i < m.getTypeParameters().size(); i++) {
+                TypeParameterElement t = m.getTypeParameters().get(i);
+                if (i > 0)
+                    b.append(", ");
+                b.append(t.getSimpleName());
+                List<? extends TypeMirror> bounds = t.getBounds();
+                for (int j = 0; j < bounds.size(); j++) {
+                    if (bounds.size() == 1 && bounds.get(0).toString().equals("java.lang.Object"))
+                        break;
+                    b.append(j == 0 ? " extends " : " & ").append(bounds.get(j));
+                }
+            }
+            b.append("> ");
+        }
+        b.append(rt).append(' ').append(m.getSimpleName()).append('(');
+        List<? extends VariableElement> params = m.getParameters();
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0)
+                b.append(", ");
+            b.append(params.get(i).asType()).append(" arg").append(i);
+        }
+        b.append(')');
+        for (int i = 0; i < m.getThrownTypes().size(); i++)
+            b.append(i == 0 ? " throws " : ", ").append(m.getThrownTypes().get(i));
+        b.append(" {\n        ");
+
+        StringBuilder args = new StringBuilder();
+        if (params.isEmpty()) {
+            args.append("null");
+        } else {
+            args.append("new Object[] {");
+            for (int i = 0; i < params.size(); i++)
+                args.append(i > 0 ? ", arg" : "arg").append(i);
+            args.append('}');
+        }
+        String call = "(" + index + ", " + args + ");";
+        switch (rt.getKind()) {
+            case VOID:
+                b.append("callVoid").append(call);
+                break;
+            case INT:
+                b.append("return callInt").append(call);
+                break;
+            case LONG:
+                b.append("return callLong").append(call);
+                break;
+            case DOUBLE:
+                b.append("return callDouble").append(call);
+                break;
+            case BYTE:
+                b.append("return callByte").append(call);
+                break;
+            case BOOLEAN:
+                b.append("return callBoolean").append(call);
+                break;
+            case CHAR:
+                b.append("return (Character) callObject").append(call);
+                break;
+            case SHORT:
+            case FLOAT:
+                // not COM return kinds; unbox like Proxy would
+                b.append("return ((Number) callObject").append(call, 0, call.length() - 1)
+                        .append(").").append(rt).append("Value();");
+                break;
+            default:
+                b.append("return (").append(rt).append(") callObject").append(call);
+                break;
+        }
+        b.append("\n    }\n");
+    }
+
+    /** The method's {@link MethodTable} entry. */
+    private String entry(ExecutableElement m) {
+        StringBuilder b = new StringBuilder(key(m));
+        VTID v = m.getAnnotation(VTID.class);
+        b.append(' ').append(v != null ? v.value() : -1);
+        if (m.getAnnotation(NoHResult.class) != null)
+            b.append(" n");
+        List<? extends VariableElement> params = m.getParameters();
+        for (int i = 0; i < params.size(); i++) {
+            if (params.get(i).getAnnotation(BSTR.class) != null)
+                b.append(" b").append(i);
+            if (params.get(i).getAnnotation(AsSafeArray.class) != null)
+                b.append(" a").append(i);
+        }
+        ReturnValue rv = m.getAnnotation(ReturnValue.class);
+        if (rv != null && rv.inout())
+            b.append(" r").append(rv.index());
+        NoStackTrace nst = m.getAnnotation(NoStackTrace.class);
+        if (nst != null) {
+            if (nst.value().length == 0)
+                b.append(" s");
+            for (int h : nst.value())
+                b.append(" s").append(h);
+        }
+        return b.toString();
+    }
+
+    /** The erased parameter and return types. */
+    private String signature(ExecutableElement m) {
+        String key = key(m);
+        StringBuilder b = new StringBuilder(key.substring(key.indexOf('(')));
+        TypeMirror rt = processingEnv.getTypeUtils().erasure(m.getReturnType());
+        if (rt.getKind() == TypeKind.VOID)
+            return b.append('V').toString();
+        descriptor(b, rt);
+        return b.toString();
+    }
+
+    /** The name and erased parameter descriptor, as {@link MethodTable#key}. */
+    private String key(ExecutableElement m) {
+        StringBuilder b = new StringBuilder(m.getSimpleName()).append('(');
+        for (VariableElement p : m.getParameters())
+            descriptor(b, processingEnv.getTypeUtils().erasure(p.asType()));
+        return b.append(')').toString();
+    }
+
+    private void descriptor(StringBuilder b, TypeMirror t) {
+        switch (t.getKind()) {
+            case INT:
+                b.append('I');
+                break;
+            case LONG:
+                b.append('J');
+                break;
+            case SHORT:
+                b.append('S');
+                break;
+            case BYTE:
+                b.append('B');
+                break;
+            case BOOLEAN:
+                b.append('Z');
+                break;
+            case CHAR:
+                b.append('C');
+                break;
+            case FLOAT:
+                b.append('F');
+                break;
+            case DOUBLE:
+                b.append('D');
+                break;
+            case ARRAY:
+                descriptor(b.append('['), processingEnv.getTypeUtils().erasure(((ArrayType) t).getComponentType()));
+                break;
+            default:
+                TypeElement e = (TypeElement) ((DeclaredType) t).asElement();
+                b.append('L').append(processingEnv.getElementUtils().getBinaryName(e).toString().replace('.', '/'))
+                        .append(';');
+                break;
+        }
+    }
+}
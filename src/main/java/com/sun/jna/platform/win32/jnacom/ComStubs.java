@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Finds the stub classes {@link ComStubProcessor} wrote at compile time: for
+ * an interface <tt>p.IFoo</tt> the {@link ComProxy} subclass
+ * <tt>p.IFoo$$ComStub</tt>.
+ *
+ * <p>
+ * A stub's <tt>COM_METHODS</tt> table lists the methods it implements in the
+ * order of the indexes it passes to <tt>ComProxy.call*</tt>, with what their
+ * annotations say (see {@link MethodTable}), so using one needs no
+ * {@link java.lang.reflect.Proxy}, and no annotations are read.  A stub
+ * whose table names a method its interface doesn't have, as when the
+ * interface was recompiled without the processor, is logged and ignored,
+ * and so is its table.  Only the methods are compared: a stub compiled
+ * with other annotations than its interface's now has is used as it is,
+ * so an interface whose annotations change must be recompiled with the
+ * processor.
+ *
+ * @author scott.palmer
+ */
+final class ComStubs {
+
+    static final String SUFFIX = "$$ComStub";
+
+    /** What is needed to instantiate the stub of one interface. */
+    private static final class Factory {
+        final Constructor<?> constructor;
+        final ComMethod[] calls;
+
+        Factory(Constructor<?> constructor, ComMethod[] calls) {
+            this.constructor = constructor;
+            this.calls = calls;
+        }
+    }
+
+    private static final Factory NONE = new Factory(null, null);
+
+    private static final ClassValue<Class<?>> stubClasses = new ClassValue<Class<?>>() {
+        @Override
+        protected Class<?> computeValue(Class<?> intrface) {
+            if (!intrface.isInterface())
+                return null;
+            try {
+                Class<?> c = Class.forName(intrface.getName() + SUFFIX, true, intrface.getClassLoader());
+                if (ComProxy.class.isAssignableFrom(c) && intrface.isAssignableFrom(c))
+                    return c;
+                ComObject.logger.warning(c.getName() + " is not a stub of " + intrface.getName());
+            } catch (ClassNotFoundException ex) {
+                // not processed
+            } catch (LinkageError ex) {
+                ComObject.logger.log(Level.WARNING, "Could not load the stub of " + intrface.getName(), ex);
+            }
+            return null;
+        }
+    };
+
+    private static final ClassValue<Factory> factories = new ClassValue<Factory>() {
+        @Override
+        protected Factory computeValue(Class<?> intrface) {
+            Class<?> c = stubClasses.get(intrface);
+            if (c == null)
+                return NONE;
+            try {
+                return factory(intrface, c);
+            } catch (Exception ex) {
+                ComObject.logger.log(Level.WARNING, "Could not use " + c.getName(), ex);
+                return NONE;
+            }
+        }
+    };
+
+    private ComStubs() {
+    }
+
+    /** @return the stub class of an interface, or null if it has none */
+    static Class<?> stubClass(Class<?> intrface) {
+        return stubClasses.get(intrface);
+    }
+
+    /**
+     * Creates an instance of the interface's stub, or returns null if it has
+     * none.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T newStub(ComObject object, Class<T> intrface) {
+        Factory f = factories.get(intrface);
+        if (f == NONE)
+            return null;
+        try {
+            return (T) f.constructor.newInstance(object, f.calls);
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not create stub for " + intrface.getName(), ex);
+        }
+    }
+
+    private static Factory factory(Class<?> intrface, Class<?> stub) throws Exception {
+        String[] table = MethodTable.table(stub);
+        if (table == null)
+            throw new IllegalStateException("no " + MethodTable.FIELD + " table");
+        Map<String, Method> methods = new HashMap<String, Method>();
+        for (Method m : intrface.getMethods()) {
+            String key = MethodTable.key(m);
+            if (!methods.containsKey(key))
+                methods.put(key, m);
+        }
+        Method[] implemented = new Method[table.length];
+        for (int i = 0; i < table.length; i++) {
+            String key = table[i].substring(0, table[i].indexOf(' '));
+            Method m = methods.get(key);
+            if (m == null)
+                throw new IllegalStateException(intrface.getName() + " has no method " + key);
+            implemented[i] = m;
+        }
+        Map<String, MethodTable.Entry> entries = MethodTable.parse(stub, table);
+        ComMethod[] calls = new ComMethod[table.length];
+        for (int i = 0; i < table.length; i++) {
+            Method m = implemented[i];
+            // the table of a generated interface goes before its stub's
+            if (MethodTable.table(m.getDeclaringClass()) != null)
+                calls[i] = ComMethod.of(m);
+            else
+                calls[i] = ComMethod.of(m, entries.get(MethodTable.key(m)));
+        }
+        return new Factory(stub.getConstructor(ComObject.class, Object[].class), calls);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Function;
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Calls an IDispatch object by name (late binding), for objects that have no
+ * vtable interface to bind to.
+ *
+ * <p>
+ * Names are looked up with GetIDsOfNames once and the DISPIDs are cached,
+ * ignoring case as IDispatch does.  DISPIDs belong to a type, so the cache
+ * is shared by all objects whose type information names the same type (the
+ * GUID in its TYPEATTR), and a name costs one lookup per type, not per
+ * object.  Objects without type information, which often make up their
+ * members at run time, get a cache of their own; use
+ * {@link #of(IUnknown, boolean)} or set {@code jnacom.perObjectDispIds} to
+ * cache per object regardless.  The type is only asked for on the first
+ * lookup by name.  A DISPID that turns out to be unknown is forgotten so the
+ * next call looks the name up again.
+ *
+ * <p>
+ * Arguments and the result are passed in native memory that belongs to the
+ * calling thread and is reused from call to call; see {@link Variant} for the
+ * Java types that can be passed and returned.
+ *
+ * @author scott.palmer
+ */
+public final class Dispatch {
+
+    public static final short METHOD = 1;
+    public static final short PROPERTYGET = 2;
+    public static final short PROPERTYPUT = 4;
+    public static final short PROPERTYPUTREF = 8;
+
+    static final int DISPID_PROPERTYPUT = -3;
+    private static final int LOCALE_USER_DEFAULT = 0x400;
+    private static final int DISP_E_MEMBERNOTFOUND = 0x80020003;
+    private static final int DISP_E_PARAMNOTFOUND = 0x80020004;
+    private static final int DISP_E_TYPEMISMATCH = 0x80020005;
+    private static final int DISP_E_EXCEPTION = 0x80020009;
+    private static final int P = Pointer.SIZE;
+
+    private static final Memory IID_NULL = new Memory(16);
+    static {
+        IID_NULL.clear();
+    }
+
+    private static final boolean perObjectDispIds = Boolean.getBoolean("jnacom.perObjectDispIds");
+    /** DISPIDs by lower case name, by type GUID */
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> dispIdsByType
+            = new ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>>();
+
+    private final IDispatch object;
+    private final boolean perObject;
+    /** null until the first lookup by name */
+    private volatile ConcurrentHashMap<String, Integer> dispIds;
+
+    Dispatch(IDispatch object) {
+        this(object, perObjectDispIds);
+    }
+
+    private Dispatch(IDispatch object, boolean perObject) {
+        this.object = object;
+        this.perObject = perObject;
+    }
+
+    /**
+     * Queries the object for IDispatch.  The Dispatch holds a reference of
+     * its own and must be disposed.
+     */
+    public static Dispatch of(IUnknown object) {
+        return of(object, perObjectDispIds);
+    }
+
+    /**
+     * @param perObjectDispIds true to cache DISPIDs for this object only
+     */
+    public static Dispatch of(IUnknown object, boolean perObjectDispIds) {
+        IDispatch d = object.queryInterface(IDispatch.class);
+        return new Dispatch(d, perObjectDispIds);
+    }
+
+    /** @return the IDispatch this calls */
+    public IDispatch getInterface() {
+        return object;
+    }
+
+    Pointer pointer() {
+        return ComObject.of(object).pointer();
+    }
+
+    /**
+     * Returns the DISPID of a member, looking it up only the first time.
+     * @throws ComException with DISP_E_UNKNOWNNAME if there is no such member
+     */
+    public int getDispID(String name) {
+        ConcurrentHashMap<String, Integer> ids = dispIds();
+        String key = name.toLowerCase(Locale.ROOT);
+        Integer id = ids.get(key);
+        if (id != null)
+            return id;
+        StringArena arena = StringArena.get();
+        long mark = arena.mark();
+        DispatchFrame f = DispatchFrame.enter();
+        try {
+            int hr = object.getIDsOfNames(IID_NULL, f.names(arena.wide(name)), 1, LOCALE_USER_DEFAULT, f.dispId());
+            if (hr < 0)
+                throw ComException.failed(name, hr);
+            int dispId = f.dispId().getInt(0);
+            ids.put(key, dispId);
+            return dispId;
+        } finally {
+            f.exit();
+            arena.reset(mark);
+        }
+    }
+
+    private ConcurrentHashMap<String, Integer> dispIds() {
+        ConcurrentHashMap<String, Integer> ids = dispIds;
+        if (ids != null)
+            return ids;
+        String type = perObject ? null : typeGuid();
+        if (type == null) {
+            ids = new ConcurrentHashMap<String, Integer>();
+        } else {
+            ids = dispIdsByType.get(type);
+            if (ids == null) {
+                ids = new ConcurrentHashMap<String, Integer>();
+                ConcurrentHashMap<String, Integer> raced = dispIdsByType.putIfAbsent(type, ids);
+                if (raced != null)
+                    ids = raced;
+            }
+        }
+        dispIds = ids;
+        return ids;
+    }
+
+    /**
+     * Returns the GUID of the object's type, from its type information, or
+     * null if it has none to give.
+     */
+    private String typeGuid() {
+        ITypeInfo info;
+        try {
+            if (object.getTypeInfoCount() < 1)
+                return null;
+            info = object.getTypeInfo(0, LOCALE_USER_DEFAULT);
+        } catch (ComException ex) {
+            ComObject.logger.log(Level.FINE, "No type information, DISPIDs are cached per object", ex);
+            return null;
+        }
+        if (info == null)
+            return null;
+        try {
+            Memory attr = new Memory(P);
+            if (info.getTypeAttr(attr) < 0)
+                return null;
+            Pointer a = attr.getPointer(0);
+            long hi = a.getLong(0);
+            long lo = a.getLong(8);
+            info.releaseTypeAttr(a);
+            if (hi == 0 && lo == 0)
+                return null;
+            return Long.toHexString(hi) + '-' + Long.toHexString(lo);
+        } finally {
+            info.dispose();
+        }
+    }
+
+    /**
+     * Calls a method, or gets a property if the object has no such method.
+     */
+    public Object invoke(String name, Object... args) {
+        return call(name, getDispID(name), (short) (METHOD | PROPERTYGET), args);
+    }
+
+    /**
+     * Gets a property.
+     * @param args the indexes of an indexed property
+     */
+    public Object get(String name, Object... args) {
+        return call(name, getDispID(name), PROPERTYGET, args);
+    }
+
+    /**
+     * Sets a property.
+     */
+    public void put(String name, Object value) {
+        call(name, getDispID(name), PROPERTYPUT, new Object[] {value});
+    }
+
+    /**
+     * Calls a member by DISPID.
+     * @param flags {@link #METHOD}, {@link #PROPERTYGET}, {@link #PROPERTYPUT}
+     *        or {@link #PROPERTYPUTREF}; for puts the last argument is the
+     *        value
+     */
+    public Object invoke(int dispId, short flags, Object... args) {
+        return call(null, dispId, flags, args);
+    }
+
+    private Object call(String name, int dispId, short flags, Object[] args) {
+        int n = args == null ? 0 : args.length;
+        boolean put = (flags & (PROPERTYPUT | PROPERTYPUTREF)) != 0;
+        StringArena arena = StringArena.get();
+        long mark = arena.mark();
+        DispatchFrame f = DispatchFrame.enter();
+        try {
+            f.reset(n);
+            Pointer v = f.args();
+            for (int i = 0; i < n; i++)
+                Variant.write(v, (long) (n - 1 - i) * Variant.SIZE, args[i]);
+            int hr = object.invoke(dispId, IID_NULL, LOCALE_USER_DEFAULT, flags, f.params(n, put),
+                    put ? null : f.result(), f.excepInfo(), f.argErrPointer());
+            if (hr < 0)
+                throw failure(name, dispId, hr, f, n);
+            return put ? null : Variant.read(f.result(), object);
+        } finally {
+            f.exit();
+            arena.reset(mark);
+        }
+    }
+
+    private ComException failure(String name, int dispId, int hr, DispatchFrame f, int argCount) {
+        String member = name != null ? name : "DISPID " + dispId;
+        switch (hr) {
+            case DISP_E_EXCEPTION:
+                Pointer e = f.excepInfo();
+                Pointer fillIn = e.getPointer(6 * P);
+                if (fillIn != null)
+                    Function.getFunction(fillIn).invokeInt(new Object[] {e});
+                String source = takeBSTR(e, P);
+                String description = takeBSTR(e, 2 * P);
+                takeBSTR(e, 3 * P);
+                int scode = e.getInt(7 * P);
+                String text = description != null ? description : source != null ? source : "exception";
+                // the EXCEPINFO says it all; don't leave error info for a later failure
+                ErrorInfo.clear();
+                return new ComException(member + ": " + text, scode != 0 ? scode : hr);
+            case DISP_E_MEMBERNOTFOUND:
+                if (name != null)
+                    dispIds().remove(name.toLowerCase(Locale.ROOT), dispId);
+                return ComException.failed(member, hr);
+            case DISP_E_TYPEMISMATCH:
+            case DISP_E_PARAMNOTFOUND:
+                // argErr counts from the end, like the VARIANTs
+                ErrorInfo.clear();
+                return new ComException(member + ": bad argument " + (argCount - 1 - f.argErr()), hr);
+            default:
+                return ComException.failed(member, hr);
+        }
+    }
+
+    private static String takeBSTR(Pointer p, long offset) {
+        Pointer bstr = p.getPointer(offset);
+        if (bstr == null)
+            return null;
+        String s = StringArena.fromBSTR(bstr);
+        Natives.oleaut32().SysFreeString(bstr);
+        return s;
+    }
+
+    /**
+     * Releases the object.
+     */
+    public void dispose() {
+        object.dispose();
+    }
+
+    @Override
+    public String toString() {
+        return "Dispatch[" + object + "]";
+    }
+}
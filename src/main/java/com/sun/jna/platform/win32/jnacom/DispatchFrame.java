@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+
+/**
+ * The per thread native memory of an IDispatch call: DISPPARAMS, the
+ * argument VARIANTs, the result VARIANT, EXCEPINFO and the small out
+ * parameters, all in one block that is zeroed with a single memset per call.
+ * Like {@link CallFrame}, a call made while another one on the same thread
+ * is still running gets a frame of its own.
+ *
+ * @author scott.palmer
+ */
+final class DispatchFrame {
+    private static final int P = Pointer.SIZE;
+    /** DISPPARAMS {rgvarg, rgdispidNamedArgs, cArgs, cNamedArgs} */
+    private static final int PARAMS = 0;
+    private static final int NAMED = 32;
+    private static final int ARG_ERR = 36;
+    private static final int DISPID = 40;
+    private static final int NAMES = 48;
+    /** EXCEPINFO is 8 pointers */
+    private static final int EXCEPINFO = 64;
+    private static final int RESULT = EXCEPINFO + 64;
+    private static final int ARGS = RESULT + 32;
+    private static final int INITIAL_ARGS = 8;
+
+    private static final ThreadLocal<DispatchFrame> frames = new ThreadLocal<DispatchFrame>() {
+        @Override
+        protected DispatchFrame initialValue() {
+            return new DispatchFrame();
+        }
+    };
+
+    private Memory memory;
+    private Pointer params, named, argErr, dispId, names, excepInfo, result, args;
+    private int capacity;
+    private int used;
+    private boolean busy;
+    private DispatchFrame next;
+
+    private DispatchFrame() {
+        allocate(INITIAL_ARGS);
+    }
+
+    private void allocate(int argCount) {
+        capacity = argCount;
+        memory = new Memory(ARGS + (long) argCount * Variant.SIZE);
+        params = memory.share(PARAMS);
+        named = memory.share(NAMED);
+        argErr = memory.share(ARG_ERR);
+        dispId = memory.share(DISPID);
+        names = memory.share(NAMES);
+        excepInfo = memory.share(EXCEPINFO);
+        result = memory.share(RESULT);
+        args = memory.share(ARGS);
+        memory.clear();
+        used = (int) memory.size();
+    }
+
+    /**
+     * Returns a free frame of the calling thread; {@link #exit()} must be
+     * called when the call is done.
+     */
+    static DispatchFrame enter() {
+        DispatchFrame f = frames.get();
+        while (f.busy) {
+            if (f.next == null)
+                f.next = new DispatchFrame();
+            f = f.next;
+        }
+        f.busy = true;
+        return f;
+    }
+
+    void exit() {
+        busy = false;
+    }
+
+    /**
+     * Zeroes what the last call used and makes room for the given number of
+     * arguments.
+     */
+    void reset(int argCount) {
+        if (argCount > capacity)
+            allocate(Math.max(argCount, 2 * capacity));
+        else
+            memory.setMemory(0, used, (byte) 0);
+        used = ARGS + argCount * Variant.SIZE;
+    }
+
+    /**
+     * Fills in DISPPARAMS for the arguments written with {@link #args()}.
+     * @param put true to name the last argument as the value of a property put
+     */
+    Pointer params(int argCount, boolean put) {
+        params.setPointer(0, argCount > 0 ? args : null);
+        params.setInt(2 * P, argCount);
+        if (put) {
+            named.setInt(0, Dispatch.DISPID_PROPERTYPUT);
+            params.setPointer(P, named);
+            params.setInt(2 * P + 4, 1);
+        }
+        return params;
+    }
+
+    /** The argument VARIANTs, the last argument first as IDispatch wants them. */
+    Pointer args() {
+        return args;
+    }
+
+    Pointer result() {
+        return result;
+    }
+
+    Pointer excepInfo() {
+        return excepInfo;
+    }
+
+    /** @return the index (in DISPPARAMS order) of the argument that failed */
+    int argErr() {
+        return argErr.getInt(0);
+    }
+
+    Pointer argErrPointer() {
+        return argErr;
+    }
+
+    /** A one element array of names for GetIDsOfNames. */
+    Pointer names(Pointer name) {
+        names.setPointer(0, name);
+        return names;
+    }
+
+    Pointer dispId() {
+        return dispId;
+    }
+}
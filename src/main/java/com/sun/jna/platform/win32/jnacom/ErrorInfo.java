@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Function;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.PointerByReference;
+import java.util.logging.Level;
+
+/**
+ * Takes the error info of the calling thread after a failed call.
+ *
+ * <p>
+ * The error info belongs to the thread and stays there until somebody
+ * takes it, so every failed call takes it, whether it is kept or not:
+ * otherwise the next failure of an object that doesn't set error info
+ * would report it as its own.  It is only kept for a failure with a stack
+ * trace, and only if the object says (through {@link ISupportErrorInfo})
+ * that the interface called reports its errors that way; each object is
+ * asked once per interface.  The exception keeps the raw pointer, and
+ * only wraps it to read what it says when somebody asks (see
+ * {@link ComException#getDescription()}); an error info nobody looked at
+ * is released when the exception is collected, like the pointer of a
+ * collected object.  Turned off with <tt>jnacom.noErrorInfo</tt>.
+ *
+ * @author scott.palmer
+ */
+final class ErrorInfo {
+
+    static boolean enabled = !Boolean.getBoolean("jnacom.noErrorInfo");
+
+    private ErrorInfo() {
+    }
+
+    /**
+     * Takes the error info of the calling thread.
+     * @param target the object whose call failed, or null
+     * @param intrface the interface that was called, or null
+     * @param keep false to only clear it
+     * @return the error info's IErrorInfo pointer, with the reference the
+     *         caller now holds, if it was to be kept and the object supports
+     *         error info for the interface; otherwise null
+     */
+    static Pointer take(ComObject target, Class<?> intrface, boolean keep) {
+        if (!enabled)
+            return null;
+        Natives.OleAut32 lib;
+        try {
+            lib = Natives.oleaut32();
+        } catch (LinkageError ex) {
+            ComObject.logger.log(Level.FINE, "No error info without oleaut32", ex);
+            enabled = false;
+            return null;
+        }
+        PointerByReference p = new PointerByReference();
+        // S_FALSE if there is none
+        if (lib.GetErrorInfo(0, p) != 0 || p.getValue() == null)
+            return null;
+        Pointer info = p.getValue();
+        if (keep && target != null && target.supportsErrorInfo(intrface))
+            return info;
+        ComObject.release(info);
+        return null;
+    }
+
+    /**
+     * Clears the error info of the calling thread.
+     */
+    static void clear() {
+        take(null, null, false);
+    }
+
+    /**
+     * Asks an object whether an interface of it sets error info.
+     */
+    static boolean supports(Pointer object, Class<?> intrface) {
+        if (intrface == null || Guids.iid(intrface) == null)
+            return false;
+        PointerByReference ppv = new PointerByReference();
+        Function qi = VTable.of(object).function(0);
+        int hr = qi.invokeInt(new Object[] {object, Guids.iidPointer(ISupportErrorInfo.class), ppv});
+        Pointer support = ppv.getValue();
+        if (hr < 0 || support == null)
+            return false;
+        try {
+            Function f = VTable.of(support).function(3);
+            return f.invokeInt(new Object[] {support, Guids.iidPointer(intrface)}) == HResult.S_OK;
+        } finally {
+            ComObject.release(support);
+        }
+    }
+}
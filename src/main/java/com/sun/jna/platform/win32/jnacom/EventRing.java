@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded ring of events with preallocated slots, for
+ * {@link EventSubscription}.
+ *
+ * <p>
+ * Any thread may offer and poll.  A slot at position p may be written by
+ * the producer that claimed p once its sequence equals p, and read by the
+ * consumer that claimed p once it equals p + 1; the consumer then hands it
+ * back for position p + capacity.  Besides the subscription's consumer,
+ * producers poll too, to drop the oldest event when the ring is full.
+ *
+ * @author scott.palmer
+ */
+final class EventRing {
+
+    /** One event: the method called and its arguments. */
+    static final class Event {
+        Method method;
+        Object[] args;
+        /** System.nanoTime() when the event was offered */
+        long published;
+    }
+
+    private final Event[] slots;
+    private final AtomicLongArray sequence;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two
+     */
+    EventRing(int capacity) {
+        int n = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        slots = new Event[n];
+        sequence = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++) {
+            slots[i] = new Event();
+            sequence.set(i, i);
+        }
+        mask = n - 1;
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Adds an event.
+     * @return false if the ring is full
+     */
+    boolean offer(Method method, Object[] args, long published) {
+        long pos;
+        for (;;) {
+            pos = tail.get();
+            long diff = sequence.get((int) pos & mask) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+        int i = (int) pos & mask;
+        Event e = slots[i];
+        e.method = method;
+        e.args = args;
+        e.published = published;
+        sequence.set(i, pos + 1);
+        return true;
+    }
+
+    /**
+     * Takes the oldest event.
+     * @param into receives the event, or null to discard it
+     * @return false if the ring is empty
+     */
+    boolean poll(Event into) {
+        long pos;
+        for (;;) {
+            pos = head.get();
+            long diff = sequence.get((int) pos & mask) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1))
+                    break;
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+        int i = (int) pos & mask;
+        Event e = slots[i];
+        if (into != null) {
+            into.method = e.method;
+            into.args = e.args;
+            into.published = e.published;
+        }
+        e.method = null;
+        e.args = null;
+        sequence.set(i, pos + slots.length);
+        return true;
+    }
+
+    /** @return the number of events waiting, possibly out of date already */
+    long size() {
+        return Math.max(0, tail.get() - head.get());
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+}
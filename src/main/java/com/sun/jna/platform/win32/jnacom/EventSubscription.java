@@ -0,0 +1,351 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.ptr.ByReference;
+import java.io.Closeable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * A listener advised on a connection point (see {@link ComEvents}).
+ *
+ * <p>
+ * The sink given to the connection point puts every event in an
+ * {@link EventRing}; the subscription's thread takes whatever is waiting in
+ * one go and calls the listener for each event, and only parks once the
+ * ring is empty.  A failing listener is logged and delivery goes on.
+ *
+ * <p>
+ * Arguments have to outlast the call that fired the event.  A
+ * {@link SafeArray} is copied when the event is put in the ring and the
+ * copy destroyed once the listener returns, so as with {@link ComCallable}
+ * it is only the listener's during the call.  Interfaces are wrapped with
+ * a reference of their own, which goes to the listener, or is released
+ * if the event is dropped.  Pointers and structures point into the
+ * caller's memory, so events can't have such parameters.
+ *
+ * <p>
+ * The counters tell how far the listener is behind: events waiting now and
+ * at most, and the time from firing to delivery of the last and the slowest
+ * event.  They are updated without locking and may be slightly out of date.
+ *
+ * @author scott.palmer
+ */
+public final class EventSubscription implements Closeable {
+
+    private static final AtomicInteger threadNum = new AtomicInteger();
+    /** how long a firing thread waits for room before looking again */
+    private static final long BLOCK_NANOS = 50000;
+
+    private final Class<?> events;
+    private final Object listener;
+    private final ComEvents.Overflow overflow;
+    private final EventRing ring;
+    /** listener methods by event method, spread over an argument array */
+    private final Map<Method, MethodHandle> handlers = new HashMap<Method, MethodHandle>();
+    /** event methods with SafeArray or interface parameters */
+    private final Set<Method> holding = new HashSet<Method>();
+    private final IConnectionPoint point;
+    private final ComCallable sink;
+    private final int cookie;
+    private final Thread consumer;
+    private volatile boolean parked;
+    private volatile boolean closed;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // written by the consumer only
+    private volatile long delivered;
+    private volatile long maxBacklog;
+    private volatile long lastLag;
+    private volatile long maxLag;
+
+    <T extends IUnknown> EventSubscription(IConnectionPoint point, Class<T> events, T listener,
+            int capacity, ComEvents.Overflow overflow) {
+        this.events = events;
+        this.listener = listener;
+        this.overflow = overflow;
+        this.ring = new EventRing(capacity);
+        this.point = point;
+        for (Method m : events.getMethods()) {
+            VTID v = m.getAnnotation(VTID.class);
+            if (v == null || v.value() < 3)
+                continue;
+            if (m.getReturnType() != Void.TYPE)
+                throw new IllegalArgumentException(m + ": events can't return values");
+            for (Class<?> p : m.getParameterTypes()) {
+                if (Pointer.class.isAssignableFrom(p) || Structure.class.isAssignableFrom(p)
+                        || ByReference.class.isAssignableFrom(p))
+                    throw new IllegalArgumentException(m + ": events can't pass " + p.getSimpleName()
+                            + ", it only lasts for the call");
+                if (p == SafeArray.class || IUnknown.class.isAssignableFrom(p))
+                    holding.add(m);
+            }
+            handlers.put(m, handler(m));
+        }
+
+        T proxy = events.cast(Proxy.newProxyInstance(events.getClassLoader(), new Class<?>[] {events},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getDeclaringClass() == Object.class)
+                            return objectMethod(proxy, method, args);
+                        publish(method, args);
+                        return null;
+                    }
+                }));
+        sink = ComCallable.export(proxy, events);
+        consumer = new Thread(new Runnable() {
+            public void run() {
+                deliver();
+            }
+        }, "COM-events-" + threadNum.getAndIncrement());
+        consumer.setDaemon(true);
+        consumer.start();
+        int c;
+        try {
+            c = point.advise(sink.getPointer());
+        } catch (RuntimeException ex) {
+            stop();
+            throw ex;
+        }
+        cookie = c;
+    }
+
+    private static MethodHandle handler(Method m) {
+        try {
+            if (!Modifier.isPublic(m.getDeclaringClass().getModifiers()))
+                m.setAccessible(true);
+            MethodHandle h = MethodHandles.lookup().unreflect(m);
+            h = h.asType(h.type().generic().changeReturnType(void.class));
+            return h.asSpreader(Object[].class, m.getParameterTypes().length);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalArgumentException(m + " can't be called", ex);
+        }
+    }
+
+    private Object objectMethod(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("equals"))
+            return proxy == args[0];
+        if (name.equals("hashCode"))
+            return System.identityHashCode(proxy);
+        return "sink of " + events.getName();
+    }
+
+    /**
+     * Puts an event in the ring, on the thread that fired it.
+     */
+    private void publish(Method method, Object[] args) {
+        long now = System.nanoTime();
+        if (holding.contains(method))
+            copyArrays(args);
+        EventRing.Event oldest = null;
+        long deadline = 0;
+        while (!closed && !ring.offer(method, args, now)) {
+            if (overflow == ComEvents.Overflow.DROP_OLDEST) {
+                if (oldest == null)
+                    oldest = new EventRing.Event();
+                if (ring.poll(oldest)) {
+                    dropped.incrementAndGet();
+                    discard(oldest.method, oldest.args);
+                    oldest.args = null;
+                }
+                continue;
+            }
+            // a listener firing into its own full ring would wait forever
+            boolean drop = overflow == ComEvents.Overflow.DROP_NEWEST || Thread.currentThread() == consumer;
+            if (!drop) {
+                long t = System.nanoTime();
+                if (deadline == 0)
+                    deadline = t + TimeUnit.MILLISECONDS.toNanos(ComEvents.blockMillis);
+                // the listener may be waiting for this very thread
+                drop = t - deadline >= 0;
+            }
+            if (drop) {
+                dropped.incrementAndGet();
+                discard(method, args);
+                return;
+            }
+            wake();
+            LockSupport.parkNanos(this, BLOCK_NANOS);
+        }
+        if (closed) {
+            dropped.incrementAndGet();
+            discard(method, args);
+            return;
+        }
+        published.incrementAndGet();
+        wake();
+    }
+
+    /** Replaces the caller's arrays with copies that outlast the call. */
+    private static void copyArrays(Object[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof SafeArray)
+                args[i] = ((SafeArray) args[i]).copy();
+        }
+    }
+
+    /** Gives up everything the arguments of a dropped event hold. */
+    private void discard(Method method, Object[] args) {
+        if (holding.contains(method))
+            releaseArgs(args, false);
+    }
+
+    /**
+     * Destroys the copied arrays of an event and, unless the listener got
+     * them, releases the interfaces.
+     */
+    private static void releaseArgs(Object[] args, boolean delivered) {
+        for (Object a : args) {
+            try {
+                if (a instanceof SafeArray) {
+                    ((SafeArray) a).destroy();
+                } else if (!delivered && ComObject.wrapperOf(a) != null) {
+                    ((IUnknown) a).dispose();
+                }
+            } catch (RuntimeException ex) {
+                ComObject.logger.log(Level.WARNING, "Releasing an event argument failed", ex);
+            }
+        }
+    }
+
+    private void wake() {
+        if (parked)
+            LockSupport.unpark(consumer);
+    }
+
+    /**
+     * The consumer: delivers batches of events until closed and drained.
+     */
+    private void deliver() {
+        EventRing.Event e = new EventRing.Event();
+        for (;;) {
+            long backlog = ring.size();
+            if (backlog > maxBacklog)
+                maxBacklog = backlog;
+            long n = 0;
+            while (ring.poll(e)) {
+                try {
+                    handlers.get(e.method).invokeExact(listener, e.args);
+                } catch (Throwable ex) {
+                    ComObject.logger.log(Level.WARNING, "Event listener failed on " + e.method.getName(), ex);
+                }
+                if (holding.contains(e.method))
+                    releaseArgs(e.args, true);
+                long lag = System.nanoTime() - e.published;
+                lastLag = lag;
+                if (lag > maxLag)
+                    maxLag = lag;
+                e.method = null;
+                e.args = null;
+                n++;
+            }
+            if (n > 0)
+                delivered += n;
+            if (closed && ring.isEmpty())
+                return;
+            parked = true;
+            if (ring.isEmpty() && !closed)
+                LockSupport.park(this);
+            parked = false;
+        }
+    }
+
+    /**
+     * Unadvises the listener.  Events already waiting are still delivered;
+     * later ones are dropped.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        try {
+            point.unadvise(cookie);
+        } finally {
+            point.dispose();
+            stop();
+        }
+    }
+
+    private void stop() {
+        closed = true;
+        sink.release();
+        LockSupport.unpark(consumer);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** @return the thread the listener is called on */
+    public Thread getThread() {
+        return consumer;
+    }
+
+    /** @return the number of events that fit in the ring */
+    public int getCapacity() {
+        return ring.capacity();
+    }
+
+    /** @return the number of events put in the ring */
+    public long getPublished() {
+        return published.get();
+    }
+
+    /** @return the number of events the listener was called with */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /** @return the number of events dropped because the ring was full or the subscription closed */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** @return the number of events waiting to be delivered */
+    public long getBacklog() {
+        return ring.size();
+    }
+
+    /** @return the most events seen waiting when the listener started on a batch */
+    public long getMaxBacklog() {
+        return maxBacklog;
+    }
+
+    /** @return nanoseconds from firing to the end of delivery of the last event */
+    public long getLastLagNanos() {
+        return lastLag;
+    }
+
+    /** @return the longest time from firing to the end of delivery, in nanoseconds */
+    public long getMaxLagNanos() {
+        return maxLag;
+    }
+
+    @Override
+    public String toString() {
+        return "EventSubscription[" + events.getSimpleName() + ", published=" + getPublished()
+                + ", delivered=" + delivered + ", dropped=" + getDropped() + ", backlog=" + getBacklog() + "]";
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.Guid;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parsed GUIDs for interface IDs and class IDs.
+ *
+ * <p>
+ * The GUID of each {@link IID} annotated interface is parsed once, in Java,
+ * and written to native memory once; after that a QueryInterface only passes
+ * the pointer to it.  CLSID strings are cached the same way.  Nothing here
+ * calls into Ole32.
+ *
+ * @author scott.palmer
+ */
+final class Guids {
+
+    private static final Guid.GUID MISSING = new Guid.GUID();
+
+    private static final ClassValue<Guid.GUID> iids = new ClassValue<Guid.GUID>() {
+        @Override
+        protected Guid.GUID computeValue(Class<?> intrface) {
+            IID iid = intrface.getAnnotation(IID.class);
+            return iid != null ? parse(iid.value()) : MISSING;
+        }
+    };
+
+    private static final ConcurrentHashMap<String, Guid.GUID> clsids =
+            new ConcurrentHashMap<String, Guid.GUID>();
+
+    private Guids() {
+    }
+
+    /**
+     * Returns the interface ID of an {@link IID} annotated interface, or null
+     * if it has no annotation.  The GUID is shared; don't modify it.
+     */
+    static Guid.GUID iid(Class<?> intrface) {
+        Guid.GUID g = iids.get(intrface);
+        return g != MISSING ? g : null;
+    }
+
+    /**
+     * Returns a pointer to the native copy of an interface's ID.
+     * @throws IllegalArgumentException if the interface has no {@link IID}
+     */
+    static Pointer iidPointer(Class<?> intrface) {
+        Guid.GUID g = iid(intrface);
+        if (g == null)
+            throw new IllegalArgumentException(intrface.getName() + " has no @IID annotation");
+        return g.getPointer();
+    }
+
+    /**
+     * Returns the parsed form of a CLSID string.  The GUID is shared; don't
+     * modify it.
+     */
+    static Guid.GUID clsid(String clsid) {
+        Guid.GUID g = clsids.get(clsid);
+        if (g == null) {
+            g = parse(clsid);
+            Guid.GUID prev = clsids.putIfAbsent(clsid, g);
+            if (prev != null)
+                g = prev;
+        }
+        return g;
+    }
+
+    /**
+     * Parses a GUID of the form <tt>{xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx}</tt>
+     * (the braces are optional) and writes it to native memory.
+     * @throws IllegalArgumentException if the string isn't a GUID
+     */
+    static Guid.GUID parse(String s) {
+        int start = 0;
+        int end = s.length();
+        if (end == 38 && s.charAt(0) == '{' && s.charAt(37) == '}') {
+            start = 1;
+            end = 37;
+        }
+        if (end - start != 36
+                || s.charAt(start + 8) != '-' || s.charAt(start + 13) != '-'
+                || s.charAt(start + 18) != '-' || s.charAt(start + 23) != '-') {
+            throw new IllegalArgumentException("Not a GUID: " + s);
+        }
+
+        Guid.GUID g = new Guid.GUID();
+        g.Data1 = (int) hex(s, start, 8);
+        g.Data2 = (short) hex(s, start + 9, 4);
+        g.Data3 = (short) hex(s, start + 14, 4);
+        byte[] data4 = new byte[8];
+        data4[0] = (byte) hex(s, start + 19, 2);
+        data4[1] = (byte) hex(s, start + 21, 2);
+        for (int i = 0; i < 6; i++)
+            data4[2 + i] = (byte) hex(s, start + 24 + 2 * i, 2);
+        g.Data4 = data4;
+        g.write();
+        return g;
+    }
+
+    private static long hex(String s, int offset, int digits) {
+        long value = 0;
+        for (int i = offset; i < offset + digits; i++) {
+            int d = Character.digit(s.charAt(i), 16);
+            if (d < 0)
+                throw new IllegalArgumentException("Not a GUID: " + s);
+            value = (value << 4) | d;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes HRESULTs: severity, facility, code and the names of well known
+ * values, without calling into the system.
+ *
+ * @author scott.palmer
+ */
+public final class HResult {
+    public static final int S_OK = 0;
+    public static final int S_FALSE = 1;
+    public static final int E_NOTIMPL = 0x80004001;
+    public static final int E_NOINTERFACE = 0x80004002;
+    public static final int E_POINTER = 0x80004003;
+    public static final int E_ABORT = 0x80004004;
+    public static final int E_FAIL = 0x80004005;
+    public static final int E_UNEXPECTED = 0x8000FFFF;
+    public static final int E_ACCESSDENIED = 0x80070005;
+    public static final int E_HANDLE = 0x80070006;
+    public static final int E_OUTOFMEMORY = 0x8007000E;
+    public static final int E_INVALIDARG = 0x80070057;
+
+    private static final Map<Integer, String> names = new HashMap<Integer, String>();
+    private static final String[] facilities = new String[0x800];
+
+    static {
+        name(S_OK, "S_OK");
+        name(S_FALSE, "S_FALSE");
+        name(E_NOTIMPL, "E_NOTIMPL");
+        name(E_NOINTERFACE, "E_NOINTERFACE");
+        name(E_POINTER, "E_POINTER");
+        name(E_ABORT, "E_ABORT");
+        name(E_FAIL, "E_FAIL");
+        name(E_UNEXPECTED, "E_UNEXPECTED");
+        name(E_ACCESSDENIED, "E_ACCESSDENIED");
+        name(E_HANDLE, "E_HANDLE");
+        name(E_OUTOFMEMORY, "E_OUTOFMEMORY");
+        name(E_INVALIDARG, "E_INVALIDARG");
+        name(0x80040110, "CLASS_E_NOAGGREGATION");
+        name(0x80040111, "CLASS_E_CLASSNOTAVAILABLE");
+        name(0x80040154, "REGDB_E_CLASSNOTREG");
+        name(0x800401F0, "CO_E_NOTINITIALIZED");
+        name(0x800401F1, "CO_E_ALREADYINITIALIZED");
+        name(0x80010001, "RPC_E_CALL_REJECTED");
+        name(0x80010007, "RPC_E_SERVER_DIED");
+        name(0x80010108, "RPC_E_DISCONNECTED");
+        name(0x8001010A, "RPC_E_SERVERCALL_RETRYLATER");
+        name(0x80010106, "RPC_E_CHANGED_MODE");
+        name(0x8001010E, "RPC_E_WRONG_THREAD");
+        name(0x80020001, "DISP_E_UNKNOWNINTERFACE");
+        name(0x80020003, "DISP_E_MEMBERNOTFOUND");
+        name(0x80020004, "DISP_E_PARAMNOTFOUND");
+        name(0x80020005, "DISP_E_TYPEMISMATCH");
+        name(0x80020006, "DISP_E_UNKNOWNNAME");
+        name(0x80020008, "DISP_E_BADVARTYPE");
+        name(0x80020009, "DISP_E_EXCEPTION");
+        name(0x8002000A, "DISP_E_OVERFLOW");
+        name(0x8002000B, "DISP_E_BADINDEX");
+        name(0x8002000E, "DISP_E_BADPARAMCOUNT");
+        name(0x8002000F, "DISP_E_PARAMNOTOPTIONAL");
+        name(0x8002802B, "TYPE_E_ELEMENTNOTFOUND");
+        name(0x80028CA0, "TYPE_E_TYPEMISMATCH");
+        name(0x80029C4A, "TYPE_E_CANTLOADLIBRARY");
+        name(0x80030002, "STG_E_FILENOTFOUND");
+        name(0x80040200, "CONNECT_E_NOCONNECTION");
+        name(0x80040202, "CONNECT_E_CANNOTCONNECT");
+
+        facilities[0] = "FACILITY_NULL";
+        facilities[1] = "FACILITY_RPC";
+        facilities[2] = "FACILITY_DISPATCH";
+        facilities[3] = "FACILITY_STORAGE";
+        facilities[4] = "FACILITY_ITF";
+        facilities[7] = "FACILITY_WIN32";
+        facilities[8] = "FACILITY_WINDOWS";
+        facilities[10] = "FACILITY_CONTROL";
+    }
+
+    private static void name(int hresult, String name) {
+        names.put(hresult, name);
+    }
+
+    private HResult() {
+    }
+
+    /** @return true if the HRESULT reports a failure (its severity bit is set) */
+    public static boolean failed(int hresult) {
+        return hresult < 0;
+    }
+
+    /** @return the facility, e.g. 7 (FACILITY_WIN32) */
+    public static int facility(int hresult) {
+        return (hresult >> 16) & 0x7FF;
+    }
+
+    /** @return the code within the facility; the Win32 error for FACILITY_WIN32 */
+    public static int code(int hresult) {
+        return hresult & 0xFFFF;
+    }
+
+    /** @return the symbolic name of a well known HRESULT, or null */
+    public static String name(int hresult) {
+        return names.get(hresult);
+    }
+
+    /** @return the name of the HRESULT's facility, or null if it is not a known one */
+    public static String facilityName(int hresult) {
+        return facilities[facility(hresult)];
+    }
+
+    /**
+     * Describes an HRESULT in words, e.g. "E_NOINTERFACE" or
+     * "FACILITY_WIN32 code 2".
+     */
+    public static String describe(int hresult) {
+        String name = name(hresult);
+        if (name != null)
+            return name;
+        String facility = facilityName(hresult);
+        return (facility != null ? facility : "facility " + facility(hresult)) + " code " + code(hresult);
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.Guid;
+
+/**
+ * The connection point of one event interface.
+ * @author scott.palmer
+ * @see ComEvents
+ */
+@IID("{B196B286-BAB4-101A-B69C-00AA00341D07}")
+public interface IConnectionPoint extends IUnknown {
+    @VTID(3)
+    Guid.GUID getConnectionInterface();
+    @VTID(4)
+    IConnectionPointContainer getConnectionPointContainer();
+    /**
+     * @param sink the IUnknown pointer of the sink, e.g.
+     *        {@link ComCallable#getPointer()}
+     * @return the cookie to unadvise with
+     */
+    @VTID(5)
+    int advise(Pointer sink);
+    @VTID(6)
+    void unadvise(int cookie);
+    /** @return an IEnumConnections */
+    @VTID(7)
+    IUnknown enumConnections();
+}
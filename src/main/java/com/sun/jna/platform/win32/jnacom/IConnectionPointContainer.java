@@ -0,0 +1,22 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Implemented by objects that fire events through connection points.
+ * @author scott.palmer
+ * @see ComEvents
+ */
+@IID("{B196B284-BAB4-101A-B69C-00AA00341D07}")
+public interface IConnectionPointContainer extends IUnknown {
+    /** @return an IEnumConnectionPoints */
+    @VTID(3)
+    IUnknown enumConnectionPoints();
+    /** @param riid pointer to the IID of the event interface */
+    @VTID(4)
+    IConnectionPoint findConnectionPoint(Pointer riid);
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+
+/**
+ * The raw IDispatch interface.  Use {@link Dispatch} to call objects by
+ * name; it takes care of the native structures these methods take.
+ * GetIDsOfNames and Invoke return their HRESULT instead of throwing, as
+ * failing is part of their protocol.
+ * @author scott.palmer
+ */
+@IID("{00020400-0000-0000-C000-000000000046}")
+public interface IDispatch extends IUnknown {
+    @VTID(3)
+    int getTypeInfoCount();
+    @VTID(4)
+    ITypeInfo getTypeInfo(int iTInfo, int lcid);
+    @VTID(5)
+    @NoHResult
+    int getIDsOfNames(Pointer riid, Pointer names, int count, int lcid, Pointer dispIds);
+    @VTID(6)
+    @NoHResult
+    int invoke(int dispId, Pointer riid, int lcid, short flags, Pointer params,
+            Pointer result, Pointer excepInfo, Pointer argErr);
+}
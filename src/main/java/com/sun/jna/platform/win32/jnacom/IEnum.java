@@ -0,0 +1,27 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+
+/**
+ * The methods every IEnumXXX interface has, whatever the element type.  It
+ * has no IID of its own; {@link ComEnumerator} calls enumerators through it.
+ * Next and Skip return S_FALSE when they run out, so they return their
+ * HRESULT instead of throwing.
+ * @author scott.palmer
+ */
+public interface IEnum extends IUnknown {
+    @VTID(3)
+    @NoHResult
+    int next(int celt, Pointer rgelt, Pointer pceltFetched);
+    @VTID(4)
+    @NoHResult
+    int skip(int celt);
+    @VTID(5)
+    void reset();
+    @VTID(6)
+    IUnknown cloneEnum();
+}
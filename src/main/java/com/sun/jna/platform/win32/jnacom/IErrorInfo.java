@@ -0,0 +1,19 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+/**
+ * The error information a COM object may leave behind when a call fails.
+ * @author scott.palmer
+ */
+@IID("{1CF2B120-547D-101B-8E65-08002B2BA117}")
+public interface IErrorInfo extends IUnknown {
+    @VTID(4)
+    String getSource();
+    @VTID(5)
+    String getDescription();
+    @VTID(6)
+    String getHelpFile();
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.platform.win32.Guid;
+
+/**
+ * Tells which of an object's interfaces leave error info behind when a
+ * call fails.
+ * @author scott.palmer
+ */
+@IID("{DF0B3D60-548F-101B-8E65-08002B2BA117}")
+public interface ISupportErrorInfo extends IUnknown {
+    /** @return S_OK if the interface reports errors through IErrorInfo, S_FALSE if not */
+    @VTID(3)
+    @NoHResult
+    int interfaceSupportsErrorInfo(Guid.GUID riid);
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+
+/**
+ * The part of ITypeInfo that {@link Dispatch} uses: the TYPEATTR, which
+ * starts with the GUID of the type.
+ * @author scott.palmer
+ */
+@IID("{00020401-0000-0000-C000-000000000046}")
+public interface ITypeInfo extends IUnknown {
+    /**
+     * @param ppTypeAttr receives the TYPEATTR, to be given back with
+     *        {@link #releaseTypeAttr}
+     */
+    @VTID(3)
+    @NoHResult
+    int getTypeAttr(Pointer ppTypeAttr);
+    @VTID(19)
+    @NoHResult
+    void releaseTypeAttr(Pointer pTypeAttr);
+}
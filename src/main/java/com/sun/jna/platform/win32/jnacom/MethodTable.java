@@ -0,0 +1,180 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The descriptor table of a generated interface: what {@link ComMethod}
+ * would otherwise read from each method's annotations, precomputed as a
+ * <tt>COM_METHODS</tt> string array, in the interface itself by
+ * {@link TypeLibGenerator} or in its stub by {@link ComStubProcessor}.
+ *
+ * <p>
+ * Each entry is the method's name and parameter descriptor, its
+ * {@link VTID} (-1 for none) and then any of <tt>n</tt> ({@link NoHResult}),
+ * <tt>b</tt><i>i</i> (parameter <i>i</i> is a {@link BSTR}),
+ * <tt>a</tt><i>i</i> (parameter <i>i</i> is {@link AsSafeArray}),
+ * <tt>r</tt><i>i</i> (parameter <i>i</i> is the inout {@link ReturnValue})
+ * and <tt>s</tt> or <tt>s</tt><i>hresult</i> ({@link NoStackTrace} for all
+ * or some HRESULTs), e.g. <tt>"setName(Ljava/lang/String;) 8 b0"</tt>.
+ *
+ * @author scott.palmer
+ */
+final class MethodTable {
+
+    static final String FIELD = "COM_METHODS";
+
+    static final class Entry {
+        final int vtid;
+        final boolean noHResult;
+        final boolean[] bstr;
+        final boolean[] asSafeArray;
+        /** the inout [retval] parameter, -1 for none */
+        final int retvalIndex;
+        /** as {@link ComMethod#noStackTrace} */
+        final int[] noStackTrace;
+
+        Entry(int vtid, boolean noHResult, boolean[] bstr, boolean[] asSafeArray, int retvalIndex, int[] noStackTrace) {
+            this.vtid = vtid;
+            this.noHResult = noHResult;
+            this.bstr = bstr;
+            this.asSafeArray = asSafeArray;
+            this.retvalIndex = retvalIndex;
+            this.noStackTrace = noStackTrace;
+        }
+    }
+
+    private MethodTable() {
+    }
+
+    /**
+     * Returns the entries of an interface's own table by {@link #key(Method)},
+     * or null if it has none.  Stub tables are only used with their stubs
+     * (see {@link ComStubs}).
+     * @throws IllegalArgumentException if the table is malformed
+     */
+    static Map<String, Entry> of(Class<?> intrface) {
+        String[] table = table(intrface);
+        return table != null ? parse(intrface, table) : null;
+    }
+
+    /**
+     * Returns the entries of a table by {@link #key(Method)}.
+     * @param owner the class holding the table
+     * @throws IllegalArgumentException if the table is malformed
+     */
+    static Map<String, Entry> parse(Class<?> owner, String[] table) {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        for (String s : table) {
+            String[] parts = s.split(" ");
+            int close = parts[0].indexOf(')');
+            if (parts.length < 2 || close < 0)
+                throw new IllegalArgumentException(owner.getName() + "." + FIELD + ": bad entry \"" + s + "\"");
+            int count = count(parts[0].substring(parts[0].indexOf('(') + 1, close));
+            boolean noHResult = false;
+            boolean[] bstr = new boolean[count];
+            boolean[] asSafeArray = new boolean[count];
+            int retvalIndex = -1;
+            List<Integer> noStackTrace = null;
+            for (int i = 2; i < parts.length; i++) {
+                String p = parts[i];
+                if (p.equals("n"))
+                    noHResult = true;
+                else if (p.charAt(0) == 'b')
+                    bstr[Integer.parseInt(p.substring(1))] = true;
+                else if (p.charAt(0) == 'a')
+                    asSafeArray[Integer.parseInt(p.substring(1))] = true;
+                else if (p.charAt(0) == 'r')
+                    retvalIndex = Integer.parseInt(p.substring(1));
+                else if (p.charAt(0) == 's') {
+                    if (noStackTrace == null)
+                        noStackTrace = new ArrayList<Integer>();
+                    if (p.length() > 1)
+                        noStackTrace.add(Integer.parseInt(p.substring(1)));
+                }
+            }
+            int[] nst = null;
+            if (noStackTrace != null) {
+                nst = new int[noStackTrace.size()];
+                for (int i = 0; i < nst.length; i++)
+                    nst[i] = noStackTrace.get(i);
+            }
+            entries.put(parts[0], new Entry(Integer.parseInt(parts[1]), noHResult, bstr, asSafeArray, retvalIndex, nst));
+        }
+        return entries;
+    }
+
+    /** The <tt>COM_METHODS</tt> of a class or interface, or null if it has none. */
+    static String[] table(Class<?> c) {
+        return (String[]) field(c, FIELD, String[].class);
+    }
+
+    private static Object field(Class<?> c, String name, Class<?> type) {
+        try {
+            Field f = c.getDeclaredField(name);
+            if (!Modifier.isStatic(f.getModifiers()) || f.getType() != type)
+                return null;
+            f.setAccessible(true);
+            return f.get(null);
+        } catch (NoSuchFieldException ex) {
+            return null;
+        } catch (IllegalAccessException ex) {
+            return null;
+        }
+    }
+
+    /** The name and parameter descriptor, e.g. <tt>"find(Ljava/lang/String;I)"</tt>. */
+    static String key(Method m) {
+        StringBuilder b = new StringBuilder(m.getName()).append('(');
+        for (Class<?> p : m.getParameterTypes())
+            descriptor(b, p);
+        return b.append(')').toString();
+    }
+
+    static StringBuilder descriptor(StringBuilder b, Class<?> c) {
+        if (c.isArray())
+            return descriptor(b.append('['), c.getComponentType());
+        if (c == Integer.TYPE)
+            return b.append('I');
+        if (c == Long.TYPE)
+            return b.append('J');
+        if (c == Short.TYPE)
+            return b.append('S');
+        if (c == Byte.TYPE)
+            return b.append('B');
+        if (c == Boolean.TYPE)
+            return b.append('Z');
+        if (c == Character.TYPE)
+            return b.append('C');
+        if (c == Float.TYPE)
+            return b.append('F');
+        if (c == Double.TYPE)
+            return b.append('D');
+        if (c == Void.TYPE)
+            return b.append('V');
+        return b.append('L').append(c.getName().replace('.', '/')).append(';');
+    }
+
+    /** The number of parameters in a descriptor. */
+    private static int count(String params) {
+        int n = 0;
+        for (int i = 0; i < params.length(); i++) {
+            char c = params.charAt(i);
+            if (c == '[')
+                continue;
+            if (c == 'L')
+                i = params.indexOf(';', i);
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.PointerByReference;
+import com.sun.jna.win32.StdCallLibrary;
+import com.sun.jna.win32.W32APIOptions;
+
+/**
+ * The ole32 and oleaut32 functions jnacom calls besides those of
+ * {@link com.sun.jna.platform.win32.Ole32} (see {@link ComObject#ole32()}),
+ * each library mapped once for the whole package and loaded on first use,
+ * so that the classes that need them can be used without Windows (e.g. in
+ * tests, which put stand-ins in {@link #oleaut32} and {@link #ole32}).
+ *
+ * @author scott.palmer
+ */
+final class Natives {
+
+    interface OleAut32 extends StdCallLibrary {
+        Pointer SysAllocString(String sz);
+        void SysFreeString(Pointer bstr);
+        int VariantClear(Pointer pvarg);
+        int GetErrorInfo(int dwReserved, PointerByReference pperrinfo);
+        Pointer SafeArrayCreateVector(short vt, int lLbound, int cElements);
+        int SafeArrayLock(Pointer psa);
+        int SafeArrayUnlock(Pointer psa);
+        int SafeArrayDestroy(Pointer psa);
+        int SafeArrayCopy(Pointer psa, PointerByReference ppsaOut);
+    }
+
+    interface Ole32 extends StdCallLibrary {
+        void CoTaskMemFree(Pointer pv);
+    }
+
+    static volatile OleAut32 oleaut32;
+    static volatile Ole32 ole32;
+
+    private Natives() {
+    }
+
+    /**
+     * @throws UnsatisfiedLinkError if there is no oleaut32
+     */
+    static OleAut32 oleaut32() {
+        OleAut32 lib = oleaut32;
+        if (lib == null) {
+            synchronized (Natives.class) {
+                lib = oleaut32;
+                if (lib == null)
+                    oleaut32 = lib = (OleAut32) Native.loadLibrary("oleaut32", OleAut32.class,
+                            W32APIOptions.UNICODE_OPTIONS);
+            }
+        }
+        return lib;
+    }
+
+    /**
+     * @throws UnsatisfiedLinkError if there is no ole32
+     */
+    static Ole32 ole32() {
+        Ole32 lib = ole32;
+        if (lib == null) {
+            synchronized (Natives.class) {
+                lib = ole32;
+                if (lib == null)
+                    ole32 = lib = (Ole32) Native.loadLibrary("ole32", Ole32.class);
+            }
+        }
+        return lib;
+    }
+}
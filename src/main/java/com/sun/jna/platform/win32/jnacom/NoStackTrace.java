@@ -0,0 +1,27 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method whose failures are expected and handled, e.g. probes that
+ * are caught in a loop.  Its {@link ComException}s are thrown without a stack
+ * trace and without fetching the error info, which makes them much cheaper.
+ * See also {@link ComException#setStackless(int, boolean)}.
+ *
+ * @author scott.palmer
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD})
+public @interface NoStackTrace {
+    /**
+     * The HRESULTs this applies to; all of them if empty.
+     */
+    int[] value() default {};
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The live proxy of each interface pointer and Java interface, for
+ * {@link ComObject} when <tt>jnacom.canonicalProxies</tt> is set.
+ *
+ * <p>
+ * Proxies are held weakly: an entry goes away when its proxy is collected
+ * or disposed for the last time, and the next wrapper made for the pointer
+ * becomes the canonical one.  Entries of collected proxies are dropped
+ * whenever the cache is used.
+ *
+ * @author scott.palmer
+ */
+final class ProxyCache {
+
+    static final class Key {
+        final Pointer interfacePointer;
+        final Class<?> intrface;
+
+        Key(Pointer interfacePointer, Class<?> intrface) {
+            this.interfacePointer = interfacePointer;
+            this.intrface = intrface;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return intrface == k.intrface && interfacePointer.equals(k.interfacePointer);
+        }
+
+        @Override
+        public int hashCode() {
+            return interfacePointer.hashCode() * 31 + intrface.hashCode();
+        }
+    }
+
+    /** The canonical proxy of one key. */
+    static final class Entry extends WeakReference<Object> {
+        final Key key;
+
+        Entry(Key key, Object proxy) {
+            super(proxy, collected);
+            this.key = key;
+        }
+    }
+
+    private static final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+    private static final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+    private ProxyCache() {
+    }
+
+    /**
+     * @return the live proxy of the pointer as the interface, or null
+     */
+    static Object get(Pointer interfacePointer, Class<?> intrface) {
+        expunge();
+        Entry e = entries.get(new Key(interfacePointer, intrface));
+        return e != null ? e.get() : null;
+    }
+
+    /**
+     * Makes a proxy the canonical one of its pointer and interface, in
+     * place of any other.
+     */
+    static Entry put(Pointer interfacePointer, Class<?> intrface, Object proxy) {
+        expunge();
+        Entry e = new Entry(new Key(interfacePointer, intrface), proxy);
+        entries.put(e.key, e);
+        return e;
+    }
+
+    /**
+     * Drops an entry, unless another proxy has taken its place.
+     */
+    static void remove(Entry e) {
+        entries.remove(e.key, e);
+    }
+
+    private static void expunge() {
+        Entry e;
+        while ((e = (Entry) collected.poll()) != null)
+            entries.remove(e.key, e);
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Generates a concrete {@link ComProxy} subclass per COM interface.
+ *
+ * <p>
+ * Each method of the generated class is straight-line bytecode that packs
+ * its arguments into an array and calls the typed <tt>ComProxy.call*</tt>
+ * method for its return type, passing the index of the method's
+ * {@link ComMethod}.  There is no {@link java.lang.reflect.InvocationHandler}
+ * in between and primitive return values stay primitive.
+ *
+ * <p>
+ * Arguments are still boxed: primitive parameters are packed into the
+ * <tt>Object[]</tt> like any other, and the call reaches the vtable through
+ * JNA's <tt>Function.invoke*(Object[])</tt>, which takes them boxed.  Only
+ * the return value is spared the boxing and the reflective dispatch.
+ *
+ * <p>
+ * Only public interfaces whose methods return public types can be
+ * generated; {@link #newProxy} returns null for anything else and the caller
+ * falls back to a reflective proxy.
+ *
+ * @author scott.palmer
+ */
+final class ProxyGenerator {
+
+    /** What is needed to instantiate the proxy class for one interface. */
+    private static final class Factory {
+        final Constructor<?> constructor;
+        final ComMethod[] calls;
+
+        Factory(Constructor<?> constructor, ComMethod[] calls) {
+            this.constructor = constructor;
+            this.calls = calls;
+        }
+    }
+
+    private static final Factory UNSUPPORTED = new Factory(null, null);
+
+    private static final ClassValue<Factory> factories = new ClassValue<Factory>() {
+        @Override
+        protected Factory computeValue(Class<?> intrface) {
+            try {
+                return generate(intrface);
+            } catch (Exception ex) {
+                ComObject.logger.log(Level.WARNING, "Could not generate a proxy class for " + intrface.getName(), ex);
+                return UNSUPPORTED;
+            } catch (LinkageError ex) {
+                ComObject.logger.log(Level.WARNING, "Could not generate a proxy class for " + intrface.getName(), ex);
+                return UNSUPPORTED;
+            }
+        }
+    };
+
+    private ProxyGenerator() {
+    }
+
+    /**
+     * Creates an instance of the generated proxy class for the interface, or
+     * returns null if no class could be generated for it.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T newProxy(ComObject object, Class<T> intrface) {
+        Factory f = factories.get(intrface);
+        if (f == UNSUPPORTED)
+            return null;
+        try {
+            return (T) f.constructor.newInstance(object, f.calls);
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not create proxy for " + intrface.getName(), ex);
+        }
+    }
+
+    private static Factory generate(Class<?> intrface) throws Exception {
+        if (!intrface.isInterface() || !Modifier.isPublic(intrface.getModifiers()))
+            return UNSUPPORTED;
+
+        // one entry per distinct signature, as inherited methods may repeat
+        Map<String, Method> methods = new LinkedHashMap<String, Method>();
+        for (Method m : intrface.getMethods()) {
+            if (!Modifier.isAbstract(m.getModifiers()) || isObjectMethod(m))
+                continue;
+            if (!accessible(m.getReturnType()))
+                return UNSUPPORTED;
+            String key = m.getName() + descriptor(m);
+            if (!methods.containsKey(key))
+                methods.put(key, m);
+        }
+
+        ComMethod[] calls = new ComMethod[methods.size()];
+        int i = 0;
+        for (Method m : methods.values())
+            calls[i++] = ComMethod.of(m);
+
+        String name = intrface.getName() + "$$ComProxy";
+        byte[] bytes = new ClassBuilder(name, intrface, calls).build();
+        Class<?> c = new Loader(intrface.getClassLoader()).define(name, bytes);
+        return new Factory(c.getConstructor(ComObject.class, Object[].class), calls);
+    }
+
+    private static boolean isObjectMethod(Method m) {
+        try {
+            Object.class.getMethod(m.getName(), m.getParameterTypes());
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    private static boolean accessible(Class<?> c) {
+        while (c.isArray())
+            c = c.getComponentType();
+        if (c.isPrimitive())
+            return true;
+        for (Class<?> o = c; o != null; o = o.getEnclosingClass()) {
+            if (!Modifier.isPublic(o.getModifiers()))
+                return false;
+        }
+        return true;
+    }
+
+    private static String internalName(Class<?> c) {
+        return c.getName().replace('.', '/');
+    }
+
+    private static String descriptor(Class<?> c) {
+        if (c == Void.TYPE) return "V";
+        if (c == Integer.TYPE) return "I";
+        if (c == Long.TYPE) return "J";
+        if (c == Double.TYPE) return "D";
+        if (c == Float.TYPE) return "F";
+        if (c == Byte.TYPE) return "B";
+        if (c == Boolean.TYPE) return "Z";
+        if (c == Short.TYPE) return "S";
+        if (c == Character.TYPE) return "C";
+        if (c.isArray()) return internalName(c);
+        return "L" + internalName(c) + ";";
+    }
+
+    private static String descriptor(Method m) {
+        StringBuilder sb = new StringBuilder("(");
+        for (Class<?> p : m.getParameterTypes())
+            sb.append(descriptor(p));
+        return sb.append(')').append(descriptor(m.getReturnType())).toString();
+    }
+
+    private static final class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Writes the class file.  The code has no branches, so a pre-1.6 class
+     * file version keeps us clear of stack map frames.
+     */
+    private static final class ClassBuilder {
+        private static final int ACC_PUBLIC = 0x0001;
+        private static final int ACC_FINAL = 0x0010;
+        private static final int ACC_SUPER = 0x0020;
+        private static final String SUPER = internalName(ComProxy.class);
+        private static final String OBJECT = "java/lang/Object";
+
+        private final String name;
+        private final Class<?> intrface;
+        private final ComMethod[] calls;
+
+        private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+        private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+        private int poolCount = 1;
+
+        ClassBuilder(String name, Class<?> intrface, ComMethod[] calls) {
+            this.name = name.replace('.', '/');
+            this.intrface = intrface;
+            this.calls = calls;
+        }
+
+        byte[] build() throws IOException {
+            int thisClass = classRef(name);
+            int superClass = classRef(SUPER);
+            int iface = classRef(internalName(intrface));
+
+            List<byte[]> methods = new ArrayList<byte[]>();
+            methods.add(constructor());
+            for (int i = 0; i < calls.length; i++)
+                methods.add(method(i, calls[i].method));
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(iface);
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (byte[] m : methods)
+                out.write(m);
+            out.writeShort(0); // attributes
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private byte[] constructor() throws IOException {
+            Code code = new Code();
+            code.op(0x2A);                      // aload_0
+            code.op(0x2B);                      // aload_1
+            code.op(0x2C);                      // aload_2
+            code.op(0xB7).u2(methodRef(SUPER, "<init>", "(L" + internalName(ComObject.class) + ";[L" + OBJECT + ";)V"));
+            code.op(0xB1);                      // return
+            return methodInfo("<init>", "(L" + internalName(ComObject.class) + ";[L" + OBJECT + ";)V", code, 3, 3);
+        }
+
+        private byte[] method(int index, Method m) throws IOException {
+            Class<?>[] params = m.getParameterTypes();
+            Class<?> rt = m.getReturnType();
+            Code code = new Code();
+
+            code.op(0x2A);                      // aload_0
+            code.pushInt(index);
+            int locals = 1;
+            if (params.length == 0) {
+                code.op(0x01);                  // aconst_null
+            } else {
+                code.pushInt(params.length);
+                code.op(0xBD).u2(classRef(OBJECT)); // anewarray
+                for (int i = 0; i < params.length; i++) {
+                    code.op(0x59);              // dup
+                    code.pushInt(i);
+                    locals += load(code, params[i], locals);
+                    code.op(0x53);              // aastore
+                }
+            }
+
+            String callArgs = "(I[L" + OBJECT + ";)";
+            if (rt == Void.TYPE) {
+                code.op(0xB6).u2(methodRef(SUPER, "callVoid", callArgs + "V"));
+                code.op(0xB1);                  // return
+            } else if (rt == Integer.TYPE) {
+                code.op(0xB6).u2(methodRef(SUPER, "callInt", callArgs + "I"));
+                code.op(0xAC);                  // ireturn
+            } else if (rt == Long.TYPE) {
+                code.op(0xB6).u2(methodRef(SUPER, "callLong", callArgs + "J"));
+                code.op(0xAD);                  // lreturn
+            } else if (rt == Double.TYPE) {
+                code.op(0xB6).u2(methodRef(SUPER, "callDouble", callArgs + "D"));
+                code.op(0xAF);                  // dreturn
+            } else if (rt == Byte.TYPE) {
+                code.op(0xB6).u2(methodRef(SUPER, "callByte", callArgs + "B"));
+                code.op(0xAC);                  // ireturn
+            } else if (rt == Boolean.TYPE) {
+                code.op(0xB6).u2(methodRef(SUPER, "callBoolean", callArgs + "Z"));
+                code.op(0xAC);                  // ireturn
+            } else {
+                code.op(0xB6).u2(methodRef(SUPER, "callObject", callArgs + "L" + OBJECT + ";"));
+                if (rt.isPrimitive()) {
+                    // short, char and float are not COM return kinds; unbox like Proxy would
+                    Class<?> box = rt == Character.TYPE ? Character.class : Number.class;
+                    code.op(0xC0).u2(classRef(internalName(box)));  // checkcast
+                    code.op(0xB6).u2(methodRef(internalName(box), rt.getName() + "Value", "()" + descriptor(rt)));
+                    code.op(rt == Float.TYPE ? 0xAE : 0xAC);        // freturn / ireturn
+                } else {
+                    if (rt != Object.class)
+                        code.op(0xC0).u2(classRef(rt.isArray() ? descriptor(rt) : internalName(rt)));
+                    code.op(0xB0);              // areturn
+                }
+            }
+            return methodInfo(m.getName(), descriptor(m), code, 8, locals);
+        }
+
+        /**
+         * Loads and boxes a parameter, returning the number of local slots it
+         * uses.  The box is what Function.invoke* takes; see the class comment.
+         */
+        private int load(Code code, Class<?> p, int slot) throws IOException {
+            if (!p.isPrimitive()) {
+                code.local(0x19, slot);         // aload
+                return 1;
+            }
+            String box;
+            int size = 1;
+            if (p == Long.TYPE) {
+                code.local(0x16, slot);         // lload
+                box = "java/lang/Long";
+                size = 2;
+            } else if (p == Double.TYPE) {
+                code.local(0x18, slot);         // dload
+                box = "java/lang/Double";
+                size = 2;
+            } else if (p == Float.TYPE) {
+                code.local(0x17, slot);         // fload
+                box = "java/lang/Float";
+            } else {
+                code.local(0x15, slot);         // iload
+                box = p == Integer.TYPE ? "java/lang/Integer"
+                        : p == Boolean.TYPE ? "java/lang/Boolean"
+                        : p == Byte.TYPE ? "java/lang/Byte"
+                        : p == Short.TYPE ? "java/lang/Short"
+                        : "java/lang/Character";
+            }
+            code.op(0xB8).u2(methodRef(box, "valueOf", "(" + descriptor(p) + ")L" + box + ";"));
+            return size;
+        }
+
+        private byte[] methodInfo(String mname, String desc, Code code, int maxStack, int maxLocals) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            byte[] body = code.toByteArray();
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(utf8(mname));
+            out.writeShort(utf8(desc));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + body.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private int utf8(String s) throws IOException {
+            Integer i = poolIndex.get("U" + s);
+            if (i == null) {
+                pool.writeByte(1);
+                pool.writeUTF(s);
+                i = poolCount++;
+                poolIndex.put("U" + s, i);
+            }
+            return i;
+        }
+
+        private int classRef(String internalName) throws IOException {
+            Integer i = poolIndex.get("C" + internalName);
+            if (i == null) {
+                int n = utf8(internalName);
+                pool.writeByte(7);
+                pool.writeShort(n);
+                i = poolCount++;
+                poolIndex.put("C" + internalName, i);
+            }
+            return i;
+        }
+
+        private int methodRef(String owner, String mname, String desc) throws IOException {
+            String key = "M" + owner + "." + mname + desc;
+            Integer i = poolIndex.get(key);
+            if (i == null) {
+                int c = classRef(owner);
+                int n = utf8(mname);
+                int d = utf8(desc);
+                pool.writeByte(12);
+                pool.writeShort(n);
+                pool.writeShort(d);
+                int nt = poolCount++;
+                pool.writeByte(10);
+                pool.writeShort(c);
+                pool.writeShort(nt);
+                i = poolCount++;
+                poolIndex.put(key, i);
+            }
+            return i;
+        }
+    }
+
+    /** Bytecode of a single method body. */
+    private static final class Code extends ByteArrayOutputStream {
+        Code op(int opcode) {
+            write(opcode);
+            return this;
+        }
+
+        Code u2(int value) {
+            write(value >>> 8);
+            write(value);
+            return this;
+        }
+
+        void pushInt(int value) {
+            if (value <= 5) {
+                op(0x03 + value);               // iconst_<n>
+            } else if (value <= Byte.MAX_VALUE) {
+                op(0x10).write(value);          // bipush
+            } else {
+                op(0x11).u2(value);             // sipush
+            }
+        }
+
+        void local(int opcode, int slot) {
+            if (slot <= 0xFF) {
+                op(opcode).write(slot);
+            } else {
+                op(0xC4).op(opcode).u2(slot);   // wide
+            }
+        }
+    }
+}
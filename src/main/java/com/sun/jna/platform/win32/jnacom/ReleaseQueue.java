@@ -0,0 +1,178 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Releases the interface pointers of {@link ComObject}s that were garbage
+ * collected without being disposed.
+ *
+ * <p>
+ * Each ComObject registers a phantom reference that remembers only its raw
+ * interface pointer.  A daemon thread moves collected ones to a pending
+ * queue; the actual <tt>Release</tt> calls are made in batches on a COM
+ * thread: the apartment the object belonged to, or for objects that belong
+ * to no apartment the next thread that calls into a COM object (or calls
+ * {@link ComObject#releasePending()}).  Nothing is released on a thread that
+ * has not initialized COM, and ComObject needs no finalizer.
+ *
+ * @author scott.palmer
+ */
+final class ReleaseQueue {
+
+    /** Tracks one ComObject; holds nothing that keeps it reachable. */
+    static final class Handle extends PhantomReference<Object> {
+        final Pointer interfacePointer;
+        final Pending pending;
+
+        Handle(Object owner, Pointer interfacePointer, Pending pending) {
+            super(owner, collected);
+            this.interfacePointer = interfacePointer;
+            this.pending = pending;
+        }
+    }
+
+    /**
+     * The collected pointers waiting to be released on one apartment's
+     * thread, or (without an apartment) on any COM thread.
+     */
+    static final class Pending extends Apartment.Task {
+        private final Apartment apartment;
+        private final ConcurrentLinkedQueue<Handle> queue = new ConcurrentLinkedQueue<Handle>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Pending(Apartment apartment) {
+            this.apartment = apartment;
+        }
+
+        @Override
+        void run() {
+            scheduled.set(false);
+            drain(this);
+        }
+
+        void schedule() {
+            if (apartment != null && scheduled.compareAndSet(false, true))
+                apartment.execute(this);
+        }
+    }
+
+    private static final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+    /** keeps the handles themselves reachable until they are processed */
+    private static final Set<Handle> live =
+            Collections.newSetFromMap(new ConcurrentHashMap<Handle, Boolean>());
+    /** pointers of objects that belong to no apartment */
+    private static final Pending shared = new Pending(null);
+    private static final AtomicLong pendingCount = new AtomicLong();
+    private static final AtomicLong drainedCount = new AtomicLong();
+
+    static {
+        Thread reaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (;;) {
+                    try {
+                        enqueue((Handle) collected.remove());
+                        // pick up everything else collected in the same cycle
+                        Handle h;
+                        while ((h = (Handle) collected.poll()) != null)
+                            enqueue(h);
+                    } catch (InterruptedException ex) {
+                        return;
+                    } catch (RuntimeException ex) {
+                        ComObject.logger.log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        }, "COM-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private ReleaseQueue() {
+    }
+
+    /**
+     * Starts tracking the owner of an interface pointer.
+     * @param apartment the apartment the pointer must be released in, or null
+     */
+    static Handle register(Object owner, Pointer interfacePointer, Apartment apartment) {
+        Handle h = new Handle(owner, interfacePointer, apartment != null ? apartment.releases : shared);
+        live.add(h);
+        return h;
+    }
+
+    /**
+     * Stops tracking an object whose pointer was released explicitly.
+     */
+    static void forget(Handle h) {
+        h.clear();
+        live.remove(h);
+    }
+
+    private static void enqueue(Handle h) {
+        if (live.remove(h)) {
+            h.pending.queue.add(h);
+            pendingCount.incrementAndGet();
+            h.pending.schedule();
+        }
+    }
+
+    /**
+     * True if there are collected pointers waiting to be released.
+     */
+    static boolean hasPending() {
+        return pendingCount.get() != 0;
+    }
+
+    /**
+     * Releases the pending pointers that may be released on the current
+     * thread, which must be a COM thread: those of its apartment, if it is an
+     * apartment thread, and those that belong to no apartment.
+     * @return the number of pointers released
+     */
+    static int drain() {
+        Apartment current = Apartment.current();
+        int n = drain(shared);
+        if (current != null)
+            n += drain(current.releases);
+        return n;
+    }
+
+    private static int drain(Pending pending) {
+        int n = 0;
+        Handle h;
+        while ((h = pending.queue.poll()) != null) {
+            try {
+                ComObject.release(h.interfacePointer);
+            } catch (RuntimeException ex) {
+                ComObject.logger.log(Level.WARNING, "Release of a collected interface failed", ex);
+            }
+            pendingCount.decrementAndGet();
+            n++;
+        }
+        if (n != 0)
+            drainedCount.addAndGet(n);
+        return n;
+    }
+
+    static long pendingCount() {
+        return pendingCount.get();
+    }
+
+    static long drainedCount() {
+        return drainedCount.get();
+    }
+}
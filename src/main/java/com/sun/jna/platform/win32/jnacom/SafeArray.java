@@ -0,0 +1,388 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.PointerByReference;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A SAFEARRAY, for moving large numeric payloads in bulk.
+ *
+ * <p>
+ * The elements are never touched one at a time: {@link #lock()} gives a
+ * view of the data in place (as a Pointer or a direct ByteBuffer), and the
+ * {@code toXxxArray} methods and {@code of} factories copy the whole array
+ * with a single memcpy.  Multi-dimensional arrays are copied in their native
+ * order, with the leftmost index varying fastest.
+ *
+ * <p>
+ * The element types and the Java arrays they map to are:
+ * <ul>
+ * <li>VT_UI1, VT_I1: byte[]</li>
+ * <li>VT_I2, VT_UI2, VT_BOOL: short[]</li>
+ * <li>VT_I4, VT_UI4, VT_INT, VT_UINT, VT_ERROR: int[]</li>
+ * <li>VT_I8, VT_UI8, VT_CY: long[]</li>
+ * <li>VT_R4: float[]</li>
+ * <li>VT_R8, VT_DATE: double[]</li>
+ * </ul>
+ *
+ * <p>
+ * Interface methods may return a SafeArray, which the caller then owns and
+ * must {@link #destroy()}, or one of the arrays above, which is copied out
+ * and the SAFEARRAY destroyed.  Arrays are passed as SAFEARRAYs with
+ * {@link AsSafeArray}; a SafeArray argument is passed as is.
+ *
+ * @author scott.palmer
+ */
+public final class SafeArray {
+
+    static final short VT_ARRAY = 0x2000;
+    static final short FADF_AUTO = 0x0001;
+    static final short FADF_FIXEDSIZE = 0x0010;
+    static final short FADF_HAVEVARTYPE = 0x0080;
+
+    // SAFEARRAY {cDims, fFeatures, cbElements, cLocks, pvData, rgsabound[]}
+    static final int FEATURES = 2;
+    static final int ELEMENT_SIZE = 4;
+    static final int LOCKS = 8;
+    static final int DATA = Pointer.SIZE == 8 ? 16 : 12;
+    /** SAFEARRAYBOUND {cElements, lLbound}, rightmost dimension first */
+    static final int BOUNDS = DATA + Pointer.SIZE;
+
+    private Pointer psa;
+    private final boolean owned;
+
+    SafeArray(Pointer psa, boolean owned) {
+        this.psa = psa;
+        this.owned = owned;
+    }
+
+    /**
+     * Takes over a SAFEARRAY, which {@link #destroy()} will destroy.
+     */
+    public static SafeArray wrap(Pointer psa) {
+        return new SafeArray(psa, true);
+    }
+
+    public static SafeArray of(byte[] values) {
+        return copyOf(values);
+    }
+
+    public static SafeArray of(short[] values) {
+        return copyOf(values);
+    }
+
+    public static SafeArray of(int[] values) {
+        return copyOf(values);
+    }
+
+    public static SafeArray of(long[] values) {
+        return copyOf(values);
+    }
+
+    public static SafeArray of(float[] values) {
+        return copyOf(values);
+    }
+
+    public static SafeArray of(double[] values) {
+        return copyOf(values);
+    }
+
+    /**
+     * Creates a one dimensional SAFEARRAY holding a copy of a primitive array.
+     */
+    static SafeArray copyOf(Object array) {
+        short vt = varTypeOf(array.getClass());
+        int n = Array.getLength(array);
+        Pointer p = Natives.oleaut32().SafeArrayCreateVector(vt, 0, n);
+        if (p == null)
+            throw new ComException("SafeArrayCreateVector failed", HResult.E_OUTOFMEMORY);
+        SafeArray sa = new SafeArray(p, true);
+        if (n > 0) {
+            write(sa.lock(), array, n);
+            sa.unlock();
+        }
+        return sa;
+    }
+
+    /**
+     * Builds a one dimensional SAFEARRAY holding a copy of a primitive array
+     * in the given arena, for passing to a call.  It is marked as fixed size
+     * and not to be freed, as arrays on the stack are.
+     */
+    static Pointer inArena(StringArena arena, Object array) {
+        short vt = varTypeOf(array.getClass());
+        int n = Array.getLength(array);
+        int size = elementSize(vt);
+        int header = BOUNDS + 8;
+        // the VARTYPE goes in the 4 bytes before the descriptor
+        Pointer p = arena.allocate(8 + header + (long) n * size);
+        p.setInt(4, vt);
+        Pointer sa = p.share(8);
+        Pointer data = sa.share(header);
+        sa.setShort(0, (short) 1);
+        sa.setShort(FEATURES, (short) (FADF_AUTO | FADF_FIXEDSIZE | FADF_HAVEVARTYPE));
+        sa.setInt(ELEMENT_SIZE, size);
+        sa.setInt(LOCKS, 0);
+        sa.setPointer(DATA, data);
+        sa.setInt(BOUNDS, n);
+        sa.setInt(BOUNDS + 4, 0);
+        write(data, array, n);
+        return sa;
+    }
+
+    /**
+     * Copies a returned SAFEARRAY into a Java array and destroys it.
+     */
+    static Object take(Pointer psa, Class<?> arrayType) {
+        SafeArray sa = new SafeArray(psa, true);
+        try {
+            return sa.copy(arrayType);
+        } finally {
+            sa.destroy();
+        }
+    }
+
+    /**
+     * Copies a SAFEARRAY that belongs to someone else into a Java array.
+     */
+    static Object toArray(Pointer psa, Class<?> arrayType) {
+        return new SafeArray(psa, false).copy(arrayType);
+    }
+
+    /** @return the SAFEARRAY pointer, null once destroyed */
+    public Pointer getPointer() {
+        return psa;
+    }
+
+    public int getDimensions() {
+        return psa.getShort(0);
+    }
+
+    /** @return the size of an element in bytes */
+    public int getElementSize() {
+        return psa.getInt(ELEMENT_SIZE);
+    }
+
+    /** @return the element VARTYPE, or 0 (VT_EMPTY) if the array doesn't record it */
+    public short getVarType() {
+        if ((psa.getShort(FEATURES) & FADF_HAVEVARTYPE) == 0)
+            return 0;
+        return (short) psa.getInt(-4);
+    }
+
+    /** @return the number of elements in the given dimension, counting from the left */
+    public int getLength(int dimension) {
+        return psa.getInt(bound(dimension));
+    }
+
+    public int getLowerBound(int dimension) {
+        return psa.getInt(bound(dimension) + 4);
+    }
+
+    private long bound(int dimension) {
+        int dims = getDimensions();
+        if (dimension < 0 || dimension >= dims)
+            throw new IndexOutOfBoundsException("dimension " + dimension + " of " + dims);
+        return BOUNDS + 8L * (dims - 1 - dimension);
+    }
+
+    /** @return the number of elements in all dimensions */
+    public int getLength() {
+        int dims = getDimensions();
+        long n = 1;
+        for (int i = 0; i < dims; i++)
+            n *= psa.getInt(BOUNDS + 8L * i);
+        return (int) n;
+    }
+
+    /**
+     * Locks the array (SafeArrayLock) and returns its data in place.
+     * {@link #unlock()} must be called when done.
+     */
+    public Pointer lock() {
+        int hr = Natives.oleaut32().SafeArrayLock(psa);
+        if (hr < 0)
+            throw ComException.failed("SafeArrayLock", hr);
+        return psa.getPointer(DATA);
+    }
+
+    /**
+     * Locks the array and returns its data as a direct buffer in native byte
+     * order.  {@link #unlock()} must be called when done, after which the
+     * buffer must not be used.
+     */
+    public ByteBuffer lockBuffer() {
+        long bytes = (long) getLength() * getElementSize();
+        return lock().getByteBuffer(0, bytes).order(ByteOrder.nativeOrder());
+    }
+
+    public void unlock() {
+        int hr = Natives.oleaut32().SafeArrayUnlock(psa);
+        if (hr < 0)
+            throw ComException.failed("SafeArrayUnlock", hr);
+    }
+
+    public byte[] toByteArray() {
+        return (byte[]) copy(byte[].class);
+    }
+
+    public short[] toShortArray() {
+        return (short[]) copy(short[].class);
+    }
+
+    public int[] toIntArray() {
+        return (int[]) copy(int[].class);
+    }
+
+    public long[] toLongArray() {
+        return (long[]) copy(long[].class);
+    }
+
+    public float[] toFloatArray() {
+        return (float[]) copy(float[].class);
+    }
+
+    public double[] toDoubleArray() {
+        return (double[]) copy(double[].class);
+    }
+
+    private Object copy(Class<?> arrayType) {
+        Class<?> c = arrayType.getComponentType();
+        short vt = getVarType();
+        if (vt != 0 ? arrayTypeOf(vt) != arrayType : getElementSize() != Native.getNativeSize(c))
+            throw new UnsupportedOperationException("Can't copy a SAFEARRAY of type 0x" + Integer.toHexString(vt)
+                    + " with " + getElementSize() + " byte elements into a " + c + "[]");
+        int n = getLength();
+        Object array = Array.newInstance(c, n);
+        if (n == 0)
+            return array;
+        Pointer data = lock();
+        try {
+            read(data, array, n);
+        } finally {
+            unlock();
+        }
+        return array;
+    }
+
+    /**
+     * Copies the array, data and all, into one that {@link #destroy()} will
+     * destroy.  For keeping an array passed in by a caller past the call.
+     */
+    public SafeArray copy() {
+        PointerByReference out = new PointerByReference();
+        int hr = Natives.oleaut32().SafeArrayCopy(psa, out);
+        if (hr < 0)
+            throw ComException.failed("SafeArrayCopy", hr);
+        return new SafeArray(out.getValue(), true);
+    }
+
+    /**
+     * Destroys the array, if it was created or taken over here; an array
+     * passed in by a caller is left alone.
+     */
+    public void destroy() {
+        Pointer p = psa;
+        if (p == null || !owned)
+            return;
+        psa = null;
+        int hr = Natives.oleaut32().SafeArrayDestroy(p);
+        if (hr < 0)
+            throw ComException.failed("SafeArrayDestroy", hr);
+    }
+
+    @Override
+    public String toString() {
+        if (psa == null)
+            return "SafeArray[destroyed]";
+        return "SafeArray[vt=0x" + Integer.toHexString(getVarType()) + ", " + getLength() + " elements]";
+    }
+
+    /** @return the VARTYPE of the elements of a primitive array class */
+    static short varTypeOf(Class<?> arrayType) {
+        if (arrayType == byte[].class)
+            return Variant.VT_UI1;
+        if (arrayType == short[].class)
+            return Variant.VT_I2;
+        if (arrayType == int[].class)
+            return Variant.VT_I4;
+        if (arrayType == long[].class)
+            return Variant.VT_I8;
+        if (arrayType == float[].class)
+            return Variant.VT_R4;
+        if (arrayType == double[].class)
+            return Variant.VT_R8;
+        throw new IllegalArgumentException("Can't pass a " + arrayType.getSimpleName() + " as a SAFEARRAY");
+    }
+
+    /** @return the primitive array class for elements of a VARTYPE, null if there is none */
+    static Class<?> arrayTypeOf(short vt) {
+        switch (vt) {
+            case Variant.VT_UI1:
+            case Variant.VT_I1:
+                return byte[].class;
+            case Variant.VT_I2:
+            case Variant.VT_UI2:
+            case Variant.VT_BOOL:
+                return short[].class;
+            case Variant.VT_I4:
+            case Variant.VT_UI4:
+            case Variant.VT_INT:
+            case Variant.VT_UINT:
+            case Variant.VT_ERROR:
+                return int[].class;
+            case Variant.VT_I8:
+            case Variant.VT_UI8:
+            case Variant.VT_CY:
+                return long[].class;
+            case Variant.VT_R4:
+                return float[].class;
+            case Variant.VT_R8:
+            case Variant.VT_DATE:
+                return double[].class;
+            default:
+                return null;
+        }
+    }
+
+    private static int elementSize(short vt) {
+        return Native.getNativeSize(arrayTypeOf(vt).getComponentType());
+    }
+
+    private static void write(Pointer data, Object array, int n) {
+        if (array instanceof double[])
+            data.write(0, (double[]) array, 0, n);
+        else if (array instanceof int[])
+            data.write(0, (int[]) array, 0, n);
+        else if (array instanceof byte[])
+            data.write(0, (byte[]) array, 0, n);
+        else if (array instanceof float[])
+            data.write(0, (float[]) array, 0, n);
+        else if (array instanceof short[])
+            data.write(0, (short[]) array, 0, n);
+        else
+            data.write(0, (long[]) array, 0, n);
+    }
+
+    private static void read(Pointer data, Object array, int n) {
+        if (array instanceof double[])
+            data.read(0, (double[]) array, 0, n);
+        else if (array instanceof int[])
+            data.read(0, (int[]) array, 0, n);
+        else if (array instanceof byte[])
+            data.read(0, (byte[]) array, 0, n);
+        else if (array instanceof float[])
+            data.read(0, (float[]) array, 0, n);
+        else if (array instanceof short[])
+            data.read(0, (short[]) array, 0, n);
+        else
+            data.read(0, (long[]) array, 0, n);
+    }
+}
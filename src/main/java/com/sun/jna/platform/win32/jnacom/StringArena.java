@@ -0,0 +1,170 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per thread native memory for the String arguments of COM calls.
+ *
+ * <p>
+ * Strings are encoded as UTF-16 straight into a block of native memory that
+ * belongs to the calling thread, instead of going through a
+ * {@link com.sun.jna.WString} and a fresh native copy for every call.
+ * Memory is handed out like a stack: a call takes a {@link #mark()} before
+ * encoding its arguments and gives everything back with {@link #reset(long)}
+ * once the native method has returned, so calls made from callbacks during a
+ * call don't disturb it.  A string that doesn't fit gets memory of its own,
+ * and the block is made bigger once the outermost call is done.  Other
+ * argument data with the same lifetime, such as the SAFEARRAYs made for
+ * {@link AsSafeArray} parameters, is allocated here too.
+ *
+ * @author scott.palmer
+ */
+final class StringArena {
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_BLOCK_SIZE = 1 << 20;
+    /** longer strings are encoded through an array that is not kept */
+    static final int MAX_SCRATCH = 8192;
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+
+    private static final ThreadLocal<StringArena> arenas = new ThreadLocal<StringArena>() {
+        @Override
+        protected StringArena initialValue() {
+            return new StringArena();
+        }
+    };
+
+    /** Memory whose address can be used for pointers into it. */
+    private static final class Block extends Memory {
+        Block(long size) {
+            super(size);
+        }
+
+        long address() {
+            return peer;
+        }
+    }
+
+    private Block block = new Block(BLOCK_SIZE);
+    private long top;
+    /** strings that did not fit, kept until the outermost call is done */
+    private List<Memory> overflow;
+    private long needed;
+    // JNA writes char as wchar_t, which is not UTF-16 everywhere
+    short[] units = new short[256];
+
+    private StringArena() {
+    }
+
+    /** Returns the arena of the calling thread. */
+    static StringArena get() {
+        return arenas.get();
+    }
+
+    long mark() {
+        return top;
+    }
+
+    /** Frees everything allocated since the given mark. */
+    void reset(long mark) {
+        top = mark;
+        if (mark == 0 && overflow != null) {
+            overflow = null;
+            long size = block.size();
+            while (size < needed && size < MAX_BLOCK_SIZE)
+                size *= 2;
+            if (size != block.size())
+                block = new Block(size);
+            needed = 0;
+        }
+    }
+
+    /**
+     * Encodes a string as a NUL terminated wide string (LPCWSTR).
+     */
+    Pointer wide(String s) {
+        int n = s.length();
+        Pointer p = allocate(2L * n + 2);
+        write(p, 0, s);
+        return p;
+    }
+
+    /**
+     * Encodes a string as a BSTR: the byte length, the characters and a NUL.
+     * @return a pointer to the first character, as BSTRs are passed
+     */
+    Pointer bstr(String s) {
+        int n = s.length();
+        Pointer p = allocate(4 + 2L * n + 2);
+        p.setInt(0, 2 * n);
+        write(p, 4, s);
+        return p.share(4);
+    }
+
+    private void write(Pointer p, long offset, String s) {
+        int n = s.length();
+        short[] u = units(n + 1);
+        for (int i = 0; i < n; i++)
+            u[i] = (short) s.charAt(i);
+        u[n] = 0;
+        p.write(offset, u, 0, n + 1);
+    }
+
+    /**
+     * Allocates 8 byte aligned memory, which is not zeroed.
+     */
+    Pointer allocate(long size) {
+        long start = (top + 7) & ~7L;
+        if (start + size <= block.size()) {
+            top = start + size;
+            return new Pointer(block.address() + start);
+        }
+        needed = Math.max(needed, start + size);
+        Memory m = new Memory(size);
+        if (overflow == null)
+            overflow = new ArrayList<Memory>();
+        overflow.add(m);
+        return m;
+    }
+
+    private short[] units(int n) {
+        if (units.length >= n)
+            return units;
+        if (n > MAX_SCRATCH)
+            return new short[n];
+        units = new short[Math.min(MAX_SCRATCH, Math.max(n, 2 * units.length))];
+        return units;
+    }
+
+    /**
+     * Decodes a BSTR using its length prefix, reading it in one go.  A null
+     * BSTR is the empty string, as in COM.
+     */
+    static String fromBSTR(Pointer bstr) {
+        if (bstr == null)
+            return "";
+        return new String(bstr.getByteArray(0, bstr.getInt(-4) & ~1), UTF_16LE);
+    }
+
+    /**
+     * Decodes a NUL terminated wide string (LPCWSTR).  A null pointer is null.
+     */
+    static String fromWide(Pointer p) {
+        if (p == null)
+            return null;
+        if (Native.WCHAR_SIZE == 2)
+            return p.getString(0, true);
+        int n = 0;
+        while (p.getShort(2L * n) != 0)
+            n++;
+        return new String(p.getByteArray(0, 2 * n), UTF_16LE);
+    }
+}
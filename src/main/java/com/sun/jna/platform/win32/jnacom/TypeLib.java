@@ -0,0 +1,741 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A type library read from the MSFT binary format that MIDL writes (.tlb
+ * files, and the TYPELIB resources of .dll, .ocx and .exe files), in plain
+ * Java, so it works without LoadTypeLib and off Windows.
+ *
+ * <p>
+ * Only what it takes to generate Java interfaces is read: the types with
+ * their names, GUIDs and documentation, the functions with their vtable
+ * slots, parameters and flags, enum constants, structure fields, aliases
+ * and the interfaces of coclasses.  Types imported from other libraries are
+ * known by GUID only.  The older SLTG format is not supported.
+ *
+ * @author scott.palmer
+ * @see TypeLibGenerator
+ */
+public final class TypeLib {
+
+    /** TYPEKIND */
+    public enum Kind {
+        ENUM, RECORD, MODULE, INTERFACE, DISPATCH, COCLASS, ALIAS, UNION
+    }
+
+    public static final int TYPEFLAG_FHIDDEN = 0x10;
+    public static final int TYPEFLAG_FDUAL = 0x40;
+    public static final int TYPEFLAG_FRESTRICTED = 0x200;
+
+    public static final int INVOKE_FUNC = 1;
+    public static final int INVOKE_PROPERTYGET = 2;
+    public static final int INVOKE_PROPERTYPUT = 4;
+    public static final int INVOKE_PROPERTYPUTREF = 8;
+
+    public static final int FUNC_DISPATCH = 4;
+    public static final int VAR_CONST = 2;
+
+    public static final int PARAMFLAG_FIN = 0x1;
+    public static final int PARAMFLAG_FOUT = 0x2;
+    public static final int PARAMFLAG_FLCID = 0x4;
+    public static final int PARAMFLAG_FRETVAL = 0x8;
+    public static final int PARAMFLAG_FOPT = 0x10;
+
+    public static final int IMPLTYPEFLAG_FDEFAULT = 0x1;
+    public static final int IMPLTYPEFLAG_FSOURCE = 0x2;
+
+    // the VARTYPEs that only appear in TYPEDESCs
+    public static final int VT_VARIANT = 12;
+    public static final int VT_DECIMAL = 14;
+    public static final int VT_VOID = 24;
+    public static final int VT_HRESULT = 25;
+    public static final int VT_PTR = 26;
+    public static final int VT_SAFEARRAY = 27;
+    public static final int VT_CARRAY = 28;
+    public static final int VT_USERDEFINED = 29;
+    public static final int VT_LPSTR = 30;
+    public static final int VT_LPWSTR = 31;
+
+    static final int MAGIC = 0x5446534D; // "MSFT"
+    static final int VERSION = 0x00010002;
+    private static final int HELPDLLFLAG = 0x100;
+    private static final int SYS_WIN64 = 3;
+    private static final int HEADER_SIZE = 0x54;
+    private static final int TYPEINFO_SIZE = 0x64;
+    private static final int IMPINFO_OFFSET_IS_GUID = 0x10000;
+    private static final Charset ANSI = Charset.forName("ISO-8859-1");
+
+    // the segments, in the order of the segment directory
+    private static final int TYPEINFO_TAB = 0, IMP_INFO = 1, IMP_FILES = 2, REF_TAB = 3,
+            GUID_TAB = 5, NAME_TAB = 7, STRING_TAB = 8, TYPEDESC_TAB = 9, ARRAY_DESC = 10,
+            CUST_DATA = 11, SEGMENTS = 15;
+
+    /** A type as used by a parameter, return value, field or alias (TYPEDESC). */
+    public static final class Type {
+        final int vt;
+        /** what a VT_PTR points to, or the element of a VT_SAFEARRAY or VT_CARRAY */
+        final Type target;
+        /** the type of a VT_USERDEFINED defined in this library */
+        final TypeInfo local;
+        /** the GUID of a VT_USERDEFINED imported from another library, if known */
+        final String importedGuid;
+        /** the element counts of a VT_CARRAY */
+        final int[] dimensions;
+
+        Type(int vt, Type target, TypeInfo local, String importedGuid, int[] dimensions) {
+            this.vt = vt;
+            this.target = target;
+            this.local = local;
+            this.importedGuid = importedGuid;
+            this.dimensions = dimensions;
+        }
+
+        public int getVarType() {
+            return vt;
+        }
+
+        public Type getTarget() {
+            return target;
+        }
+
+        /** @return the type a VT_USERDEFINED refers to, null if it is imported */
+        public TypeInfo getTypeInfo() {
+            return local;
+        }
+
+        public String getImportedGuid() {
+            return importedGuid;
+        }
+
+        public int[] getDimensions() {
+            return dimensions;
+        }
+
+        @Override
+        public String toString() {
+            switch (vt) {
+                case VT_PTR:
+                    return target + "*";
+                case VT_SAFEARRAY:
+                    return "SAFEARRAY(" + target + ")";
+                case VT_CARRAY:
+                    StringBuilder b = new StringBuilder(String.valueOf(target));
+                    for (int d : dimensions)
+                        b.append('[').append(d).append(']');
+                    return b.toString();
+                case VT_USERDEFINED:
+                    return local != null ? local.name : "imported " + importedGuid;
+                default:
+                    return "VT " + vt;
+            }
+        }
+    }
+
+    /** A type defined in the library (ITypeInfo). */
+    public static final class TypeInfo {
+        final Kind kind;
+        final String name;
+        final String guid;
+        final String doc;
+        final int flags;
+        final int size;
+        final int alignment;
+        /** the number of vtable slots, inherited ones included */
+        final int vtableSlots;
+        final List<Function> functions = new ArrayList<Function>();
+        final List<Variable> variables = new ArrayList<Variable>();
+        /** the base interface, the interfaces of a coclass, or the aliased type */
+        final List<Type> implTypes = new ArrayList<Type>();
+        final List<Integer> implFlags = new ArrayList<Integer>();
+
+        TypeInfo(Kind kind, String name, String guid, String doc, int flags, int size, int alignment, int vtableSlots) {
+            this.kind = kind;
+            this.name = name;
+            this.guid = guid;
+            this.doc = doc;
+            this.flags = flags;
+            this.size = size;
+            this.alignment = alignment;
+            this.vtableSlots = vtableSlots;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** @return the GUID in registry format, null if it has none */
+        public String getGuid() {
+            return guid;
+        }
+
+        public String getDoc() {
+            return doc;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        /** @return the size of a record, in bytes */
+        public int getSize() {
+            return size;
+        }
+
+        public int getVtableSlots() {
+            return vtableSlots;
+        }
+
+        public List<Function> getFunctions() {
+            return Collections.unmodifiableList(functions);
+        }
+
+        public List<Variable> getVariables() {
+            return Collections.unmodifiableList(variables);
+        }
+
+        /** @return the base interface, or the interfaces of a coclass */
+        public List<Type> getImplTypes() {
+            return Collections.unmodifiableList(implTypes);
+        }
+
+        /** @return the IMPLTYPEFLAGs of an entry of {@link #getImplTypes()} */
+        public int getImplTypeFlags(int index) {
+            return implFlags.get(index);
+        }
+
+        /** @return the type an alias stands for */
+        public Type getAliasedType() {
+            return kind == Kind.ALIAS && !implTypes.isEmpty() ? implTypes.get(0) : null;
+        }
+
+        public boolean isDual() {
+            return (flags & TYPEFLAG_FDUAL) != 0;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + name;
+        }
+    }
+
+    /** A method or property accessor (FUNCDESC). */
+    public static final class Function {
+        final String name;
+        final int memberId;
+        final int funcKind;
+        final int invokeKind;
+        final int vtableIndex;
+        final int flags;
+        final Type returnType;
+        final List<Param> params;
+        final String doc;
+
+        Function(String name, int memberId, int funcKind, int invokeKind, int vtableIndex, int flags,
+                Type returnType, List<Param> params, String doc) {
+            this.name = name;
+            this.memberId = memberId;
+            this.funcKind = funcKind;
+            this.invokeKind = invokeKind;
+            this.vtableIndex = vtableIndex;
+            this.flags = flags;
+            this.returnType = returnType;
+            this.params = params;
+            this.doc = doc;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** @return the DISPID */
+        public int getMemberId() {
+            return memberId;
+        }
+
+        public int getFuncKind() {
+            return funcKind;
+        }
+
+        public int getInvokeKind() {
+            return invokeKind;
+        }
+
+        /** @return the vtable slot, the VTID */
+        public int getVtableIndex() {
+            return vtableIndex;
+        }
+
+        public Type getReturnType() {
+            return returnType;
+        }
+
+        public List<Param> getParams() {
+            return Collections.unmodifiableList(params);
+        }
+
+        public String getDoc() {
+            return doc;
+        }
+
+        @Override
+        public String toString() {
+            return name + params;
+        }
+    }
+
+    public static final class Param {
+        final String name;
+        final Type type;
+        final int flags;
+
+        Param(String name, Type type, int flags) {
+            this.name = name;
+            this.type = type;
+            this.flags = flags;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /** @return the PARAMFLAGs */
+        public int getFlags() {
+            return flags;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + name;
+        }
+    }
+
+    /** An enum constant, a field or a dispatch property (VARDESC). */
+    public static final class Variable {
+        final String name;
+        final int memberId;
+        final int varKind;
+        final Type type;
+        /** the value of a constant */
+        final Object value;
+        /** the offset of a field */
+        final int offset;
+        final String doc;
+
+        Variable(String name, int memberId, int varKind, Type type, Object value, int offset, String doc) {
+            this.name = name;
+            this.memberId = memberId;
+            this.varKind = varKind;
+            this.type = type;
+            this.value = value;
+            this.offset = offset;
+            this.doc = doc;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMemberId() {
+            return memberId;
+        }
+
+        public int getVarKind() {
+            return varKind;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /** @return the value of a constant: an Integer, Long, Short, Byte, Float, Double, Boolean or String */
+        public Object getValue() {
+            return value;
+        }
+
+        /** @return the offset of a structure field, in bytes */
+        public int getOffset() {
+            return offset;
+        }
+
+        public String getDoc() {
+            return doc;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + name + (value != null ? " = " + value : "");
+        }
+    }
+
+    private final ByteBuffer buf;
+    private final int[] segments = new int[SEGMENTS];
+    private final int pointerSize;
+    private final Map<Integer, Type> typeDescs = new HashMap<Integer, Type>();
+    private final List<TypeInfo> types = new ArrayList<TypeInfo>();
+    private final String name;
+    private final String guid;
+    private final String doc;
+    private final int majorVersion;
+    private final int minorVersion;
+
+    private TypeLib(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+            throw new IOException("Not an MSFT type library");
+        int varflags = buf.getInt(20);
+        pointerSize = (varflags & 0xF) == SYS_WIN64 ? 8 : 4;
+        int version = buf.getInt(24);
+        majorVersion = version & 0xFFFF;
+        minorVersion = version >>> 16;
+        int count = buf.getInt(32);
+        int dir = HEADER_SIZE + ((varflags & HELPDLLFLAG) != 0 ? 4 : 0) + 4 * count;
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = buf.getInt(dir + 16 * i);
+        guid = guid(buf.getInt(8));
+        doc = string(buf.getInt(36));
+        name = name(buf.getInt(56));
+
+        // all types first, so references between them can be resolved
+        for (int i = 0; i < count; i++) {
+            int p = segments[TYPEINFO_TAB] + i * TYPEINFO_SIZE;
+            int typekind = buf.getInt(p);
+            Kind kind = Kind.values()[typekind & 0xF];
+            int ptrs = buf.getShort(p + 0x4E) & 0xFFFF;
+            types.add(new TypeInfo(kind, name(buf.getInt(p + 0x34)), guid(buf.getInt(p + 0x2C)),
+                    string(buf.getInt(p + 0x3C)), buf.getInt(p + 0x30), buf.getInt(p + 0x50),
+                    (typekind >> 11) & 0x1F, ptrs / pointerSize));
+        }
+        for (int i = 0; i < count; i++)
+            readMembers(types.get(i), segments[TYPEINFO_TAB] + i * TYPEINFO_SIZE);
+    }
+
+    /**
+     * Reads a type library from a .tlb file, or the first one embedded in a
+     * .dll, .ocx or .exe.
+     */
+    public static TypeLib read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } catch (IOException ex) {
+            throw new IOException(file + ": " + ex.getMessage(), ex);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static TypeLib read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[8192];
+        for (int n; (n = in.read(b)) > 0; )
+            out.write(b, 0, n);
+        return read(out.toByteArray());
+    }
+
+    public static TypeLib read(byte[] data) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int start = 0;
+        if (data.length >= 2 && data[0] == 'M' && data[1] == 'Z') {
+            // a PE file: look for the resource
+            start = -1;
+            for (int i = 0; i + 8 <= data.length; i += 4) {
+                if (b.getInt(i) == MAGIC && b.getInt(i + 4) == VERSION) {
+                    start = i;
+                    break;
+                }
+            }
+            if (start < 0)
+                throw new IOException("No MSFT type library found");
+        }
+        b.position(start);
+        return new TypeLib(b.slice().order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getGuid() {
+        return guid;
+    }
+
+    public String getDoc() {
+        return doc;
+    }
+
+    public int getMajorVersion() {
+        return majorVersion;
+    }
+
+    public int getMinorVersion() {
+        return minorVersion;
+    }
+
+    /** @return 8 for a 64 bit library, else 4 */
+    public int getPointerSize() {
+        return pointerSize;
+    }
+
+    public List<TypeInfo> getTypes() {
+        return Collections.unmodifiableList(types);
+    }
+
+    /** @return the type of the given name, null if there is none */
+    public TypeInfo getType(String name) {
+        for (TypeInfo t : types) {
+            if (t.name.equals(name))
+                return t;
+        }
+        return null;
+    }
+
+    private void readMembers(TypeInfo t, int p) {
+        int memoffset = buf.getInt(p + 4);
+        int elements = buf.getInt(p + 0x18);
+        int funcs = elements & 0xFFFF;
+        int vars = elements >>> 16;
+        int implTypes = buf.getShort(p + 0x4C);
+        int datatype1 = buf.getInt(p + 0x54);
+
+        switch (t.kind) {
+            case COCLASS:
+                for (int i = 0, ref = datatype1; i < implTypes && ref >= 0; i++) {
+                    int r = segments[REF_TAB] + ref;
+                    t.implTypes.add(reference(buf.getInt(r)));
+                    t.implFlags.add(buf.getInt(r + 4));
+                    ref = buf.getInt(r + 12);
+                }
+                break;
+            case ALIAS:
+                t.implTypes.add(type(datatype1));
+                t.implFlags.add(0);
+                break;
+            case INTERFACE:
+            case DISPATCH:
+                if (datatype1 != -1) {
+                    t.implTypes.add(reference(datatype1));
+                    t.implFlags.add(0);
+                }
+                break;
+            default:
+                break;
+        }
+        if (funcs + vars == 0)
+            return;
+
+        int infolen = buf.getInt(memoffset);
+        // after the records: the member IDs, the names and the record offsets
+        int ids = memoffset + 4 + infolen;
+        int names = ids + 4 * (funcs + vars);
+        int offsets = names + 4 * (funcs + vars);
+        int rec = memoffset + 4;
+        Function previous = null;
+        for (int i = 0; i < funcs; i++) {
+            int length = buf.getShort(rec) & 0xFFFF;
+            int fkccic = buf.getInt(rec + 16);
+            int nargs = buf.getShort(rec + 20);
+            int optional = length - 12 * nargs - ((fkccic & 0x1000) != 0 ? 4 * nargs : 0);
+            int invkind = (fkccic >> 3) & 0xF;
+            int nameOffset = buf.getInt(names + 4 * i);
+            String fname;
+            if (nameOffset == -1 && previous != null && isProperty(previous.invokeKind) && isProperty(invkind))
+                fname = previous.name; // the second of a get/put pair may have no name of its own
+            else
+                fname = name(nameOffset);
+            List<Param> params = new ArrayList<Param>(nargs);
+            for (int j = 0; j < nargs; j++) {
+                int q = rec + length - 12 * (nargs - j);
+                String pname = name(buf.getInt(q + 4));
+                params.add(new Param(pname != null ? pname : "arg" + j, type(buf.getInt(q)), buf.getInt(q + 8)));
+            }
+            String fdoc = optional > 28 ? string(buf.getInt(rec + 28)) : null;
+            int vtable = (buf.getShort(rec + 12) & ~1) / pointerSize;
+            previous = new Function(fname, buf.getInt(ids + 4 * i), fkccic & 0x7, invkind, vtable,
+                    buf.getInt(rec + 8) & 0xFFFF, type(buf.getInt(rec + 4)), params, fdoc);
+            t.functions.add(previous);
+            rec += length;
+        }
+        if (vars == 0)
+            return;
+        rec = memoffset + 4 + buf.getInt(offsets + 4 * funcs);
+        for (int i = 0; i < vars; i++) {
+            int length = buf.getShort(rec) & 0xFF;
+            int varkind = buf.getShort(rec + 12);
+            int value = buf.getInt(rec + 16);
+            Type type = type(buf.getInt(rec + 4));
+            String vdoc = length > 24 ? string(buf.getInt(rec + 24)) : null;
+            t.variables.add(new Variable(name(buf.getInt(names + 4 * (funcs + i))), buf.getInt(ids + 4 * (funcs + i)),
+                    varkind, type, varkind == VAR_CONST ? value(value) : null,
+                    varkind == VAR_CONST ? 0 : value, vdoc));
+            rec += length;
+        }
+    }
+
+    private static boolean isProperty(int invkind) {
+        return (invkind & (INVOKE_PROPERTYGET | INVOKE_PROPERTYPUT | INVOKE_PROPERTYPUTREF)) != 0;
+    }
+
+    /**
+     * A TYPEDESC: a VARTYPE itself if negative, otherwise the offset of an
+     * entry in the type description table.
+     */
+    private Type type(int t) {
+        if (t < 0)
+            return new Type(t & 0xFFF, null, null, null, null);
+        Type type = typeDescs.get(t);
+        if (type != null)
+            return type;
+        int p = segments[TYPEDESC_TAB] + t;
+        int vt = buf.getShort(p) & 0xFFF;
+        int ref = buf.getInt(p + 4);
+        switch (vt) {
+            case VT_PTR:
+            case VT_SAFEARRAY:
+                type = new Type(vt, type(ref), null, null, null);
+                break;
+            case VT_CARRAY:
+                int a = segments[ARRAY_DESC] + ref;
+                int dims = buf.getShort(a + 4);
+                int[] counts = new int[dims];
+                for (int d = 0; d < dims; d++)
+                    counts[d] = buf.getInt(a + 8 + 8 * d);
+                type = new Type(vt, type(buf.getInt(a)), null, null, counts);
+                break;
+            case VT_USERDEFINED:
+                type = reference(ref);
+                break;
+            default:
+                type = new Type(vt, null, null, null, null);
+                break;
+        }
+        typeDescs.put(t, type);
+        return type;
+    }
+
+    /** A type by its HREFTYPE: a type of this library, or an imported one. */
+    private Type reference(int href) {
+        if ((href & 3) == 0)
+            return new Type(VT_USERDEFINED, null, types.get(href / TYPEINFO_SIZE), null, null);
+        int p = segments[IMP_INFO] + (href & ~3);
+        int flags = buf.getInt(p);
+        String g = (flags & IMPINFO_OFFSET_IS_GUID) != 0 ? guid(buf.getInt(p + 8)) : null;
+        return new Type(VT_USERDEFINED, null, null, g, null);
+    }
+
+    private String name(int offset) {
+        if (offset < 0)
+            return null;
+        int p = segments[NAME_TAB] + offset;
+        return ansi(p + 12, buf.get(p + 8) & 0xFF);
+    }
+
+    private String string(int offset) {
+        if (offset < 0)
+            return null;
+        int p = segments[STRING_TAB] + offset;
+        return ansi(p + 2, buf.getShort(p) & 0xFFFF);
+    }
+
+    private String ansi(int p, int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++)
+            b[i] = buf.get(p + i);
+        return new String(b, ANSI);
+    }
+
+    private String guid(int offset) {
+        if (offset < 0)
+            return null;
+        int p = segments[GUID_TAB] + offset;
+        StringBuilder s = new StringBuilder(38).append('{');
+        hex(s, buf.getInt(p), 8).append('-');
+        hex(s, buf.getShort(p + 4) & 0xFFFF, 4).append('-');
+        hex(s, buf.getShort(p + 6) & 0xFFFF, 4).append('-');
+        for (int i = 0; i < 8; i++) {
+            if (i == 2)
+                s.append('-');
+            hex(s, buf.get(p + 8 + i) & 0xFF, 2);
+        }
+        return s.append('}').toString();
+    }
+
+    private static StringBuilder hex(StringBuilder s, long v, int digits) {
+        for (int i = digits - 1; i >= 0; i--)
+            s.append(Character.toUpperCase(Character.forDigit((int) (v >>> (4 * i)) & 0xF, 16)));
+        return s;
+    }
+
+    /**
+     * The value of a constant: packed into the offset itself if negative,
+     * otherwise a VARTYPE and the value in the custom data segment.
+     */
+    private Object value(int offset) {
+        if (offset < 0) {
+            int vt = (offset & 0x7C000000) >> 26;
+            return constant(vt, offset & 0x3FFFFFF);
+        }
+        int p = segments[CUST_DATA] + offset;
+        int vt = buf.getShort(p);
+        switch (vt) {
+            case Variant.VT_R8:
+            case Variant.VT_DATE:
+                return buf.getDouble(p + 2);
+            case Variant.VT_I8:
+            case Variant.VT_UI8:
+            case Variant.VT_CY:
+                return buf.getLong(p + 2);
+            case Variant.VT_R4:
+                return buf.getFloat(p + 2);
+            case Variant.VT_BSTR:
+                int length = buf.getInt(p + 2);
+                return length < 0 ? null : ansi(p + 6, length);
+            default:
+                return constant(vt, buf.getInt(p + 2));
+        }
+    }
+
+    private static Object constant(int vt, int value) {
+        switch (vt) {
+            case Variant.VT_I2:
+            case Variant.VT_UI2:
+                return (short) value;
+            case Variant.VT_I1:
+            case Variant.VT_UI1:
+                return (byte) value;
+            case Variant.VT_BOOL:
+                return (short) value != 0;
+            default:
+                return value;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TypeLib[" + name + " " + guid + " " + majorVersion + "." + minorVersion + ", " + types.size() + " types]";
+    }
+}
@@ -0,0 +1,757 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.platform.win32.jnacom.TypeLib.Function;
+import com.sun.jna.platform.win32.jnacom.TypeLib.Kind;
+import com.sun.jna.platform.win32.jnacom.TypeLib.Param;
+import com.sun.jna.platform.win32.jnacom.TypeLib.Type;
+import com.sun.jna.platform.win32.jnacom.TypeLib.TypeInfo;
+import com.sun.jna.platform.win32.jnacom.TypeLib.Variable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Writes Java sources for the types of a {@link TypeLib}: an {@link IID}
+ * annotated interface for each interface and dual dispinterface, a
+ * {@link ComEnum} enum for each enum, a Structure (or Union) for each record
+ * and a class with the CLSID and a <tt>create()</tt> method for each
+ * coclass.
+ *
+ * <p>
+ * Each interface also gets a <tt>COM_METHODS</tt> table with what its
+ * annotations say (see {@link MethodTable}), so {@link ComObject} never has
+ * to read them.  Aliases are replaced by what they stand for.  Modules and
+ * dispinterfaces that aren't dual are not generated (call the latter through
+ * {@link Dispatch}), nor are methods with arguments that can't be passed,
+ * such as VARIANTs by value; {@link #getSkipped()} tells what was left out.
+ *
+ * <p>
+ * It can be run as <tt>java ... TypeLibGenerator library.tlb
+ * com.example.office target/generated-sources</tt>, or from Maven with the
+ * com4jna-maven-plugin.
+ *
+ * @author scott.palmer
+ */
+public final class TypeLibGenerator {
+
+    private static final String IID_IUNKNOWN = "{00000000-0000-0000-C000-000000000046}";
+    private static final String IID_IDISPATCH = "{00020400-0000-0000-C000-000000000046}";
+    private static final String JNACOM = "com.sun.jna.platform.win32.jnacom.";
+    private static final String JNA = "com.sun.jna.";
+    private static final String POINTER = JNA + "Pointer";
+    private static final String POINTER_REF = JNA + "ptr.PointerByReference";
+    private static final String STRING = "java.lang.String";
+
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+            "continue", "default", "do", "double", "else", "enum", "extends", "false", "final", "finally",
+            "float", "for", "goto", "if", "implements", "import", "instanceof", "int", "interface", "long",
+            "native", "new", "null", "package", "private", "protected", "public", "return", "short",
+            "static", "strictfp", "super", "switch", "synchronized", "this", "throw", "throws", "transient",
+            "true", "try", "void", "volatile", "while", "_"));
+    /** names that mean something else to ComObject, or clash with Object */
+    private static final Set<String> RESERVED = new HashSet<String>(Arrays.asList(
+            "queryInterface", "dispose", "addRef", "release", "toString", "hashCode", "equals",
+            "getClass", "notify", "notifyAll", "wait", "clone", "finalize", MethodTable.FIELD));
+
+    /** A Java type in generated code: a primitive or class name, or an array of one. */
+    private static final class JType {
+        final String name;
+        final boolean array;
+        final boolean bstr;
+        final boolean asSafeArray;
+
+        JType(String name, boolean array, boolean bstr, boolean asSafeArray) {
+            this.name = name;
+            this.array = array;
+            this.bstr = bstr;
+            this.asSafeArray = asSafeArray;
+        }
+
+        JType(String name) {
+            this(name, false, false, false);
+        }
+
+        boolean isVoid() {
+            return name.equals("void");
+        }
+    }
+
+    /** A source file being written: its imports and body. */
+    private final class Source {
+        final String name;
+        final Set<String> imports = new TreeSet<String>();
+        final StringBuilder body = new StringBuilder();
+
+        Source(String name) {
+            this.name = name;
+        }
+
+        /** The name to use for a class in this file, importing it if need be. */
+        String use(String type) {
+            int dot = type.lastIndexOf('.');
+            if (dot < 0)
+                return type;
+            String simple = type.substring(dot + 1);
+            String pkg = type.substring(0, dot);
+            if (pkg.equals(packageName) || pkg.equals("java.lang"))
+                return simple;
+            if (classNames.containsValue(simple))
+                return type;
+            imports.add(type);
+            return simple;
+        }
+
+        String use(JType t) {
+            return use(t.name) + (t.array ? "[]" : "");
+        }
+
+        Source line(String s) {
+            body.append(s).append('\n');
+            return this;
+        }
+
+        String text() {
+            StringBuilder b = new StringBuilder();
+            b.append("/*\n * Generated from the ").append(lib.getName()).append(' ')
+                    .append(lib.getMajorVersion()).append('.').append(lib.getMinorVersion())
+                    .append(" type library.  Don't edit.\n */\n\n");
+            if (packageName.length() > 0)
+                b.append("package ").append(packageName).append(";\n\n");
+            for (String i : imports)
+                b.append("import ").append(i).append(";\n");
+            if (!imports.isEmpty())
+                b.append('\n');
+            return b.append(body).toString();
+        }
+    }
+
+    private final TypeLib lib;
+    private final String packageName;
+    /** the class generated for each type, null for types that aren't generated */
+    private final Map<TypeInfo, String> classNames = new LinkedHashMap<TypeInfo, String>();
+    private final List<String> skipped = new ArrayList<String>();
+
+    public TypeLibGenerator(TypeLib lib, String packageName) {
+        this.lib = lib;
+        this.packageName = packageName;
+        Set<String> taken = new HashSet<String>();
+        for (TypeInfo t : lib.getTypes()) {
+            if (!isGenerated(t))
+                continue;
+            String name = identifier(t.name);
+            name = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            while (!taken.add(name.toLowerCase()))
+                name = name + "_";
+            classNames.put(t, name);
+        }
+        // records with fields Java can't lay out aren't generated, nor are those that embed them
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (TypeInfo t : new ArrayList<TypeInfo>(classNames.keySet())) {
+                if ((t.kind == Kind.RECORD || t.kind == Kind.UNION) && !canLayOut(t)) {
+                    classNames.remove(t);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private boolean canLayOut(TypeInfo t) {
+        Source s = new Source(classNames.get(t));
+        for (Variable v : t.variables) {
+            if (field(s, v.type, "f") == null) {
+                skipped.add(t.name + ": field " + v.name + " is a " + v.type);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isGenerated(TypeInfo t) {
+        if (IID_IUNKNOWN.equals(t.guid) || IID_IDISPATCH.equals(t.guid))
+            return false;
+        switch (t.kind) {
+            case ENUM:
+            case RECORD:
+            case UNION:
+            case INTERFACE:
+            case COCLASS:
+                return true;
+            case DISPATCH:
+                if (t.isDual())
+                    return true;
+                skipped.add(t.name + ": a dispinterface that isn't dual");
+                return false;
+            case MODULE:
+                skipped.add(t.name + ": a module");
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /** @return what was not generated, and why */
+    public List<String> getSkipped() {
+        return skipped;
+    }
+
+    /** @return the sources by class name */
+    public Map<String, String> generate() {
+        Map<String, String> sources = new LinkedHashMap<String, String>();
+        for (Map.Entry<TypeInfo, String> e : classNames.entrySet()) {
+            TypeInfo t = e.getKey();
+            Source s = new Source(e.getValue());
+            switch (t.kind) {
+                case ENUM:
+                    enumSource(s, t);
+                    break;
+                case RECORD:
+                case UNION:
+                    structureSource(s, t);
+                    break;
+                case COCLASS:
+                    coclassSource(s, t);
+                    break;
+                default:
+                    interfaceSource(s, t);
+                    break;
+            }
+            sources.put(qualified(s.name), s.text());
+        }
+        return sources;
+    }
+
+    /**
+     * Writes the sources below the given directory, in the directories of
+     * their package.
+     * @return the files written
+     */
+    public List<File> write(File dir) throws IOException {
+        List<File> files = new ArrayList<File>();
+        for (Map.Entry<String, String> e : generate().entrySet()) {
+            File f = new File(dir, e.getKey().replace('.', File.separatorChar) + ".java");
+            File parent = f.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs())
+                throw new IOException("Can't create " + parent);
+            Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+            try {
+                w.write(e.getValue());
+            } finally {
+                w.close();
+            }
+            files.add(f);
+        }
+        return files;
+    }
+
+    private String qualified(String simple) {
+        return packageName.length() > 0 ? packageName + "." + simple : simple;
+    }
+
+    private void enumSource(Source s, TypeInfo t) {
+        doc(s, "", t.doc);
+        s.line("public enum " + s.name + " implements " + s.use(JNACOM + "ComEnum") + " {");
+        Set<String> names = new HashSet<String>();
+        List<Variable> vars = t.variables;
+        for (int i = 0; i < vars.size(); i++) {
+            Variable v = vars.get(i);
+            String name = unique(names, identifier(v.name));
+            int value = v.value instanceof Number ? ((Number) v.value).intValue() : 0;
+            doc(s, "    ", v.doc);
+            s.line("    " + name + "(" + value + ")" + (i + 1 < vars.size() ? "," : ";"));
+        }
+        if (vars.isEmpty())
+            s.line("    ;");
+        s.line("");
+        s.line("    private final int value;");
+        s.line("");
+        s.line("    private " + s.name + "(int value) {");
+        s.line("        this.value = value;");
+        s.line("    }");
+        s.line("");
+        s.line("    public int comEnumValue() {");
+        s.line("        return value;");
+        s.line("    }");
+        s.line("}");
+    }
+
+    private void structureSource(Source s, TypeInfo t) {
+        doc(s, "", t.doc);
+        s.line("public class " + s.name + " extends "
+                + s.use(JNA + (t.kind == Kind.UNION ? "Union" : "Structure")) + " {");
+        Set<String> names = new HashSet<String>();
+        for (Variable v : t.variables)
+            s.line("    public " + field(s, v.type, unique(names, identifier(v.name))) + ";");
+        s.line("}");
+    }
+
+    /** A field declaration, null if the type has no Java equivalent. */
+    private String field(Source s, Type type, String name) {
+        type = resolve(type);
+        if (type.vt == TypeLib.VT_CARRAY) {
+            int n = 1;
+            for (int d : type.dimensions)
+                n *= d;
+            Type element = resolve(type.target);
+            String struct = structureOf(element);
+            if (struct != null) {
+                String c = s.use(struct);
+                return c + "[] " + name + " = (" + c + "[]) new " + c + "().toArray(" + n + ")";
+            }
+            String p = primitive(element.vt, true);
+            return p != null ? p + "[] " + name + " = new " + p + "[" + n + "]" : null;
+        }
+        String p = primitive(type.vt, true);
+        if (p != null)
+            return p + " " + name;
+        switch (type.vt) {
+            case TypeLib.VT_PTR:
+            case Variant.VT_BSTR:
+            case Variant.VT_UNKNOWN:
+            case Variant.VT_DISPATCH:
+            case TypeLib.VT_SAFEARRAY:
+            case TypeLib.VT_LPSTR:
+            case TypeLib.VT_LPWSTR:
+                return s.use(POINTER) + " " + name;
+            case TypeLib.VT_USERDEFINED:
+                if (type.local != null && type.local.kind == Kind.ENUM)
+                    return "int " + name;
+                String struct = structureOf(type);
+                return struct != null ? s.use(struct) + " " + name : null;
+            default:
+                return null;
+        }
+    }
+
+    private void coclassSource(Source s, TypeInfo t) {
+        String intf = null;
+        for (int i = 0; i < t.implTypes.size() && intf == null; i++) {
+            if ((t.implFlags.get(i) & (TypeLib.IMPLTYPEFLAG_FDEFAULT | TypeLib.IMPLTYPEFLAG_FSOURCE))
+                    == TypeLib.IMPLTYPEFLAG_FDEFAULT)
+                intf = interfaceOf(t.implTypes.get(i));
+        }
+        for (int i = 0; i < t.implTypes.size() && intf == null; i++) {
+            if ((t.implFlags.get(i) & TypeLib.IMPLTYPEFLAG_FSOURCE) == 0)
+                intf = interfaceOf(t.implTypes.get(i));
+        }
+        if (intf == null)
+            intf = JNACOM + "IUnknown";
+        String i = s.use(intf);
+        doc(s, "", t.doc);
+        s.line("public final class " + s.name + " {");
+        s.line("");
+        s.line("    public static final String CLSID = \"" + t.guid + "\";");
+        s.line("");
+        s.line("    private " + s.name + "() {");
+        s.line("    }");
+        s.line("");
+        s.line("    /**");
+        s.line("     * Creates an instance, as its default interface.");
+        s.line("     */");
+        s.line("    public static " + i + " create() {");
+        s.line("        return " + s.use(JNACOM + "ComObject") + ".createInstance(" + i + ".class, CLSID);");
+        s.line("    }");
+        s.line("}");
+    }
+
+    private void interfaceSource(Source s, TypeInfo t) {
+        String base = JNACOM + "IUnknown";
+        if (!t.implTypes.isEmpty()) {
+            String b = interfaceOf(t.implTypes.get(0));
+            if (b != null)
+                base = b;
+        }
+        List<String> table = new ArrayList<String>();
+        StringBuilder methods = new StringBuilder();
+        Set<String> keys = new HashSet<String>();
+        for (Function f : t.functions) {
+            if (f.funcKind == TypeLib.FUNC_DISPATCH)
+                continue;
+            method(s, t, f, keys, table, methods);
+        }
+
+        doc(s, "", t.doc);
+        s.line("@" + s.use(JNACOM + "IID") + "(\"" + t.guid + "\")");
+        s.line("public interface " + s.name + " extends " + s.use(base) + " {");
+        if (!table.isEmpty()) {
+            s.line("");
+            s.line("    /** the annotations below, precomputed */");
+            s.line("    String[] " + MethodTable.FIELD + " = {");
+            for (int i = 0; i < table.size(); i++)
+                s.line("        \"" + table.get(i) + "\"" + (i + 1 < table.size() ? "," : ""));
+            s.line("    };");
+        }
+        s.body.append(methods);
+        s.line("}");
+    }
+
+    private void method(Source s, TypeInfo t, Function f, Set<String> keys, List<String> table, StringBuilder out) {
+        List<Param> params = new ArrayList<Param>(f.params);
+        Type rt = resolve(f.returnType);
+        boolean noHResult = rt.vt != TypeLib.VT_HRESULT;
+        JType ret;
+        if (noHResult) {
+            ret = nativeReturn(rt);
+        } else {
+            ret = new JType("void");
+            Param last = params.isEmpty() ? null : params.get(params.size() - 1);
+            if (last != null && (last.flags & TypeLib.PARAMFLAG_FRETVAL) != 0) {
+                JType r = retval(last.type);
+                if (r != null) {
+                    ret = r;
+                    params.remove(params.size() - 1);
+                }
+            }
+        }
+        if (ret == null) {
+            skipped.add(t.name + "." + f.name + ": returns a " + f.returnType);
+            return;
+        }
+        List<JType> types = new ArrayList<JType>();
+        for (Param p : params) {
+            JType j = param(p.type);
+            if (j == null) {
+                skipped.add(t.name + "." + f.name + ": " + p.name + " is a " + p.type);
+                return;
+            }
+            types.add(j);
+        }
+
+        String name = methodName(f);
+        StringBuilder key = new StringBuilder();
+        for (JType j : types)
+            descriptor(key, j);
+        while (!keys.add(name + "(" + key + ")"))
+            name = name + "_";
+        StringBuilder entry = new StringBuilder(name).append('(').append(key).append(") ").append(f.vtableIndex);
+        if (noHResult)
+            entry.append(" n");
+        for (int i = 0; i < types.size(); i++) {
+            if (types.get(i).bstr)
+                entry.append(" b").append(i);
+            if (types.get(i).asSafeArray)
+                entry.append(" a").append(i);
+        }
+        table.add(entry.toString());
+
+        out.append('\n');
+        int start = s.body.length();
+        doc(s, "    ", f.doc);
+        s.line("    @" + s.use(JNACOM + "VTID") + "(" + f.vtableIndex + ")");
+        if (noHResult)
+            s.line("    @" + s.use(JNACOM + "NoHResult"));
+        StringBuilder sig = new StringBuilder("    ").append(s.use(ret)).append(' ').append(name).append('(');
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < types.size(); i++) {
+            JType j = types.get(i);
+            if (i > 0)
+                sig.append(", ");
+            if (j.bstr)
+                sig.append('@').append(s.use(JNACOM + "BSTR")).append(' ');
+            if (j.asSafeArray)
+                sig.append('@').append(s.use(JNACOM + "AsSafeArray")).append(' ');
+            sig.append(s.use(j)).append(' ').append(unique(names, identifier(params.get(i).name)));
+        }
+        s.line(sig.append(");").toString());
+        // the methods go after the table, which isn't complete yet
+        out.append(s.body, start, s.body.length());
+        s.body.setLength(start);
+    }
+
+    private static String methodName(Function f) {
+        String name = identifier(f.name);
+        String cap = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        switch (f.invokeKind) {
+            case TypeLib.INVOKE_PROPERTYGET:
+                name = "get" + cap;
+                break;
+            case TypeLib.INVOKE_PROPERTYPUT:
+                name = "set" + cap;
+                break;
+            case TypeLib.INVOKE_PROPERTYPUTREF:
+                name = "setRef" + cap;
+                break;
+            default:
+                name = Character.toLowerCase(name.charAt(0)) + name.substring(1);
+                break;
+        }
+        if (KEYWORDS.contains(name) || RESERVED.contains(name))
+            name = name + "_";
+        return name;
+    }
+
+    private static void descriptor(StringBuilder b, JType j) {
+        if (j.array)
+            b.append('[');
+        String n = j.name;
+        if (n.equals("int"))
+            b.append('I');
+        else if (n.equals("long"))
+            b.append('J');
+        else if (n.equals("short"))
+            b.append('S');
+        else if (n.equals("byte"))
+            b.append('B');
+        else if (n.equals("boolean"))
+            b.append('Z');
+        else if (n.equals("float"))
+            b.append('F');
+        else if (n.equals("double"))
+            b.append('D');
+        else
+            b.append('L').append(n.replace('.', '/')).append(';');
+    }
+
+    /** Follows aliases to the type they stand for. */
+    private static Type resolve(Type t) {
+        while (t.vt == TypeLib.VT_USERDEFINED && t.local != null && t.local.kind == Kind.ALIAS)
+            t = t.local.getAliasedType();
+        return t;
+    }
+
+    /**
+     * The Java type of a scalar VARTYPE, or null.  In structures a
+     * VARIANT_BOOL is the short it is.
+     */
+    private static String primitive(int vt, boolean inStructure) {
+        switch (vt) {
+            case Variant.VT_I1:
+            case Variant.VT_UI1:
+                return "byte";
+            case Variant.VT_I2:
+            case Variant.VT_UI2:
+                return "short";
+            case Variant.VT_I4:
+            case Variant.VT_UI4:
+            case Variant.VT_INT:
+            case Variant.VT_UINT:
+            case Variant.VT_ERROR:
+            case TypeLib.VT_HRESULT:
+                return "int";
+            case Variant.VT_I8:
+            case Variant.VT_UI8:
+            case Variant.VT_CY:
+                return "long";
+            case Variant.VT_R4:
+                return "float";
+            case Variant.VT_R8:
+            case Variant.VT_DATE:
+                return "double";
+            case Variant.VT_BOOL:
+                return inStructure ? "short" : "boolean";
+            default:
+                return null;
+        }
+    }
+
+    /** The class for a pointer to a scalar VARTYPE, or null. */
+    private static String byReference(int vt) {
+        String p = primitive(vt, true);
+        if (p == null)
+            return null;
+        return JNA + "ptr." + Character.toUpperCase(p.charAt(0)) + p.substring(1) + "ByReference";
+    }
+
+    /** The primitive array a SAFEARRAY of the given type is copied to, or null. */
+    private static String arrayElement(Type element) {
+        int vt = resolve(element).vt;
+        return vt == Variant.VT_BOOL ? null : primitive(vt, true);
+    }
+
+    /** A parameter, null if it can't be passed. */
+    private JType param(Type t) {
+        t = resolve(t);
+        String p = primitive(t.vt, false);
+        if (p != null)
+            return new JType(p);
+        switch (t.vt) {
+            case Variant.VT_BSTR:
+                return new JType(STRING, false, true, false);
+            case TypeLib.VT_LPWSTR:
+                return new JType(STRING);
+            case TypeLib.VT_LPSTR:
+                return new JType(POINTER);
+            case Variant.VT_UNKNOWN:
+                return new JType(JNACOM + "IUnknown");
+            case Variant.VT_DISPATCH:
+                return new JType(JNACOM + "IDispatch");
+            case TypeLib.VT_SAFEARRAY:
+                String e = arrayElement(t.target);
+                return e != null ? new JType(e, true, false, true) : new JType(JNACOM + "SafeArray");
+            case TypeLib.VT_USERDEFINED:
+                return t.local != null && t.local.kind == Kind.ENUM ? new JType("int") : null;
+            case TypeLib.VT_PTR:
+                return pointer(resolve(t.target));
+            default:
+                return null;
+        }
+    }
+
+    /** A parameter that points to the given type. */
+    private JType pointer(Type target) {
+        String r = byReference(target.vt);
+        if (r != null)
+            return new JType(r);
+        switch (target.vt) {
+            case TypeLib.VT_USERDEFINED:
+                if (target.local != null && target.local.kind == Kind.ENUM)
+                    return new JType(JNA + "ptr.IntByReference");
+                String c = interfaceOf(target);
+                if (c == null)
+                    c = structureOf(target);
+                return new JType(c != null ? c : POINTER);
+            case TypeLib.VT_PTR:
+            case Variant.VT_BSTR:
+            case Variant.VT_UNKNOWN:
+            case Variant.VT_DISPATCH:
+            case TypeLib.VT_SAFEARRAY:
+            case TypeLib.VT_LPSTR:
+            case TypeLib.VT_LPWSTR:
+                return new JType(POINTER_REF);
+            default:
+                return new JType(POINTER);
+        }
+    }
+
+    /** What a [retval] parameter is returned as, null to leave it a parameter. */
+    private JType retval(Type t) {
+        t = resolve(t);
+        if (t.vt != TypeLib.VT_PTR)
+            return null;
+        Type target = resolve(t.target);
+        switch (target.vt) {
+            case Variant.VT_BSTR:
+                return new JType(STRING);
+            case Variant.VT_UNKNOWN:
+                return new JType(JNACOM + "IUnknown");
+            case Variant.VT_DISPATCH:
+                return new JType(JNACOM + "IDispatch");
+            case TypeLib.VT_SAFEARRAY:
+                String e = arrayElement(target.target);
+                return e != null ? new JType(e, true, false, false) : new JType(JNACOM + "SafeArray");
+            case TypeLib.VT_PTR:
+                String i = interfaceOf(resolve(target.target));
+                return i != null ? new JType(i) : null;
+            case TypeLib.VT_USERDEFINED:
+                if (target.local != null && target.local.kind == Kind.ENUM)
+                    return new JType("int");
+                String c = structureOf(target);
+                return c != null ? new JType(c) : null;
+            default:
+                return nativeReturn(target);
+        }
+    }
+
+    /** The return types {@link ComObject} can read straight from a call or [retval]. */
+    private static JType nativeReturn(Type t) {
+        if (t.vt == TypeLib.VT_VOID)
+            return new JType("void");
+        String p = primitive(t.vt, false);
+        if (p == null || p.equals("short") || p.equals("float"))
+            return null;
+        return new JType(p);
+    }
+
+    /** The interface a USERDEFINED type is, or null if it isn't one. */
+    private String interfaceOf(Type t) {
+        if (t.vt != TypeLib.VT_USERDEFINED)
+            return null;
+        if (t.local == null) {
+            if (IID_IUNKNOWN.equals(t.importedGuid))
+                return JNACOM + "IUnknown";
+            if (IID_IDISPATCH.equals(t.importedGuid))
+                return JNACOM + "IDispatch";
+            return null;
+        }
+        TypeInfo i = t.local;
+        if (i.kind == Kind.COCLASS) {
+            for (int n = 0; n < i.implTypes.size(); n++) {
+                if ((i.implFlags.get(n) & TypeLib.IMPLTYPEFLAG_FSOURCE) == 0)
+                    return interfaceOf(i.implTypes.get(n));
+            }
+            return JNACOM + "IUnknown";
+        }
+        if (i.kind != Kind.INTERFACE && i.kind != Kind.DISPATCH)
+            return null;
+        if (IID_IUNKNOWN.equals(i.guid))
+            return JNACOM + "IUnknown";
+        if (IID_IDISPATCH.equals(i.guid) || i.kind == Kind.DISPATCH && !i.isDual())
+            return JNACOM + "IDispatch";
+        return generated(i);
+    }
+
+    /** The Structure a USERDEFINED type is, or null if it isn't one. */
+    private String structureOf(Type t) {
+        if (t.vt != TypeLib.VT_USERDEFINED || t.local == null
+                || t.local.kind != Kind.RECORD && t.local.kind != Kind.UNION)
+            return null;
+        return generated(t.local);
+    }
+
+    /** The class generated for a type, or null. */
+    private String generated(TypeInfo t) {
+        String name = classNames.get(t);
+        return name != null ? qualified(name) : null;
+    }
+
+    /** A legal Java identifier for a type library name. */
+    private static String identifier(String name) {
+        if (name == null || name.length() == 0)
+            return "unnamed";
+        StringBuilder b = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            b.append(i == 0 ? Character.isJavaIdentifierStart(c) ? c : '_'
+                    : Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        String s = b.toString();
+        return KEYWORDS.contains(s) ? s + "_" : s;
+    }
+
+    private static String unique(Set<String> names, String name) {
+        while (!names.add(name))
+            name = name + "_";
+        return name;
+    }
+
+    private static void doc(Source s, String indent, String doc) {
+        if (doc == null || doc.trim().length() == 0)
+            return;
+        s.line(indent + "/**");
+        for (String l : doc.trim().replace("*/", "*&#47;").split("\r?\n"))
+            s.line(indent + " * " + l.trim());
+        s.line(indent + " */");
+    }
+
+    /**
+     * <tt>TypeLibGenerator library package directory</tt>: writes the
+     * sources for a type library (a .tlb, or a .dll, .ocx or .exe with one
+     * inside).
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("usage: TypeLibGenerator <type library> <package> <output directory>");
+            System.exit(2);
+        }
+        TypeLibGenerator g = new TypeLibGenerator(TypeLib.read(new File(args[0])), args[1]);
+        List<File> files = g.write(new File(args[2]));
+        for (String s : g.getSkipped())
+            System.err.println("skipped " + s);
+        System.out.println(files.size() + " files written");
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Function;
+import com.sun.jna.Pointer;
+
+/**
+ * The resolved entries of a native vtable.
+ *
+ * <p>
+ * Every COM object of the same class (and interface) points at the same
+ * vtable, so the {@link Function} objects for its slots are created once and
+ * shared by all interface pointers using it.  Lookups are by vtable address
+ * in a small open-addressed table and do not lock or allocate; only the first
+ * call through a given slot reads the slot from native memory.
+ *
+ * <p>
+ * Entries are never dropped on their own.  Code that frees a vtable it built
+ * itself must call {@link #evict(long)} before the memory can be reused.
+ *
+ * @author scott.palmer
+ */
+final class VTable {
+    private static final int ptrSize = Pointer.SIZE;
+    private static final Function[] EMPTY = new Function[0];
+
+    private static final Object lock = new Object();
+    private static volatile VTable[] table = new VTable[64];
+    private static int count;
+
+    /** native address of the vtable */
+    final long address;
+    private final Pointer vtbl;
+    private volatile Function[] slots = EMPTY;
+
+    private VTable(long address) {
+        this.address = address;
+        this.vtbl = new Pointer(address);
+    }
+
+    /**
+     * Returns the vtable used by the given interface pointer.
+     */
+    static VTable of(Pointer interfacePointer) {
+        long address = ptrSize == 8
+                ? interfacePointer.getLong(0)
+                : interfacePointer.getInt(0) & 0xFFFFFFFFL;
+        VTable[] t = table;
+        int mask = t.length - 1;
+        for (int i = hash(address) & mask; ; i = (i + 1) & mask) {
+            VTable v = t[i];
+            if (v == null)
+                break;
+            if (v.address == address)
+                return v;
+        }
+        return insert(address);
+    }
+
+    /**
+     * Returns the function in the given slot of this vtable.
+     */
+    Function function(int slot) {
+        Function[] s = slots;
+        if (slot < s.length) {
+            Function f = s[slot];
+            if (f != null)
+                return f;
+        }
+        return resolve(slot);
+    }
+
+    private synchronized Function resolve(int slot) {
+        Function[] s = slots;
+        if (slot < s.length && s[slot] != null)
+            return s[slot];
+        // copy on write so readers only ever see fully built arrays
+        Function[] n = new Function[Math.max(slot + 1, s.length)];
+        System.arraycopy(s, 0, n, 0, s.length);
+        Function f = Function.getFunction(vtbl.getPointer(slot * ptrSize));
+        n[slot] = f;
+        slots = n;
+        return f;
+    }
+
+    private static VTable insert(long address) {
+        synchronized (lock) {
+            VTable[] t = table;
+            int mask = t.length - 1;
+            int i = hash(address) & mask;
+            for (; t[i] != null; i = (i + 1) & mask) {
+                if (t[i].address == address)
+                    return t[i];
+            }
+            VTable v = new VTable(address);
+            if ((count + 1) * 2 > t.length) {
+                t = rehash(t, t.length * 2, -1);
+                table = put(t, v);
+            } else {
+                // a copy keeps lock-free readers from seeing a half-built probe chain
+                VTable[] n = t.clone();
+                n[i] = v;
+                table = n;
+            }
+            count++;
+            return v;
+        }
+    }
+
+    /**
+     * Forgets the vtable at the given address.  Must be called by whoever frees
+     * a vtable, before that memory may be reused for a different one.
+     */
+    static void evict(long address) {
+        synchronized (lock) {
+            VTable[] t = table;
+            int mask = t.length - 1;
+            for (int i = hash(address) & mask; t[i] != null; i = (i + 1) & mask) {
+                if (t[i].address == address) {
+                    table = rehash(t, t.length, address);
+                    count--;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static VTable[] rehash(VTable[] t, int size, long skip) {
+        VTable[] n = new VTable[size];
+        for (VTable v : t) {
+            if (v != null && v.address != skip)
+                put(n, v);
+        }
+        return n;
+    }
+
+    private static VTable[] put(VTable[] t, VTable v) {
+        int mask = t.length - 1;
+        int i = hash(v.address) & mask;
+        while (t[i] != null)
+            i = (i + 1) & mask;
+        t[i] = v;
+        return t;
+    }
+
+    private static int hash(long address) {
+        // vtables are pointer aligned, so mix the high bits down
+        long h = address * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * Reads and writes VARIANTs in native memory, for {@link Dispatch}.
+ *
+ * <p>
+ * Arguments are written without allocating anything COM would have to
+ * free: strings are BSTRs and primitive arrays SAFEARRAYs in the calling
+ * thread's {@link StringArena}, and interfaces and {@link SafeArray}s are
+ * borrowed for the call.  So
+ * the argument VARIANTs never need VariantClear; zeroing them is enough.
+ * Only a result is cleared, and only if it holds something that isn't
+ * taken over by the Java value it is read into.
+ *
+ * @author scott.palmer
+ */
+final class Variant {
+
+    static final short VT_EMPTY = 0;
+    static final short VT_NULL = 1;
+    static final short VT_I2 = 2;
+    static final short VT_I4 = 3;
+    static final short VT_R4 = 4;
+    static final short VT_R8 = 5;
+    static final short VT_CY = 6;
+    static final short VT_DATE = 7;
+    static final short VT_BSTR = 8;
+    static final short VT_DISPATCH = 9;
+    static final short VT_ERROR = 10;
+    static final short VT_BOOL = 11;
+    static final short VT_UNKNOWN = 13;
+    static final short VT_RECORD = 36;
+    static final short VT_I1 = 16;
+    static final short VT_UI1 = 17;
+    static final short VT_UI2 = 18;
+    static final short VT_UI4 = 19;
+    static final short VT_I8 = 20;
+    static final short VT_UI8 = 21;
+    static final short VT_INT = 22;
+    static final short VT_UINT = 23;
+
+    /** sizeof(VARIANT) */
+    static final int SIZE = Pointer.SIZE == 8 ? 24 : 16;
+    /** offset of the value in a VARIANT */
+    static final int VALUE = 8;
+
+    private static final short VARIANT_TRUE = -1;
+    /** 1899-12-30, day 0 of OLE dates, in Java time */
+    private static final long OLE_EPOCH = -2209161600000L;
+    private static final long MS_PER_DAY = 86400000L;
+
+    private Variant() {
+    }
+
+    /**
+     * Writes a Java value into a zeroed VARIANT.
+     * @throws IllegalArgumentException if the value has no VARIANT type
+     */
+    static void write(Pointer v, long offset, Object value) {
+        if (value == null) {
+            // VT_EMPTY, already zero
+        } else if (value instanceof Integer) {
+            set(v, offset, VT_I4).setInt(offset + VALUE, (Integer) value);
+        } else if (value instanceof String) {
+            set(v, offset, VT_BSTR).setPointer(offset + VALUE, StringArena.get().bstr((String) value));
+        } else if (value instanceof Double) {
+            set(v, offset, VT_R8).setDouble(offset + VALUE, (Double) value);
+        } else if (value instanceof Boolean) {
+            set(v, offset, VT_BOOL).setShort(offset + VALUE, (Boolean) value ? VARIANT_TRUE : 0);
+        } else if (value instanceof Long) {
+            set(v, offset, VT_I8).setLong(offset + VALUE, (Long) value);
+        } else if (value instanceof Short) {
+            set(v, offset, VT_I2).setShort(offset + VALUE, (Short) value);
+        } else if (value instanceof Byte) {
+            set(v, offset, VT_UI1).setByte(offset + VALUE, (Byte) value);
+        } else if (value instanceof Float) {
+            set(v, offset, VT_R4).setFloat(offset + VALUE, (Float) value);
+        } else if (value instanceof Date) {
+            double days = (double) (((Date) value).getTime() - OLE_EPOCH) / MS_PER_DAY;
+            set(v, offset, VT_DATE).setDouble(offset + VALUE, days);
+        } else if (value instanceof SafeArray) {
+            SafeArray sa = (SafeArray) value;
+            short vt = sa.getVarType();
+            if (vt == VT_EMPTY)
+                throw new IllegalArgumentException("Can't pass a SAFEARRAY of unknown type in a VARIANT");
+            set(v, offset, (short) (SafeArray.VT_ARRAY | vt)).setPointer(offset + VALUE, sa.getPointer());
+        } else if (value.getClass().isArray() && value.getClass().getComponentType().isPrimitive()) {
+            short vt = SafeArray.varTypeOf(value.getClass());
+            set(v, offset, (short) (SafeArray.VT_ARRAY | vt))
+                    .setPointer(offset + VALUE, SafeArray.inArena(StringArena.get(), value));
+        } else if (value instanceof Dispatch) {
+            set(v, offset, VT_DISPATCH).setPointer(offset + VALUE, ((Dispatch) value).pointer());
+        } else {
+            ComObject wrapper = ComObject.wrapperOf(value);
+            if (wrapper == null)
+                throw new IllegalArgumentException("Can't pass a " + value.getClass().getName() + " in a VARIANT");
+            set(v, offset, value instanceof IDispatch ? VT_DISPATCH : VT_UNKNOWN)
+                    .setPointer(offset + VALUE, wrapper.pointer());
+        }
+    }
+
+    private static Pointer set(Pointer v, long offset, short vt) {
+        v.setShort(offset, vt);
+        return v;
+    }
+
+    /**
+     * Reads a result VARIANT.  Strings and numeric arrays are copied and
+     * freed; interfaces are wrapped, taking over the VARIANT's reference, in
+     * the apartment of the object that returned them; other arrays are
+     * returned as a {@link SafeArray} for the caller to destroy.
+     * @param source the object the result came from
+     * @throws UnsupportedOperationException for types that can't be read,
+     *         after clearing the VARIANT
+     */
+    static Object read(Pointer v, Object source) {
+        short vt = v.getShort(0);
+        switch (vt) {
+            case VT_EMPTY:
+            case VT_NULL:
+                return null;
+            case VT_I4:
+            case VT_INT:
+                return v.getInt(VALUE);
+            case VT_BSTR:
+                Pointer bstr = v.getPointer(VALUE);
+                String s = StringArena.fromBSTR(bstr);
+                if (bstr != null)
+                    Natives.oleaut32().SysFreeString(bstr);
+                return s;
+            case VT_R8:
+                return v.getDouble(VALUE);
+            case VT_BOOL:
+                return v.getShort(VALUE) != 0;
+            case VT_I2:
+                return v.getShort(VALUE);
+            case VT_I8:
+            case VT_UI8:
+                return v.getLong(VALUE);
+            case VT_R4:
+                return v.getFloat(VALUE);
+            case VT_I1:
+            case VT_UI1:
+                return v.getByte(VALUE);
+            case VT_UI2:
+                return v.getShort(VALUE) & 0xFFFF;
+            case VT_UI4:
+            case VT_UINT:
+                return v.getInt(VALUE) & 0xFFFFFFFFL;
+            case VT_ERROR:
+                return v.getInt(VALUE);
+            case VT_CY:
+                return BigDecimal.valueOf(v.getLong(VALUE), 4);
+            case VT_DATE:
+                return new Date(OLE_EPOCH + Math.round(v.getDouble(VALUE) * MS_PER_DAY));
+            case VT_DISPATCH: {
+                Pointer p = v.getPointer(VALUE);
+                return p != null ? new Dispatch(ComObject.wrapResult(source, p, IDispatch.class)) : null;
+            }
+            case VT_UNKNOWN: {
+                Pointer p = v.getPointer(VALUE);
+                return p != null ? ComObject.wrapResult(source, p, IUnknown.class) : null;
+            }
+            default:
+                if ((vt & 0xF000) == SafeArray.VT_ARRAY) {
+                    // numeric arrays are copied out, anything else is the caller's to take apart
+                    Pointer psa = v.getPointer(VALUE);
+                    Class<?> type = SafeArray.arrayTypeOf((short) (vt & ~SafeArray.VT_ARRAY));
+                    if (psa == null)
+                        return null;
+                    return type != null ? SafeArray.take(psa, type) : SafeArray.wrap(psa);
+                }
+                clear(v);
+                throw new UnsupportedOperationException("Can't read a VARIANT of type 0x" + Integer.toHexString(vt & 0xFFFF));
+        }
+    }
+
+    /**
+     * Clears a VARIANT that wasn't read, calling VariantClear only if it
+     * holds something to free.
+     */
+    static void free(Pointer v) {
+        short vt = v.getShort(0);
+        if (vt == VT_BSTR || vt == VT_DISPATCH || vt == VT_UNKNOWN || vt == VT_RECORD
+                || (vt & 0xF000) == SafeArray.VT_ARRAY)
+            clear(v);
+    }
+
+    static void clear(Pointer v) {
+        Natives.oleaut32().VariantClear(v);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Function;
+import com.sun.jna.Pointer;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link ComInvoker} of <tt>jnacom.foreignCalls</tt>, for Java 22 and
+ * later: calls vtable slots through <tt>java.lang.foreign</tt> downcall
+ * handles instead of JNA.
+ *
+ * <p>
+ * A method's signature is taken from the arguments of its first call,
+ * which {@link ComObject} prepares from the method's parameters the same
+ * way every time: a {@link Pointer} (or null) is an address, a boxed
+ * primitive its primitive, a Boolean an int as JNA passes it.  The handle
+ * for a signature takes the function's address and the arguments as an
+ * <tt>Object[]</tt>; it is made once and shared by all methods with that
+ * signature, and kept in each method's {@link ComMethod#linkage}, so a
+ * call is an <tt>invokeExact</tt> of it.  A method with an argument of any
+ * other type (a structure, a callback, a char...) is left to JNA, and so is
+ * a call whose arguments don't match its method's signature.
+ *
+ * <p>
+ * Downcalls use the platform's C calling convention, which is the COM one
+ * on 64 bit Windows; there is no 32 bit Windows Java with
+ * <tt>java.lang.foreign</tt>.
+ *
+ * @author scott.palmer
+ */
+final class ForeignInvoker extends ComInvoker {
+
+    private static final Linker LINKER = Linker.nativeLinker();
+    /** the handles by signature, e.g. <tt>"I(AIA)"</tt> */
+    private static final ConcurrentHashMap<String, MethodHandle> handles = new ConcurrentHashMap<String, MethodHandle>();
+    /** the linkage of a method that only JNA can call */
+    static final Object UNTYPED = new Object();
+    private static final Integer TRUE = -1;
+    private static final Integer FALSE = 0;
+
+    /** A method's signature, and the handle that calls it. */
+    static final class Linkage {
+        final char returns;
+        final char[] params;
+        /** (MemorySegment function, Object[] args) returning int, long or double */
+        final MethodHandle handle;
+
+        Linkage(char returns, char[] params, MethodHandle handle) {
+            this.returns = returns;
+            this.params = params;
+            this.handle = handle;
+        }
+    }
+
+    @Override
+    int invokeInt(ComMethod call, Function target, Object[] args) {
+        Linkage l = link(call, 'I', args);
+        Object[] carriers = l != null ? carriers(l, args) : null;
+        if (carriers == null)
+            return target.invokeInt(args);
+        try {
+            return (int) l.handle.invokeExact(address(target), carriers);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    long invokeLong(ComMethod call, Function target, Object[] args) {
+        Linkage l = link(call, 'J', args);
+        Object[] carriers = l != null ? carriers(l, args) : null;
+        if (carriers == null)
+            return target.invokeLong(args);
+        try {
+            return (long) l.handle.invokeExact(address(target), carriers);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    double invokeDouble(ComMethod call, Function target, Object[] args) {
+        Linkage l = link(call, 'D', args);
+        Object[] carriers = l != null ? carriers(l, args) : null;
+        if (carriers == null)
+            return target.invokeDouble(args);
+        try {
+            return (double) l.handle.invokeExact(address(target), carriers);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * @return the method's linkage, made from these arguments on its first
+     *         call; null if only JNA can call it
+     */
+    private static Linkage link(ComMethod call, char returns, Object[] args) {
+        Object known = call.linkage;
+        if (known instanceof Linkage && ((Linkage) known).returns == returns)
+            return (Linkage) known;
+        if (known == UNTYPED)
+            return null;
+        char[] params = new char[args.length];
+        for (int i = 0; i < args.length; i++) {
+            params[i] = kind(args[i]);
+            if (params[i] == 0) {
+                call.linkage = UNTYPED;
+                return null;
+            }
+        }
+        Linkage l = new Linkage(returns, params, handle(returns, params));
+        call.linkage = l;
+        return l;
+    }
+
+    /** The handle of a signature, made the first time it is asked for. */
+    private static MethodHandle handle(char returns, char[] params) {
+        String key = returns + "(" + new String(params) + ")";
+        MethodHandle h = handles.get(key);
+        if (h == null) {
+            MemoryLayout[] layouts = new MemoryLayout[params.length];
+            for (int i = 0; i < params.length; i++)
+                layouts[i] = layout(params[i]);
+            // (MemorySegment, p0, p1, ...) to (MemorySegment, Object[])
+            h = LINKER.downcallHandle(FunctionDescriptor.of(layout(returns), layouts))
+                    .asSpreader(Object[].class, params.length);
+            MethodHandle raced = handles.putIfAbsent(key, h);
+            if (raced != null)
+                h = raced;
+        }
+        return h;
+    }
+
+    /**
+     * Converts the arguments to what the handle takes.
+     * @return the converted arguments, or null if they don't match the signature
+     */
+    private static Object[] carriers(Linkage l, Object[] args) {
+        char[] params = l.params;
+        if (args.length != params.length)
+            return null;
+        Object[] carriers = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            Object a = args[i];
+            switch (params[i]) {
+                case 'A':
+                    if (a == null)
+                        carriers[i] = MemorySegment.NULL;
+                    else if (a instanceof Pointer)
+                        carriers[i] = MemorySegment.ofAddress(Pointer.nativeValue((Pointer) a));
+                    else
+                        return null;
+                    break;
+                case 'Z':
+                    if (!(a instanceof Boolean))
+                        return null;
+                    carriers[i] = ((Boolean) a).booleanValue() ? TRUE : FALSE;
+                    break;
+                default:
+                    if (kind(a) != params[i])
+                        return null;
+                    carriers[i] = a;
+            }
+        }
+        return carriers;
+    }
+
+    /** The kind of a prepared argument, 0 for one only JNA can pass. */
+    private static char kind(Object a) {
+        if (a == null || a instanceof Pointer)
+            return 'A';
+        Class<?> c = a.getClass();
+        if (c == Integer.class)
+            return 'I';
+        if (c == Long.class)
+            return 'J';
+        if (c == Double.class)
+            return 'D';
+        if (c == Float.class)
+            return 'F';
+        if (c == Short.class)
+            return 'S';
+        if (c == Byte.class)
+            return 'B';
+        if (c == Boolean.class)
+            return 'Z';
+        return 0;
+    }
+
+    private static MemoryLayout layout(char kind) {
+        switch (kind) {
+            case 'A':
+                return ValueLayout.ADDRESS;
+            case 'J':
+                return ValueLayout.JAVA_LONG;
+            case 'D':
+                return ValueLayout.JAVA_DOUBLE;
+            case 'F':
+                return ValueLayout.JAVA_FLOAT;
+            case 'S':
+                return ValueLayout.JAVA_SHORT;
+            case 'B':
+                return ValueLayout.JAVA_BYTE;
+            default:
+                // 'I', and 'Z' as JNA passes it
+                return ValueLayout.JAVA_INT;
+        }
+    }
+
+    private static MemorySegment address(Function target) {
+        return MemorySegment.ofAddress(Pointer.nativeValue(target));
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException)
+            return (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        return new RuntimeException(t);
+    }
+}
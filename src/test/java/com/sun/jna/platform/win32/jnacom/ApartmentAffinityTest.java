@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Pointer;
+import java.util.concurrent.Callable;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that objects wrapped on an apartment's thread stay in that apartment.
+ * @author scott.palmer
+ */
+public class ApartmentAffinityTest {
+
+    public interface WhoMethod extends Callback {
+        int invoke(Pointer self, Pointer retval);
+    }
+
+    @IID("{9B0F2D61-3C4E-4A7B-8E15-6F2A9C0D4B73}")
+    public interface IWho extends IUnknown {
+        @VTID(3)
+        int who();
+    }
+
+    static volatile Thread caller;
+
+    final FakeComObject fake = new FakeComObject(new WhoMethod() {
+        public int invoke(Pointer self, Pointer retval) {
+            caller = Thread.currentThread();
+            retval.setInt(0, 1);
+            return 0;
+        }
+    });
+
+    Apartment a, b;
+
+    static Apartment initialized(Apartment apartment) throws Throwable {
+        apartment.call(new Callable<Object>() {
+            public Object call() {
+                ComObject.comInitialized.set(true);
+                return null;
+            }
+        });
+        return apartment;
+    }
+
+    <T extends IUnknown> T wrapIn(Apartment apartment, final Class<T> intrface) throws Throwable {
+        return apartment.call(new Callable<T>() {
+            public T call() {
+                return fake.wrap(intrface);
+            }
+        });
+    }
+
+    @Before public void setUp() throws Throwable {
+        ComObject.comInitialized.set(true);
+        a = initialized(new Apartment(ApartmentTest.threads));
+        b = initialized(new Apartment(ApartmentTest.threads));
+    }
+
+    @Test public void testCallsRunInOwnApartment() throws Throwable {
+        IWho inA = wrapIn(a, IWho.class);
+        IWho inB = wrapIn(b, IWho.class);
+        IWho free = fake.wrap(IWho.class);
+
+        assertEquals(1, inA.who());
+        assertSame(a.thread(), caller);
+        assertEquals(1, inB.who());
+        assertSame(b.thread(), caller);
+        assertEquals(1, free.who());
+        assertSame(Thread.currentThread(), caller);
+        assertEquals(-1, ComObject.apartmentOf(free));
+
+        // objects obtained from an object belong to its apartment
+        IWho copy = inA.queryInterface(IWho.class);
+        copy.who();
+        assertSame(a.thread(), caller);
+        ComObject.invokeAsync(inA, IWho.class.getMethod("who")).get();
+        assertSame(a.thread(), caller);
+    }
+
+    @Test public void testCollectedObjectIsReleasedInItsApartment() throws Throwable {
+        wrapIn(a, IWho.class).addRef();
+        wrapIn(b, IWho.class);
+        assertEquals(2, fake.refCount);
+        ReleaseQueueTest.collect(ComObject.getDrainedReleaseCount(), 2);
+        assertEquals(0, fake.refCount);
+    }
+}
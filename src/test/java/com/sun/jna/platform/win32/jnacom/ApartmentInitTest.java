@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.Guid.GUID;
+import com.sun.jna.platform.win32.Ole32;
+import com.sun.jna.platform.win32.WinNT.HRESULT;
+import com.sun.jna.ptr.PointerByReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how apartment threads initialize COM, against an Ole32 stand-in.
+ * @author scott.palmer
+ */
+public class ApartmentInitTest {
+
+    final List<Integer> coInits = Collections.synchronizedList(new ArrayList<Integer>());
+    volatile int initResult;
+    volatile int uninitialized;
+
+    @Before public void setUp() {
+        ComObject.OLE32 = new Ole32() {
+            public HRESULT CoInitializeEx(Pointer reserved, int coInit) {
+                coInits.add(coInit);
+                return new HRESULT(initResult);
+            }
+
+            public void CoUninitialize() {
+                uninitialized++;
+            }
+
+            public HRESULT CoCreateGuid(GUID.ByReference pguid) {
+                throw new UnsupportedOperationException();
+            }
+
+            public int StringFromGUID2(GUID.ByReference rguid, char[] lpsz, int cchMax) {
+                throw new UnsupportedOperationException();
+            }
+
+            public HRESULT IIDFromString(String lpsz, GUID.ByReference lpiid) {
+                throw new UnsupportedOperationException();
+            }
+
+            public HRESULT CoCreateInstance(GUID rclsid, Pointer pUnkOuter, int dwClsContext,
+                    GUID riid, PointerByReference ppv) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @After public void tearDown() {
+        ComObject.OLE32 = null;
+        ComObject.apartmentThreaded = false;
+    }
+
+    static void runOnComThread(Runnable r) throws InterruptedException {
+        Thread t = ComObject.createComThread(r);
+        t.start();
+        t.join();
+    }
+
+    @Test public void testComThreadIsMultithreadedByDefault() throws InterruptedException {
+        final boolean[] initialized = new boolean[1];
+        runOnComThread(new Runnable() {
+            public void run() {
+                initialized[0] = ComObject.comInitialized.get();
+            }
+        });
+        assertEquals(Collections.singletonList(ComObject.COINIT_MULTITHREADED), coInits);
+        assertTrue(initialized[0]);
+        assertEquals(1, uninitialized);
+    }
+
+    @Test public void testEveryApartmentThreadIsSingleThreadedWhenAsked() throws Throwable {
+        ComObject.apartmentThreaded = true;
+        ThreadFactory factory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return ComObject.createComThread(r);
+            }
+        };
+        Callable<Boolean> initialized = new Callable<Boolean>() {
+            public Boolean call() {
+                return ComObject.comInitialized.get();
+            }
+        };
+        for (int i = 0; i < 3; i++)
+            assertTrue(new Apartment(factory).call(initialized));
+        assertEquals(3, coInits.size());
+        for (Integer coInit : coInits)
+            assertEquals(ComObject.COINIT_APARTMENTTHREADED, coInit.intValue());
+    }
+
+    @Test public void testChangedModeIsNotUninitialized() throws InterruptedException {
+        initResult = ComObject.RPC_E_CHANGED_MODE;
+        final boolean[] initialized = new boolean[1];
+        runOnComThread(new Runnable() {
+            public void run() {
+                initialized[0] = ComObject.comInitialized.get();
+            }
+        });
+        // COM is usable, but this thread did not initialize it
+        assertTrue(initialized[0]);
+        assertEquals(0, uninitialized);
+    }
+
+    @Test public void testAlreadyInitializedIsUninitialized() throws InterruptedException {
+        initResult = 1; // S_FALSE
+        runOnComThread(new Runnable() {
+            public void run() {
+            }
+        });
+        assertEquals(1, uninitialized);
+    }
+}
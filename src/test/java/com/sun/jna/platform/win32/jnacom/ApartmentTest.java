@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/** @author scott.palmer */
+public class ApartmentTest {
+
+    static final ThreadFactory threads = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "test-apartment");
+        }
+    };
+
+    @Test public void testCallRunsOnApartmentThread() throws Throwable {
+        final Apartment apartment = new Apartment(threads);
+        Thread t = apartment.call(new Callable<Thread>() {
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        });
+        assertSame(apartment.thread(), t);
+        assertTrue(t.isDaemon());
+        assertFalse(apartment.isCurrentThread());
+    }
+
+    @Test public void testCallRethrowsFailure() throws Throwable {
+        Apartment apartment = new Apartment(threads);
+        try {
+            apartment.call(new Callable<Object>() {
+                public Object call() {
+                    throw new IllegalStateException("boom");
+                }
+            });
+            fail();
+        } catch (IllegalStateException ex) {
+            assertEquals("boom", ex.getMessage());
+        }
+        // the next call of the same thread must not see the old failure
+        assertEquals("ok", apartment.call(new Callable<String>() {
+            public String call() {
+                return "ok";
+            }
+        }));
+    }
+
+    @Test public void testManyCallers() throws InterruptedException {
+        final Apartment apartment = new Apartment(threads);
+        final AtomicInteger wrong = new AtomicInteger();
+        final int callers = 8;
+        final CountDownLatch done = new CountDownLatch(callers);
+        final int[] counter = new int[1];
+        for (int i = 0; i < callers; i++) {
+            final int n = i;
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int c = 0; c < 10000; c++) {
+                            Integer r = apartment.call(new Callable<Integer>() {
+                                public Integer call() {
+                                    // only ever touched by the apartment thread
+                                    counter[0]++;
+                                    return n;
+                                }
+                            });
+                            if (r != n)
+                                wrong.incrementAndGet();
+                        }
+                    } catch (Throwable ex) {
+                        wrong.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(0, wrong.get());
+        final int total = callers * 10000;
+        final int[] seen = new int[1];
+        apartment.execute(new Apartment.Task() {
+            void run() {
+                seen[0] = counter[0];
+            }
+        });
+        try {
+            apartment.call(new Callable<Object>() {
+                public Object call() {
+                    return null;
+                }
+            });
+        } catch (Throwable ex) {
+            throw new AssertionError(ex);
+        }
+        assertEquals(total, seen[0]);
+    }
+}
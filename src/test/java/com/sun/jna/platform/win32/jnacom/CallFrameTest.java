@@ -0,0 +1,43 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Memory;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/** @author scott.palmer */
+public class CallFrameTest {
+
+    @Test public void testArraysAreReused() {
+        CallFrame f = CallFrame.enter();
+        Object[] a = f.args(3);
+        a[0] = "x";
+        f.exit();
+        assertNull("arguments must not stay reachable", a[0]);
+
+        CallFrame g = CallFrame.enter();
+        assertSame(f, g);
+        assertSame(a, g.args(3));
+        assertEquals(0, g.retval().getLong(0));
+        g.exit();
+    }
+
+    @Test public void testNestedCallsGetTheirOwnFrame() {
+        CallFrame outer = CallFrame.enter();
+        Memory retval = outer.retval();
+        retval.setInt(0, 42);
+        CallFrame inner = CallFrame.enter();
+        assertNotSame(outer, inner);
+        assertNotSame(outer.args(2), inner.args(2));
+        inner.retval().setInt(0, 7);
+        inner.exit();
+        assertEquals(42, retval.getInt(0));
+        outer.exit();
+        assertSame(outer, CallFrame.enter());
+        outer.exit();
+    }
+}
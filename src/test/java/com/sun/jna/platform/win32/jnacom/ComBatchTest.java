@@ -0,0 +1,60 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.platform.win32.jnacom.ComCallTest.ICalc;
+import java.util.concurrent.Callable;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/** @author scott.palmer */
+public class ComBatchTest {
+
+    final FakeComObject calc = new ComCallTest().calc;
+
+    @Before public void pretendComIsInitialized() {
+        ComObject.comInitialized.set(true);
+    }
+
+    @Test public void testRecordedCalls() throws Exception {
+        ICalc c = calc.wrap(ICalc.class);
+        ComBatch batch = new ComBatch();
+        int a = batch.add(c, ICalc.class.getMethod("twice", int.class), 1);
+        int b = batch.add(c, ICalc.class.getMethod("half", double.class), 3.0);
+        assertEquals(2, batch.size());
+        Object[] results = batch.run();
+        assertEquals(2, results[a]);
+        assertEquals(1.5, results[b]);
+    }
+
+    @Test public void testFailureEndsBatch() throws Exception {
+        ICalc c = calc.wrap(ICalc.class);
+        ComBatch batch = new ComBatch();
+        batch.add(c, ICalc.class.getMethod("fail"));
+        batch.add(c, ICalc.class.getMethod("addRef"));
+        try {
+            batch.run();
+            fail();
+        } catch (ComException ex) {
+            assertEquals(ComCallTest.E_NOTIMPL, ex.getHRESULT());
+        }
+        assertEquals(1, calc.refCount);
+    }
+
+    @Test public void testBlock() throws Exception {
+        final ICalc c = calc.wrap(ICalc.class);
+        int sum = ComObject.batch(new Callable<Integer>() {
+            public Integer call() {
+                int s = 0;
+                for (int i = 0; i < 10; i++)
+                    s += c.twice(i);
+                return s;
+            }
+        });
+        assertEquals(90, sum);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Function;
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the call path against a {@link FakeComObject}, so it works on any
+ * platform JNA supports.
+ * @author scott.palmer
+ */
+public class ComCallTest {
+
+    public interface IntMethod extends Callback {
+        int invoke(Pointer self, int value, Pointer retval);
+    }
+
+    public interface DoubleMethod extends Callback {
+        int invoke(Pointer self, double value, Pointer retval);
+    }
+
+    public interface FailingMethod extends Callback {
+        int invoke(Pointer self);
+    }
+
+    @IID("{4D1E0A37-96D2-4C0B-A1B7-3E41F0E8C2D5}")
+    public interface ICalc extends IUnknown {
+        @VTID(3)
+        int twice(int value);
+        @VTID(4)
+        double half(double value);
+        @VTID(5)
+        void fail();
+    }
+
+    static final int E_NOTIMPL = 0x80004001;
+
+    FakeComObject calc = new FakeComObject(
+            new IntMethod() {
+                public int invoke(Pointer self, int value, Pointer retval) {
+                    retval.setInt(0, value * 2);
+                    return 0;
+                }
+            },
+            new DoubleMethod() {
+                public int invoke(Pointer self, double value, Pointer retval) {
+                    retval.setDouble(0, value / 2);
+                    return 0;
+                }
+            },
+            new FailingMethod() {
+                public int invoke(Pointer self) {
+                    return E_NOTIMPL;
+                }
+            });
+
+    @Before public void pretendComIsInitialized() {
+        ComObject.comInitialized.set(true);
+    }
+
+    @Test public void testSlotCall() {
+        Memory retval = new Memory(8);
+        Function twice = VTable.of(calc.object).function(3);
+        assertEquals(0, twice.invokeInt(new Object[] {calc.object, 21, retval}));
+        assertEquals(42, retval.getInt(0));
+    }
+
+    @Test public void testCalls() {
+        ICalc c = calc.wrap(ICalc.class);
+        assertEquals(42, c.twice(21));
+        assertEquals(1.25, c.half(2.5), 0);
+        try {
+            c.fail();
+            fail("A failed HRESULT should throw");
+        } catch (ComException ex) {
+            assertEquals(E_NOTIMPL, ex.getHRESULT());
+            assertEquals(E_NOTIMPL, ComObject.getLastHRESULT());
+            assertEquals(E_NOTIMPL, ComObject.getLastHRESULT(c));
+        }
+        c.twice(1);
+        assertEquals(0, ComObject.getLastHRESULT(c));
+    }
+
+    @Test public void testQueryInterface() {
+        ICalc c = calc.wrap(ICalc.class);
+        ICalc other = c.queryInterface(ICalc.class);
+        assertEquals(2, calc.refCount);
+        assertEquals(8, other.twice(4));
+        other.dispose();
+        c.dispose();
+        assertEquals(0, calc.refCount);
+    }
+
+    @Test public void testAddRefRelease() {
+        ICalc c = calc.wrap(ICalc.class);
+        assertEquals(2, c.addRef());
+        assertEquals(1, c.release());
+        c.dispose();
+        assertEquals(0, calc.refCount);
+    }
+
+    @Test public void testHRESULTTrackingCanBeTurnedOff() {
+        ICalc c = calc.wrap(ICalc.class);
+        ComObject.trackLastHRESULT = false;
+        try {
+            try {
+                c.fail();
+                fail();
+            } catch (ComException ex) {
+                assertEquals(E_NOTIMPL, ex.getHRESULT());
+            }
+            try {
+                ComObject.getLastHRESULT(c);
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+        } finally {
+            ComObject.trackLastHRESULT = true;
+        }
+        assertEquals(0, ComObject.getLastHRESULT(c));
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.PointerByReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exports Java objects and calls them back through their native vtable with
+ * {@link ComObject}, so it runs wherever JNA callbacks do.
+ * @author scott.palmer
+ */
+public class ComCallableTest {
+
+    @IID("{0B6E4C8D-2F1A-4E57-9D3B-7A5C1E8F2D46}")
+    public interface ISink extends IUnknown {
+        @VTID(3)
+        int twice(int value);
+        @VTID(4)
+        double half(double value);
+        @VTID(5)
+        int length(String s);
+        @VTID(6)
+        int bstrLength(@BSTR String s);
+        @VTID(8)
+        void fail();
+        @VTID(9)
+        void crash();
+        @VTID(10)
+        int callTwice(ISink other, int value);
+        @VTID(11)
+        ISink self();
+        @VTID(12)
+        boolean isSame(ISink other);
+    }
+
+    @IID("{5E2D8A41-C93B-4F06-8B7E-1D4A6C9F3E27}")
+    public interface IOther extends IUnknown {
+    }
+
+    /** Implements the IUnknown methods, which exported objects never see. */
+    abstract static class Unknown implements IUnknown {
+        public void dispose() {
+        }
+
+        public <T extends IUnknown> T queryInterface(Class<? extends IUnknown> comInterface) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int addRef() {
+            throw new UnsupportedOperationException();
+        }
+
+        public int release() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    static class Sink extends Unknown implements ISink {
+        ISink received;
+
+        public int twice(int value) {
+            return 2 * value;
+        }
+
+        public double half(double value) {
+            return value / 2;
+        }
+
+        public int length(String s) {
+            return s == null ? -1 : s.length();
+        }
+
+        public int bstrLength(String s) {
+            return s.length();
+        }
+
+        public void fail() {
+            throw new ComException("not today", HResult.E_ACCESSDENIED);
+        }
+
+        public void crash() {
+            throw new IllegalStateException("boom");
+        }
+
+        public int callTwice(ISink other, int value) {
+            received = other;
+            return other.twice(value);
+        }
+
+        public ISink self() {
+            return this;
+        }
+
+        public boolean isSame(ISink other) {
+            return other == this;
+        }
+    }
+
+    final Sink sink = new Sink();
+
+    @Before public void pretendComIsInitialized() {
+        ComObject.comInitialized.set(true);
+    }
+
+    @Test public void testCallsThroughTheVtable() {
+        ComCallable exported = ComCallable.export(sink, ISink.class);
+        ISink s = exported.wrap(ISink.class);
+        assertEquals(2, exported.getRefCount());
+        assertEquals(42, s.twice(21));
+        assertEquals(1.25, s.half(2.5), 0);
+        assertEquals(0, ComObject.getLastHRESULT(s));
+        s.dispose();
+        assertEquals(1, exported.getRefCount());
+        assertEquals(0, exported.release());
+    }
+
+    @Test public void testStrings() {
+        ComCallable exported = ComCallable.export(sink, ISink.class);
+        ISink s = exported.wrap(ISink.class);
+        assertEquals(5, s.length("h\u00e9llo"));
+        assertEquals(0, s.length(""));
+        assertEquals(3, s.bstrLength("abc"));
+        s.dispose();
+        exported.release();
+    }
+
+    @Test public void testFailures() {
+        ComCallable exported = ComCallable.export(sink, ISink.class);
+        ISink s = exported.wrap(ISink.class);
+        try {
+            s.fail();
+            fail();
+        } catch (ComException ex) {
+            assertEquals(HResult.E_ACCESSDENIED, ex.getHRESULT());
+        }
+        try {
+            s.crash();
+            fail();
+        } catch (ComException ex) {
+            assertEquals(HResult.E_FAIL, ex.getHRESULT());
+        }
+        // the gap at slot 7 is answered, not left to crash
+        Object[] self = {exported.getPointer()};
+        assertEquals(HResult.E_NOTIMPL, VTable.of(exported.getPointer()).function(7).invokeInt(self));
+        s.dispose();
+        exported.release();
+    }
+
+    @Test public void testInterfaceArguments() {
+        ComCallable exported = ComCallable.export(sink, ISink.class);
+        ISink s = exported.wrap(ISink.class);
+        // an exported object comes back as the Java object itself
+        assertTrue(s.isSame(s));
+        assertEquals(10, s.callTwice(s, 5));
+        assertSame(sink, sink.received);
+
+        // anything else arrives as a wrapper with a reference of its own
+        FakeComObject calc = new ComCallTest().calc;
+        ISink foreign = ComObject.wrapNativeInterface(calc.object, ISink.class);
+        assertEquals(14, s.callTwice(foreign, 7));
+        assertNotSame(sink, sink.received);
+        assertEquals(2, calc.refCount);
+        sink.received.dispose();
+        foreign.dispose();
+        assertEquals(0, calc.refCount);
+        s.dispose();
+        exported.release();
+    }
+
+    @Test public void testReturnedInterfaceIsExported() {
+        ComCallable exported = ComCallable.export(sink, ISink.class);
+        ISink s = exported.wrap(ISink.class);
+        ISink again = s.self();
+        assertEquals(8, again.twice(4));
+        again.dispose();
+        s.dispose();
+        exported.release();
+    }
+
+    @Test public void testQueryInterface() {
+        ComCallable exported = ComCallable.export(sink, ISink.class);
+        ISink s = exported.wrap(ISink.class);
+        IUnknown unknown = s.queryInterface(IUnknown.class);
+        assertEquals(3, exported.getRefCount());
+        unknown.dispose();
+        try {
+            s.queryInterface(IOther.class);
+            fail();
+        } catch (ComException ex) {
+            assertEquals(HResult.E_NOINTERFACE, ex.getHRESULT());
+        }
+        assertEquals(2, exported.getRefCount());
+
+        PointerByReference ppv = new PointerByReference(exported.getPointer());
+        assertEquals(HResult.E_NOINTERFACE, VTable.of(exported.getPointer()).function(0).invokeInt(
+                new Object[] {exported.getPointer(), Guids.iidPointer(IOther.class), ppv}));
+        assertNull(ppv.getValue());
+        s.dispose();
+        exported.release();
+    }
+
+    @Test public void testReleasedObjectIsForgotten() {
+        ComCallable exported = ComCallable.export(sink, ISink.class);
+        Pointer p = exported.getPointer();
+        assertNotNull(ComCallable.of(p));
+        assertEquals(0, exported.release());
+        assertNull(ComCallable.of(p));
+        // late calls fail instead of reaching the implementation
+        assertEquals(HResult.E_UNEXPECTED, VTable.of(p).function(9).invokeInt(new Object[] {p}));
+    }
+
+    @Test public void testConcurrentAddRefRelease() throws InterruptedException {
+        final ComCallable exported = ComCallable.export(sink, ISink.class);
+        final Object[] self = {exported.getPointer()};
+        final VTable vtable = VTable.of(exported.getPointer());
+        final AtomicInteger errors = new AtomicInteger();
+        final int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            if (vtable.function(1).invokeInt(self) < 2)
+                                errors.incrementAndGet();
+                            vtable.function(2).invokeInt(self);
+                        }
+                    } catch (Throwable ex) {
+                        errors.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(0, errors.get());
+        assertEquals(1, exported.getRefCount());
+        exported.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInterfaceWithoutIID() {
+        ComCallable.export(new NoIID(), INoIID.class);
+    }
+
+    public interface INoIID extends IUnknown {
+    }
+
+    static class NoIID extends Unknown implements INoIID {
+    }
+}
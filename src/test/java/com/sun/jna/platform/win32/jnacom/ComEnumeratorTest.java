@@ -0,0 +1,160 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Pointer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Walks a {@link FakeComObject} enumerator of the numbers 0 to n - 1, handed
+ * out as ints, VARIANTs or interface pointers to itself.
+ * @author scott.palmer
+ */
+public class ComEnumeratorTest {
+
+    public interface Next extends Callback {
+        int invoke(Pointer self, int celt, Pointer rgelt, Pointer fetched);
+    }
+
+    /** The elements of the fake: plain ints, counting the ones freed. */
+    class Ints extends ComEnumerator.Element<Integer> {
+        Ints() {
+            super(4);
+        }
+
+        protected Integer read(Pointer buffer, long offset, IUnknown enumerator) {
+            return buffer.getInt(offset);
+        }
+
+        protected void free(Pointer buffer, long offset, IUnknown enumerator) {
+            freed++;
+        }
+    }
+
+    static final int INTS = 0, VARIANTS = 1, SELVES = 2;
+
+    int total = 1000;
+    int position;
+    int mode = INTS;
+    int freed;
+    int failWith;
+    final FakeComObject fake = new FakeComObject(
+            new Next() {
+                public int invoke(Pointer self, int celt, Pointer rgelt, Pointer fetched) {
+                    if (failWith != 0)
+                        return failWith;
+                    int n = Math.min(celt, total - position);
+                    for (int i = 0; i < n; i++, position++) {
+                        if (mode == INTS) {
+                            rgelt.setInt(4L * i, position);
+                        } else if (mode == VARIANTS) {
+                            rgelt.setShort((long) Variant.SIZE * i, Variant.VT_I4);
+                            rgelt.setInt((long) Variant.SIZE * i + Variant.VALUE, position);
+                        } else {
+                            fake.refCount++;
+                            rgelt.setPointer((long) Pointer.SIZE * i, self);
+                        }
+                    }
+                    fetched.setInt(0, n);
+                    return n == celt ? 0 : 1;
+                }
+            });
+
+    @Before public void setUp() {
+        ComObject.comInitialized.set(true);
+    }
+
+    @After public void tearDown() {
+        assertEquals(0, fake.refCount);
+    }
+
+    @Test public void testIteratesInBatches() {
+        ComEnumerator<Integer> e = ComEnumerator.of(fake.wrap(IUnknown.class), new Ints(), 64);
+        int expected = 0;
+        while (e.hasNext())
+            assertEquals(expected++, (int) e.next());
+        assertEquals(1000, expected);
+        assertEquals(16, e.getNextCalls());
+        // released as soon as the last element was taken
+        assertEquals(0, fake.refCount);
+        assertFalse(e.hasNext());
+        e.close();
+    }
+
+    @Test public void testExactMultipleOfTheBatch() {
+        total = 128;
+        ComEnumerator<Integer> e = ComEnumerator.of(fake.wrap(IUnknown.class), new Ints(), 64);
+        int n = 0;
+        while (e.hasNext()) {
+            e.next();
+            n++;
+        }
+        assertEquals(128, n);
+        assertEquals(3, e.getNextCalls());
+    }
+
+    @Test public void testEarlyCloseFreesTheRest() {
+        ComEnumerator<Integer> e = ComEnumerator.of(fake.wrap(IUnknown.class), new Ints(), 10);
+        for (int i = 0; i < 3; i++)
+            e.next();
+        e.close();
+        assertEquals(7, freed);
+        assertFalse(e.hasNext());
+    }
+
+    @Test public void testStream() {
+        List<Integer> first;
+        try (Stream<Integer> s = ComEnumerator.stream(fake.wrap(IUnknown.class), new Ints())) {
+            first = s.limit(5).collect(Collectors.<Integer>toList());
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), first);
+        assertEquals(ComEnumerator.DEFAULT_BATCH - 5, freed);
+    }
+
+    @Test public void testVariants() {
+        total = 10;
+        mode = VARIANTS;
+        List<Object> all = new ArrayList<Object>();
+        ComEnumerator<Object> e = ComEnumerator.of(fake.wrap(IUnknown.class), ComEnumerator.VARIANTS, 4);
+        while (e.hasNext())
+            all.add(e.next());
+        assertEquals(Arrays.<Object>asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), all);
+    }
+
+    @Test public void testInterfaces() {
+        total = 5;
+        mode = SELVES;
+        ComEnumerator<IUnknown> e = ComEnumerator.of(fake.wrap(IUnknown.class),
+                ComEnumerator.interfaces(IUnknown.class), 2);
+        IUnknown first = e.next();
+        // the enumerator and the two fetched elements
+        assertEquals(3, fake.refCount);
+        e.close();
+        assertEquals(1, fake.refCount);
+        first.dispose();
+    }
+
+    @Test public void testFailureCloses() {
+        failWith = HResult.E_UNEXPECTED;
+        ComEnumerator<Integer> e = ComEnumerator.of(fake.wrap(IUnknown.class), new Ints());
+        try {
+            e.hasNext();
+            fail();
+        } catch (ComException ex) {
+            assertEquals(HResult.E_UNEXPECTED, ex.getHRESULT());
+        }
+        assertEquals(0, fake.refCount);
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.jnacom.ComCallableTest.Unknown;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Subscribes to a {@link FakeComObject} that is both the connection point
+ * container and the connection point, and fires events by calling the sink
+ * it was advised with.
+ * @author scott.palmer
+ */
+public class ComEventsTest {
+
+    public interface NotImplemented extends Callback {
+        int invoke(Pointer self);
+    }
+
+    public interface FindConnectionPoint extends Callback {
+        int invoke(Pointer self, Pointer riid, Pointer ppCP);
+    }
+
+    public interface Advise extends Callback {
+        int invoke(Pointer self, Pointer sink, Pointer cookie);
+    }
+
+    public interface Unadvise extends Callback {
+        int invoke(Pointer self, int cookie);
+    }
+
+    @IID("{8A3F1C62-4D0B-4E9A-B5C7-2E6D9F1A3B85}")
+    public interface IProgressEvents extends IUnknown {
+        @VTID(3)
+        void progress(int percent);
+        @VTID(4)
+        void message(String text);
+    }
+
+    @IID("{C4E7A209-6B1D-4F38-9A2E-5D8B0C3F7E14}")
+    public interface IQuestionEvents extends IUnknown {
+        @VTID(3)
+        int ask();
+    }
+
+    @IID("{5B2E8D14-7A3C-4F61-9E0B-C8D4A2F7136E}")
+    public interface IRawEvents extends IUnknown {
+        @VTID(3)
+        void data(Pointer p);
+    }
+
+    @IID("{E1D94B37-20C8-4A5F-B6E3-7F0C2A9D8B41}")
+    public interface IItemEvents extends IUnknown {
+        @VTID(3)
+        void item(IUnknown item);
+        @VTID(4)
+        void values(SafeArray values);
+    }
+
+    static class ItemListener extends Unknown implements IItemEvents {
+        final List<IUnknown> items = Collections.synchronizedList(new ArrayList<IUnknown>());
+        final List<String> values = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        public void item(IUnknown item) {
+            try {
+                gate.await();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+            items.add(item);
+        }
+
+        public void values(SafeArray values) {
+            this.values.add(Arrays.toString(values.toIntArray()));
+        }
+    }
+
+    static class Listener extends Unknown implements IProgressEvents {
+        final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+        volatile Thread thread;
+        volatile String text;
+        volatile CountDownLatch gate;
+
+        public void progress(int percent) {
+            thread = Thread.currentThread();
+            CountDownLatch g = gate;
+            if (g != null) {
+                try {
+                    g.await();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            seen.add(percent);
+        }
+
+        public void message(String text) {
+            this.text = text;
+        }
+    }
+
+    Pointer sink;
+    int unadvised = -1;
+    FakeComObject source = new FakeComObject(
+            new NotImplemented() {
+                public int invoke(Pointer self) {
+                    return HResult.E_NOTIMPL;
+                }
+            },
+            new FindConnectionPoint() {
+                public int invoke(Pointer self, Pointer riid, Pointer ppCP) {
+                    source.refCount++;
+                    ppCP.setPointer(0, self);
+                    return 0;
+                }
+            },
+            new Advise() {
+                public int invoke(Pointer self, Pointer s, Pointer cookie) {
+                    sink = s;
+                    VTable.of(s).function(1).invokeInt(new Object[] {s});
+                    cookie.setInt(0, 7);
+                    return 0;
+                }
+            },
+            new Unadvise() {
+                public int invoke(Pointer self, int cookie) {
+                    unadvised = cookie;
+                    VTable.of(sink).function(2).invokeInt(new Object[] {sink});
+                    return 0;
+                }
+            });
+    IUnknown unknown;
+    final Listener listener = new Listener();
+
+    @Before public void setUp() {
+        ComObject.comInitialized.set(true);
+        unknown = source.wrap(IUnknown.class);
+    }
+
+    @After public void tearDown() {
+        ComEvents.blockMillis = 1000;
+        Natives.oleaut32 = null;
+        unknown.dispose();
+        assertEquals(0, source.refCount);
+    }
+
+    /** Fires events the way the source would: through the sink's vtable. */
+    IProgressEvents fire() {
+        return fire(IProgressEvents.class);
+    }
+
+    <T extends IUnknown> T fire(Class<T> events) {
+        VTable.of(sink).function(1).invokeInt(new Object[] {sink});
+        return ComObject.wrapNativeInterface(sink, events);
+    }
+
+    static void awaitDelivered(EventSubscription s, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (s.getDelivered() < count) {
+            assertTrue("delivered " + s.getDelivered() + " of " + count, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test public void testDeliversInOrderOnItsOwnThread() throws InterruptedException {
+        EventSubscription s = ComEvents.subscribe(unknown, IProgressEvents.class, listener);
+        IProgressEvents events = fire();
+        for (int i = 0; i < 1000; i++)
+            events.progress(i);
+        events.message("done");
+        awaitDelivered(s, 1001);
+
+        assertEquals(1000, listener.seen.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i, (int) listener.seen.get(i));
+        assertEquals("done", listener.text);
+        assertSame(s.getThread(), listener.thread);
+        assertEquals(1001, s.getPublished());
+        assertEquals(0, s.getDropped());
+        assertEquals(0, s.getBacklog());
+        assertTrue(s.getMaxLagNanos() >= s.getLastLagNanos());
+
+        s.close();
+        assertEquals(7, unadvised);
+        events.dispose();
+        assertNull(ComCallable.of(sink));
+    }
+
+    @Test public void testDropNewest() throws InterruptedException {
+        EventSubscription s = ComEvents.subscribe(unknown, IProgressEvents.class, listener,
+                4, ComEvents.Overflow.DROP_NEWEST);
+        listener.gate = new CountDownLatch(1);
+        IProgressEvents events = fire();
+        for (int i = 0; i < 20; i++)
+            events.progress(i);
+        // at most one taken by the stuck listener, and four waiting
+        assertTrue(s.getPublished() <= 5);
+        assertEquals(20, s.getPublished() + s.getDropped());
+        listener.gate.countDown();
+        awaitDelivered(s, s.getPublished());
+        assertEquals(0, (int) listener.seen.get(0));
+        s.close();
+        events.dispose();
+    }
+
+    @Test public void testDropOldest() throws InterruptedException {
+        EventSubscription s = ComEvents.subscribe(unknown, IProgressEvents.class, listener,
+                4, ComEvents.Overflow.DROP_OLDEST);
+        listener.gate = new CountDownLatch(1);
+        IProgressEvents events = fire();
+        for (int i = 0; i < 20; i++)
+            events.progress(i);
+        assertEquals(20, s.getPublished());
+        assertTrue(s.getDropped() >= 15);
+        listener.gate.countDown();
+        awaitDelivered(s, 20 - s.getDropped());
+        assertEquals(19, (int) listener.seen.get(listener.seen.size() - 1));
+        s.close();
+        events.dispose();
+    }
+
+    @Test public void testBlockLosesNothing() throws InterruptedException {
+        EventSubscription s = ComEvents.subscribe(unknown, IProgressEvents.class, listener,
+                2, ComEvents.Overflow.BLOCK);
+        IProgressEvents events = fire();
+        listener.gate = new CountDownLatch(1);
+        events.progress(0);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                }
+                listener.gate.countDown();
+            }
+        }).start();
+        for (int i = 1; i < 50; i++)
+            events.progress(i);
+        awaitDelivered(s, 50);
+        assertEquals(50, listener.seen.size());
+        assertEquals(0, s.getDropped());
+        assertTrue(s.getMaxBacklog() >= 1);
+        s.close();
+        events.dispose();
+    }
+
+    @Test public void testBlockGivesUp() throws InterruptedException {
+        ComEvents.blockMillis = 20;
+        EventSubscription s = ComEvents.subscribe(unknown, IProgressEvents.class, listener,
+                2, ComEvents.Overflow.BLOCK);
+        // a listener waiting for the firing thread, which waits for room
+        listener.gate = new CountDownLatch(1);
+        IProgressEvents events = fire();
+        for (int i = 0; i < 10; i++)
+            events.progress(i);
+        assertTrue(s.getDropped() >= 7);
+        assertEquals(10, s.getPublished() + s.getDropped());
+        listener.gate.countDown();
+        awaitDelivered(s, s.getPublished());
+        s.close();
+        events.dispose();
+    }
+
+    @Test public void testDefaultDropsWhenFull() throws InterruptedException {
+        EventSubscription s = ComEvents.subscribe(unknown, IProgressEvents.class, listener);
+        listener.gate = new CountDownLatch(1);
+        IProgressEvents events = fire();
+        int n = s.getCapacity() + 10;
+        for (int i = 0; i < n; i++)
+            events.progress(i);
+        assertTrue(s.getDropped() >= 9);
+        listener.gate.countDown();
+        awaitDelivered(s, s.getPublished());
+        s.close();
+        events.dispose();
+    }
+
+    @Test public void testArgumentsOfDroppedEventsAreReleased() throws InterruptedException {
+        FakeComObject item = new FakeComObject();
+        IUnknown i = item.wrap(IUnknown.class);
+        ItemListener listener = new ItemListener();
+        EventSubscription s = ComEvents.subscribe(unknown, IItemEvents.class, listener,
+                2, ComEvents.Overflow.DROP_NEWEST);
+        IItemEvents events = fire(IItemEvents.class);
+        for (int k = 0; k < 10; k++)
+            events.item(i);
+        long kept = s.getPublished();
+        assertEquals(10, kept + s.getDropped());
+        // ours, and one for each event still to be delivered
+        assertEquals(1 + kept, item.refCount);
+        listener.gate.countDown();
+        awaitDelivered(s, kept);
+        for (IUnknown delivered : listener.items)
+            delivered.dispose();
+        assertEquals(1, item.refCount);
+        s.close();
+        events.dispose();
+        i.dispose();
+    }
+
+    @Test public void testArraysAreCopied() throws InterruptedException {
+        SafeArrayTest.FakeOleAut32 oleaut32 = new SafeArrayTest.FakeOleAut32();
+        Natives.oleaut32 = oleaut32;
+        ItemListener listener = new ItemListener();
+        EventSubscription s = ComEvents.subscribe(unknown, IItemEvents.class, listener);
+        IItemEvents events = fire(IItemEvents.class);
+        Pointer psa = oleaut32.create(Variant.VT_I4, 3);
+        psa.getPointer(SafeArray.DATA).write(0, new int[] {1, 2, 3}, 0, 3);
+        events.values(new SafeArray(psa, false));
+        // the caller's array is gone once the call returns
+        psa.getPointer(SafeArray.DATA).write(0, new int[] {0, 0, 0}, 0, 3);
+        awaitDelivered(s, 1);
+        assertEquals(Arrays.asList("[1, 2, 3]"), listener.values);
+        assertEquals(2, oleaut32.created);
+        assertEquals(1, oleaut32.destroyed);
+        s.close();
+        events.dispose();
+    }
+
+    @Test public void testEventsMustNotPassPointers() {
+        try {
+            ComEvents.subscribe(unknown, IRawEvents.class, new IRawEventsImpl());
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    static class IRawEventsImpl extends Unknown implements IRawEvents {
+        public void data(Pointer p) {
+        }
+    }
+
+    @Test public void testEventsMustNotReturnValues() {
+        IQuestionEvents listener = new IQuestionEventsImpl();
+        try {
+            ComEvents.subscribe(unknown, IQuestionEvents.class, listener);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    static class IQuestionEventsImpl extends Unknown implements IQuestionEvents {
+        public int ask() {
+            return 42;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.jnacom.ComCallTest.ICalc;
+import com.sun.jna.ptr.PointerByReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/** @author scott.palmer */
+public class ComExceptionTest {
+
+    @IID("{4D1E0A37-96D2-4C0B-A1B7-3E41F0E8C2D5}")
+    public interface IProbe extends IUnknown {
+        @VTID(5)
+        @NoStackTrace
+        void fail();
+        @VTID(5)
+        @NoStackTrace(HResult.E_NOINTERFACE)
+        void failOther();
+    }
+
+    @IID("{7E2C5A90-3B1F-4D86-9C0E-A4F7D2B6E153}")
+    public interface IFailing extends IUnknown {
+        @VTID(4)
+        void fail();
+        @VTID(4)
+        @NoStackTrace
+        void failQuietly();
+    }
+
+    public interface InterfaceSupportsErrorInfo extends Callback {
+        int invoke(Pointer self, Pointer riid);
+    }
+
+    public interface Fail extends Callback {
+        int invoke(Pointer self);
+    }
+
+    /** Hands out the error info a failing call left, once. */
+    static class FakeOleAut32 extends SafeArrayTest.FakeOleAut32 {
+        Pointer pending;
+
+        @Override
+        public int GetErrorInfo(int dwReserved, PointerByReference pperrinfo) {
+            pperrinfo.setValue(pending);
+            int hr = pending != null ? HResult.S_OK : HResult.S_FALSE;
+            pending = null;
+            return hr;
+        }
+    }
+
+    final FakeComObject calc = new ComCallTest().calc;
+    final FakeOleAut32 oleaut32 = new FakeOleAut32();
+    final FakeComObject info = new FakeComObject();
+    boolean supported;
+    int asked;
+    final FakeComObject failing = new FakeComObject(
+            new InterfaceSupportsErrorInfo() {
+                public int invoke(Pointer self, Pointer riid) {
+                    asked++;
+                    return supported ? HResult.S_OK : HResult.S_FALSE;
+                }
+            },
+            new Fail() {
+                public int invoke(Pointer self) {
+                    oleaut32.pending = info.object;
+                    return HResult.E_FAIL;
+                }
+            });
+    Natives.OleAut32 wasLib;
+    boolean wasEnabled;
+
+    @Before public void pretendComIsInitialized() {
+        ComObject.comInitialized.set(true);
+        wasLib = Natives.oleaut32;
+        wasEnabled = ErrorInfo.enabled;
+    }
+
+    @After public void restoreErrorInfo() {
+        Natives.oleaut32 = wasLib;
+        ErrorInfo.enabled = wasEnabled;
+    }
+
+    void fakeErrorInfo() {
+        Natives.oleaut32 = oleaut32;
+        ErrorInfo.enabled = true;
+    }
+
+    static ComException failure(Runnable r) {
+        try {
+            r.run();
+        } catch (ComException ex) {
+            return ex;
+        }
+        throw new AssertionError("no ComException");
+    }
+
+    @Test public void testMessage() {
+        final ICalc c = calc.wrap(ICalc.class);
+        ComException ex = failure(new Runnable() {
+            public void run() {
+                c.fail();
+            }
+        });
+        assertEquals(HResult.E_NOTIMPL, ex.getHRESULT());
+        assertEquals(0, ex.getFacility());
+        assertEquals(0x4001, ex.getCode());
+        assertEquals("Invocation of \"fail\" failed, hresult=0x80004001 (E_NOTIMPL)", ex.getMessage());
+        assertNull(ex.getDescription());
+        assertTrue(ex.getStackTrace().length > 0);
+        assertEquals("plain", new ComException("plain", 1).getMessage());
+    }
+
+    @Test public void testStacklessMethod() {
+        final IProbe p = calc.wrap(IProbe.class);
+        ComException ex = failure(new Runnable() {
+            public void run() {
+                p.fail();
+            }
+        });
+        assertEquals(0, ex.getStackTrace().length);
+        assertEquals(HResult.E_NOTIMPL, ex.getHRESULT());
+        ex = failure(new Runnable() {
+            public void run() {
+                p.failOther();
+            }
+        });
+        assertTrue("only E_NOINTERFACE is stackless", ex.getStackTrace().length > 0);
+    }
+
+    @Test public void testStacklessHRESULT() {
+        final ICalc c = calc.wrap(ICalc.class);
+        Runnable fail = new Runnable() {
+            public void run() {
+                c.fail();
+            }
+        };
+        ComException.setStackless(HResult.E_NOTIMPL, true);
+        try {
+            assertEquals(0, failure(fail).getStackTrace().length);
+        } finally {
+            ComException.setStackless(HResult.E_NOTIMPL, false);
+        }
+        assertTrue(failure(fail).getStackTrace().length > 0);
+    }
+
+    @Test public void testErrorInfoKeptWhenSupported() {
+        fakeErrorInfo();
+        supported = true;
+        final IFailing f = failing.wrap(IFailing.class);
+        failure(new Runnable() {
+            public void run() {
+                f.fail();
+            }
+        });
+        assertEquals(1, asked);
+        // held by the exception
+        assertEquals(1, info.refCount);
+        assertNull(oleaut32.pending);
+        // the ISupportErrorInfo asked for was released
+        assertEquals(1, failing.refCount);
+        f.dispose();
+    }
+
+    @Test public void testErrorInfoSupportAskedOnce() {
+        fakeErrorInfo();
+        supported = true;
+        final IFailing f = failing.wrap(IFailing.class);
+        Runnable fail = new Runnable() {
+            public void run() {
+                f.fail();
+            }
+        };
+        failure(fail);
+        failure(fail);
+        assertEquals(1, asked);
+        f.dispose();
+    }
+
+    @Test public void testUnreadErrorInfoIsReleased() throws InterruptedException {
+        fakeErrorInfo();
+        supported = true;
+        final IFailing f = failing.wrap(IFailing.class);
+        long drained = ComObject.getDrainedReleaseCount();
+        failure(new Runnable() {
+            public void run() {
+                f.fail();
+            }
+        });
+        assertEquals(1, info.refCount);
+        ReleaseQueueTest.collect(drained, 1);
+        assertEquals(0, info.refCount);
+        f.dispose();
+    }
+
+    @Test public void testErrorInfoDroppedWhenNotSupported() {
+        fakeErrorInfo();
+        final IFailing f = failing.wrap(IFailing.class);
+        ComException ex = failure(new Runnable() {
+            public void run() {
+                f.fail();
+            }
+        });
+        assertEquals(1, asked);
+        assertEquals(0, info.refCount);
+        assertNull(ex.getDescription());
+        f.dispose();
+    }
+
+    @Test public void testStacklessFailureClearsErrorInfo() {
+        fakeErrorInfo();
+        supported = true;
+        final IFailing f = failing.wrap(IFailing.class);
+        failure(new Runnable() {
+            public void run() {
+                f.failQuietly();
+            }
+        });
+        assertEquals(0, asked);
+        assertEquals(0, info.refCount);
+        assertNull(oleaut32.pending);
+        f.dispose();
+    }
+
+    @Test public void testDecode() {
+        assertEquals("E_NOINTERFACE", HResult.describe(HResult.E_NOINTERFACE));
+        assertEquals("E_ACCESSDENIED", HResult.name(0x80070005));
+        assertEquals(7, HResult.facility(0x80070002));
+        assertEquals(2, HResult.code(0x80070002));
+        assertEquals("FACILITY_WIN32 code 2", HResult.describe(0x80070002));
+        assertEquals("facility 1234 code 1", HResult.describe(0x84D20001));
+        assertTrue(HResult.failed(HResult.E_FAIL));
+        assertFalse(HResult.failed(HResult.S_FALSE));
+    }
+
+    @Test public void testRpcNames() {
+        assertEquals("RPC_E_SERVER_DIED", HResult.name(0x80010007));
+        assertEquals("RPC_E_DISCONNECTED", HResult.name(0x80010108));
+        assertEquals("RPC_E_CHANGED_MODE", HResult.name(0x80010106));
+        assertEquals("RPC_E_WRONG_THREAD", HResult.name(0x8001010E));
+        assertEquals(1, HResult.facility(0x80010108));
+        assertEquals("FACILITY_RPC", HResult.facilityName(0x80010108));
+    }
+}
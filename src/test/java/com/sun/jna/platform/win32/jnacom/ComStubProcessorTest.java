@@ -0,0 +1,181 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.jnacom.ComCallTest.ICalc;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The test interfaces are compiled with {@link ComStubProcessor}, so every
+ * other test already calls through stubs; this checks they are picked and
+ * that bad annotations fail the compile.
+ * @author scott.palmer
+ */
+public class ComStubProcessorTest {
+
+    final FakeComObject calc = new ComCallTest().calc;
+
+    @Before public void pretendComIsInitialized() {
+        ComObject.comInitialized.set(true);
+    }
+
+    @After public void restore() {
+        ComObject.compiledStubs = true;
+    }
+
+    @Test public void testWrapPrefersTheStub() {
+        ICalc c = calc.wrap(ICalc.class);
+        assertEquals(ICalc.class.getName() + "$$ComStub", c.getClass().getName());
+        assertEquals(42, c.twice(21));
+        ICalc other = c.queryInterface(ICalc.class);
+        assertSame(c.getClass(), other.getClass());
+        other.dispose();
+        c.dispose();
+        assertEquals(0, calc.refCount);
+
+        ComObject.compiledStubs = false;
+        c = calc.wrap(ICalc.class);
+        assertTrue(Proxy.isProxyClass(c.getClass()));
+        c.dispose();
+    }
+
+    @Test public void testStubTableMatchesAnnotations() {
+        String[] table = MethodTable.table(ComStubs.stubClass(ComExceptionTest.IProbe.class));
+        assertTrue(Arrays.asList(table).contains("fail() 5 s"));
+        assertTrue(Arrays.asList(table).contains("failOther() 5 s" + HResult.E_NOINTERFACE));
+    }
+
+    @Test public void testSharedSlotNeedsOneSignature() throws IOException {
+        String errors = compile("IBad",
+                "@IID(\"{11111111-2222-3333-4444-555555555555}\")\n"
+                + "public interface IBad extends IUnknown {\n"
+                + "    @VTID(3) int a();\n"
+                + "    @VTID(3) int b();\n"
+                + "    @VTID(4) void c(int x);\n"
+                + "    @VTID(4) void d(long x);\n"
+                + "}\n");
+        assertFalse(errors, errors.contains("@VTID(3)"));
+        assertTrue(errors, errors.contains("@VTID(4) is used by both c and d"));
+    }
+
+    @Test public void testSlotsAndReturnValues() throws IOException {
+        String errors = compile("IWorse",
+                "@IID(\"{11111111-2222-3333-4444-666666666666}\")\n"
+                + "public interface IWorse extends IUnknown {\n"
+                + "    @VTID(1) int a();\n"
+                + "    @VTID(5) @ReturnValue(inout = true, index = 2) IUnknown b(com.sun.jna.Pointer p);\n"
+                + "}\n");
+        assertTrue(errors, errors.contains("@VTID(1) of a belongs to IUnknown"));
+        assertTrue(errors, errors.contains("@ReturnValue index 2 of b is not a parameter"));
+    }
+
+    @Test public void testStaleStubIsIgnored() throws Exception {
+        String source = "@IID(\"{11111111-2222-3333-4444-777777777777}\")\n"
+                + "public interface IStale extends IUnknown {\n"
+                + "    @VTID(3) int a();\n"
+                + "}\n";
+        assertEquals("", compile("IStale", source));
+        File classes = new File("target/stub-test/IStale/classes");
+        String config = read(new File(classes,
+                "META-INF/native-image/com4jna/com.sun.jna.platform.win32.jnacom/reflect-config.json"));
+        assertTrue(config, config.contains("\"com.sun.jna.platform.win32.jnacom.IStale$$ComStub\""));
+
+        ClassLoader loader = new URLClassLoader(new URL[] {classes.toURI().toURL()}, getClass().getClassLoader());
+        IUnknown fresh = ComObject.wrapNativeInterface(calc.object,
+                loader.loadClass("com.sun.jna.platform.win32.jnacom.IStale").asSubclass(IUnknown.class));
+        assertTrue(fresh.getClass().getName().endsWith(ComStubs.SUFFIX));
+        fresh.dispose();
+
+        // a method is renamed, and the interface compiled without the processor
+        assertEquals("", compile("IStale", source.replace("int a()", "int b()"), "-proc:none"));
+        loader = new URLClassLoader(new URL[] {classes.toURI().toURL()}, getClass().getClassLoader());
+        Class<? extends IUnknown> stale = loader.loadClass("com.sun.jna.platform.win32.jnacom.IStale")
+                .asSubclass(IUnknown.class);
+        assertNotNull(ComStubs.stubClass(stale));
+        calc.refCount++;
+        IUnknown p = ComObject.wrapNativeInterface(calc.object, stale);
+        assertFalse(p.getClass().getName().endsWith(ComStubs.SUFFIX));
+        p.dispose();
+        assertEquals(0, calc.refCount);
+    }
+
+    @Test public void testStubTableOnlyWithStub() {
+        // described from the annotations, not from a stub that isn't used
+        assertNull(MethodTable.of(ICalc.class));
+        ComObject.compiledStubs = false;
+        ICalc c = calc.wrap(ICalc.class);
+        assertEquals(42, c.twice(21));
+        c.dispose();
+    }
+
+    private static String read(File f) throws IOException {
+        Reader r = new InputStreamReader(new FileInputStream(f), "UTF-8");
+        try {
+            StringBuilder b = new StringBuilder();
+            char[] buf = new char[4096];
+            for (int n; (n = r.read(buf)) > 0;)
+                b.append(buf, 0, n);
+            return b.toString();
+        } finally {
+            r.close();
+        }
+    }
+
+    /** Compiles a source in this package with the processor, returning the errors. */
+    private static String compile(String name, String body, String... options) throws IOException {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        assumeTrue(javac != null);
+        File dir = new File("target/stub-test/" + name);
+        File pkg = new File(dir, "src/com/sun/jna/platform/win32/jnacom");
+        pkg.mkdirs();
+        File source = new File(pkg, name + ".java");
+        Writer w = new FileWriter(source);
+        try {
+            w.write("package com.sun.jna.platform.win32.jnacom;\n\n" + body);
+        } finally {
+            w.close();
+        }
+        new File(dir, "classes").mkdirs();
+        StringWriter out = new StringWriter();
+        String classpath;
+        try {
+            classpath = new File(IUnknown.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath()
+                    + File.pathSeparator + new File(Pointer.class.getProtectionDomain()
+                    .getCodeSource().getLocation().toURI()).getPath();
+        } catch (URISyntaxException ex) {
+            throw new IOException(ex.toString());
+        }
+        List<String> args = new ArrayList<String>(Arrays.asList("-d", new File(dir, "classes").getPath(),
+                "-s", new File(dir, "classes").getPath(), "-classpath", classpath,
+                "-processor", ComStubProcessor.class.getName()));
+        args.addAll(Arrays.asList(options));
+        javac.getTask(out, null, null, args,
+                null, javac.getStandardFileManager(null, null, null).getJavaFileObjects(source)).call();
+        return out.toString();
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Calls a {@link FakeComObject} that implements IDispatch by hand, reading
+ * DISPPARAMS and writing the result VARIANT itself.
+ * @author scott.palmer
+ */
+public class DispatchTest {
+
+    public interface NotImplemented extends Callback {
+        int invoke(Pointer self, Pointer a, Pointer b, Pointer c);
+    }
+
+    public interface GetTypeInfoCount extends Callback {
+        int invoke(Pointer self, Pointer pctinfo);
+    }
+
+    public interface GetTypeInfo extends Callback {
+        int invoke(Pointer self, int iTInfo, int lcid, Pointer ppTInfo);
+    }
+
+    public interface GetTypeAttr extends Callback {
+        int invoke(Pointer self, Pointer ppTypeAttr);
+    }
+
+    public interface ReleaseTypeAttr extends Callback {
+        void invoke(Pointer self, Pointer pTypeAttr);
+    }
+
+    public interface GetIDsOfNames extends Callback {
+        int invoke(Pointer self, Pointer riid, Pointer names, int count, int lcid, Pointer ids);
+    }
+
+    public interface Invoke extends Callback {
+        int invoke(Pointer self, int dispId, Pointer riid, int lcid, short flags, Pointer params,
+                Pointer result, Pointer excepInfo, Pointer argErr);
+    }
+
+    static final String[] NAMES = {"", "Combine", "Length", "Fail", "Value", "Self", "IsEven"};
+    static final int P = Pointer.SIZE;
+
+    int lookups;
+    double value;
+    /** what GetTypeInfoCount says; 0 for an object without type information */
+    int typeInfoCount = 1;
+    static long types;
+    /** TYPEATTRs handed out and not released */
+    int typeAttrs;
+    /** the TYPEATTR, of which only the GUID is filled in */
+    final Memory typeAttr = new Memory(16);
+    final FakeComObject typeInfo = new FakeComObject(typeInfoSlots());
+    final Callback[] dispatchSlots = {
+            new GetTypeInfoCount() {
+                public int invoke(Pointer self, Pointer pctinfo) {
+                    pctinfo.setInt(0, typeInfoCount);
+                    return 0;
+                }
+            },
+            new GetTypeInfo() {
+                public int invoke(Pointer self, int iTInfo, int lcid, Pointer ppTInfo) {
+                    typeInfo.refCount++;
+                    ppTInfo.setPointer(0, typeInfo.object);
+                    return 0;
+                }
+            },
+            new GetIDsOfNames() {
+                public int invoke(Pointer self, Pointer riid, Pointer names, int count, int lcid, Pointer ids) {
+                    lookups++;
+                    String name = StringArena.fromWide(names.getPointer(0));
+                    for (int i = 1; i < NAMES.length; i++) {
+                        if (NAMES[i].equalsIgnoreCase(name)) {
+                            ids.setInt(0, i);
+                            return 0;
+                        }
+                    }
+                    return 0x80020006; // DISP_E_UNKNOWNNAME
+                }
+            },
+            new Invoke() {
+                public int invoke(Pointer self, int dispId, Pointer riid, int lcid, short flags, Pointer params,
+                        Pointer result, Pointer excepInfo, Pointer argErr) {
+                    return dispatch(self, dispId, flags, params, result, excepInfo, argErr);
+                }
+            }};
+    final FakeComObject fake = new FakeComObject(dispatchSlots);
+    Dispatch d;
+
+    Callback[] typeInfoSlots() {
+        Callback[] slots = new Callback[17];
+        slots[0] = new GetTypeAttr() {
+            public int invoke(Pointer self, Pointer ppTypeAttr) {
+                typeAttrs++;
+                ppTypeAttr.setPointer(0, typeAttr);
+                return 0;
+            }
+        };
+        for (int i = 1; i < 16; i++) {
+            slots[i] = new NotImplemented() {
+                public int invoke(Pointer self, Pointer a, Pointer b, Pointer c) {
+                    return HResult.E_NOTIMPL;
+                }
+            };
+        }
+        slots[16] = new ReleaseTypeAttr() {
+            public void invoke(Pointer self, Pointer pTypeAttr) {
+                assertEquals(typeAttr, pTypeAttr);
+                typeAttrs--;
+            }
+        };
+        return slots;
+    }
+
+    @Before public void setUp() {
+        // a type of its own, as the DISPIDs of a type are kept for good
+        typeAttr.setLong(0, 0x4a3b2c1d5e6f7081L);
+        typeAttr.setLong(8, ++types);
+        typeInfo.refCount = 0;
+        ComObject.comInitialized.set(true);
+        IUnknown unknown = fake.wrap(IUnknown.class);
+        d = Dispatch.of(unknown);
+        unknown.dispose();
+    }
+
+    @After public void tearDown() {
+        d.dispose();
+        assertEquals(0, fake.refCount);
+        assertEquals(0, typeInfo.refCount);
+        assertEquals(0, typeAttrs);
+    }
+
+    /** Another object of the same class as the fake. */
+    Dispatch another() {
+        Memory other = new Memory(P);
+        other.setPointer(0, fake.object.getPointer(0));
+        fake.refCount++;
+        return new Dispatch(ComObject.wrapNativeInterface(other, IDispatch.class));
+    }
+
+    int dispatch(Pointer self, int dispId, short flags, Pointer params, Pointer result,
+            Pointer excepInfo, Pointer argErr) {
+        Pointer args = params.getPointer(0);
+        int count = params.getInt(2 * P);
+        int named = params.getInt(2 * P + 4);
+        switch (dispId) {
+            case 1: // Combine(a, b), arrives as b, a
+                if (count != 2 || args.getShort(0) != Variant.VT_I4) {
+                    argErr.setInt(0, 0);
+                    return 0x80020005; // DISP_E_TYPEMISMATCH
+                }
+                result.setShort(0, Variant.VT_I4);
+                result.setInt(8, 10 * args.getInt(Variant.SIZE + 8) + args.getInt(8));
+                return 0;
+            case 2: // Length(s)
+                assertEquals(Variant.VT_BSTR, args.getShort(0));
+                result.setShort(0, Variant.VT_I4);
+                result.setInt(8, StringArena.fromBSTR(args.getPointer(8)).length());
+                return 0;
+            case 3: // Fail()
+                excepInfo.setInt(7 * P, HResult.E_ACCESSDENIED);
+                return 0x80020009; // DISP_E_EXCEPTION
+            case 4: // Value
+                if ((flags & Dispatch.PROPERTYPUT) != 0) {
+                    assertEquals(1, named);
+                    assertEquals(-3, params.getPointer(P).getInt(0));
+                    assertNull(result);
+                    value = args.getShort(0) == Variant.VT_R8 ? args.getDouble(8) : args.getInt(8);
+                } else {
+                    result.setShort(0, Variant.VT_R8);
+                    result.setDouble(8, value);
+                }
+                return 0;
+            case 5: // Self
+                fake.refCount++;
+                result.setShort(0, Variant.VT_DISPATCH);
+                result.setPointer(8, self);
+                return 0;
+            case 6: // IsEven(n)
+                result.setShort(0, Variant.VT_BOOL);
+                result.setShort(8, (short) (args.getInt(8) % 2 == 0 ? -1 : 0));
+                return 0;
+            default:
+                return 0x80020003; // DISP_E_MEMBERNOTFOUND
+        }
+    }
+
+    @Test public void testCallsByName() {
+        assertEquals(42, d.invoke("Combine", 4, 2));
+        assertEquals(5, d.invoke("Length", "h\u00e9llo"));
+        assertEquals(Boolean.TRUE, d.invoke("IsEven", 8));
+        assertEquals(Boolean.FALSE, d.invoke("IsEven", 7));
+    }
+
+    @Test public void testProperties() {
+        d.put("Value", 2.5);
+        assertEquals(2.5, d.get("Value"));
+        d.put("Value", 3);
+        assertEquals(3.0, d.get("Value"));
+    }
+
+    @Test public void testDispIdsAreCachedPerType() {
+        int before = lookups;
+        for (int i = 0; i < 10; i++)
+            d.invoke("Combine", 1, i);
+        assertEquals(before + 1, lookups);
+
+        // another object of the same type finds the name already known
+        Dispatch d2 = another();
+        assertEquals(12, d2.invoke("Combine", 1, 2));
+        assertEquals(before + 1, lookups);
+        d2.dispose();
+
+        // the same type under another vtable still shares it
+        FakeComObject other = new FakeComObject(dispatchSlots);
+        Dispatch d3 = new Dispatch(other.wrap(IDispatch.class));
+        assertEquals(12, d3.invoke("Combine", 1, 2));
+        assertEquals(before + 1, lookups);
+        d3.dispose();
+    }
+
+    @Test public void testNamesIgnoreCase() {
+        int before = lookups;
+        assertEquals(42, d.invoke("Combine", 4, 2));
+        assertEquals(42, d.invoke("COMBINE", 4, 2));
+        assertEquals(42, d.invoke("combine", 4, 2));
+        assertEquals(before + 1, lookups);
+    }
+
+    @Test public void testWithoutTypeInfoCachesPerObject() {
+        typeInfoCount = 0;
+        int before = lookups;
+        assertEquals(42, d.invoke("Combine", 4, 2));
+        assertEquals(42, d.invoke("Combine", 4, 2));
+        assertEquals(before + 1, lookups);
+
+        // the same vtable does not make the same members
+        Dispatch d2 = another();
+        assertEquals(12, d2.invoke("Combine", 1, 2));
+        assertEquals(before + 2, lookups);
+        d2.dispose();
+    }
+
+    @Test public void testByDispIdNeedsNoType() {
+        assertEquals(42, d.invoke(1, Dispatch.METHOD, 4, 2));
+        assertEquals(0, typeInfo.refCount);
+        assertEquals(0, typeAttrs);
+    }
+
+    @Test public void testReturnedDispatch() {
+        Dispatch self = (Dispatch) d.invoke("Self");
+        assertEquals(2, fake.refCount);
+        assertEquals(73, self.invoke("Combine", 7, 3));
+        self.dispose();
+        assertEquals(1, fake.refCount);
+    }
+
+    @Test public void testFailures() {
+        try {
+            d.invoke("Fail");
+            fail();
+        } catch (ComException ex) {
+            assertEquals(HResult.E_ACCESSDENIED, ex.getHRESULT());
+        }
+        try {
+            d.invoke("NoSuchThing");
+            fail();
+        } catch (ComException ex) {
+            assertEquals(0x80020006, ex.getHRESULT());
+        }
+        try {
+            d.invoke("Combine", "a", "b");
+            fail();
+        } catch (ComException ex) {
+            assertEquals(0x80020005, ex.getHRESULT());
+            assertTrue(ex.getMessage(), ex.getMessage().contains("argument 1"));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * A native object with a COM style vtable made of JNA callbacks, so that the
+ * call path can be tested without Windows.  Slots 0 to 2 implement IUnknown
+ * (QueryInterface hands back the same object for any IID), the callbacks
+ * given to the constructor fill slots 3 and up.
+ *
+ * <p>
+ * The object is never freed, as wrappers that were not disposed may still
+ * call Release on it whenever they are collected.
+ *
+ * @author scott.palmer
+ */
+class FakeComObject {
+    public interface QueryInterface extends Callback {
+        int invoke(Pointer self, Pointer riid, Pointer ppvObject);
+    }
+
+    public interface AddRefOrRelease extends Callback {
+        int invoke(Pointer self);
+    }
+
+    /** Used to get at the native address of a callback. */
+    public static class FunctionPointer extends Structure {
+        public Callback fn;
+    }
+
+    private static final List<FakeComObject> all = new Vector<FakeComObject>();
+
+    final Memory object = new Memory(Pointer.SIZE);
+    private final Memory vtable;
+    private final Callback[] slots;
+    int refCount = 1;
+    /** the number of QueryInterface calls, and what they return */
+    int queries;
+    int queryResult = 0;
+
+    FakeComObject(Callback... methods) {
+        slots = new Callback[3 + methods.length];
+        slots[0] = new QueryInterface() {
+            public int invoke(Pointer self, Pointer riid, Pointer ppvObject) {
+                queries++;
+                if (queryResult != 0)
+                    return queryResult;
+                refCount++;
+                ppvObject.setPointer(0, object);
+                return 0;
+            }
+        };
+        slots[1] = new AddRefOrRelease() {
+            public int invoke(Pointer self) {
+                return ++refCount;
+            }
+        };
+        slots[2] = new AddRefOrRelease() {
+            public int invoke(Pointer self) {
+                return --refCount;
+            }
+        };
+        System.arraycopy(methods, 0, slots, 3, methods.length);
+
+        vtable = new Memory(slots.length * Pointer.SIZE);
+        for (int i = 0; i < slots.length; i++)
+            vtable.setPointer(i * Pointer.SIZE, functionPointer(slots[i]));
+        object.setPointer(0, vtable);
+        all.add(this);
+    }
+
+    static Pointer functionPointer(Callback cb) {
+        FunctionPointer fp = new FunctionPointer();
+        fp.fn = cb;
+        fp.write();
+        return fp.getPointer().getPointer(0);
+    }
+
+    <T extends IUnknown> T wrap(Class<T> intrface) {
+        return ComObject.wrapNativeInterface(object, intrface);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.platform.win32.Guid;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/** @author scott.palmer */
+public class GuidsTest {
+
+    @Test public void testParse() {
+        Guid.GUID g = Guids.parse("{000214E6-0000-0000-C000-000000000046}");
+        assertEquals(0x000214E6, g.Data1);
+        assertEquals(0, g.Data2);
+        assertEquals(0, g.Data3);
+        assertArrayEquals(new byte[] {(byte) 0xC0, 0, 0, 0, 0, 0, 0, 0x46}, g.Data4);
+
+        g = Guids.parse("b196b284-bab4-101a-b69c-00dd010ef0a7");
+        assertEquals(0xB196B284, g.Data1);
+        assertEquals((short) 0xBAB4, g.Data2);
+        assertEquals(0x101A, g.Data3);
+        assertArrayEquals(new byte[] {(byte) 0xB6, (byte) 0x9C, 0, (byte) 0xDD, 1, 0x0E, (byte) 0xF0, (byte) 0xA7}, g.Data4);
+    }
+
+    @Test public void testNativeLayout() {
+        Guid.GUID g = Guids.parse("{01234567-89AB-CDEF-0123-456789ABCDEF}");
+        // Data1..3 are stored in native byte order, Data4 as is
+        assertEquals(0x01234567, g.getPointer().getInt(0));
+        assertEquals((short) 0x89AB, g.getPointer().getShort(4));
+        assertEquals((short) 0xCDEF, g.getPointer().getShort(6));
+        assertEquals((byte) 0x01, g.getPointer().getByte(8));
+        assertEquals((byte) 0xEF, g.getPointer().getByte(15));
+    }
+
+    @Test public void testRejectsMalformed() {
+        String[] bad = {"", "{}", "{000214E6-0000-0000-C000-00000000004}",
+                "{000214E6-0000-0000-C000-00000000004G}", "000214E6+0000-0000-C000-000000000046"};
+        for (String s : bad) {
+            try {
+                Guids.parse(s);
+                fail("Should not parse " + s);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test public void testCached() {
+        assertSame(Guids.iid(IUnknown.class), Guids.iid(IUnknown.class));
+        assertSame(Guids.iid(IShellFolder_.class).getPointer(), Guids.iidPointer(IShellFolder_.class));
+        assertEquals(0x000214E6, Guids.iidPointer(IShellFolder_.class).getInt(0));
+        assertNull(Guids.iid(Runnable.class));
+        assertSame(Guids.clsid("{6BF52A52-394A-11D3-B153-00C04F79FAA6}"),
+                Guids.clsid("{6BF52A52-394A-11D3-B153-00C04F79FAA6}"));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.platform.win32.jnacom.ProxyCacheTest.IOther;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/** @author scott.palmer */
+public class InterfaceCacheTest {
+
+    FakeComObject fake = new FakeComObject();
+    IUnknown unknown;
+    boolean wasCaching;
+
+    @Before public void setUp() {
+        ComObject.comInitialized.set(true);
+        wasCaching = ComObject.cacheInterfaces;
+        ComObject.cacheInterfaces = true;
+        unknown = fake.wrap(IUnknown.class);
+    }
+
+    @After public void tearDown() {
+        ComObject.cacheInterfaces = wasCaching;
+    }
+
+    @Test public void testAskedOnce() {
+        IOther first = unknown.queryInterface(IOther.class);
+        first.dispose();
+        // held by the cache
+        assertEquals(2, fake.refCount);
+
+        IOther second = unknown.queryInterface(IOther.class);
+        assertSame(first, second);
+        assertEquals(1, fake.queries);
+        assertEquals(HResult.S_OK, ComObject.getLastHRESULT());
+        second.dispose();
+        assertEquals(2, fake.refCount);
+
+        unknown.dispose();
+        assertEquals(0, fake.refCount);
+    }
+
+    @Test public void testInterfaceOutlivesTheCache() {
+        IOther other = unknown.queryInterface(IOther.class);
+        unknown.dispose();
+        assertEquals(1, fake.refCount);
+        assertEquals(2, other.addRef());
+        other.release();
+        other.dispose();
+        assertEquals(0, fake.refCount);
+    }
+
+    @Test public void testNoInterfaceIsRemembered() {
+        fake.queryResult = HResult.E_NOINTERFACE;
+        for (int i = 0; i < 3; i++) {
+            try {
+                unknown.queryInterface(IOther.class);
+                fail();
+            } catch (ComException ex) {
+                assertEquals(HResult.E_NOINTERFACE, ex.getHRESULT());
+                // a remembered answer costs no stack trace
+                if (i > 0)
+                    assertEquals(0, ex.getStackTrace().length);
+            }
+        }
+        assertEquals(1, fake.queries);
+        assertEquals(HResult.E_NOINTERFACE, ComObject.getLastHRESULT());
+        unknown.dispose();
+        assertEquals(0, fake.refCount);
+    }
+
+    @Test public void testOtherFailuresAreNot() {
+        fake.queryResult = HResult.E_FAIL;
+        for (int i = 0; i < 2; i++) {
+            try {
+                unknown.queryInterface(IOther.class);
+                fail();
+            } catch (ComException ex) {
+                assertEquals(HResult.E_FAIL, ex.getHRESULT());
+            }
+        }
+        assertEquals(2, fake.queries);
+        unknown.dispose();
+    }
+
+    @Test public void testWithCanonicalProxies() {
+        boolean wasCanonical = ComObject.canonicalProxies;
+        ComObject.canonicalProxies = true;
+        unknown.dispose();
+        fake = new FakeComObject();
+        unknown = fake.wrap(IUnknown.class);
+        try {
+            IOther other = unknown.queryInterface(IOther.class);
+            // asking back for the first interface hands out the proxy in use
+            assertSame(unknown, other.queryInterface(IUnknown.class));
+            assertSame(unknown, other.queryInterface(IUnknown.class));
+            assertEquals(2, fake.queries);
+            unknown.dispose();
+            unknown.dispose();
+            other.dispose();
+            // the first is still in use, and its cache holds the other
+            assertEquals(2, fake.refCount);
+            unknown.dispose();
+            assertEquals(0, fake.refCount);
+        } finally {
+            ComObject.canonicalProxies = wasCanonical;
+        }
+    }
+
+    @Test public void testOff() {
+        ComObject.cacheInterfaces = false;
+        unknown.queryInterface(IOther.class).dispose();
+        unknown.queryInterface(IOther.class).dispose();
+        assertEquals(2, fake.queries);
+        assertEquals(1, fake.refCount);
+        unknown.dispose();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.platform.win32.jnacom.ComCallTest.ICalc;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/** @author scott.palmer */
+public class InvokeAsyncTest {
+
+    final FakeComObject calc = new ComCallTest().calc;
+    Method twice, fail;
+
+    @Before public void setUp() throws NoSuchMethodException {
+        ComObject.comInitialized.set(true);
+        twice = ICalc.class.getMethod("twice", int.class);
+        fail = ICalc.class.getMethod("fail");
+    }
+
+    @Test public void testInlineCallIsComplete() throws Exception {
+        ICalc c = calc.wrap(ICalc.class);
+        CompletableFuture<Object> f = ComObject.invokeAsync(c, twice, 21);
+        assertTrue(f.isDone());
+        assertEquals(42, f.get());
+    }
+
+    @Test public void testFailurePropagatesHRESULT() throws Exception {
+        ICalc c = calc.wrap(ICalc.class);
+        CompletableFuture<Object> f = ComObject.invokeAsync(c, fail);
+        assertTrue(f.isCompletedExceptionally());
+        try {
+            f.get();
+            fail();
+        } catch (ExecutionException ex) {
+            assertEquals(ComCallTest.E_NOTIMPL, ((ComException) ex.getCause()).getHRESULT());
+        }
+    }
+
+    @Test public void testQueuedCallsRunInOrder() throws Throwable {
+        Apartment apartment = new Apartment(ApartmentTest.threads);
+        apartment.call(new Callable<Object>() {
+            public Object call() {
+                ComObject.comInitialized.set(true);
+                return null;
+            }
+        });
+        ICalc c = calc.wrap(ICalc.class);
+        ComObject target = ComObject.of(c);
+        ComMethod call = ComMethod.of(twice);
+        CompletableFuture<?>[] results = new CompletableFuture<?>[100];
+        for (int i = 0; i < results.length; i++)
+            results[i] = apartment.invokeAsync(target, c, call, new Object[] {i});
+        CompletableFuture<Object> failed = apartment.invokeAsync(target, c, ComMethod.of(fail), null);
+        for (int i = 0; i < results.length; i++)
+            assertEquals(2 * i, results[i].get());
+        try {
+            failed.get();
+            fail();
+        } catch (ExecutionException ex) {
+            assertEquals(ComCallTest.E_NOTIMPL, ((ComException) ex.getCause()).getHRESULT());
+        }
+    }
+}
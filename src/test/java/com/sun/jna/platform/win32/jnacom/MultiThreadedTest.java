@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.Guid.GUID;
+import com.sun.jna.platform.win32.Ole32;
+import com.sun.jna.platform.win32.WinNT.HRESULT;
+import com.sun.jna.platform.win32.jnacom.ComCallTest.ICalc;
+import com.sun.jna.ptr.PointerByReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs multi threaded mode against an Ole32 stand-in that counts calls.
+ * @author scott.palmer
+ */
+public class MultiThreadedTest {
+
+    final FakeComObject calc = new ComCallTest().calc;
+    int initialized, uninitialized;
+    int initResult;
+
+    @Before public void setUp() {
+        ComObject.multiThreaded = true;
+        ComObject.OLE32 = new Ole32() {
+            public HRESULT CoInitializeEx(Pointer reserved, int coInit) {
+                assertEquals(ComObject.COINIT_MULTITHREADED, coInit);
+                initialized++;
+                return new HRESULT(initResult);
+            }
+
+            public void CoUninitialize() {
+                uninitialized++;
+            }
+
+            public HRESULT CoCreateGuid(GUID.ByReference pguid) {
+                throw new UnsupportedOperationException();
+            }
+
+            public int StringFromGUID2(GUID.ByReference rguid, char[] lpsz, int cchMax) {
+                throw new UnsupportedOperationException();
+            }
+
+            public HRESULT IIDFromString(String lpsz, GUID.ByReference lpiid) {
+                throw new UnsupportedOperationException();
+            }
+
+            public HRESULT CoCreateInstance(GUID rclsid, Pointer pUnkOuter, int dwClsContext,
+                    GUID riid, PointerByReference ppv) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @After public void tearDown() {
+        ComObject.multiThreaded = false;
+        ComObject.OLE32 = null;
+    }
+
+    /** Runs the given code on a new thread that has not initialized COM. */
+    static void onNewThread(Runnable r) throws InterruptedException {
+        final Throwable[] failure = new Throwable[1];
+        final Runnable code = r;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    code.run();
+                } catch (Throwable ex) {
+                    failure[0] = ex;
+                }
+            }
+        });
+        t.start();
+        t.join();
+        if (failure[0] != null)
+            throw new AssertionError(failure[0]);
+    }
+
+    @Test public void testThreadJoinsOnFirstUse() throws InterruptedException {
+        onNewThread(new Runnable() {
+            public void run() {
+                assertFalse(ComObject.isComInitialized());
+                ICalc c = calc.wrap(ICalc.class);
+                assertEquals(4, c.twice(2));
+                assertEquals(6, c.twice(3));
+                assertTrue(ComObject.isComInitialized());
+                assertEquals(1, initialized);
+                c.dispose();
+                ComObject.uninitializeCOM();
+                assertFalse(ComObject.isComInitialized());
+                assertEquals(1, uninitialized);
+                ComObject.uninitializeCOM();
+                assertEquals(1, uninitialized);
+            }
+        });
+    }
+
+    @Test public void testUninitializeOnExit() throws InterruptedException {
+        onNewThread(ComObject.uninitializeOnExit(new Runnable() {
+            public void run() {
+                calc.wrap(ICalc.class).dispose();
+            }
+        }));
+        assertEquals(1, initialized);
+        assertEquals(1, uninitialized);
+    }
+
+    @Test public void testThreadInOtherApartment() throws InterruptedException {
+        initResult = ComObject.RPC_E_CHANGED_MODE;
+        onNewThread(ComObject.uninitializeOnExit(new Runnable() {
+            public void run() {
+                assertEquals(2, calc.wrap(ICalc.class).twice(1));
+            }
+        }));
+        assertEquals(1, initialized);
+        assertEquals(0, uninitialized);
+    }
+}
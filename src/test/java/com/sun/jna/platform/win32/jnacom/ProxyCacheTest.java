@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/** @author scott.palmer */
+public class ProxyCacheTest {
+
+    @IID("{5B0E7C21-9D4A-4F63-8E1B-3A7C2D9F0E46}")
+    public interface IOther extends IUnknown {
+    }
+
+    FakeComObject fake = new FakeComObject();
+    boolean wasCanonical;
+
+    @Before public void setUp() {
+        ComObject.comInitialized.set(true);
+        wasCanonical = ComObject.canonicalProxies;
+        ComObject.canonicalProxies = true;
+    }
+
+    @After public void tearDown() {
+        ComObject.canonicalProxies = wasCanonical;
+    }
+
+    /** Wraps the fake once more, with a reference of the caller's. */
+    IUnknown wrapAgain() {
+        fake.refCount++;
+        return fake.wrap(IUnknown.class);
+    }
+
+    @Test public void testSamePointerSameProxy() {
+        IUnknown first = fake.wrap(IUnknown.class);
+        IUnknown second = wrapAgain();
+        assertSame(first, second);
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+        // the reference that came with the second pointer was given back
+        assertEquals(1, fake.refCount);
+
+        second.dispose();
+        assertEquals(1, fake.refCount);
+        first.dispose();
+        assertEquals(0, fake.refCount);
+    }
+
+    @Test public void testDisposedProxyIsNotHandedOut() {
+        IUnknown first = fake.wrap(IUnknown.class);
+        first.dispose();
+        IUnknown second = wrapAgain();
+        assertNotSame(first, second);
+        assertEquals(1, fake.refCount);
+        second.dispose();
+        assertEquals(0, fake.refCount);
+    }
+
+    @Test public void testCopyAndQueryInterface() {
+        IUnknown unknown = fake.wrap(IUnknown.class);
+        assertSame(unknown, ComObject.copy(unknown));
+        assertSame(unknown, unknown.queryInterface(IUnknown.class));
+        assertEquals(1, fake.refCount);
+
+        IOther other = unknown.queryInterface(IOther.class);
+        assertNotSame(unknown, other);
+        assertFalse(unknown.equals(other));
+        assertSame(other, unknown.queryInterface(IOther.class));
+        assertEquals(2, fake.refCount);
+
+        for (int i = 0; i < 3; i++)
+            unknown.dispose();
+        assertEquals(1, fake.refCount);
+        other.dispose();
+        other.dispose();
+        assertEquals(0, fake.refCount);
+    }
+
+    @Test public void testOffMeansNewWrappers() {
+        ComObject.canonicalProxies = false;
+        IUnknown first = fake.wrap(IUnknown.class);
+        IUnknown second = wrapAgain();
+        assertNotSame(first, second);
+        assertFalse(first.equals(second));
+        assertEquals(2, fake.refCount);
+        first.dispose();
+        second.dispose();
+        assertEquals(0, fake.refCount);
+    }
+
+    @Test public void testReflectiveProxiesCompareByIdentity() {
+        boolean stubs = ComObject.compiledStubs;
+        ComObject.compiledStubs = false;
+        try {
+            IUnknown first = fake.wrap(IUnknown.class);
+            assertSame(first, wrapAgain());
+            assertTrue(first.equals(first));
+            assertEquals(System.identityHashCode(first), first.hashCode());
+            first.dispose();
+            first.dispose();
+        } finally {
+            ComObject.compiledStubs = stubs;
+        }
+        assertEquals(0, fake.refCount);
+    }
+
+    @Test public void testCollectedProxyIsForgotten() throws InterruptedException {
+        fake.wrap(IUnknown.class);
+        wrapAgain();
+        assertEquals(1, fake.refCount);
+
+        ReleaseQueueTest.collect(ComObject.getDrainedReleaseCount(), 1);
+        assertEquals(0, fake.refCount);
+        fake.refCount++;
+        IUnknown again = fake.wrap(IUnknown.class);
+        again.dispose();
+        assertEquals(0, fake.refCount);
+    }
+}
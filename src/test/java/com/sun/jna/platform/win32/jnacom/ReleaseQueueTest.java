@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/** @author scott.palmer */
+public class ReleaseQueueTest {
+
+    @Before public void pretendComIsInitialized() {
+        ComObject.comInitialized.set(true);
+    }
+
+    /** Collects garbage until the given number of releases were drained. */
+    static void collect(long drained, int count) throws InterruptedException {
+        for (int i = 0; i < 200 && ComObject.getDrainedReleaseCount() - drained < count; i++) {
+            System.gc();
+            Thread.sleep(10);
+            ComObject.releasePending();
+        }
+    }
+
+    @Test public void testCollectedObjectIsReleased() throws InterruptedException {
+        FakeComObject fake = new FakeComObject();
+        fake.wrap(IUnknown.class).addRef();
+        fake.wrap(IUnknown.class);
+        assertEquals(2, fake.refCount);
+
+        collect(ComObject.getDrainedReleaseCount(), 2);
+        assertEquals(0, fake.refCount);
+    }
+
+    @Test public void testDisposedObjectIsNotReleasedAgain() throws InterruptedException {
+        FakeComObject fake = new FakeComObject();
+        fake.wrap(IUnknown.class).addRef();
+        IUnknown disposed = fake.wrap(IUnknown.class);
+        disposed.dispose();
+        disposed = null;
+        assertEquals(1, fake.refCount);
+
+        collect(ComObject.getDrainedReleaseCount(), 1);
+        // give a wrongly tracked disposed object the chance to be released too
+        System.gc();
+        Thread.sleep(50);
+        ComObject.releasePending();
+        assertEquals(0, fake.refCount);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.jnacom.ComCallableTest.Unknown;
+import com.sun.jna.ptr.PointerByReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Passes SAFEARRAYs to and from a {@link FakeComObject} and an exported
+ * object, with the few oleaut32 functions {@link SafeArray} uses played by
+ * {@link FakeOleAut32}.
+ * @author scott.palmer
+ */
+public class SafeArrayTest {
+
+    /**
+     * Keeps SAFEARRAYs in Java owned memory and counts them.  There is never
+     * any error info; strings and VARIANTs are not supported.
+     */
+    static class FakeOleAut32 implements Natives.OleAut32 {
+        final List<Memory> arrays = new ArrayList<Memory>();
+        int created;
+        int destroyed;
+
+        Pointer create(short vt, int... lengths) {
+            int size = Native.getNativeSize(SafeArray.arrayTypeOf(vt).getComponentType());
+            int dims = lengths.length;
+            int n = 1;
+            for (int l : lengths)
+                n *= l;
+            int header = SafeArray.BOUNDS + 8 * dims;
+            Memory m = new Memory(8 + header + Math.max(1, n * size));
+            arrays.add(m);
+            m.setInt(4, vt);
+            Pointer sa = m.share(8);
+            sa.setShort(0, (short) dims);
+            sa.setShort(SafeArray.FEATURES, SafeArray.FADF_HAVEVARTYPE);
+            sa.setInt(SafeArray.ELEMENT_SIZE, size);
+            sa.setInt(SafeArray.LOCKS, 0);
+            sa.setPointer(SafeArray.DATA, sa.share(header));
+            for (int d = 0; d < dims; d++) {
+                // rightmost dimension first
+                sa.setInt(SafeArray.BOUNDS + 8 * d, lengths[dims - 1 - d]);
+                sa.setInt(SafeArray.BOUNDS + 8 * d + 4, 0);
+            }
+            created++;
+            return sa;
+        }
+
+        public Pointer SafeArrayCreateVector(short vt, int lLbound, int cElements) {
+            return create(vt, cElements);
+        }
+
+        public int SafeArrayLock(Pointer psa) {
+            psa.setInt(SafeArray.LOCKS, psa.getInt(SafeArray.LOCKS) + 1);
+            return 0;
+        }
+
+        public int SafeArrayUnlock(Pointer psa) {
+            int locks = psa.getInt(SafeArray.LOCKS);
+            if (locks == 0)
+                return HResult.E_UNEXPECTED;
+            psa.setInt(SafeArray.LOCKS, locks - 1);
+            return 0;
+        }
+
+        public int SafeArrayDestroy(Pointer psa) {
+            if (psa.getInt(SafeArray.LOCKS) != 0)
+                return 0x8002000D; // DISP_E_ARRAYISLOCKED
+            destroyed++;
+            return 0;
+        }
+
+        public int SafeArrayCopy(Pointer psa, PointerByReference ppsaOut) {
+            int dims = psa.getShort(0);
+            int[] lengths = new int[dims];
+            int n = 1;
+            for (int d = 0; d < dims; d++) {
+                lengths[dims - 1 - d] = psa.getInt(SafeArray.BOUNDS + 8 * d);
+                n *= lengths[dims - 1 - d];
+            }
+            Pointer copy = create((short) psa.getInt(-4), lengths);
+            int bytes = n * psa.getInt(SafeArray.ELEMENT_SIZE);
+            copy.getPointer(SafeArray.DATA).write(0, psa.getPointer(SafeArray.DATA).getByteArray(0, bytes), 0, bytes);
+            ppsaOut.setValue(copy);
+            return 0;
+        }
+
+        public int GetErrorInfo(int dwReserved, PointerByReference pperrinfo) {
+            pperrinfo.setValue(null);
+            return HResult.S_FALSE;
+        }
+
+        public Pointer SysAllocString(String sz) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void SysFreeString(Pointer bstr) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int VariantClear(Pointer pvarg) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @IID("{3D9B5E72-8C14-4A6F-B0E3-71F2C8D4A95B}")
+    public interface IArrays extends IUnknown {
+        @VTID(3)
+        double[] samples();
+        @VTID(4)
+        SafeArray matrix();
+        @VTID(5)
+        double sum(@AsSafeArray double[] values);
+        @VTID(6)
+        int count(SafeArray values);
+    }
+
+    public interface Out extends Callback {
+        int invoke(Pointer self, Pointer out);
+    }
+
+    public interface InOut extends Callback {
+        int invoke(Pointer self, Pointer psa, Pointer out);
+    }
+
+    @IID("{B7416E0C-25DA-4F93-8E1B-C09A3D65F2E8}")
+    public interface IScaler extends IUnknown {
+        @VTID(3)
+        double[] scale(@AsSafeArray double[] values, double factor);
+        @VTID(4)
+        int total(@AsSafeArray int[] values);
+    }
+
+    static class Scaler extends Unknown implements IScaler {
+        public double[] scale(double[] values, double factor) {
+            double[] r = new double[values.length];
+            for (int i = 0; i < r.length; i++)
+                r[i] = values[i] * factor;
+            return r;
+        }
+
+        public int total(int[] values) {
+            int t = 0;
+            for (int v : values)
+                t += v;
+            return t;
+        }
+    }
+
+    final FakeOleAut32 oleaut32 = new FakeOleAut32();
+    int features;
+    final FakeComObject fake = new FakeComObject(
+            new Out() {
+                public int invoke(Pointer self, Pointer out) {
+                    Pointer sa = oleaut32.create(Variant.VT_R8, 3);
+                    sa.getPointer(SafeArray.DATA).write(0, new double[] {0.5, 1.5, 2.5}, 0, 3);
+                    out.setPointer(0, sa);
+                    return 0;
+                }
+            },
+            new Out() {
+                public int invoke(Pointer self, Pointer out) {
+                    Pointer sa = oleaut32.create(Variant.VT_I4, 2, 3);
+                    sa.getPointer(SafeArray.DATA).write(0, new int[] {1, 2, 3, 4, 5, 6}, 0, 6);
+                    out.setPointer(0, sa);
+                    return 0;
+                }
+            },
+            new InOut() {
+                public int invoke(Pointer self, Pointer psa, Pointer out) {
+                    features = psa.getShort(SafeArray.FEATURES);
+                    assertEquals(Variant.VT_R8, psa.getInt(-4));
+                    int n = psa.getInt(SafeArray.BOUNDS);
+                    double[] values = psa.getPointer(SafeArray.DATA).getDoubleArray(0, n);
+                    double sum = 0;
+                    for (double v : values)
+                        sum += v;
+                    out.setDouble(0, sum);
+                    return 0;
+                }
+            },
+            new InOut() {
+                public int invoke(Pointer self, Pointer psa, Pointer out) {
+                    int n = 1;
+                    for (int d = 0; d < psa.getShort(0); d++)
+                        n *= psa.getInt(SafeArray.BOUNDS + 8 * d);
+                    out.setInt(0, n);
+                    return 0;
+                }
+            });
+
+    @Before public void setUp() {
+        ComObject.comInitialized.set(true);
+        Natives.oleaut32 = oleaut32;
+    }
+
+    @After public void tearDown() {
+        Natives.oleaut32 = null;
+    }
+
+    @Test public void testReturnedArrayIsCopiedAndDestroyed() {
+        IArrays a = fake.wrap(IArrays.class);
+        assertEquals(Arrays.toString(new double[] {0.5, 1.5, 2.5}), Arrays.toString(a.samples()));
+        assertEquals(1, oleaut32.created);
+        assertEquals(1, oleaut32.destroyed);
+        a.dispose();
+    }
+
+    @Test public void testReturnedSafeArray() {
+        IArrays a = fake.wrap(IArrays.class);
+        SafeArray m = a.matrix();
+        assertEquals(2, m.getDimensions());
+        assertEquals(2, m.getLength(0));
+        assertEquals(3, m.getLength(1));
+        assertEquals(6, m.getLength());
+        assertEquals(Variant.VT_I4, m.getVarType());
+        assertArrayEquals(new int[] {1, 2, 3, 4, 5, 6}, m.toIntArray());
+
+        ByteBuffer view = m.lockBuffer();
+        assertEquals(24, view.capacity());
+        assertEquals(6, view.getInt(20));
+        view.putInt(0, 10);
+        m.unlock();
+        assertEquals(10, m.toIntArray()[0]);
+
+        try {
+            m.toDoubleArray();
+            fail();
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+        assertEquals(6, a.count(m));
+        m.destroy();
+        assertNull(m.getPointer());
+        assertEquals(1, oleaut32.destroyed);
+        a.dispose();
+    }
+
+    @Test public void testArrayArgument() {
+        IArrays a = fake.wrap(IArrays.class);
+        double[] values = new double[10000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = i;
+        assertEquals(49995000.0, a.sum(values), 0);
+        // built in scratch memory, nothing for oleaut32 to create or free
+        assertEquals(SafeArray.FADF_AUTO | SafeArray.FADF_FIXEDSIZE | SafeArray.FADF_HAVEVARTYPE, features);
+        assertEquals(0, oleaut32.created);
+        a.dispose();
+    }
+
+    @Test public void testExportedArrays() {
+        ComCallable exported = ComCallable.export(new Scaler(), IScaler.class);
+        IScaler s = exported.wrap(IScaler.class);
+        assertEquals(Arrays.toString(new double[] {2, 4, 6}), Arrays.toString(s.scale(new double[] {1, 2, 3}, 2)));
+        assertEquals(1, oleaut32.created);
+        assertEquals(1, oleaut32.destroyed);
+        assertEquals(10, s.total(new int[] {1, 2, 3, 4}));
+        assertEquals(0, s.total(new int[0]));
+        s.dispose();
+        exported.release();
+    }
+
+    @Test public void testCopy() {
+        Pointer psa = oleaut32.create(Variant.VT_I4, 2, 2);
+        psa.getPointer(SafeArray.DATA).write(0, new int[] {1, 2, 3, 4}, 0, 4);
+        SafeArray borrowed = new SafeArray(psa, false);
+        SafeArray copy = borrowed.copy();
+        assertFalse(psa.equals(copy.getPointer()));
+        psa.getPointer(SafeArray.DATA).setInt(0, 9);
+        assertEquals(2, copy.getDimensions());
+        assertArrayEquals(new int[] {1, 2, 3, 4}, copy.toIntArray());
+        borrowed.destroy();
+        assertEquals(0, oleaut32.destroyed);
+        copy.destroy();
+        assertEquals(1, oleaut32.destroyed);
+    }
+
+    @Test public void testVariants() {
+        Memory v = new Memory(Variant.SIZE);
+        v.clear();
+        long mark = StringArena.get().mark();
+        Variant.write(v, 0, new float[] {1, 2});
+        assertEquals(SafeArray.VT_ARRAY | Variant.VT_R4, v.getShort(0));
+        Pointer psa = v.getPointer(Variant.VALUE);
+        assertEquals(Arrays.toString(new float[] {1, 2}), Arrays.toString((float[]) SafeArray.toArray(psa, float[].class)));
+        StringArena.get().reset(mark);
+
+        SafeArray owned = SafeArray.of(new long[] {7, 8, 9});
+        v.clear();
+        Variant.write(v, 0, owned);
+        assertEquals(SafeArray.VT_ARRAY | Variant.VT_I8, v.getShort(0));
+        assertArrayEquals(new long[] {7, 8, 9}, (long[]) Variant.read(v, null));
+        assertEquals(1, oleaut32.destroyed);
+    }
+}
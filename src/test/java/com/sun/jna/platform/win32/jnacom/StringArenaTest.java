@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/** @author scott.palmer */
+public class StringArenaTest {
+
+    public interface StringMethod extends Callback {
+        int invoke(Pointer self, Pointer s, Pointer retval);
+    }
+
+    @IID("{2F6C8E14-7A3B-4D95-B0C1-8E4D2A6F1B39}")
+    public interface IText extends IUnknown {
+        @VTID(3)
+        int wideLength(String s);
+        @VTID(4)
+        int bstrLength(@BSTR String s);
+    }
+
+    static String readWide(Pointer p) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; p.getShort(i) != 0; i += 2)
+            sb.append((char) p.getShort(i));
+        return sb.toString();
+    }
+
+    static String lastString;
+
+    final FakeComObject text = new FakeComObject(
+            new StringMethod() {
+                public int invoke(Pointer self, Pointer s, Pointer retval) {
+                    lastString = readWide(s);
+                    retval.setInt(0, lastString.length());
+                    return 0;
+                }
+            },
+            new StringMethod() {
+                public int invoke(Pointer self, Pointer s, Pointer retval) {
+                    lastString = readWide(s);
+                    retval.setInt(0, s.getInt(-4) / 2);
+                    return 0;
+                }
+            });
+
+    @Before public void pretendComIsInitialized() {
+        ComObject.comInitialized.set(true);
+    }
+
+    @Test public void testStringArguments() {
+        IText t = text.wrap(IText.class);
+        assertEquals(5, t.wideLength("hello"));
+        assertEquals("hello", lastString);
+        assertEquals(6, t.bstrLength("h\u00e9llo!"));
+        assertEquals("h\u00e9llo!", lastString);
+        assertEquals(0, StringArena.get().mark());
+    }
+
+    @Test public void testLongStringOverflowsAndGrowsArena() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+            sb.append((char) ('a' + i % 26));
+        String s = sb.toString();
+        IText t = text.wrap(IText.class);
+        assertEquals(s.length(), t.bstrLength(s));
+        assertEquals(s, lastString);
+        assertEquals(s.length(), t.wideLength(s));
+        assertEquals(s, lastString);
+    }
+
+    @Test public void testNestedMarks() {
+        StringArena arena = StringArena.get();
+        long outer = arena.mark();
+        Pointer a = arena.wide("outer");
+        long inner = arena.mark();
+        Pointer b = arena.wide("inner");
+        arena.reset(inner);
+        Pointer c = arena.wide("again");
+        assertEquals(b, c);
+        assertEquals("outer", readWide(a));
+        arena.reset(outer);
+    }
+
+    @Test public void testScratchIsCapped() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3 * StringArena.MAX_SCRATCH; i++)
+            sb.append(i % 100 == 0 ? "\ud83d\ude00" : "\u00e9");
+        String s = sb.toString();
+        StringArena arena = StringArena.get();
+        long mark = arena.mark();
+        try {
+            assertEquals(s, StringArena.fromWide(arena.wide(s)));
+            assertEquals(s, StringArena.fromBSTR(arena.bstr(s)));
+        } finally {
+            arena.reset(mark);
+        }
+        assertTrue(arena.units.length <= StringArena.MAX_SCRATCH);
+        assertEquals("short", StringArena.fromWide(arena.wide("short")));
+        arena.reset(mark);
+    }
+
+    @Test public void testFromBSTR() {
+        Memory m = new Memory(4 + 8 + 2);
+        m.setInt(0, 8);
+        m.write(4, new short[] {'a', 0, 'b', 'c', 0}, 0, 5);
+        // the length prefix counts, not the NUL
+        assertEquals("a\u0000bc", StringArena.fromBSTR(m.share(4)));
+        assertEquals("", StringArena.fromBSTR(null));
+    }
+}
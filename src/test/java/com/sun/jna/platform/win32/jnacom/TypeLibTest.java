@@ -0,0 +1,246 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.platform.win32.jnacom.TypeLib.Function;
+import com.sun.jna.platform.win32.jnacom.TypeLib.Kind;
+import com.sun.jna.platform.win32.jnacom.TypeLib.TypeInfo;
+import com.sun.jna.platform.win32.jnacom.TypeLib.Variable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Reads type libraries made by {@link TypeLibWriter}, generates Java for
+ * them, compiles it and calls through the result.
+ * @author scott.palmer
+ */
+public class TypeLibTest {
+
+    static final String IID_IDISPATCH = "{00020400-0000-0000-C000-000000000046}";
+    static final String IID_ICALC = "{6D3F0B8A-1C2E-4A57-9B64-2E8F1A7C3D90}";
+    static final String IID_ISHAPES = "{2B7E4D19-8A3C-4F65-B0D2-7C1E9A4F6B38}";
+    static final String CLSID_CALC = "{F1A2B3C4-D5E6-4789-8ABC-DEF012345678}";
+
+    /** Declares twice at the wrong slot; its table has the right one. */
+    @IID("{3C8A1F57-2D4B-4E69-A1C7-5B9E0D2F8A63}")
+    public interface ITabled extends IUnknown {
+        String[] COM_METHODS = {"twice(I) 3"};
+
+        @VTID(99)
+        int twice(int value);
+    }
+
+    @Before public void pretendComIsInitialized() {
+        ComObject.comInitialized.set(true);
+    }
+
+    static byte[] fixture(boolean win64) {
+        TypeLibWriter w = new TypeLibWriter("CalcLib", "{0A1B2C3D-4E5F-4061-8293-A4B5C6D7E8F9}", win64);
+        TypeLibWriter.Info color = w.add(Kind.ENUM, "Color", null)
+                .constant("clrRed", 0).constant("clrGreen", 1).constant("clrBlue", -2)
+                .constant("clrMax", 0x7FFFFFFF);
+        color.size = 4;
+        TypeLibWriter.Info point = w.add(Kind.RECORD, "Point", null)
+                .var("x", TypeLibWriter.simple(Variant.VT_I4), 0, 0)
+                .var("y", TypeLibWriter.simple(Variant.VT_I4), 0, 4);
+        point.size = 8;
+        TypeLibWriter.Info shape = w.add(Kind.RECORD, "Shape", null)
+                .var("origin", w.userDefined(point), 0, 0)
+                .var("data", w.carray(TypeLibWriter.simple(Variant.VT_I4), 4), 0, 8)
+                .var("visible", TypeLibWriter.simple(Variant.VT_BOOL), 0, 24);
+        TypeLibWriter.Info oleColor = w.add(Kind.ALIAS, "OLE_COLOR", null);
+        oleColor.datatype1 = TypeLibWriter.simple(Variant.VT_UI4);
+        TypeLibWriter.Info shapes = w.add(Kind.INTERFACE, "IShapes", IID_ISHAPES);
+        TypeLibWriter.Info calc = w.add(Kind.DISPATCH, "ICalc", IID_ICALC);
+        calc.flags = TypeLib.TYPEFLAG_FDUAL;
+        calc.doc = w.string("A calculator");
+        calc.datatype1 = w.importRef(IID_IDISPATCH);
+        calc.vtableSlots = 15;
+
+        int hresult = TypeLibWriter.simple(TypeLib.VT_HRESULT);
+        int in = TypeLib.PARAMFLAG_FIN;
+        int retval = TypeLib.PARAMFLAG_FOUT | TypeLib.PARAMFLAG_FRETVAL;
+        calc.func("Name", TypeLib.INVOKE_PROPERTYGET, 7, hresult, "The name",
+                "pName", w.ptr(TypeLibWriter.simple(Variant.VT_BSTR)), retval);
+        calc.func(null, TypeLib.INVOKE_PROPERTYPUT, 8, hresult, null,
+                "name", TypeLibWriter.simple(Variant.VT_BSTR), in);
+        calc.func("Add", TypeLib.INVOKE_FUNC, 9, hresult, null,
+                "a", TypeLibWriter.simple(Variant.VT_I4), in, "b", TypeLibWriter.simple(Variant.VT_I4), in,
+                "sum", w.ptr(TypeLibWriter.simple(Variant.VT_I4)), retval);
+        calc.func("Sum", TypeLib.INVOKE_FUNC, 10, hresult, null,
+                "values", w.safeArray(TypeLibWriter.simple(Variant.VT_R8)), in,
+                "sum", w.ptr(TypeLibWriter.simple(Variant.VT_R8)), retval);
+        calc.func("Origin", TypeLib.INVOKE_PROPERTYGET, 11, hresult, null,
+                "p", w.ptr(w.userDefined(point)), retval);
+        calc.func("Shapes", TypeLib.INVOKE_PROPERTYGET, 12, hresult, null,
+                "s", w.ptr(w.ptr(w.userDefined(shapes))), retval);
+        calc.func("Blend", TypeLib.INVOKE_FUNC, 13, hresult, null,
+                "v", TypeLibWriter.simple(TypeLib.VT_VARIANT), in);
+        calc.func("Paint", TypeLib.INVOKE_FUNC, 14, hresult, null,
+                "c", w.userDefined(color), in, "rgb", w.userDefined(oleColor), in);
+
+        shapes.vtableSlots = 6;
+        shapes.func("Count", TypeLib.INVOKE_FUNC, 3, TypeLibWriter.simple(Variant.VT_I4), null);
+        shapes.func("Item", TypeLib.INVOKE_FUNC, 4, hresult, null,
+                "index", TypeLibWriter.simple(Variant.VT_I4), in,
+                "shape", w.ptr(w.userDefined(shape)), TypeLib.PARAMFLAG_FOUT);
+        shapes.func("Release", TypeLib.INVOKE_FUNC, 5, hresult, null);
+
+        w.add(Kind.DISPATCH, "_CalcEvents", "{5A6B7C8D-9E0F-4123-8456-789ABCDEF012}");
+        w.add(Kind.COCLASS, "Calc", CLSID_CALC)
+                .implement(shapes, 0)
+                .implement(calc, TypeLib.IMPLTYPEFLAG_FDEFAULT);
+        return w.toBytes();
+    }
+
+    @Test public void testReadsTypes() throws IOException {
+        TypeLib lib = TypeLib.read(fixture(false));
+        assertEquals("CalcLib", lib.getName());
+        assertEquals("{0A1B2C3D-4E5F-4061-8293-A4B5C6D7E8F9}", lib.getGuid());
+        assertEquals(1, lib.getMajorVersion());
+        assertEquals(4, lib.getPointerSize());
+        assertEquals(8, lib.getTypes().size());
+
+        TypeInfo color = lib.getType("Color");
+        assertEquals(Kind.ENUM, color.getKind());
+        List<Object> values = new ArrayList<Object>();
+        for (Variable v : color.getVariables())
+            values.add(v.getValue());
+        assertEquals(Arrays.<Object>asList(0, 1, -2, 0x7FFFFFFF), values);
+
+        TypeInfo shape = lib.getType("Shape");
+        assertSame(lib.getType("Point"), shape.getVariables().get(0).getType().getTypeInfo());
+        assertEquals(8, shape.getVariables().get(1).getOffset());
+        assertEquals(TypeLib.VT_CARRAY, shape.getVariables().get(1).getType().getVarType());
+        assertEquals(4, shape.getVariables().get(1).getType().getDimensions()[0]);
+
+        TypeInfo calc = lib.getType("ICalc");
+        assertTrue(calc.isDual());
+        assertEquals(IID_ICALC, calc.getGuid());
+        assertEquals("A calculator", calc.getDoc());
+        assertEquals(IID_IDISPATCH, calc.getImplTypes().get(0).getImportedGuid());
+        assertEquals(15, calc.getVtableSlots());
+        Function name = calc.getFunctions().get(0);
+        assertEquals("Name", name.getName());
+        assertEquals("The name", name.getDoc());
+        assertEquals(7, name.getVtableIndex());
+        assertEquals(TypeLib.INVOKE_PROPERTYGET, name.getInvokeKind());
+        assertEquals(Variant.VT_BSTR, name.getParams().get(0).getType().getTarget().getVarType());
+        // the put of a property pair has no name of its own
+        assertEquals("Name", calc.getFunctions().get(1).getName());
+        Function add = calc.getFunctions().get(2);
+        assertEquals(3, add.getParams().size());
+        assertEquals("b", add.getParams().get(1).getName());
+        assertEquals(TypeLib.PARAMFLAG_FOUT | TypeLib.PARAMFLAG_FRETVAL, add.getParams().get(2).getFlags());
+        assertSame(lib.getType("OLE_COLOR"), calc.getFunctions().get(7).getParams().get(1).getType().getTypeInfo());
+
+        TypeInfo coclass = lib.getType("Calc");
+        assertEquals(CLSID_CALC, coclass.getGuid());
+        assertEquals(2, coclass.getImplTypes().size());
+        assertSame(calc, coclass.getImplTypes().get(1).getTypeInfo());
+        assertEquals(TypeLib.IMPLTYPEFLAG_FDEFAULT, coclass.getImplTypeFlags(1));
+    }
+
+    @Test public void testReads64BitAndEmbedded() throws IOException {
+        byte[] tlb = fixture(true);
+        byte[] dll = new byte[0x400 + tlb.length];
+        dll[0] = 'M';
+        dll[1] = 'Z';
+        System.arraycopy(tlb, 0, dll, 0x400, tlb.length);
+        TypeLib lib = TypeLib.read(dll);
+        assertEquals(8, lib.getPointerSize());
+        assertEquals(4, lib.getType("IShapes").getFunctions().get(1).getVtableIndex());
+        assertEquals(15, lib.getType("ICalc").getVtableSlots());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFormats() throws IOException {
+        TypeLib.read("SLTG but not really a type library".getBytes("US-ASCII"));
+    }
+
+    @Test public void testGeneratesSources() throws IOException {
+        TypeLibGenerator g = new TypeLibGenerator(TypeLib.read(fixture(false)), "com.example.calc");
+        Map<String, String> sources = g.generate();
+        assertEquals(Arrays.asList("com.example.calc.Color", "com.example.calc.Point", "com.example.calc.Shape",
+                "com.example.calc.IShapes", "com.example.calc.ICalc", "com.example.calc.Calc"),
+                new ArrayList<String>(sources.keySet()));
+        String calc = sources.get("com.example.calc.ICalc");
+        assertTrue(calc, calc.contains("public interface ICalc extends IDispatch {"));
+        assertTrue(calc, calc.contains("\"setName(Ljava/lang/String;) 8 b0\""));
+        assertTrue(calc, calc.contains("\"sum([D) 10 a0\""));
+        assertTrue(calc, calc.contains("void setName(@BSTR String name);"));
+        assertTrue(calc, calc.contains("void paint(int c, int rgb);"));
+        assertTrue(sources.get("com.example.calc.Shape"),
+                sources.get("com.example.calc.Shape").contains("public int[] data = new int[4];"));
+        assertTrue(g.getSkipped().toString(), g.getSkipped().toString().contains("ICalc.Blend"));
+        assertTrue(g.getSkipped().toString(), g.getSkipped().toString().contains("_CalcEvents"));
+    }
+
+    @Test public void testTableWinsOverAnnotations() {
+        FakeComObject calc = new ComCallTest().calc;
+        ITabled t = calc.wrap(ITabled.class);
+        assertEquals(42, t.twice(21));
+        t.dispose();
+    }
+
+    @Test public void testGeneratedCodeCompilesAndCalls() throws Exception {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        assumeTrue(javac != null);
+        File dir = new File("target/typelib-test");
+        TypeLibGenerator g = new TypeLibGenerator(TypeLib.read(fixture(false)), "com.example.calc");
+        List<String> args = new ArrayList<String>(Arrays.asList("-d", dir.getPath(), "-nowarn", "-classpath",
+                path(IUnknown.class) + File.pathSeparator + path(Pointer.class) + File.pathSeparator
+                + path(com.sun.jna.platform.win32.Guid.class)));
+        for (File f : g.write(dir))
+            args.add(f.getPath());
+        assertEquals(0, javac.run(null, null, null, args.toArray(new String[args.size()])));
+
+        ClassLoader loader = new URLClassLoader(new URL[] {dir.toURI().toURL()}, getClass().getClassLoader());
+        Class<?> shapes = loader.loadClass("com.example.calc.IShapes");
+        assertTrue(IUnknown.class.isAssignableFrom(shapes));
+        assertNotNull(MethodTable.of(shapes).get("count()"));
+        assertNotNull(shapes.getMethod("release_"));
+        assertTrue(Structure.class.isAssignableFrom(shapes.getMethod("item", int.class,
+                loader.loadClass("com.example.calc.Shape")).getParameterTypes()[1]));
+        Class<?> calc = loader.loadClass("com.example.calc.ICalc");
+        assertEquals(String.class, calc.getMethod("getName").getReturnType());
+        assertEquals(int.class, calc.getMethod("add", int.class, int.class).getReturnType());
+        assertEquals(shapes, calc.getMethod("getShapes").getReturnType());
+        assertEquals(CLSID_CALC, loader.loadClass("com.example.calc.Calc").getField("CLSID").get(null));
+        Class<?> color = loader.loadClass("com.example.calc.Color");
+        assertEquals(-2, ((ComEnum) color.getEnumConstants()[2]).comEnumValue());
+
+        // count() returns its value rather than an HRESULT
+        FakeComObject fake = new FakeComObject(new FakeComObject.AddRefOrRelease() {
+            public int invoke(Pointer self) {
+                return 3;
+            }
+        });
+        Object s = ComObject.wrapNativeInterface(fake.object, shapes.asSubclass(IUnknown.class));
+        Method count = shapes.getMethod("count");
+        assertEquals(3, count.invoke(s));
+        ((IUnknown) s).dispose();
+    }
+
+    private static String path(Class<?> c) throws Exception {
+        return new File(c.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+    }
+}
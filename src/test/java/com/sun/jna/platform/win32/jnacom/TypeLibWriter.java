@@ -0,0 +1,299 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes small type libraries in the MSFT format, with the layout MIDL
+ * uses, for {@link TypeLibTest} to read back; there are no .tlb files to
+ * test with off Windows.
+ * @author scott.palmer
+ */
+class TypeLibWriter {
+
+    static final int FUNC_PUREVIRTUAL = 1;
+    static final int CC_STDCALL = 4;
+
+    /** A little endian segment. */
+    static class Segment {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int size() {
+            return out.size();
+        }
+
+        Segment i32(int v) {
+            for (int i = 0; i < 4; i++)
+                out.write(v >>> (8 * i));
+            return this;
+        }
+
+        Segment i16(int v) {
+            out.write(v);
+            out.write(v >>> 8);
+            return this;
+        }
+
+        Segment i64(long v) {
+            return i32((int) v).i32((int) (v >>> 32));
+        }
+
+        Segment bytes(byte[] b) {
+            out.write(b, 0, b.length);
+            return this;
+        }
+
+        Segment pad() {
+            while (out.size() % 4 != 0)
+                out.write(0x57);
+            return this;
+        }
+    }
+
+    class Info {
+        final TypeLib.Kind kind;
+        final int index;
+        final int name;
+        final int guid;
+        int flags;
+        int doc = -1;
+        int size;
+        int datatype1 = -1;
+        int implTypes;
+        int vtableSlots;
+        final Segment records = new Segment();
+        final List<Integer> ids = new ArrayList<Integer>();
+        final List<Integer> names = new ArrayList<Integer>();
+        final List<Integer> offsets = new ArrayList<Integer>();
+        int funcs;
+        int vars;
+
+        Info(TypeLib.Kind kind, String name, String guid) {
+            this.kind = kind;
+            this.index = infos.size();
+            this.name = name(name);
+            this.guid = guid(guid, index * 0x64);
+        }
+
+        /** The HREFTYPE of this type. */
+        int href() {
+            return index * 0x64;
+        }
+
+        /** Adds a function; params are {name, datatype, flags} triples. */
+        Info func(String name, int invkind, int vtid, int returnType, String doc, Object... params) {
+            int n = params.length / 3;
+            offsets.add(records.size());
+            ids.add(0x60020000 + funcs);
+            names.add(name == null ? -1 : name(name));
+            int length = 24 + (doc != null ? 8 : 0) + 12 * n;
+            records.i32(length).i32(returnType).i32(0).i16(vtid * pointerSize).i16(0)
+                    .i32(FUNC_PUREVIRTUAL | invkind << 3 | CC_STDCALL << 8).i16(n).i16(0);
+            if (doc != null)
+                records.i32(0).i32(string(doc));
+            for (int i = 0; i < n; i++)
+                records.i32((Integer) params[3 * i + 1]).i32(name((String) params[3 * i])).i32((Integer) params[3 * i + 2]);
+            funcs++;
+            return this;
+        }
+
+        /** Adds a constant or field: value is the constant, or the offset of a field. */
+        Info var(String name, int type, int varkind, int value) {
+            offsets.add(records.size());
+            ids.add(0x40000000 + vars);
+            names.add(name(name));
+            records.i32(20).i32(type).i32(0).i16(varkind).i16(0).i32(value);
+            vars++;
+            return this;
+        }
+
+        Info constant(String name, int value) {
+            int v;
+            if (value >= 0 && value < 0x4000000) {
+                v = 0x80000000 | Variant.VT_I4 << 26 | value;
+            } else {
+                v = custData.size();
+                custData.i16(Variant.VT_I4).i32(value).pad();
+            }
+            return var(name, simple(Variant.VT_I4), TypeLib.VAR_CONST, v);
+        }
+
+        /** Adds an interface a coclass implements. */
+        Info implement(Info intf, int flags) {
+            int ref = 16 * refRecords.size();
+            if (datatype1 == -1)
+                datatype1 = ref;
+            else
+                // link the previous record to this one
+                refRecords.get(refRecords.size() - 1)[3] = ref;
+            refRecords.add(new int[] {intf.href(), flags, -1, -1});
+            implTypes++;
+            return this;
+        }
+    }
+
+    static final Charset ANSI = Charset.forName("ISO-8859-1");
+
+    final int pointerSize;
+    final List<Info> infos = new ArrayList<Info>();
+    final Segment impInfo = new Segment();
+    final Segment impFiles = new Segment();
+    /** the records of the reference table: HREFTYPE, flags, custom data, next */
+    final List<int[]> refRecords = new ArrayList<int[]>();
+    final Segment guidTab = new Segment();
+    final Segment nameTab = new Segment();
+    final Segment stringTab = new Segment();
+    final Segment typeDescs = new Segment();
+    final Segment arrayDescs = new Segment();
+    final Segment custData = new Segment();
+    final int libName;
+    final int libGuid;
+
+    TypeLibWriter(String name, String guid, boolean win64) {
+        pointerSize = win64 ? 8 : 4;
+        libGuid = guid(guid, -2);
+        libName = name(name);
+    }
+
+    Info add(TypeLib.Kind kind, String name, String guid) {
+        Info i = new Info(kind, name, guid);
+        infos.add(i);
+        return i;
+    }
+
+    int name(String s) {
+        int offset = nameTab.size();
+        nameTab.i32(-1).i32(-1).i32(s.length() | 0x3800 << 16).bytes(s.getBytes(ANSI)).pad();
+        return offset;
+    }
+
+    int string(String s) {
+        int offset = stringTab.size();
+        stringTab.i16(s.length()).bytes(s.getBytes(ANSI)).pad();
+        return offset;
+    }
+
+    int guid(String s, int href) {
+        if (s == null)
+            return -1;
+        int offset = guidTab.size();
+        String h = s.replace("{", "").replace("}", "").replace("-", "");
+        guidTab.i32((int) Long.parseLong(h.substring(0, 8), 16))
+                .i16(Integer.parseInt(h.substring(8, 12), 16)).i16(Integer.parseInt(h.substring(12, 16), 16));
+        for (int i = 16; i < 32; i += 2)
+            guidTab.bytes(new byte[] {(byte) Integer.parseInt(h.substring(i, i + 2), 16)});
+        guidTab.i32(href).i32(-1);
+        return offset;
+    }
+
+    /** A built in type, as MIDL writes it in place of a TYPEDESC offset. */
+    static int simple(int vt) {
+        return 0x80000000 | vt << 16 | vt;
+    }
+
+    private int typeDesc(int vt, int ref) {
+        int offset = typeDescs.size();
+        typeDescs.i16(vt).i16(vt == TypeLib.VT_USERDEFINED ? 0 : 0x7FFE).i32(ref);
+        return offset;
+    }
+
+    int ptr(int type) {
+        return typeDesc(TypeLib.VT_PTR, type);
+    }
+
+    int safeArray(int type) {
+        return typeDesc(TypeLib.VT_SAFEARRAY, type);
+    }
+
+    int userDefined(Info info) {
+        return typeDesc(TypeLib.VT_USERDEFINED, info.href());
+    }
+
+    int carray(int type, int count) {
+        int offset = arrayDescs.size();
+        arrayDescs.i32(type).i16(1).i16(0).i32(count).i32(0);
+        return typeDesc(TypeLib.VT_CARRAY, offset);
+    }
+
+    /** The HREFTYPE of a type imported from another library, known by its GUID. */
+    int importRef(String guid) {
+        if (impFiles.size() == 0)
+            impFiles.i32(guid("{00020430-0000-0000-C000-000000000046}", -1)).i32(0).i16(2 << 2).bytes(new byte[2]);
+        int offset = impInfo.size();
+        impInfo.i32(0x10000 | TypeLib.Kind.DISPATCH.ordinal() << 24).i32(0).i32(guid(guid, offset | 1));
+        return offset | 1;
+    }
+
+    int imported(String guid) {
+        return typeDesc(TypeLib.VT_USERDEFINED, importRef(guid));
+    }
+
+    byte[] toBytes() {
+        Segment members = new Segment();
+        int[] memoffsets = new int[infos.size()];
+        Segment[] blocks = new Segment[infos.size()];
+        for (Info i : infos) {
+            Segment b = new Segment();
+            byte[] r = i.records.out.toByteArray();
+            b.i32(r.length).bytes(r);
+            for (int id : i.ids)
+                b.i32(id);
+            for (int n : i.names)
+                b.i32(n);
+            for (int o : i.offsets)
+                b.i32(o);
+            blocks[i.index] = b;
+        }
+        Segment refs = new Segment();
+        for (int[] r : refRecords)
+            refs.i32(r[0]).i32(r[1]).i32(r[2]).i32(r[3]);
+
+        Segment[] segments = {new Segment(), impInfo, impFiles, refs, new Segment(), guidTab,
+                new Segment(), nameTab, stringTab, typeDescs, arrayDescs, custData,
+                new Segment(), new Segment(), new Segment()};
+        int header = 0x54 + 4 * infos.size() + 16 * segments.length;
+        int typeInfoTab = header;
+        int offset = typeInfoTab + 0x64 * infos.size();
+        int[] segOffsets = new int[segments.length];
+        segOffsets[0] = typeInfoTab;
+        for (int s = 1; s < segments.length; s++) {
+            segOffsets[s] = segments[s].size() == 0 ? -1 : offset;
+            offset += segments[s].size();
+        }
+        for (Info i : infos) {
+            if (i.funcs + i.vars > 0) {
+                memoffsets[i.index] = offset + members.size();
+                members.bytes(blocks[i.index].out.toByteArray());
+            } else {
+                memoffsets[i.index] = -1;
+            }
+        }
+
+        Segment out = new Segment();
+        out.i32(TypeLib.MAGIC).i32(TypeLib.VERSION).i32(libGuid).i32(0x409).i32(0)
+                .i32(pointerSize == 8 ? 3 : 1).i32(1).i32(0).i32(infos.size())
+                .i32(-1).i32(0).i32(0).i32(0).i32(0).i32(libName).i32(-1).i32(-1).i32(0x20).i32(0x80)
+                .i32(-1).i32(impInfo.size() / 12);
+        for (Info i : infos)
+            out.i32(i.index * 0x64);
+        for (int s = 0; s < segments.length; s++)
+            out.i32(segOffsets[s]).i32(s == 0 ? 0x64 * infos.size() : segments[s].size()).i32(-1).i32(0x0F);
+        for (Info i : infos) {
+            out.i32(i.kind.ordinal() | 2 << 11).i32(memoffsets[i.index]).i32(0).i32(0).i32(-1).i32(0)
+                    .i32(i.funcs | i.vars << 16).i32(0).i32(0).i32(0).i32(0).i32(i.guid)
+                    .i32(i.flags).i32(i.name).i32(1).i32(i.doc).i32(0).i32(0).i32(-1)
+                    .i16(i.implTypes).i16(i.vtableSlots * pointerSize).i32(i.size).i32(i.datatype1)
+                    .i32(-1).i32(0).i32(-1);
+        }
+        for (int s = 1; s < segments.length; s++)
+            out.bytes(segments[s].out.toByteArray());
+        out.bytes(members.out.toByteArray());
+        return out.out.toByteArray();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011 Digital Rapids Corporation.
+ */
+
+package com.sun.jna.platform.win32.jnacom;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.WString;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.lang.foreign.ValueLayout.*;
+import static org.junit.Assert.*;
+
+/**
+ * Calls through the java.lang.foreign invoker into an object whose vtable
+ * is made of upcall stubs, so it runs on any platform with Java 22.
+ * @author scott.palmer
+ */
+public class ForeignInvokerTest {
+
+    @IID("{9A3E61C4-0D7B-4F25-8E19-B62C4F0D7A38}")
+    public interface ITyped extends IUnknown {
+        @VTID(3)
+        int twice(int value);
+        @VTID(4)
+        @NoHResult
+        long shifted(long value);
+        @VTID(5)
+        @NoHResult
+        double half(double value);
+        @VTID(6)
+        int flag(boolean value);
+        @VTID(7)
+        int untyped(WString value);
+    }
+
+    static int refCount;
+
+    static int queryInterface(MemorySegment self, MemorySegment riid, MemorySegment ppv) {
+        return HResult.E_NOINTERFACE;
+    }
+
+    static int addRef(MemorySegment self) {
+        return ++refCount;
+    }
+
+    static int release(MemorySegment self) {
+        return --refCount;
+    }
+
+    static int twice(MemorySegment self, int value, MemorySegment retval) {
+        retval.reinterpret(4).set(JAVA_INT, 0, 2 * value);
+        return HResult.S_OK;
+    }
+
+    static long shifted(MemorySegment self, long value) {
+        return value << 32;
+    }
+
+    static double half(MemorySegment self, double value) {
+        return value / 2;
+    }
+
+    static int flag(MemorySegment self, int value, MemorySegment retval) {
+        retval.reinterpret(4).set(JAVA_INT, 0, value);
+        return HResult.S_OK;
+    }
+
+    static int untyped(MemorySegment self, MemorySegment value, MemorySegment retval) {
+        retval.reinterpret(4).set(JAVA_INT, 0, value.address() == 0 ? 0 : 7);
+        return HResult.S_OK;
+    }
+
+    final Arena arena = Arena.ofShared();
+    ComInvoker was;
+    Pointer object;
+
+    MemorySegment stub(String name, FunctionDescriptor fd) throws ReflectiveOperationException {
+        return Linker.nativeLinker().upcallStub(
+                MethodHandles.lookup().findStatic(ForeignInvokerTest.class, name, fd.toMethodType()), fd, arena);
+    }
+
+    @Before public void fakeObject() throws ReflectiveOperationException {
+        ComObject.comInitialized.set(true);
+        was = ComInvoker.instance;
+        ComInvoker.instance = ComInvoker.load(true);
+        MemorySegment[] slots = {
+            stub("queryInterface", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS)),
+            stub("addRef", FunctionDescriptor.of(JAVA_INT, ADDRESS)),
+            stub("release", FunctionDescriptor.of(JAVA_INT, ADDRESS)),
+            stub("twice", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, ADDRESS)),
+            stub("shifted", FunctionDescriptor.of(JAVA_LONG, ADDRESS, JAVA_LONG)),
+            stub("half", FunctionDescriptor.of(JAVA_DOUBLE, ADDRESS, JAVA_DOUBLE)),
+            stub("flag", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, ADDRESS)),
+            stub("untyped", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS)),
+        };
+        MemorySegment vtable = arena.allocate(ADDRESS, slots.length);
+        for (int i = 0; i < slots.length; i++)
+            vtable.setAtIndex(ADDRESS, i, slots[i]);
+        MemorySegment o = arena.allocate(ADDRESS);
+        o.set(ADDRESS, 0, vtable);
+        object = new Pointer(o.address());
+        refCount = 1;
+    }
+
+    @After public void restoreInvoker() {
+        ComInvoker.instance = was;
+    }
+
+    static Object linkage(String name, Class<?>... params) throws NoSuchMethodException {
+        return ComMethod.of(ITyped.class.getMethod(name, params)).linkage;
+    }
+
+    @Test public void testForeignInvokerIsLoaded() {
+        assertEquals(ComInvoker.FOREIGN, ComInvoker.instance.getClass().getName());
+    }
+
+    @Test public void testTypedCalls() throws NoSuchMethodException {
+        ITyped t = ComObject.wrapNativeInterface(object, ITyped.class);
+        assertEquals(42, t.twice(21));
+        assertEquals(-2, t.twice(-1));
+        assertEquals(3L << 32, t.shifted(3));
+        assertEquals(1.5, t.half(3.0), 0);
+        // true as JNA passes it
+        assertEquals(-1, t.flag(true));
+        assertEquals(0, t.flag(false));
+        // all called through their downcall handles
+        assertEquals("Linkage", linkage("twice", Integer.TYPE).getClass().getSimpleName());
+        assertEquals("Linkage", linkage("flag", Boolean.TYPE).getClass().getSimpleName());
+        assertEquals("Linkage", linkage("shifted", Long.TYPE).getClass().getSimpleName());
+        assertEquals("Linkage", linkage("half", Double.TYPE).getClass().getSimpleName());
+        t.dispose();
+        assertEquals(0, refCount);
+    }
+
+    @Test public void testUntypedArgumentIsLeftToJna() throws NoSuchMethodException {
+        ITyped t = ComObject.wrapNativeInterface(object, ITyped.class);
+        assertEquals(7, t.untyped(new WString("x")));
+        assertEquals(Object.class, linkage("untyped", WString.class).getClass());
+        // still JNA, even for an argument the foreign invoker could pass
+        assertEquals(0, t.untyped(null));
+        t.dispose();
+    }
+}